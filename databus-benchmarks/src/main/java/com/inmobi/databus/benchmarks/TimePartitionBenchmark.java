@@ -0,0 +1,95 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.benchmarks;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.inmobi.databus.utils.CalendarHelper;
+import com.inmobi.databus.utils.TimePartitionCodec;
+
+/*
+ * Formatting and parsing of yyyy/MM/dd/HH/mm/ partitions, the codec against
+ * a SimpleDateFormat per thread as CalendarHelper used to share one.
+ * "Now" formats the current minute as services do every run, "Spread"
+ * formats minutes over a week so most miss the codec's cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimePartitionBenchmark {
+  private static final long WEEK = 7 * 24 * 60 * 60 * 1000L;
+
+  private final TimePartitionCodec codec = TimePartitionCodec.DEFAULT;
+  private final SimpleDateFormat format = new SimpleDateFormat(
+      "yyyy/MM/dd/HH/mm/");
+  private long now;
+  private long spread;
+  private String path;
+
+  @Setup
+  public void setup() {
+    now = System.currentTimeMillis();
+    spread = now;
+    path = CalendarHelper.getDateAsYYYYMMDDHHMNPath(now);
+  }
+
+  @Benchmark
+  public String formatNowCodec() {
+    return codec.toMinutePath(now);
+  }
+
+  @Benchmark
+  public String formatNowSimpleDateFormat() {
+    return format.format(new Date(now));
+  }
+
+  @Benchmark
+  public String formatSpreadCodec() {
+    spread = spread + 61 * 1000L > now + WEEK ? now : spread + 61 * 1000L;
+    return codec.toMinutePath(spread);
+  }
+
+  @Benchmark
+  public String formatSpreadSimpleDateFormat() {
+    spread = spread + 61 * 1000L > now + WEEK ? now : spread + 61 * 1000L;
+    return format.format(new Date(spread));
+  }
+
+  @Benchmark
+  public long parseCodec() {
+    return codec.parse(path);
+  }
+
+  @Benchmark
+  public long parseSimpleDateFormat() throws ParseException {
+    return format.parse(path).getTime();
+  }
+}
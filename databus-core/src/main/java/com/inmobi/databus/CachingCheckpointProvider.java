@@ -0,0 +1,190 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/*
+ * Serves reads from memory after a one time readAll of the wrapped provider.
+ * Writes go through to the wrapped provider, or with a writeBehindInMs are
+ * coalesced and flushed as one transaction every writeBehindInMs.
+ * Only the leader may write, so on a leadership change the owner calls
+ * setWritable and invalidate, another leader may have written meanwhile.
+ */
+public class CachingCheckpointProvider implements CheckpointProvider {
+  private static final Log LOG = LogFactory.getLog(
+      CachingCheckpointProvider.class);
+
+  private final CheckpointProvider provider;
+  private final long writeBehindInMs;
+  private final Map<String, byte[]> cache = new HashMap<String, byte[]>();
+  private Map<String, byte[]> pending = new HashMap<String, byte[]>();
+  private final Object flushLock = new Object();
+  private boolean loaded = false;
+  private volatile boolean writable = true;
+  private Thread flusher;
+
+  public CachingCheckpointProvider(CheckpointProvider provider) {
+    this(provider, 0);
+  }
+
+  /*
+   * @param writeBehindInMs - 0 writes through
+   */
+  public CachingCheckpointProvider(CheckpointProvider provider,
+      long writeBehindInMs) {
+    this.provider = provider;
+    this.writeBehindInMs = writeBehindInMs;
+    if (writeBehindInMs > 0) {
+      flusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (!Thread.currentThread().isInterrupted()) {
+            try {
+              Thread.sleep(CachingCheckpointProvider.this.writeBehindInMs);
+            } catch (InterruptedException e) {
+              return;
+            }
+            try {
+              flush();
+            } catch (RuntimeException e) {
+              LOG.warn("Checkpoint flush failed, retrying in ["
+                  + CachingCheckpointProvider.this.writeBehindInMs + "] ms", e);
+            }
+          }
+        }
+      }, "CheckpointFlusher");
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+  }
+
+  private void ensureLoaded() {
+    if (!loaded) {
+      Map<String, byte[]> all = provider.readAll();
+      for (Map.Entry<String, byte[]> entry : all.entrySet()) {
+        if (!pending.containsKey(entry.getKey()))
+          cache.put(entry.getKey(), entry.getValue());
+      }
+      loaded = true;
+      LOG.info("Loaded [" + all.size() + "] checkpoints");
+    }
+  }
+
+  @Override
+  public synchronized byte[] read(String key) {
+    ensureLoaded();
+    return cache.get(key);
+  }
+
+  @Override
+  public synchronized Map<String, byte[]> readAll() {
+    ensureLoaded();
+    return new HashMap<String, byte[]>(cache);
+  }
+
+  @Override
+  public void checkpoint(String key, byte[] checkpoint) {
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put(key, checkpoint);
+    checkpoint(checkpoints);
+  }
+
+  @Override
+  public void checkpoint(Map<String, byte[]> checkpoints) {
+    if (!writable) {
+      LOG.warn("Not the leader, dropping checkpoint of "
+          + checkpoints.keySet());
+      return;
+    }
+    if (writeBehindInMs > 0) {
+      synchronized (this) {
+        pending.putAll(checkpoints);
+        cache.putAll(checkpoints);
+      }
+      return;
+    }
+    synchronized (flushLock) {
+      provider.checkpoint(checkpoints);
+    }
+    synchronized (this) {
+      cache.putAll(checkpoints);
+    }
+  }
+
+  /*
+   * Writes the pending checkpoints as one transaction, on failure they are
+   * kept unless overwritten meanwhile
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<String, byte[]> batch;
+      synchronized (this) {
+        if (pending.isEmpty() || !writable)
+          return;
+        batch = pending;
+        pending = new HashMap<String, byte[]>();
+      }
+      try {
+        provider.checkpoint(batch);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          if (writable) {
+            for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+              if (!pending.containsKey(entry.getKey()))
+                pending.put(entry.getKey(), entry.getValue());
+            }
+          }
+        }
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Drops the cache and the unflushed checkpoints, the next read reloads.
+   * A local store catches up with its mirror first.
+   */
+  public void invalidate() {
+    synchronized (flushLock) {
+      synchronized (this) {
+        if (!pending.isEmpty())
+          LOG.warn("Discarding unflushed checkpoints of " + pending.keySet());
+        pending.clear();
+        cache.clear();
+        loaded = false;
+      }
+      if (provider instanceof LocalLogCheckpointProvider)
+        ((LocalLogCheckpointProvider) provider).syncFromMirror();
+    }
+  }
+
+  public void setWritable(boolean writable) {
+    this.writable = writable;
+  }
+
+  @Override
+  public void close() {
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+    flush();
+    provider.close();
+  }
+
+}
@@ -13,6 +13,8 @@
 */
 package com.inmobi.databus;
 
+import java.util.Map;
+
 /*
  * Interface to store and retrieve checkpoints.
  */
@@ -29,6 +31,17 @@ public interface CheckpointProvider {
    */
   void checkpoint(String key, byte[] checkpoint);
 
+  /*
+   * Stores the checkpoints of all the given keys as one transaction, either
+   * all of them are stored or none.
+   */
+  void checkpoint(Map<String, byte[]> checkpoints);
+
+  /*
+   * Reads the checkpoints of all the keys stored by this provider.
+   */
+  Map<String, byte[]> readAll();
+
   /*
    * Closes the provider.
    */
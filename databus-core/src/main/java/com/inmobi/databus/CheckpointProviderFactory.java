@@ -44,6 +44,33 @@ public class CheckpointProviderFactory {
   }
 
 
+  /*
+   * @param providerName - class of the provider with a (String dir)
+   * constructor, eg: com.inmobi.databus.zookeeper.ZKCheckpointProvider
+   */
+  public static CheckpointProvider create(String providerName, String dir)
+      throws Exception {
+    return create(providerName, dir, null, 0);
+  }
+
+  /*
+   * @param mirrorDir - null for none, else the provider needs a (String dir,
+   * String mirrorDir, long mirrorIntervalInMs) constructor, eg:
+   * com.inmobi.databus.LocalLogCheckpointProvider
+   */
+  public static CheckpointProvider create(String providerName, String dir,
+      String mirrorDir, long mirrorIntervalInMs) throws Exception {
+    Class providerClass = Class.forName(providerName);
+    if (mirrorDir == null) {
+      Constructor constructor = providerClass.getConstructor(String.class);
+      return (CheckpointProvider) constructor.newInstance(new Object[] {dir});
+    }
+    Constructor constructor = providerClass.getConstructor(String.class,
+        String.class, long.class);
+    return (CheckpointProvider) constructor.newInstance(new Object[] {dir,
+        mirrorDir, mirrorIntervalInMs});
+  }
+
   private static CheckpointProvider getProvider(InputStream in) throws Exception{
     CheckpointProvider provider = null;
     BufferedReader reader = new BufferedReader(new InputStreamReader(in));
@@ -51,8 +78,7 @@ public class CheckpointProviderFactory {
       String line;
       String providerName = null;
       String providerDir = null;
-      do {
-        line = reader.readLine();
+      while ((line = reader.readLine()) != null) {
         String[] keyVal = line.split("=");
         if (keyVal != null && keyVal.length == 2 && keyVal[0].equalsIgnoreCase
         (CHECKPOINT_PROVIDER)) {
@@ -64,13 +90,10 @@ public class CheckpointProviderFactory {
         (CHECKPOINT_PROVIDER_DIR)) {
           providerDir = keyVal[1];
         }
-      } while (line != null);
+      }
 
       if (providerName != null && providerDir != null){
-        Class providerClass = Class.forName(providerName);
-        Constructor constructor = providerClass.getConstructor(String.class);
-        provider = (CheckpointProvider) constructor.newInstance(new Object[]
-        {providerDir});
+        provider = create(providerName, providerDir);
       }
     } catch (Exception e) {
       //return default provider
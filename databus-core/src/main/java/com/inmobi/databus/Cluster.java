@@ -16,12 +16,21 @@ package com.inmobi.databus;
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import com.inmobi.databus.utils.CalendarHelper;
@@ -32,9 +41,19 @@ public class Cluster {
   private final String clustername;
   private final String clusterjobqueuename;
   private final Configuration hadoopConf = new Configuration();
+  private final boolean bundleTransfer;
+  private final long bundleSizeInBytes;
+  private static final long DEFAULT_BUNDLE_SIZE_IN_MB = 256;
+  private final FileSystemRegistry fileSystemRegistry;
+  // <root path>/, path of getRootDir() without the filesystem
+  private final String rootPath;
+  private static final int COMMIT_LOCK_STRIPES = 64;
+  private final Lock[] commitLocks = new Lock[COMMIT_LOCK_STRIPES];
+  private final AtomicLong lastCommitTime = new AtomicLong();
 
   private final Set<String> sourceStreams = new HashSet<String>();
   private final Set<String> destinationStreams = new HashSet<String>();
+  private final Map<String, TransferPolicy> transferPolicies = new HashMap<String, TransferPolicy>();
 
   public Cluster(Map<String, String> clusterConfiguration)
       throws Exception {
@@ -54,6 +73,29 @@ public class Cluster {
     this.hadoopConf.set("databus.tmp.path", getTmpPath().toString());
     this.hadoopConf.set("fs.default.name", hdfsUrl);
     this.hadoopConf.set("mapred.job.queue.name", clusterjobqueuename);
+    this.bundleTransfer = Boolean.parseBoolean(clusterConfiguration
+        .get(DatabusConfigParser.BUNDLE_TRANSFER));
+    String bundleSize = clusterConfiguration
+        .get(DatabusConfigParser.BUNDLE_SIZE_IN_MB);
+    this.bundleSizeInBytes = (bundleSize == null ? DEFAULT_BUNDLE_SIZE_IN_MB
+        : Long.parseLong(bundleSize)) * 1024 * 1024;
+    String fsConcurrency = clusterConfiguration
+        .get(DatabusConfigParser.FS_CONCURRENCY);
+    String fsOpsPerSecond = clusterConfiguration
+        .get(DatabusConfigParser.FS_OPS_PER_SECOND);
+    this.rootPath = new Path(getRootDir()).toUri().getPath() + File.separator;
+    this.fileSystemRegistry = new FileSystemRegistry(new Path(hdfsUrl)
+        .toUri(), hadoopConf, fsConcurrency == null ? 0 : Integer
+        .parseInt(fsConcurrency), fsOpsPerSecond == null ? 0 : Double
+        .parseDouble(fsOpsPerSecond), new FileSystemRegistry.StreamResolver() {
+          @Override
+          public String getStream(Path path) {
+            return getStreamOfPath(path);
+          }
+        });
+    for (int i = 0; i < commitLocks.length; i++) {
+      commitLocks[i] = new ReentrantLock();
+    }
   }
 
   private void Validate(String element, String objType) throws ParseException {
@@ -66,6 +108,36 @@ public class Cluster {
     return hdfsUrl + File.separator + rootDir + File.separator;
   }
 
+  /*
+   * @returns String - stream whose data, local stream or merged stream dir,
+   * or archive of them, holds path, null if none does
+   */
+  public String getStreamOfPath(Path path) {
+    String pathName = path.toUri().getPath();
+    if (!pathName.startsWith(rootPath))
+      return null;
+    int start = rootPath.length();
+    int end = pathName.indexOf('/', start);
+    if (end < 0)
+      return null;
+    String dir = pathName.substring(start, end);
+    if (dir.equals("archive")) {
+      start = end + 1;
+      end = pathName.indexOf('/', start);
+      if (end < 0)
+        return null;
+      dir = pathName.substring(start, end);
+    }
+    if (!dir.equals("data") && !dir.equals("streams")
+        && !dir.equals("streams_local"))
+      return null;
+    start = end + 1;
+    end = pathName.indexOf('/', start);
+    String stream = end < 0 ? pathName.substring(start) : pathName.substring(
+        start, end);
+    return stream.length() == 0 ? null : stream;
+  }
+
   public String getLocalFinalDestDirRoot() {
     String dest = getRootDir() + "streams_local" + File.separator;
     return dest;
@@ -84,8 +156,46 @@ public class Cluster {
     return dest;
   }
 
-  public synchronized long getCommitTime() {
-    return (long) System.currentTimeMillis();
+  /*
+   * Never goes back, so a commit holding the locks of its streams never
+   * lands in an older minute than the commits before it
+   */
+  public long getCommitTime() {
+    long now = System.currentTimeMillis();
+    while (true) {
+      long last = lastCommitTime.get();
+      if (now <= last)
+        return last;
+      if (lastCommitTime.compareAndSet(last, now))
+        return now;
+    }
+  }
+
+  /*
+   * Commits into this cluster of the same stream are serialized, of other
+   * streams run in parallel unless they share a stripe. Stripes are locked
+   * in order so that commits of several streams can't deadlock.
+   * @returns List<Lock> - to be passed to unlockStreams
+   */
+  public List<Lock> lockStreams(Collection<String> streams) {
+    Set<Integer> stripes = new TreeSet<Integer>();
+    for (String stream : streams) {
+      stripes.add((stream.hashCode() & Integer.MAX_VALUE)
+          % COMMIT_LOCK_STRIPES);
+    }
+    List<Lock> locks = new ArrayList<Lock>(stripes.size());
+    for (int stripe : stripes) {
+      Lock lock = commitLocks[stripe];
+      lock.lock();
+      locks.add(lock);
+    }
+    return locks;
+  }
+
+  public void unlockStreams(List<Lock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
   }
 
   public String getHdfsUrl() {
@@ -96,6 +206,21 @@ public class Cluster {
     return hadoopConf;
   }
 
+  /*
+   * Shared handle of this cluster's filesystem, closed by closeFileSystem()
+   */
+  public FileSystem getFileSystem() throws IOException {
+    return fileSystemRegistry.get();
+  }
+
+  public FileSystemRegistry getFileSystemRegistry() {
+    return fileSystemRegistry;
+  }
+
+  public void closeFileSystem() {
+    fileSystemRegistry.close();
+  }
+
   public String getName() {
     return clustername;
   }
@@ -133,6 +258,13 @@ public class Cluster {
     return dest;
   }
 
+  /*
+   * Cold copies of streams and streams_local moved out by a tier policy
+   */
+  public String getArchiveDirRoot() {
+    return getRootDir() + "archive" + File.separator;
+  }
+
   public Path getTrashPath() {
     return new Path(getSystemDir() + File.separator + "trash");
   }
@@ -161,6 +293,27 @@ public class Cluster {
         + File.separator + cluster.getName());
   }
 
+  /*
+   * Bundles packed by this cluster for a consumer which pulls its partial
+   * streams in bundle mode
+   */
+  public Path getBundlePath(Cluster cluster) {
+    return new Path(getSystemDir() + File.separator + "bundles"
+        + File.separator + cluster.getName());
+  }
+
+  /*
+   * true if remote clusters should pack partial streams into bundles before
+   * this cluster pulls them
+   */
+  public boolean isBundleTransfer() {
+    return bundleTransfer;
+  }
+
+  public long getBundleSizeInBytes() {
+    return bundleSizeInBytes;
+  }
+
   public Path getTmpPath() {
     return new Path(getSystemDir() + File.separator + "tmp");
   }
@@ -192,4 +345,18 @@ public class Cluster {
   public Set<String> getDestinationStreams() {
     return destinationStreams;
   }
+
+  public void addTransferPolicy(TransferPolicy policy) {
+    transferPolicies.put(policy.getRemoteClusterName(), policy);
+  }
+
+  /*
+   * Limits for pulls from remoteCluster into this cluster
+   */
+  public TransferPolicy getTransferPolicy(Cluster remoteCluster) {
+    TransferPolicy policy = transferPolicies.get(remoteCluster.getName());
+    if (policy == null)
+      policy = new TransferPolicy(remoteCluster.getName(), 0);
+    return policy;
+  }
 }
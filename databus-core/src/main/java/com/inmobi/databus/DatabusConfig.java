@@ -40,4 +40,14 @@ public class DatabusConfig {
     return defaults;
   }
 
+  public int getIntDefault(String name, int defaultValue) {
+    String value = defaults.get(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public long getLongDefault(String name, long defaultValue) {
+    String value = defaults.get(name);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
 }
@@ -26,6 +26,7 @@ import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 public class DatabusConfigParser implements DatabusConfigParserTags {
@@ -99,12 +100,28 @@ public class DatabusConfigParser implements DatabusConfigParserTags {
       }
       defaults.put(TRASH_RETENTION_IN_HOURS, trashretention);
 
+      readOptionalDefaults((Element) configList.item(0));
+
       logger.debug("rootDir = " + rootDir + " global retentionInHours "
           + defaultRetentionInHours + " global trashretentionInHours "
           + defaultTrashRetentionInHours);
     }
   }
 
+  /*
+   * Optional tunables of the services are kept as is, services parse them
+   */
+  private void readOptionalDefaults(Element el) {
+    NodeList children = el.getChildNodes();
+    for (int i = 0; i < children.getLength(); i++) {
+      Node child = children.item(i);
+      if (child.getNodeType() != Node.ELEMENT_NODE
+          || defaults.containsKey(child.getNodeName()))
+        continue;
+      defaults.put(child.getNodeName(), child.getTextContent().trim());
+    }
+  }
+
   private void readAllClusters(Element docEle) throws Exception {
     NodeList tmpClusterList = docEle.getElementsByTagName(CLUSTER);
     if (tmpClusterList != null && tmpClusterList.getLength() > 0) {
@@ -139,7 +156,24 @@ public class DatabusConfigParser implements DatabusConfigParserTags {
 
     clusterConfiguration.put(ROOTDIR, cRootDir);
 
-    return new Cluster(clusterConfiguration);
+    Cluster cluster = new Cluster(clusterConfiguration);
+    readTransferPolicies(cluster, el);
+    return cluster;
+  }
+
+  private void readTransferPolicies(Cluster cluster, Element el) {
+    NodeList remoteList = el.getElementsByTagName(REMOTE);
+    for (int i = 0; i < remoteList.getLength(); i++) {
+      Element remote = (Element) remoteList.item(i);
+      String remoteName = getTextValue(remote, NAME);
+      int maxCopyStreams = getIntValue(remote, MAX_COPY_STREAMS, 0);
+      int bandwidthInMBps = getIntValue(remote, BANDWIDTH_IN_MBPS, 0);
+      logger.info("Cluster " + cluster.getName() + " pulls from remote "
+          + remoteName + " maxCopyStreams " + maxCopyStreams
+          + " bandwidthInMBps " + bandwidthInMBps);
+      cluster.addTransferPolicy(new TransferPolicy(remoteName,
+          maxCopyStreams, bandwidthInMBps));
+    }
   }
 
   private void readAllStreams(Element docEle) throws Exception {
@@ -158,6 +192,19 @@ public class DatabusConfigParser implements DatabusConfigParserTags {
 
   private Stream getStream(String streamName, Element el) throws Exception {
     Stream stream = new Stream(streamName);
+    String priority = getTextValue(el, PRIORITY);
+    if (priority != null) {
+      stream.setPriority(Stream.Priority.valueOf(priority.trim().toUpperCase()));
+    }
+    NodeList tierList = el.getElementsByTagName(TIER);
+    if (tierList.getLength() > 0) {
+      Element tier = (Element) tierList.item(0);
+      String archiveCodec = getTextValue(tier, ARCHIVE_CODEC);
+      stream.setTierPolicy(new TierPolicy(getIntValue(tier,
+          REDUCE_REPLICATION_AFTER_HOURS, 0), (short) getIntValue(tier,
+          REPLICATION, 0), getIntValue(tier, ARCHIVE_AFTER_HOURS, 0),
+          archiveCodec == null ? null : archiveCodec.trim()));
+    }
     // get sources for each stream
     readSourceStreams(stream, el);
     // get all destinations for this stream
@@ -221,6 +268,13 @@ public class DatabusConfigParser implements DatabusConfigParserTags {
     return textVal;
   }
 
+  private int getIntValue(Element ele, String tagName, int defaultValue) {
+    String value = getTextValue(ele, tagName);
+    if (value == null)
+      return defaultValue;
+    return Integer.parseInt(value.trim());
+  }
+
   /**
    * Calls getTextValue and returns a int value
    */
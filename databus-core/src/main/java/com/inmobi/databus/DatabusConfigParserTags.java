@@ -12,9 +12,48 @@ public interface DatabusConfigParserTags {
   public static final String SOURCE = "source";
   public static final String DESTINATION = "destination";
   public static final String PRIMARY = "primary";
+  public static final String PRIORITY = "priority";
+  public static final String TIER = "tier";
+  public static final String REDUCE_REPLICATION_AFTER_HOURS = "reducereplicationafterhours";
+  public static final String REPLICATION = "replication";
+  public static final String ARCHIVE_AFTER_HOURS = "archiveafterhours";
+  public static final String ARCHIVE_CODEC = "archivecodec";
 
   public static final String CLUSTER = "cluster";
   public static final String JOB_QUEUE_NAME = "jobqueuename";
   public static final String HDFS_URL = "hdfsurl";
   public static final String JT_URL = "jturl";
+  public static final String BUNDLE_TRANSFER = "bundletransfer";
+  public static final String BUNDLE_SIZE_IN_MB = "bundlesizeinmb";
+  public static final String FS_CONCURRENCY = "fsconcurrency";
+  public static final String FS_OPS_PER_SECOND = "fsopspersecond";
+
+  public static final String REMOTE = "remote";
+  public static final String MAX_COPY_STREAMS = "maxcopystreams";
+  public static final String BANDWIDTH_IN_MBPS = "bandwidthinmbps";
+
+  public static final String CATCHUP_THRESHOLD = "catchupthreshold";
+  public static final String CATCHUP_CHUNK_SIZE = "catchupchunksize";
+  public static final String CATCHUP_CONCURRENCY = "catchupconcurrency";
+  public static final String CATCHUP_MB_PER_COPY_STREAM = "catchupmbpercopystream";
+
+  public static final String PURGE_WORKERS = "purgeworkers";
+  public static final String PURGE_OPS_PER_SECOND = "purgeopspersecond";
+  public static final String PURGE_TARGET_LATENCY_IN_MS = "purgetargetlatencyinms";
+  public static final String PURGE_INTERVAL_IN_MINUTES = "purgeintervalinminutes";
+
+  public static final String SCHEDULER_THREADS = "schedulerthreads";
+  // <service type>concurrency, eg: mergedstreamconcurrency
+  public static final String CONCURRENCY_SUFFIX = "concurrency";
+  public static final String PHASE_OFFSET_SUFFIX = "phaseoffsetinms";
+  public static final String JITTER_SUFFIX = "jitterinms";
+  public static final String OVERRUN_POLICY_SUFFIX = "overrunpolicy";
+  public static final String CATCHUP_LIMIT_SUFFIX = "catchuplimit";
+
+  public static final String CHECKPOINT_WRITE_BEHIND_IN_MS = "checkpointwritebehindinms";
+
+  public static final String STANDBY_REFRESH_IN_MS = "standbyrefreshinms";
+
+  public static final String COMPACTION_AGE_IN_HOURS = "compactionageinhours";
+  public static final String COMPACTION_FILE_SIZE_IN_MB = "compactionfilesizeinmb";
 }
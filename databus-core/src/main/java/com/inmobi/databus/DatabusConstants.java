@@ -22,5 +22,18 @@ public interface DatabusConstants {
   public static final String KRB_PRINCIPAL = "com.inmobi.databus.krb" +
   ".principal";
   public static final String KEY_TAB_FILE = "com.inmobi.databus.keytab";
+  public static final String CHECKPOINT_PROVIDER = "com.inmobi.databus" +
+  ".checkpointprovider";
+  public static final String CHECKPOINT_PROVIDER_DIR = "com.inmobi.databus" +
+  ".checkpointprovider.dir";
+  public static final String CHECKPOINT_MIRROR_DIR = "com.inmobi.databus" +
+  ".checkpointprovider.mirror.dir";
+  public static final String CHECKPOINT_MIRROR_INTERVAL_IN_MS =
+  "com.inmobi.databus.checkpointprovider.mirror.intervalinms";
+  public static final String METRICS_PORT = "com.inmobi.databus.metrics" +
+  ".port";
+  public static final String SHARDED = "com.inmobi.databus.sharded";
+  public static final String WARM_STANDBY = "com.inmobi.databus" +
+  ".warmstandby";
 
 }
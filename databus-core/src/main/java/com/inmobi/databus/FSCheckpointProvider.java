@@ -1,40 +1,221 @@
 package com.inmobi.databus;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 
 /**
  * Stores the Checkpoint in the filesystem
+ * Every transaction is written as one log file <name>.log.<version>, a
+ * transaction whose file is torn fails its crc and is ignored. Every
+ * SNAPSHOT_INTERVAL transactions the state is folded into
+ * <name>.snapshot.<version> and older files are removed.
+ * Keys never written as a transaction are read from the older per key
+ * <key>.ck files.
+ * Other processes may write to the same dir, eg: the previous leader, so new
+ * files are read before every read and write, and a version taken by
+ * another writer is retried with the next one.
  */
 public class FSCheckpointProvider implements CheckpointProvider {
   private static final Log LOG = LogFactory.getLog(FSCheckpointProvider.class);
 
+  public static final String DEFAULT_NAME = "checkpoint";
+  static final int SNAPSHOT_INTERVAL = 100;
+  private static final int MAX_ATTEMPTS = 10;
+  private static final int MAGIC = 0x44424350;
+  private static final String LOG_SUFFIX = ".log.";
+  private static final String SNAPSHOT_SUFFIX = ".snapshot.";
+  private static final String LEGACY_SUFFIX = ".ck";
+
   private final FileSystem fs;
   private final Path baseDir;
+  private final String name;
+  private final Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+  // version of the last snapshot or log read or written
+  private long loadedVersion = 0;
+  private long nextVersion = 1;
+  private int logsSinceSnapshot = 0;
 
   public FSCheckpointProvider(String dir) {
+    this(dir, DEFAULT_NAME);
+  }
+
+  /*
+   * @param name - services sharing dir need distinct names
+   */
+  public FSCheckpointProvider(String dir, String name) {
+    this(null, dir, name);
+  }
+
+  /*
+   * @param fs - shared handle of the cluster, null to look it up from dir
+   */
+  public FSCheckpointProvider(FileSystem fs, String dir, String name) {
     this.baseDir = new Path(dir);
+    this.name = name;
     try {
-      fs = baseDir.getFileSystem(new Configuration());
-      if (!fs.exists(baseDir)) {
-        fs.mkdirs(baseDir);
+      this.fs = fs != null ? fs : baseDir.getFileSystem(new Configuration());
+      if (!this.fs.exists(baseDir)) {
+        this.fs.mkdirs(baseDir);
       }
+      refresh();
     } catch (IOException e) {
       LOG.warn("Could not initialize checkpoint provider", e);
       throw new RuntimeException(e);
     }
-    LOG.info("CheckPoint provider initialized with baseDir: " + baseDir);
+    LOG.info("CheckPoint provider initialized with baseDir: " + baseDir
+        + " name: " + name);
+  }
+
+  /*
+   * Reads the snapshots and logs written since the last refresh, retried
+   * when another writer's snapshot removes files while they're read
+   */
+  private void refresh() throws IOException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        load();
+        return;
+      } catch (FileNotFoundException e) {
+        if (attempt >= MAX_ATTEMPTS)
+          throw e;
+        LOG.debug("Checkpoint files changed while loading, reloading", e);
+      }
+    }
+  }
+
+  /*
+   * Latest readable snapshot newer than what's loaded, followed by all the
+   * readable logs after it. A torn log is skipped once a later log exists,
+   * the last one may still be being written.
+   */
+  private void load() throws IOException {
+    FileStatus[] files = fs.listStatus(baseDir);
+    if (files == null)
+      return;
+    long[] snapshots = getVersions(files, SNAPSHOT_SUFFIX);
+    long[] logs = getVersions(files, LOG_SUFFIX);
+    for (int i = snapshots.length - 1; i >= 0
+        && snapshots[i] > loadedVersion; i--) {
+      Map<String, byte[]> snapshot = readTransaction(getSnapshotPath(
+          snapshots[i]));
+      if (snapshot != null) {
+        // another writer folded logs which may be gone by now
+        checkpoints.clear();
+        checkpoints.putAll(snapshot);
+        loadedVersion = snapshots[i];
+        logsSinceSnapshot = 0;
+        break;
+      }
+    }
+    for (int i = 0; i < logs.length; i++) {
+      long version = logs[i];
+      if (version <= loadedVersion)
+        continue;
+      Map<String, byte[]> transaction = readTransaction(getLogPath(version));
+      if (transaction == null) {
+        if (i == logs.length - 1)
+          break;
+        LOG.warn("Ignoring torn checkpoint transaction ["
+            + getLogPath(version) + "]");
+        continue;
+      }
+      checkpoints.putAll(transaction);
+      loadedVersion = version;
+      logsSinceSnapshot++;
+    }
+    if (snapshots.length > 0)
+      nextVersion = Math.max(nextVersion, snapshots[snapshots.length - 1] + 1);
+    if (logs.length > 0)
+      nextVersion = Math.max(nextVersion, logs[logs.length - 1] + 1);
+  }
+
+  private void refreshOrFail() {
+    try {
+      refresh();
+    } catch (IOException e) {
+      LOG.warn("Could not read checkpoints ", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private long[] getVersions(FileStatus[] files, String suffix) {
+    String prefix = name + suffix;
+    long[] versions = new long[files.length];
+    int count = 0;
+    for (FileStatus file : files) {
+      String fileName = file.getPath().getName();
+      if (!fileName.startsWith(prefix))
+        continue;
+      try {
+        versions[count] = Long.parseLong(fileName.substring(prefix.length()));
+        count++;
+      } catch (NumberFormatException e) {
+        // eg: a snapshot which was never renamed
+        LOG.debug("Skipping [" + file.getPath() + "]");
+      }
+    }
+    long[] result = Arrays.copyOf(versions, count);
+    Arrays.sort(result);
+    return result;
   }
 
   @Override
-  public byte[] read(String key) {
+  public synchronized byte[] read(String key) {
+    refreshOrFail();
+    byte[] checkpoint = checkpoints.get(key);
+    if (checkpoint != null)
+      return checkpoint;
+    return readLegacy(key);
+  }
+
+  @Override
+  public synchronized Map<String, byte[]> readAll() {
+    Map<String, byte[]> all = new HashMap<String, byte[]>();
+    try {
+      refresh();
+      // per key files predate named providers
+      FileStatus[] files = DEFAULT_NAME.equals(name) ? fs.listStatus(baseDir)
+          : null;
+      if (files != null) {
+        for (FileStatus file : files) {
+          String fileName = file.getPath().getName();
+          if (fileName.endsWith(LEGACY_SUFFIX)) {
+            String key = fileName.substring(0, fileName.length()
+                - LEGACY_SUFFIX.length());
+            if (!checkpoints.containsKey(key))
+              all.put(key, readLegacy(key));
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not list checkpoints ", e);
+      throw new RuntimeException(e);
+    }
+    all.putAll(checkpoints);
+    return all;
+  }
+
+  private byte[] readLegacy(String key) {
     Path currentCheckpoint = getCheckpointPath(key);
     byte[] buffer = null;
     try {
@@ -56,29 +237,159 @@ public class FSCheckpointProvider implements CheckpointProvider {
   }
 
   private Path getCheckpointPath(String key) {
-    return new Path(baseDir, key + ".ck");
+    return new Path(baseDir, key + LEGACY_SUFFIX);
+  }
+
+  private Path getLogPath(long version) {
+    return new Path(baseDir, name + LOG_SUFFIX + version);
   }
 
-  private Path getNewCheckpointPath(String key) {
-    return new Path(baseDir, key + ".ck.new");
+  private Path getSnapshotPath(long version) {
+    return new Path(baseDir, name + SNAPSHOT_SUFFIX + version);
   }
 
   @Override
   public void checkpoint(String key, byte[] checkpoint) {
-    Path newCheckpoint = getNewCheckpointPath(key);
-    try {
+    checkpoint(Collections.singletonMap(key, checkpoint));
+  }
 
-      FSDataOutputStream out = fs.create(newCheckpoint);
-      out.write(checkpoint);
-      out.close();
-      Path currentCheckpoint = getCheckpointPath(key);
-      fs.delete(currentCheckpoint, true);
-      fs.rename(newCheckpoint, currentCheckpoint);
-      LOG.info("checkpoint created at " + currentCheckpoint);
+  @Override
+  public synchronized void checkpoint(Map<String, byte[]> transaction) {
+    if (transaction.isEmpty())
+      return;
+    long version;
+    Path log;
+    try {
+      refresh();
+      for (int attempt = 1;; attempt++) {
+        version = nextVersion++;
+        log = getLogPath(version);
+        if (writeTransaction(log, transaction, false))
+          break;
+        if (attempt >= MAX_ATTEMPTS)
+          throw new IOException("Could not find a free version for " + log);
+        LOG.info("Checkpoint version [" + version + "] taken by another " +
+            "writer, reloading");
+        refresh();
+      }
     } catch (IOException e) {
       LOG.warn("Could not checkpoint ", e);
       throw new RuntimeException(e);
     }
+    checkpoints.putAll(transaction);
+    loadedVersion = version;
+    LOG.info("checkpointed [" + transaction.size() + "] keys at " + log);
+    if (++logsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+      snapshot(version);
+    }
+  }
+
+  /*
+   * Folds all logs till version into a snapshot, a failed snapshot leaves the
+   * logs in place
+   */
+  private void snapshot(long version) {
+    Path snapshot = getSnapshotPath(version);
+    Path tmp = new Path(baseDir, snapshot.getName() + ".tmp");
+    try {
+      writeTransaction(tmp, checkpoints, true);
+      if (!fs.rename(tmp, snapshot)) {
+        LOG.warn("Could not rename [" + tmp + "] to [" + snapshot + "]");
+        fs.delete(tmp, false);
+        return;
+      }
+      logsSinceSnapshot = 0;
+      FileStatus[] files = fs.listStatus(baseDir);
+      for (long log : getVersions(files, LOG_SUFFIX)) {
+        if (log <= version)
+          fs.delete(getLogPath(log), false);
+      }
+      for (long older : getVersions(files, SNAPSHOT_SUFFIX)) {
+        if (older < version)
+          fs.delete(getSnapshotPath(older), false);
+      }
+      LOG.info("checkpoint snapshot created at " + snapshot);
+    } catch (IOException e) {
+      LOG.warn("Could not snapshot checkpoints ", e);
+    }
+  }
+
+  /*
+   * Layout - [magic][count][(key, length, value)...][crc of the preceding]
+   * @returns boolean - false if path exists and overwrite is false
+   */
+  private boolean writeTransaction(Path path,
+      Map<String, byte[]> transaction, boolean overwrite) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(MAGIC);
+    data.writeInt(transaction.size());
+    for (Map.Entry<String, byte[]> entry : transaction.entrySet()) {
+      data.writeUTF(entry.getKey());
+      data.writeInt(entry.getValue().length);
+      data.write(entry.getValue());
+    }
+    data.flush();
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    FSDataOutputStream out;
+    try {
+      out = fs.create(path, overwrite);
+    } catch (IOException e) {
+      if (!overwrite && fs.exists(path))
+        return false;
+      throw e;
+    }
+    try {
+      out.write(payload);
+      out.writeLong(crc.getValue());
+      out.close();
+    } catch (IOException e) {
+      IOUtils.closeStream(out);
+      try {
+        fs.delete(path, false);
+      } catch (IOException ignored) {
+        // a torn log is skipped while loading
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  /*
+   * @returns Map<String, byte[]> - null if the file is torn or corrupt
+   */
+  private Map<String, byte[]> readTransaction(Path path) throws IOException {
+    long length = fs.getFileStatus(path).getLen();
+    if (length < 16 || length > Integer.MAX_VALUE)
+      return null;
+    byte[] file = new byte[(int) length];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(file);
+    } finally {
+      IOUtils.closeStream(in);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(file, 0, file.length - 8);
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(file));
+    data.skipBytes(file.length - 8);
+    if (data.readLong() != crc.getValue())
+      return null;
+    data = new DataInputStream(new ByteArrayInputStream(file, 0,
+        file.length - 8));
+    if (data.readInt() != MAGIC)
+      return null;
+    int count = data.readInt();
+    Map<String, byte[]> transaction = new HashMap<String, byte[]>();
+    for (int i = 0; i < count; i++) {
+      String key = data.readUTF();
+      byte[] value = new byte[data.readInt()];
+      data.readFully(value);
+      transaction.put(key, value);
+    }
+    return transaction;
   }
 
   @Override
@@ -0,0 +1,76 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+/*
+ * Who the current thread calls the filesystem for, set by the worker around
+ * every run so that the calls of the shared handles are accounted per
+ * service. The priority is the highest the calls may get, background
+ * callers like purges never compete with commits and listings.
+ */
+public class FileSystemCaller {
+  private static final ThreadLocal<FileSystemCaller> CURRENT =
+      new ThreadLocal<FileSystemCaller>();
+  private static final FileSystemCaller UNKNOWN = new FileSystemCaller(
+      "unknown", FileSystemRegistry.Priority.COMMIT);
+
+  private final String service;
+  private final FileSystemRegistry.Priority maxPriority;
+
+  public FileSystemCaller(String service,
+      FileSystemRegistry.Priority maxPriority) {
+    this.service = service;
+    this.maxPriority = maxPriority;
+  }
+
+  public String getService() {
+    return service;
+  }
+
+  public FileSystemRegistry.Priority getMaxPriority() {
+    return maxPriority;
+  }
+
+  /*
+   * Mutations commit and reads list, capped at the caller's priority
+   */
+  FileSystemRegistry.Priority getPriority(
+      FileSystemRegistry.Operation operation) {
+    FileSystemRegistry.Priority priority = operation.isMutation()
+        ? FileSystemRegistry.Priority.COMMIT
+        : FileSystemRegistry.Priority.LISTING;
+    return priority.compareTo(maxPriority) < 0 ? maxPriority : priority;
+  }
+
+  /*
+   * @returns FileSystemCaller - of the current thread, never null
+   */
+  public static FileSystemCaller get() {
+    FileSystemCaller caller = CURRENT.get();
+    return caller == null ? UNKNOWN : caller;
+  }
+
+  /*
+   * @param caller - null to clear
+   * @returns FileSystemCaller - the one replaced, null if none was set
+   */
+  public static FileSystemCaller set(FileSystemCaller caller) {
+    FileSystemCaller previous = CURRENT.get();
+    if (caller == null)
+      CURRENT.remove();
+    else
+      CURRENT.set(caller);
+    return previous;
+  }
+}
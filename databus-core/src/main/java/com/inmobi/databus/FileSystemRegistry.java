@@ -0,0 +1,523 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.inmobi.databus.utils.PriorityRateLimiter;
+
+/*
+ * Owns the FileSystem of a cluster, shared by all services of the process.
+ * The handle isn't taken from the FileSystem cache, so only close() of the
+ * registry closes it, close() of the shared handle does nothing.
+ * checkHealth() replaces a handle which can't reach the filesystem, the old
+ * one is closed once the calls and streams still using it are done. With a
+ * maxConcurrency the shared handle allows only that many calls at a time,
+ * with opsPerSecond calls are spaced out and handed out by priority: commits
+ * before listings before background work.
+ * Calls made through the handle are counted per operation, and counted and
+ * timed per calling service (see FileSystemCaller) and per stream.
+ */
+public class FileSystemRegistry {
+  private static final Log LOG = LogFactory.getLog(FileSystemRegistry.class);
+
+  private final URI uri;
+  private final Configuration conf;
+  private final Semaphore permits;
+  private final PriorityRateLimiter limiter;
+  private final StreamResolver resolver;
+  private final SharedFileSystem shared;
+  private Handle current;
+  private final AtomicLongArray calls = new AtomicLongArray(
+      Operation.values().length);
+  private final AtomicLongArray throttledNanos = new AtomicLongArray(
+      Priority.values().length);
+  private final ConcurrentMap<String, CallStats> serviceStats =
+      new ConcurrentHashMap<String, CallStats>();
+  private final ConcurrentMap<String, CallStats> streamStats =
+      new ConcurrentHashMap<String, CallStats>();
+
+  /*
+   * Operations of the shared handle, each is a namenode call on hdfs
+   */
+  public enum Operation {
+    OPEN(false), CREATE(true), RENAME(true), DELETE(true), LIST_STATUS(false),
+    MKDIRS(true), GET_FILE_STATUS(false), SET_REPLICATION(true);
+
+    private final boolean mutation;
+
+    private Operation(boolean mutation) {
+      this.mutation = mutation;
+    }
+
+    public boolean isMutation() {
+      return mutation;
+    }
+  }
+
+  /*
+   * Order in which rate limited calls are served
+   */
+  public enum Priority {
+    COMMIT, LISTING, BACKGROUND
+  }
+
+  /*
+   * Maps the path of a call to the stream it's of
+   */
+  public interface StreamResolver {
+    /*
+     * @returns String - null if path isn't of a stream
+     */
+    String getStream(Path path);
+  }
+
+  /*
+   * Counts and times of calls per operation
+   */
+  public static class CallStats {
+    private final AtomicLongArray counts = new AtomicLongArray(Operation
+        .values().length);
+    private final AtomicLongArray nanos = new AtomicLongArray(Operation
+        .values().length);
+
+    void record(Operation operation, long timeInNanos) {
+      counts.incrementAndGet(operation.ordinal());
+      nanos.addAndGet(operation.ordinal(), timeInNanos);
+    }
+
+    public long getCount(Operation operation) {
+      return counts.get(operation.ordinal());
+    }
+
+    public long getTimeInMicros(Operation operation) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos.get(operation.ordinal()));
+    }
+  }
+
+  /*
+   * @param maxConcurrency - 0 for unlimited
+   */
+  public FileSystemRegistry(URI uri, Configuration conf, int maxConcurrency) {
+    this(uri, conf, maxConcurrency, 0, null);
+  }
+
+  /*
+   * @param maxConcurrency - 0 for unlimited
+   * @param opsPerSecond - 0 for unlimited
+   * @param resolver - null to not account calls per stream
+   */
+  public FileSystemRegistry(URI uri, Configuration conf, int maxConcurrency,
+      double opsPerSecond, StreamResolver resolver) {
+    this.uri = uri;
+    this.conf = conf;
+    this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency, true)
+        : null;
+    this.limiter = opsPerSecond > 0 ? new PriorityRateLimiter(opsPerSecond,
+        Priority.values().length) : null;
+    this.resolver = resolver;
+    this.shared = new SharedFileSystem();
+  }
+
+  public synchronized FileSystem get() throws IOException {
+    if (current == null) {
+      current = new Handle(create());
+      shared.setDelegate(current.fs);
+      LOG.info("Opened FileSystem [" + uri + "]");
+    }
+    return shared;
+  }
+
+  private FileSystem create() throws IOException {
+    Class<?> clazz = conf.getClass("fs." + uri.getScheme() + ".impl", null);
+    if (clazz == null) {
+      throw new IOException("No FileSystem for scheme: " + uri.getScheme());
+    }
+    FileSystem created = (FileSystem) ReflectionUtils.newInstance(clazz, conf);
+    created.initialize(uri, conf);
+    return created;
+  }
+
+  /*
+   * @returns boolean - false if the filesystem couldn't be reached, the
+   * handle is then reopened
+   */
+  public boolean checkHealth() {
+    Handle checked;
+    synchronized (this) {
+      checked = current;
+    }
+    if (checked == null)
+      return true;
+    try {
+      checked.fs.getFileStatus(new Path("/"));
+      return true;
+    } catch (IOException e) {
+      LOG.warn("FileSystem [" + uri + "] unhealthy, reopening", e);
+    }
+    synchronized (this) {
+      if (current == checked) {
+        try {
+          current = new Handle(create());
+          shared.setDelegate(current.fs);
+        } catch (IOException e) {
+          LOG.warn("Could not reopen FileSystem [" + uri + "]", e);
+          return false;
+        }
+        checked.retire();
+      }
+    }
+    return false;
+  }
+
+  public synchronized void close() {
+    if (current != null) {
+      closeQuietly(current.fs);
+      current = null;
+      LOG.info("Closed FileSystem [" + uri + "]");
+    }
+  }
+
+  /*
+   * @returns Handle - current handle, to be done() with after the call
+   */
+  private synchronized Handle use() throws IOException {
+    if (current == null) {
+      throw new IOException("FileSystem [" + uri + "] closed");
+    }
+    current.use();
+    return current;
+  }
+
+  /*
+   * A FileSystem and its users, calls in flight and open streams. A retired
+   * handle is closed when its last user is done.
+   */
+  private class Handle {
+    private final FileSystem fs;
+    private int users = 0;
+    private boolean retired = false;
+
+    Handle(FileSystem fs) {
+      this.fs = fs;
+    }
+
+    synchronized void use() {
+      users++;
+    }
+
+    void done() {
+      boolean close;
+      synchronized (this) {
+        close = --users == 0 && retired;
+      }
+      if (close)
+        closeRetired();
+    }
+
+    void retire() {
+      int inUse;
+      synchronized (this) {
+        retired = true;
+        inUse = users;
+      }
+      if (inUse == 0)
+        closeRetired();
+      else
+        LOG.info("Closing old FileSystem [" + uri + "] after its " + inUse
+            + " users are done");
+    }
+
+    private void closeRetired() {
+      closeQuietly(fs);
+      LOG.info("Closed old FileSystem [" + uri + "]");
+    }
+  }
+
+  /*
+   * Keeps its handle in use until closed
+   */
+  private static class HandleInputStream extends FSDataInputStream {
+    private final Handle handle;
+    private boolean closed = false;
+
+    HandleInputStream(FSDataInputStream in, Handle handle) throws IOException {
+      super(in);
+      this.handle = handle;
+      handle.use();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        synchronized (this) {
+          if (!closed) {
+            closed = true;
+            handle.done();
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * Keeps its handle in use until closed
+   */
+  private static class HandleOutputStream extends FSDataOutputStream {
+    private final Handle handle;
+    private boolean closed = false;
+
+    HandleOutputStream(FSDataOutputStream out, Handle handle)
+        throws IOException {
+      super(out, null);
+      this.handle = handle;
+      handle.use();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        synchronized (this) {
+          if (!closed) {
+            closed = true;
+            handle.done();
+          }
+        }
+      }
+    }
+  }
+
+  private void closeQuietly(FileSystem toClose) {
+    try {
+      toClose.close();
+    } catch (IOException e) {
+      LOG.warn("Error closing FileSystem [" + uri + "]", e);
+    }
+  }
+
+  public long getCallCount(Operation operation) {
+    return calls.get(operation.ordinal());
+  }
+
+  /*
+   * @returns long - time calls of priority waited for the rate limit
+   */
+  public long getThrottledTimeInMicros(Priority priority) {
+    return TimeUnit.NANOSECONDS.toMicros(throttledNanos.get(priority
+        .ordinal()));
+  }
+
+  /*
+   * @returns Map<String, CallStats> - service, its calls
+   */
+  public Map<String, CallStats> getServiceStats() {
+    return serviceStats;
+  }
+
+  /*
+   * @returns Map<String, CallStats> - stream, calls on its paths
+   */
+  public Map<String, CallStats> getStreamStats() {
+    return streamStats;
+  }
+
+  /*
+   * A call through the shared handle, passed to release
+   */
+  private static class Call {
+    private final Handle handle;
+    private final long start;
+
+    Call(Handle handle, long start) {
+      this.handle = handle;
+      this.start = start;
+    }
+  }
+
+  private Call acquire(Operation operation) throws IOException {
+    calls.incrementAndGet(operation.ordinal());
+    try {
+      if (limiter != null) {
+        Priority priority = FileSystemCaller.get().getPriority(operation);
+        throttledNanos.addAndGet(priority.ordinal(), limiter.acquire(priority
+            .ordinal()));
+      }
+      if (permits != null)
+        permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for [" + uri + "]");
+    }
+    Handle handle;
+    try {
+      handle = use();
+    } catch (IOException e) {
+      if (permits != null)
+        permits.release();
+      throw e;
+    }
+    return new Call(handle, System.nanoTime());
+  }
+
+  private void release(Operation operation, Path path, Call call) {
+    call.handle.done();
+    if (permits != null)
+      permits.release();
+    long nanos = System.nanoTime() - call.start;
+    getStats(serviceStats, FileSystemCaller.get().getService()).record(
+        operation, nanos);
+    String stream = resolver == null ? null : resolver.getStream(path);
+    if (stream != null)
+      getStats(streamStats, stream).record(operation, nanos);
+  }
+
+  private static CallStats getStats(ConcurrentMap<String, CallStats> stats,
+      String key) {
+    CallStats callStats = stats.get(key);
+    if (callStats == null) {
+      callStats = new CallStats();
+      CallStats existing = stats.putIfAbsent(key, callStats);
+      if (existing != null)
+        callStats = existing;
+    }
+    return callStats;
+  }
+
+  /*
+   * Handle given to the services, calls go to the registry's current
+   * FileSystem
+   */
+  private class SharedFileSystem extends FilterFileSystem {
+
+    void setDelegate(FileSystem delegate) {
+      this.fs = delegate;
+      setConf(conf);
+    }
+
+    @Override
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+      Call call = acquire(Operation.OPEN);
+      try {
+        return new HandleInputStream(call.handle.fs.open(f, bufferSize),
+            call.handle);
+      } finally {
+        release(Operation.OPEN, f, call);
+      }
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission,
+        boolean overwrite, int bufferSize, short replication, long blockSize,
+        Progressable progress) throws IOException {
+      Call call = acquire(Operation.CREATE);
+      try {
+        return new HandleOutputStream(call.handle.fs.create(f, permission,
+            overwrite, bufferSize, replication, blockSize, progress),
+            call.handle);
+      } finally {
+        release(Operation.CREATE, f, call);
+      }
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+      Call call = acquire(Operation.RENAME);
+      try {
+        return call.handle.fs.rename(src, dst);
+      } finally {
+        release(Operation.RENAME, src, call);
+      }
+    }
+
+    @Override
+    public boolean delete(Path f, boolean recursive) throws IOException {
+      Call call = acquire(Operation.DELETE);
+      try {
+        return call.handle.fs.delete(f, recursive);
+      } finally {
+        release(Operation.DELETE, f, call);
+      }
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+      Call call = acquire(Operation.LIST_STATUS);
+      try {
+        return call.handle.fs.listStatus(f);
+      } finally {
+        release(Operation.LIST_STATUS, f, call);
+      }
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+      Call call = acquire(Operation.MKDIRS);
+      try {
+        return call.handle.fs.mkdirs(f, permission);
+      } finally {
+        release(Operation.MKDIRS, f, call);
+      }
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+      Call call = acquire(Operation.GET_FILE_STATUS);
+      try {
+        return call.handle.fs.getFileStatus(f);
+      } finally {
+        release(Operation.GET_FILE_STATUS, f, call);
+      }
+    }
+
+    @Override
+    public boolean setReplication(Path src, short replication)
+        throws IOException {
+      Call call = acquire(Operation.SET_REPLICATION);
+      try {
+        return call.handle.fs.setReplication(src, replication);
+      } finally {
+        release(Operation.SET_REPLICATION, src, call);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      // owned by the registry
+    }
+  }
+}
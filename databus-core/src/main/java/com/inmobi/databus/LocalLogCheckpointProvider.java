@@ -0,0 +1,401 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/*
+ * Keeps checkpoints in an append only log on local disk, for deployments
+ * where losing the worker's disk is acceptable.
+ * Record - [magic][payload length][crc of payload][payload]
+ * payload - count, followed by (key, value length, value) per checkpoint
+ * Every transaction is one record. Writers append under a lock and share
+ * the fsync of whoever syncs first (group commit). A torn record at the
+ * tail is truncated on load. Once the log grows past the compaction
+ * threshold the index is written as a snapshot record and the log is reset.
+ * With a mirror dir the checkpoints are copied to an FSCheckpointProvider
+ * every mirrorIntervalInMs, each copy a new generation recorded in both.
+ * A local store behind the mirror's generation starts from the mirror, eg:
+ * after failing over to another worker and back, and never overwrites it.
+ */
+public class LocalLogCheckpointProvider implements CheckpointProvider {
+  private static final Log LOG = LogFactory.getLog(
+      LocalLogCheckpointProvider.class);
+
+  static final String LOG_FILE = "checkpoint.log";
+  static final String SNAPSHOT_FILE = "checkpoint.snapshot";
+  // reserved key, generation of the mirror last copied to or from
+  static final String MIRROR_GENERATION = "_mirrorgeneration";
+  private static final int MAGIC = 0x4442434c;
+  private static final int HEADER_LENGTH = 16;
+  private static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+  private final File dir;
+  private final Map<String, byte[]> index = new HashMap<String, byte[]>();
+  private final RandomAccessFile logFile;
+  private final FileChannel log;
+  private final Object syncLock = new Object();
+  // written holding the lock, read by sync without it
+  private volatile long appendedSeq = 0;
+  private long syncedSeq = 0;
+  private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  private final CheckpointProvider mirror;
+  private Thread mirrorThread;
+  private volatile boolean mirrorDirty = false;
+  private final Object mirrorLock = new Object();
+
+  public LocalLogCheckpointProvider(String dir) {
+    this(dir, null, 0);
+  }
+
+  /*
+   * @param mirrorDir - dir of an FSCheckpointProvider, null for none
+   */
+  public LocalLogCheckpointProvider(String dir, String mirrorDir,
+      final long mirrorIntervalInMs) {
+    if (mirrorDir != null && mirrorIntervalInMs <= 0) {
+      throw new IllegalArgumentException("Invalid mirror interval ["
+          + mirrorIntervalInMs + "] ms");
+    }
+    this.dir = new File(dir);
+    try {
+      if (!this.dir.exists() && !this.dir.mkdirs()) {
+        throw new IOException("Could not create [" + dir + "]");
+      }
+      load();
+      logFile = new RandomAccessFile(new File(this.dir, LOG_FILE), "rw");
+      log = logFile.getChannel();
+      log.position(log.size());
+    } catch (IOException e) {
+      LOG.warn("Could not initialize checkpoint provider", e);
+      throw new RuntimeException(e);
+    }
+    if (mirrorDir != null) {
+      mirror = new FSCheckpointProvider(mirrorDir);
+      syncFromMirror();
+      mirrorThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (!Thread.currentThread().isInterrupted()) {
+            try {
+              Thread.sleep(mirrorIntervalInMs);
+            } catch (InterruptedException e) {
+              return;
+            }
+            try {
+              mirror();
+            } catch (RuntimeException e) {
+              LOG.warn("Could not mirror checkpoints", e);
+            }
+          }
+        }
+      }, "CheckpointMirror");
+      mirrorThread.setDaemon(true);
+      mirrorThread.start();
+    } else {
+      mirror = null;
+    }
+    LOG.info("CheckPoint provider initialized with dir: " + dir);
+  }
+
+  private void load() throws IOException {
+    File snapshot = new File(dir, SNAPSHOT_FILE);
+    if (snapshot.exists()) {
+      RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+      try {
+        if (replay(in) == 0 && in.length() > 0)
+          throw new IOException("Corrupt snapshot [" + snapshot + "]");
+      } finally {
+        in.close();
+      }
+    }
+    File logPath = new File(dir, LOG_FILE);
+    if (logPath.exists()) {
+      RandomAccessFile in = new RandomAccessFile(logPath, "rw");
+      try {
+        long valid = replay(in);
+        if (valid < in.length()) {
+          LOG.warn("Truncating torn checkpoint log [" + logPath + "] from ["
+              + in.length() + "] to [" + valid + "] bytes");
+          in.getChannel().truncate(valid);
+          in.getChannel().force(true);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    LOG.info("Loaded [" + index.size() + "] checkpoints from [" + dir + "]");
+  }
+
+  /*
+   * @returns long - length of the valid records
+   */
+  private long replay(RandomAccessFile in) throws IOException {
+    long valid = 0;
+    long length = in.length();
+    while (valid + HEADER_LENGTH <= length) {
+      in.seek(valid);
+      if (in.readInt() != MAGIC)
+        break;
+      int payloadLength = in.readInt();
+      long crc = in.readLong();
+      if (payloadLength < 0
+          || valid + HEADER_LENGTH + payloadLength > length)
+        break;
+      byte[] payload = new byte[payloadLength];
+      in.readFully(payload);
+      CRC32 actual = new CRC32();
+      actual.update(payload);
+      if (actual.getValue() != crc)
+        break;
+      DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+          payload));
+      int count = data.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = data.readUTF();
+        byte[] value = new byte[data.readInt()];
+        data.readFully(value);
+        index.put(key, value);
+      }
+      valid += HEADER_LENGTH + payloadLength;
+    }
+    return valid;
+  }
+
+  private static ByteBuffer encode(Map<String, byte[]> checkpoints)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(checkpoints.size());
+    for (Map.Entry<String, byte[]> entry : checkpoints.entrySet()) {
+      data.writeUTF(entry.getKey());
+      data.writeInt(entry.getValue().length);
+      data.write(entry.getValue());
+    }
+    data.flush();
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+    record.putInt(MAGIC);
+    record.putInt(payload.length);
+    record.putLong(crc.getValue());
+    record.put(payload);
+    record.flip();
+    return record;
+  }
+
+  @Override
+  public synchronized byte[] read(String key) {
+    if (MIRROR_GENERATION.equals(key))
+      return null;
+    return index.get(key);
+  }
+
+  @Override
+  public synchronized Map<String, byte[]> readAll() {
+    Map<String, byte[]> all = new HashMap<String, byte[]>(index);
+    all.remove(MIRROR_GENERATION);
+    return all;
+  }
+
+  @Override
+  public void checkpoint(String key, byte[] checkpoint) {
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put(key, checkpoint);
+    checkpoint(checkpoints);
+  }
+
+  @Override
+  public void checkpoint(Map<String, byte[]> checkpoints) {
+    if (checkpoints.isEmpty())
+      return;
+    append(checkpoints);
+    mirrorDirty = true;
+  }
+
+  private void append(Map<String, byte[]> checkpoints) {
+    long seq;
+    try {
+      ByteBuffer record = encode(checkpoints);
+      synchronized (this) {
+        while (record.hasRemaining()) {
+          log.write(record);
+        }
+        index.putAll(checkpoints);
+        seq = ++appendedSeq;
+      }
+      sync(seq);
+      synchronized (this) {
+        if (log.size() > compactionThreshold)
+          compact();
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not checkpoint ", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /*
+   * One fsync covers every record appended before it started
+   */
+  private void sync(long seq) throws IOException {
+    synchronized (syncLock) {
+      if (syncedSeq >= seq)
+        return;
+      long upto = appendedSeq;
+      log.force(false);
+      syncedSeq = upto;
+    }
+  }
+
+  /*
+   * Called holding the lock, a crash before the log is reset replays records
+   * already in the snapshot which leaves the same state
+   */
+  private void compact() throws IOException {
+    File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      out.setLength(0);
+      ByteBuffer record = encode(index);
+      FileChannel channel = out.getChannel();
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+    File snapshot = new File(dir, SNAPSHOT_FILE);
+    if (!tmp.renameTo(snapshot)) {
+      LOG.warn("Could not rename [" + tmp + "] to [" + snapshot + "]");
+      return;
+    }
+    synchronized (syncLock) {
+      log.truncate(0);
+      log.position(0);
+      log.force(true);
+      syncedSeq = appendedSeq;
+    }
+    LOG.info("Compacted [" + index.size() + "] checkpoints into ["
+        + snapshot + "]");
+  }
+
+  void setCompactionThreshold(long compactionThreshold) {
+    this.compactionThreshold = compactionThreshold;
+  }
+
+  private static long getGeneration(Map<String, byte[]> checkpoints) {
+    byte[] generation = checkpoints.get(MIRROR_GENERATION);
+    return generation == null ? 0 : Long.parseLong(new String(generation));
+  }
+
+  /*
+   * Copies all the checkpoints to the mirror as one transaction, unless
+   * another worker copied a newer generation meanwhile
+   */
+  public void mirror() {
+    if (mirror == null || !mirrorDirty)
+      return;
+    synchronized (mirrorLock) {
+      mirrorDirty = false;
+      try {
+        Map<String, byte[]> all;
+        synchronized (this) {
+          all = new HashMap<String, byte[]>(index);
+        }
+        long generation = getGeneration(all);
+        long mirrored = getGeneration(mirror.readAll());
+        if (mirrored > generation) {
+          LOG.warn("Not overwriting mirror generation [" + mirrored
+              + "] with checkpoints of generation [" + generation + "]");
+          return;
+        }
+        byte[] next = Long.toString(generation + 1).getBytes();
+        all.put(MIRROR_GENERATION, next);
+        mirror.checkpoint(all);
+        Map<String, byte[]> recorded = new HashMap<String, byte[]>();
+        recorded.put(MIRROR_GENERATION, next);
+        append(recorded);
+      } catch (RuntimeException e) {
+        mirrorDirty = true;
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Replaces the local checkpoints with the mirror's if they're empty or
+   * behind the mirror's generation, eg: another worker led meanwhile
+   */
+  public void syncFromMirror() {
+    if (mirror == null)
+      return;
+    synchronized (mirrorLock) {
+      Map<String, byte[]> mirrored = mirror.readAll();
+      if (mirrored.isEmpty())
+        return;
+      try {
+        synchronized (this) {
+          long generation = getGeneration(index);
+          if (!readAll().isEmpty()
+              && getGeneration(mirrored) <= generation)
+            return;
+          LOG.info("Starting from [" + mirrored.size()
+              + "] mirrored checkpoints of generation ["
+              + getGeneration(mirrored) + "], local generation ["
+              + generation + "]");
+          index.clear();
+          index.putAll(mirrored);
+          compact();
+        }
+      } catch (IOException e) {
+        LOG.warn("Could not start from mirrored checkpoints", e);
+        throw new RuntimeException(e);
+      }
+      mirrorDirty = false;
+    }
+  }
+
+  @Override
+  public void close() {
+    if (mirrorThread != null) {
+      mirrorThread.interrupt();
+      mirror();
+      mirror.close();
+    }
+    try {
+      logFile.close();
+    } catch (IOException e) {
+      LOG.warn("Could not close checkpoint log", e);
+    }
+  }
+
+}
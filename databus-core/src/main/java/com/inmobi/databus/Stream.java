@@ -10,7 +10,16 @@ public class Stream {
   private enum STREAM_TYPE {
     SOURCE, DESTINATION;
   }
+  /*
+   * Priority class of a stream, transfers of higher priority streams are
+   * served first when copy slots are scarce
+   */
+  public enum Priority {
+    HIGH, NORMAL, LOW;
+  }
   private final String streamName;
+  private Priority priority = Priority.NORMAL;
+  private TierPolicy tierPolicy = null;
   private final Map<STREAM_TYPE, Set<StreamCluster>> clusters = new HashMap<STREAM_TYPE, Set<StreamCluster>>();
 
   public class StreamCluster {
@@ -59,6 +68,25 @@ public class Stream {
     return streamName;
   }
 
+  public Priority getPriority() {
+    return priority;
+  }
+
+  public void setPriority(Priority priority) {
+    this.priority = priority;
+  }
+
+  /*
+   * @returns TierPolicy - null if the stream is only kept or purged
+   */
+  public TierPolicy getTierPolicy() {
+    return tierPolicy;
+  }
+
+  public void setTierPolicy(TierPolicy tierPolicy) {
+    this.tierPolicy = tierPolicy;
+  }
+
   public void addSourceCluster(int retentionInHours, Cluster cluster) {
     Set<StreamCluster> clusterSet = clusters.get(STREAM_TYPE.SOURCE);
 
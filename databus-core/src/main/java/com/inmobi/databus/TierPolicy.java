@@ -0,0 +1,53 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+/*
+ * Storage tiers a stream's hours go through before they are purged at the
+ * end of retention. An age of 0 means the tier isn't used.
+ */
+public class TierPolicy {
+  private final int reduceReplicationAfterHours;
+  private final short replication;
+  private final int archiveAfterHours;
+  private final String archiveCodec;
+
+  /*
+   * @param archiveCodec - CompressionCodec class archived files are
+   * recompressed with, null to archive files as they are
+   */
+  public TierPolicy(int reduceReplicationAfterHours, short replication,
+      int archiveAfterHours, String archiveCodec) {
+    this.reduceReplicationAfterHours = reduceReplicationAfterHours;
+    this.replication = replication;
+    this.archiveAfterHours = archiveAfterHours;
+    this.archiveCodec = archiveCodec;
+  }
+
+  public int getReduceReplicationAfterHours() {
+    return reduceReplicationAfterHours;
+  }
+
+  public short getReplication() {
+    return replication;
+  }
+
+  public int getArchiveAfterHours() {
+    return archiveAfterHours;
+  }
+
+  public String getArchiveCodec() {
+    return archiveCodec;
+  }
+}
@@ -0,0 +1,51 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+/*
+ * Limits for pulls from a remote cluster into the cluster owning the policy.
+ * A limit of 0 means unlimited.
+ */
+public class TransferPolicy {
+  private final String remoteClusterName;
+  private final int maxCopyStreams;
+  private final int bandwidthInMBps;
+
+  public TransferPolicy(String remoteClusterName, int maxCopyStreams) {
+    this(remoteClusterName, maxCopyStreams, 0);
+  }
+
+  public TransferPolicy(String remoteClusterName, int maxCopyStreams,
+                        int bandwidthInMBps) {
+    this.remoteClusterName = remoteClusterName;
+    this.maxCopyStreams = maxCopyStreams;
+    this.bandwidthInMBps = bandwidthInMBps;
+  }
+
+  public String getRemoteClusterName() {
+    return remoteClusterName;
+  }
+
+  public int getMaxCopyStreams() {
+    return maxCopyStreams;
+  }
+
+  /*
+   * Average rate of the pulls, enforced between pulls as DistCp's copy
+   * mappers can't be throttled
+   */
+  public int getBandwidthInMBps() {
+    return bandwidthInMBps;
+  }
+}
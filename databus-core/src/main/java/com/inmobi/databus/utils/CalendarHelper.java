@@ -13,9 +13,6 @@
 */
 package com.inmobi.databus.utils;
 
-import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -24,14 +21,8 @@ import org.apache.log4j.Logger;
 
 public class CalendarHelper {
   static Logger logger = Logger.getLogger(CalendarHelper.class);
-  private final static SimpleDateFormat CalenderHelperformat = new SimpleDateFormat(
-      "yyyy-MM-dd-HH-mm");
-  private final static DateFormat dateHourMinutePathFormat = new SimpleDateFormat(
-      "yyyy" + File.separator + "MM" + File.separator + "dd" + File.separator
-          + "HH" + File.separator + "mm" + File.separator);
-  private final static DateFormat dateHourPathFormat = new SimpleDateFormat(
-      "yyyy" + File.separator + "MM" + File.separator + "dd" + File.separator
-          + "HH" + File.separator);
+  // thread safe, shared by all service threads
+  private final static TimePartitionCodec codec = TimePartitionCodec.DEFAULT;
 
   // TODO - all date/time should be returned in a common time zone GMT
 
@@ -58,6 +49,14 @@ public class CalendarHelper {
         day.intValue(), hour.intValue(), minute.intValue());
   }
 
+  /*
+   * Same as getDateHourMinute without a Calendar
+   */
+  public static long getDateHourMinuteInMillis(int year, int month, int day,
+      int hour, int minute) {
+    return codec.toMillis(year, month, day, hour, minute);
+  }
+
   public static String getCurrentMinute() {
     Calendar calendar;
     calendar = new GregorianCalendar();
@@ -127,28 +126,28 @@ public class CalendarHelper {
   }
 
   public static String getDateTimeAsString(Calendar calendar) {
-    return CalenderHelperformat.format(calendar.getTime());
+    return codec.toMinuteString(calendar.getTimeInMillis());
   }
 
   public static Calendar getDateTime(String dateTime) {
     Calendar calendar = new GregorianCalendar();
     try {
-      calendar.setTime(CalenderHelperformat.parse(dateTime));
+      calendar.setTimeInMillis(codec.parse(dateTime));
     } catch(Exception e){
     }
     return calendar;
   }
 
   public static String getDateAsYYYYMMDDHHMNPath(long commitTime) {
-    return dateHourMinutePathFormat.format(commitTime);
+    return codec.toMinutePath(commitTime);
   }
 
   public static String getDateAsYYYYMMDDHHMNPath(Date date) {
-    return dateHourMinutePathFormat.format(date);
+    return codec.toMinutePath(date.getTime());
   }
 
   public static String getDateAsYYYYMMDDHHPath(long commitTime) {
-    return dateHourPathFormat.format(commitTime);
+    return codec.toHourPath(commitTime);
   }
 
 }
@@ -0,0 +1,83 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spaces out permits evenly at permitsPerSecond, unused permits aren't saved
+ * up so there are no bursts. A free permit goes to a waiter of the highest
+ * priority, lowest value, lower priorities only get the permits nobody above
+ * them waits for. A rate <= 0 means unlimited.
+ */
+public class PriorityRateLimiter {
+  private final double permitsPerSecond;
+  private final long intervalNanos;
+  private final int[] waiting;
+  private long nextFreeNanos = System.nanoTime();
+
+  public PriorityRateLimiter(double permitsPerSecond, int priorities) {
+    this.permitsPerSecond = permitsPerSecond;
+    this.intervalNanos = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS
+        .toNanos(1) / permitsPerSecond) : 0;
+    this.waiting = new int[priorities];
+  }
+
+  public double getRate() {
+    return permitsPerSecond;
+  }
+
+  /*
+   * Blocks till a permit is available and no higher priority waits for one
+   * @returns long - nanoseconds waited
+   */
+  public long acquire(int priority) throws InterruptedException {
+    if (permitsPerSecond <= 0)
+      return 0;
+    long start = System.nanoTime();
+    synchronized (this) {
+      waiting[priority]++;
+      try {
+        while (true) {
+          if (isHigherWaiting(priority)) {
+            wait();
+            continue;
+          }
+          long now = System.nanoTime();
+          if (nextFreeNanos <= now) {
+            nextFreeNanos = now + intervalNanos;
+            break;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, nextFreeNanos - now);
+        }
+      } finally {
+        waiting[priority]--;
+        notifyAll();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  synchronized int getWaiting(int priority) {
+    return waiting[priority];
+  }
+
+  private boolean isHigherWaiting(int priority) {
+    for (int i = 0; i < priority; i++) {
+      if (waiting[i] > 0)
+        return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.io.File;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Immutable, thread safe codec between time and the yyyy/MM/dd/HH/mm/
+ * partitions of a stream, replacing shared SimpleDateFormats.
+ * Dates are computed from days since epoch, so no Calendar is created, and
+ * the strings of recently used minutes are cached.
+ */
+public final class TimePartitionCodec {
+  // zone of the jvm, as with SimpleDateFormat
+  public static final TimePartitionCodec DEFAULT = new TimePartitionCodec(
+      TimeZone.getDefault());
+
+  private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  // about 2.8 days of minutes
+  private static final int CACHE_SIZE = 4096;
+
+  private final TimeZone timeZone;
+  private final AtomicReferenceArray<Partition> cache =
+      new AtomicReferenceArray<Partition>(CACHE_SIZE);
+
+  private static final class Partition {
+    final long localMinute;
+    final String minutePath;
+    final String hourPath;
+    final String minuteString;
+
+    Partition(long localMinute) {
+      this.localMinute = localMinute;
+      long days = floorDiv(localMinute, MINUTES_PER_DAY);
+      int minuteOfDay = (int) (localMinute - days * MINUTES_PER_DAY);
+      int[] date = civilFromDays(days);
+      char[] chars = new char[17];
+      format(chars, File.separatorChar, date[0], date[1], date[2],
+          minuteOfDay / 60, minuteOfDay % 60);
+      chars[16] = File.separatorChar;
+      this.minutePath = new String(chars);
+      this.hourPath = new String(chars, 0, 14);
+      format(chars, '-', date[0], date[1], date[2], minuteOfDay / 60,
+          minuteOfDay % 60);
+      this.minuteString = new String(chars, 0, 16);
+    }
+  }
+
+  public TimePartitionCodec(TimeZone timeZone) {
+    this.timeZone = (TimeZone) timeZone.clone();
+  }
+
+  /*
+   * @returns String - yyyy/MM/dd/HH/mm/
+   */
+  public String toMinutePath(long millis) {
+    return getPartition(millis).minutePath;
+  }
+
+  /*
+   * @returns String - yyyy/MM/dd/HH/
+   */
+  public String toHourPath(long millis) {
+    return getPartition(millis).hourPath;
+  }
+
+  /*
+   * @returns String - yyyy-MM-dd-HH-mm
+   */
+  public String toMinuteString(long millis) {
+    return getPartition(millis).minuteString;
+  }
+
+  private Partition getPartition(long millis) {
+    long localMinute = floorDiv(millis + timeZone.getOffset(millis),
+        MILLIS_PER_MINUTE);
+    int slot = (int) (localMinute & (CACHE_SIZE - 1));
+    Partition partition = cache.get(slot);
+    if (partition == null || partition.localMinute != localMinute) {
+      partition = new Partition(localMinute);
+      cache.set(slot, partition);
+    }
+    return partition;
+  }
+
+  /*
+   * Parses year, month, day, hour and an optional minute separated by any
+   * non digit, eg: 2012/01/13/15/07/ or 2012-1-13-15-7
+   */
+  public long parse(String partition) {
+    int[] fields = new int[5];
+    int count = 0;
+    int i = 0;
+    int length = partition.length();
+    while (i < length && count < fields.length) {
+      char c = partition.charAt(i);
+      if (c < '0' || c > '9') {
+        i++;
+        continue;
+      }
+      int value = 0;
+      int digits = 0;
+      while (i < length && (c = partition.charAt(i)) >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        i++;
+        if (++digits > 9)
+          throw new IllegalArgumentException("Invalid partition ["
+              + partition + "]");
+      }
+      fields[count++] = value;
+    }
+    if (count < 4)
+      throw new IllegalArgumentException("Invalid partition [" + partition
+          + "]");
+    return toMillis(fields[0], fields[1], fields[2], fields[3], fields[4]);
+  }
+
+  /*
+   * @param month - 1 to 12
+   */
+  public long toMillis(int year, int month, int day, int hour, int minute) {
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23
+        || minute > 59)
+      throw new IllegalArgumentException("Invalid partition [" + year + "/"
+          + month + "/" + day + "/" + hour + "/" + minute + "]");
+    long local = ((daysFromCivil(year, month, day) * MINUTES_PER_DAY) + hour
+        * 60 + minute) * MILLIS_PER_MINUTE;
+    // a wall time skipped by a daylight saving change is read as standard
+    // time, as GregorianCalendar does
+    long standard = local - timeZone.getRawOffset();
+    int offset = timeZone.getOffset(standard);
+    long utc = local - offset;
+    if (timeZone.getOffset(utc) != offset)
+      return standard;
+    return utc;
+  }
+
+  private static void format(char[] chars, char separator, int year,
+      int month, int day, int hour, int minute) {
+    chars[0] = (char) ('0' + year / 1000 % 10);
+    chars[1] = (char) ('0' + year / 100 % 10);
+    chars[2] = (char) ('0' + year / 10 % 10);
+    chars[3] = (char) ('0' + year % 10);
+    chars[4] = separator;
+    twoDigits(chars, 5, month);
+    chars[7] = separator;
+    twoDigits(chars, 8, day);
+    chars[10] = separator;
+    twoDigits(chars, 11, hour);
+    chars[13] = separator;
+    twoDigits(chars, 14, minute);
+  }
+
+  private static void twoDigits(char[] chars, int at, int value) {
+    chars[at] = (char) ('0' + value / 10);
+    chars[at + 1] = (char) ('0' + value % 10);
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    if ((x % y != 0) && ((x < 0) != (y < 0)))
+      q--;
+    return q;
+  }
+
+  /*
+   * Proleptic gregorian date of days since 1970-01-01, as year, month, day
+   */
+  static int[] civilFromDays(long days) {
+    long z = days + 719468;
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+    return new int[] { year, month, day };
+  }
+
+  static long daysFromCivil(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yoe = y - era * 400;
+    long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+}
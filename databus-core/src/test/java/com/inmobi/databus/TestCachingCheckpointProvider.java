@@ -0,0 +1,102 @@
+package com.inmobi.databus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCachingCheckpointProvider {
+
+  private static class CountingProvider implements CheckpointProvider {
+    Map<String, byte[]> store = new HashMap<String, byte[]>();
+    int reads = 0;
+    int readAlls = 0;
+    int transactions = 0;
+
+    @Override
+    public byte[] read(String key) {
+      reads++;
+      return store.get(key);
+    }
+
+    @Override
+    public void checkpoint(String key, byte[] checkpoint) {
+      transactions++;
+      store.put(key, checkpoint);
+    }
+
+    @Override
+    public void checkpoint(Map<String, byte[]> checkpoints) {
+      transactions++;
+      store.putAll(checkpoints);
+    }
+
+    @Override
+    public Map<String, byte[]> readAll() {
+      readAlls++;
+      return new HashMap<String, byte[]>(store);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void testReadsFromMemory() {
+    CountingProvider durable = new CountingProvider();
+    durable.store.put("k1", "v1".getBytes());
+    CachingCheckpointProvider provider = new CachingCheckpointProvider(
+        durable);
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(new String(provider.read("k1")), "v1");
+      Assert.assertNull(provider.read("notpresent"));
+    }
+    provider.checkpoint("k1", "v2".getBytes());
+    Assert.assertEquals(new String(provider.read("k1")), "v2");
+    Assert.assertEquals(new String(durable.store.get("k1")), "v2");
+    Assert.assertEquals(durable.readAlls, 1);
+    Assert.assertEquals(durable.reads, 0);
+    provider.close();
+  }
+
+  @Test
+  public void testWriteBehind() {
+    CountingProvider durable = new CountingProvider();
+    CachingCheckpointProvider provider = new CachingCheckpointProvider(
+        durable, 60 * 60 * 1000);
+    for (int i = 0; i < 10; i++) {
+      provider.checkpoint("k1", ("v" + i).getBytes());
+      provider.checkpoint("k2", ("v" + i).getBytes());
+    }
+    Assert.assertEquals(new String(provider.read("k1")), "v9");
+    Assert.assertEquals(durable.transactions, 0);
+    provider.flush();
+    Assert.assertEquals(durable.transactions, 1);
+    Assert.assertEquals(new String(durable.store.get("k2")), "v9");
+    provider.close();
+  }
+
+  @Test
+  public void testLeadershipChange() {
+    CountingProvider durable = new CountingProvider();
+    CachingCheckpointProvider provider = new CachingCheckpointProvider(
+        durable, 60 * 60 * 1000);
+    provider.checkpoint("k1", "mine".getBytes());
+    provider.setWritable(false);
+    provider.invalidate();
+    // written by the new leader
+    durable.store.put("k1", "theirs".getBytes());
+    provider.checkpoint("k1", "stale".getBytes());
+    provider.flush();
+    Assert.assertEquals(new String(durable.store.get("k1")), "theirs");
+
+    provider.setWritable(true);
+    provider.invalidate();
+    Assert.assertEquals(new String(provider.read("k1")), "theirs");
+    Assert.assertEquals(durable.transactions, 0);
+    provider.close();
+  }
+
+}
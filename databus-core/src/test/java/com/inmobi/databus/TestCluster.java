@@ -3,9 +3,13 @@ package com.inmobi.databus;
 import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
@@ -159,4 +163,59 @@ public class TestCluster {
 
   }
 
+  @Test
+  public void testCommitTime() throws Exception {
+    Cluster cluster = new DatabusConfigParser("test-databus.xml").getConfig()
+        .getAllClusters().values().iterator().next();
+    long last = cluster.getCommitTime();
+    for (int i = 0; i < 1000; i++) {
+      long commitTime = cluster.getCommitTime();
+      Assert.assertTrue(commitTime >= last);
+      last = commitTime;
+    }
+  }
+
+  @Test
+  public void testStreamOfPath() throws Exception {
+    Cluster cluster = new DatabusConfigParser("test-databus.xml").getConfig()
+        .getAllClusters().values().iterator().next();
+    Assert.assertEquals(cluster.getStreamOfPath(new Path(cluster.getDataDir(),
+        "stream1/collector1/file1")), "stream1");
+    Assert.assertEquals(cluster.getStreamOfPath(new Path(cluster
+        .getFinalDestDir("stream2", 0))), "stream2");
+    Assert.assertEquals(cluster.getStreamOfPath(new Path(cluster
+        .getLocalFinalDestDirRoot() + "stream3")), "stream3");
+    Assert.assertEquals(cluster.getStreamOfPath(new Path(cluster
+        .getArchiveDirRoot() + "streams_local/stream4/2012")), "stream4");
+    // unqualified paths resolve too
+    Assert.assertEquals(cluster.getStreamOfPath(new Path(new Path(cluster
+        .getFinalDestDir("stream2", 0)).toUri().getPath())), "stream2");
+    Assert.assertNull(cluster.getStreamOfPath(cluster.getTmpPath()));
+    Assert.assertNull(cluster.getStreamOfPath(new Path(cluster
+        .getFinalDestDirRoot())));
+  }
+
+  @Test
+  public void testLockStreams() throws Exception {
+    final Cluster cluster = new DatabusConfigParser("test-databus.xml")
+        .getConfig().getAllClusters().values().iterator().next();
+    List<Lock> locks = cluster.lockStreams(Arrays.asList("stream1"));
+    final AtomicInteger committed = new AtomicInteger();
+    Thread other = new Thread() {
+      public void run() {
+        cluster.unlockStreams(cluster.lockStreams(Arrays.asList("stream2")));
+        committed.incrementAndGet();
+        cluster.unlockStreams(cluster.lockStreams(Arrays.asList("stream2",
+            "stream1")));
+        committed.incrementAndGet();
+      }
+    };
+    other.start();
+    // other streams aren't blocked, the same stream is
+    other.join(1000);
+    Assert.assertEquals(committed.get(), 1);
+    cluster.unlockStreams(locks);
+    other.join();
+    Assert.assertEquals(committed.get(), 2);
+  }
 }
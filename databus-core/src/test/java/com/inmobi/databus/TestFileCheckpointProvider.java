@@ -1,5 +1,11 @@
 package com.inmobi.databus;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -21,4 +27,62 @@ public class TestFileCheckpointProvider {
     provider.close();
   }
 
+  @Test
+  public void testTransaction() throws Exception {
+    String dir = "target/cktransaction";
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(dir), true);
+    CheckpointProvider provider = new FSCheckpointProvider(dir, "test");
+    for (int i = 0; i < FSCheckpointProvider.SNAPSHOT_INTERVAL + 5; i++) {
+      Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+      checkpoints.put("k1", ("v1-" + i).getBytes());
+      checkpoints.put("k2", ("v2-" + i).getBytes());
+      provider.checkpoint(checkpoints);
+    }
+    provider.close();
+    // logs before the snapshot are folded into it
+    Assert.assertEquals(fs.listStatus(new Path(dir)).length, 6);
+
+    // a torn transaction is ignored on reload
+    fs.create(new Path(dir, "test.log.1000")).close();
+    provider = new FSCheckpointProvider(dir, "test");
+    int last = FSCheckpointProvider.SNAPSHOT_INTERVAL + 4;
+    Assert.assertEquals(new String(provider.read("k1")), "v1-" + last);
+    Assert.assertEquals(new String(provider.read("k2")), "v2-" + last);
+    provider.checkpoint("k1", "after".getBytes());
+    provider.close();
+    Assert.assertEquals(new String(new FSCheckpointProvider(dir, "test")
+        .read("k1")), "after");
+    fs.delete(new Path(dir), true);
+  }
+
+  @Test
+  public void testSharedDir() throws Exception {
+    String dir = "target/ckshared";
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(dir), true);
+    // eg: the old and the new leader
+    CheckpointProvider first = new FSCheckpointProvider(dir, "test");
+    CheckpointProvider second = new FSCheckpointProvider(dir, "test");
+    first.checkpoint("k1", "first".getBytes());
+    Assert.assertEquals(new String(second.read("k1")), "first");
+    // second doesn't reuse the version first wrote
+    second.checkpoint("k2", "second".getBytes());
+    Assert.assertEquals(new String(first.readAll().get("k2")), "second");
+    Assert.assertEquals(new String(first.readAll().get("k1")), "first");
+
+    // logs folded by one are read from the snapshot by the other
+    for (int i = 0; i < FSCheckpointProvider.SNAPSHOT_INTERVAL; i++) {
+      first.checkpoint("k1", ("first-" + i).getBytes());
+    }
+    int last = FSCheckpointProvider.SNAPSHOT_INTERVAL - 1;
+    Assert.assertEquals(new String(second.read("k1")), "first-" + last);
+    second.checkpoint("k1", "second".getBytes());
+    Assert.assertEquals(new String(first.read("k1")), "second");
+    Assert.assertEquals(new String(first.read("k2")), "second");
+    first.close();
+    second.close();
+    fs.delete(new Path(dir), true);
+  }
+
 }
@@ -0,0 +1,170 @@
+package com.inmobi.databus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestFileSystemRegistry {
+  private static final Path DIR = new Path("/tmp/test-databus/fsregistry");
+
+  @Test
+  public void testSharedHandle() throws IOException {
+    FileSystemRegistry registry = new FileSystemRegistry(URI
+        .create("file:///"), new Configuration(), 0);
+    FileSystem fs = registry.get();
+    Assert.assertSame(registry.get(), fs);
+    fs.delete(DIR, true);
+    Assert.assertTrue(fs.mkdirs(DIR));
+    // services closing the handle don't close it for the others
+    fs.close();
+    Assert.assertTrue(registry.get().exists(DIR));
+    Assert.assertTrue(registry.checkHealth());
+
+    registry.close();
+    // reopened on the next get
+    Assert.assertSame(registry.get(), fs);
+    Assert.assertTrue(fs.delete(DIR, true));
+    registry.close();
+  }
+
+  /*
+   * Local FileSystem whose health check fails while unhealthy
+   */
+  public static class FlakyFileSystem extends FilterFileSystem {
+    static final List<FlakyFileSystem> instances =
+        new ArrayList<FlakyFileSystem>();
+    static volatile boolean healthy = true;
+    boolean closed = false;
+
+    @Override
+    public void initialize(URI name, Configuration conf) throws IOException {
+      fs = FileSystem.getLocal(conf);
+      setConf(conf);
+      instances.add(this);
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+      if (!healthy && f.toString().equals("/"))
+        throw new IOException("unhealthy");
+      return super.getFileStatus(f);
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+    }
+  }
+
+  @Test
+  public void testReopenKeepsOpenStreams() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("fs.flaky.impl", FlakyFileSystem.class.getName());
+    FlakyFileSystem.instances.clear();
+    FileSystemRegistry registry = new FileSystemRegistry(URI
+        .create("flaky:///"), conf, 0);
+    FileSystem fs = registry.get();
+    fs.delete(DIR, true);
+    FSDataOutputStream out = fs.create(new Path(DIR, "file"));
+    out.writeInt(1);
+
+    FlakyFileSystem.healthy = false;
+    try {
+      Assert.assertFalse(registry.checkHealth());
+    } finally {
+      FlakyFileSystem.healthy = true;
+    }
+    Assert.assertEquals(FlakyFileSystem.instances.size(), 2);
+    // the old handle stays open for the stream written through it
+    Assert.assertFalse(FlakyFileSystem.instances.get(0).closed);
+    out.writeInt(2);
+    out.close();
+    Assert.assertTrue(FlakyFileSystem.instances.get(0).closed);
+    Assert.assertFalse(FlakyFileSystem.instances.get(1).closed);
+    Assert.assertEquals(fs.getFileStatus(new Path(DIR, "file")).getLen(), 8);
+
+    // without users the old handle is closed right away
+    FlakyFileSystem.healthy = false;
+    try {
+      Assert.assertFalse(registry.checkHealth());
+    } finally {
+      FlakyFileSystem.healthy = true;
+    }
+    Assert.assertTrue(FlakyFileSystem.instances.get(1).closed);
+    Assert.assertTrue(registry.checkHealth());
+    Assert.assertTrue(fs.delete(DIR, true));
+    registry.close();
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws IOException {
+    FileSystemRegistry registry = new FileSystemRegistry(URI
+        .create("file:///"), new Configuration(), 1);
+    FileSystem fs = registry.get();
+    fs.delete(DIR, true);
+    Path file = new Path(DIR, "file");
+    FSDataOutputStream out = fs.create(file);
+    out.writeInt(1);
+    out.close();
+    // permits are released after every call
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(fs.listStatus(DIR).length, 1);
+      Assert.assertEquals(fs.getFileStatus(file).getLen(), 4);
+    }
+    Assert.assertTrue(fs.rename(file, new Path(DIR, "renamed")));
+    Assert.assertEquals(registry.getCallCount(
+        FileSystemRegistry.Operation.LIST_STATUS), 10);
+    Assert.assertEquals(registry.getCallCount(
+        FileSystemRegistry.Operation.RENAME), 1);
+    Assert.assertTrue(fs.delete(DIR, true));
+    registry.close();
+  }
+
+  @Test
+  public void testCallAccounting() throws IOException {
+    FileSystemRegistry registry = new FileSystemRegistry(URI
+        .create("file:///"), new Configuration(), 0, 1000,
+        new FileSystemRegistry.StreamResolver() {
+          @Override
+          public String getStream(Path path) {
+            return path.getName().equals("stream1") ? "stream1" : null;
+          }
+        });
+    FileSystem fs = registry.get();
+    fs.delete(DIR, true);
+    FileSystemCaller previous = FileSystemCaller.set(new FileSystemCaller(
+        "service1", FileSystemRegistry.Priority.BACKGROUND));
+    try {
+      Assert.assertTrue(fs.mkdirs(new Path(DIR, "stream1")));
+      Assert.assertEquals(fs.listStatus(DIR).length, 1);
+    } finally {
+      FileSystemCaller.set(previous);
+    }
+    FileSystemRegistry.CallStats service = registry.getServiceStats().get(
+        "service1");
+    Assert.assertEquals(service.getCount(
+        FileSystemRegistry.Operation.MKDIRS), 1);
+    Assert.assertEquals(service.getCount(
+        FileSystemRegistry.Operation.LIST_STATUS), 1);
+    FileSystemRegistry.CallStats stream = registry.getStreamStats().get(
+        "stream1");
+    Assert.assertEquals(stream.getCount(FileSystemRegistry.Operation.MKDIRS),
+        1);
+    Assert.assertEquals(stream.getCount(
+        FileSystemRegistry.Operation.LIST_STATUS), 0);
+    // calls of threads without a caller are accounted too
+    Assert.assertTrue(fs.delete(DIR, true));
+    Assert.assertNotNull(registry.getServiceStats().get("unknown"));
+    registry.close();
+  }
+}
@@ -0,0 +1,164 @@
+package com.inmobi.databus;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLocalLogCheckpointProvider {
+  private static final String DIR = "target/locallogcheckpoint";
+  private static final String MIRROR_DIR = "target/locallogcheckpointmirror";
+  private static final String OTHER_DIR = "target/locallogcheckpointother";
+
+  private void cleanup() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(DIR), true);
+    fs.delete(new Path(MIRROR_DIR), true);
+    fs.delete(new Path(OTHER_DIR), true);
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    cleanup();
+    LocalLogCheckpointProvider provider = new LocalLogCheckpointProvider(DIR);
+    Assert.assertNull(provider.read("notpresent"));
+    provider.checkpoint("k1", "v1".getBytes());
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put("k1", "v2".getBytes());
+    checkpoints.put("k2", "v2".getBytes());
+    provider.checkpoint(checkpoints);
+    provider.close();
+
+    // a record torn by a crash is dropped
+    File log = new File(DIR, LocalLogCheckpointProvider.LOG_FILE);
+    long valid = log.length();
+    RandomAccessFile out = new RandomAccessFile(log, "rw");
+    out.seek(valid);
+    out.write(new byte[] { 0x44, 0x42, 0x43 });
+    out.close();
+
+    provider = new LocalLogCheckpointProvider(DIR);
+    Assert.assertEquals(log.length(), valid);
+    Assert.assertEquals(new String(provider.read("k1")), "v2");
+    Assert.assertEquals(new String(provider.read("k2")), "v2");
+    provider.checkpoint("k3", "v3".getBytes());
+    provider.close();
+    Assert.assertEquals(new LocalLogCheckpointProvider(DIR).readAll().size(),
+        3);
+    cleanup();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    cleanup();
+    LocalLogCheckpointProvider provider = new LocalLogCheckpointProvider(DIR);
+    provider.setCompactionThreshold(1024);
+    for (int i = 0; i < 200; i++) {
+      provider.checkpoint("k" + (i % 10), ("v" + i).getBytes());
+    }
+    provider.close();
+    Assert.assertTrue(new File(DIR, LocalLogCheckpointProvider.SNAPSHOT_FILE)
+        .exists());
+    Assert.assertTrue(new File(DIR, LocalLogCheckpointProvider.LOG_FILE)
+        .length() <= 1024);
+
+    provider = new LocalLogCheckpointProvider(DIR);
+    Assert.assertEquals(provider.readAll().size(), 10);
+    Assert.assertEquals(new String(provider.read("k9")), "v199");
+    provider.close();
+    cleanup();
+  }
+
+  @Test
+  public void testMirror() throws Exception {
+    cleanup();
+    LocalLogCheckpointProvider provider = new LocalLogCheckpointProvider(DIR,
+        MIRROR_DIR, 60 * 60 * 1000);
+    provider.checkpoint("k1", "v1".getBytes());
+    provider.mirror();
+    provider.close();
+    Assert.assertEquals(new String(new FSCheckpointProvider(MIRROR_DIR)
+        .read("k1")), "v1");
+
+    // another worker without the local store starts from the mirror
+    FileSystem.getLocal(new Configuration()).delete(new Path(DIR), true);
+    CheckpointProvider configured = CheckpointProviderFactory.create(
+        LocalLogCheckpointProvider.class.getName(), DIR, MIRROR_DIR,
+        60 * 60 * 1000);
+    Assert.assertTrue(configured instanceof LocalLogCheckpointProvider);
+    Assert.assertEquals(new String(configured.read("k1")), "v1");
+    configured.close();
+    cleanup();
+  }
+
+  @Test
+  public void testStaleLocalStore() throws Exception {
+    cleanup();
+    LocalLogCheckpointProvider provider = new LocalLogCheckpointProvider(DIR,
+        MIRROR_DIR, 60 * 60 * 1000);
+    provider.checkpoint("k1", "v1".getBytes());
+    provider.mirror();
+    provider.close();
+
+    // another worker leads meanwhile
+    LocalLogCheckpointProvider other = new LocalLogCheckpointProvider(
+        OTHER_DIR, MIRROR_DIR, 60 * 60 * 1000);
+    Assert.assertEquals(new String(other.read("k1")), "v1");
+    other.checkpoint("k1", "v2".getBytes());
+    other.mirror();
+
+    // the local store is behind the mirror
+    provider = new LocalLogCheckpointProvider(DIR, MIRROR_DIR, 60 * 60 * 1000);
+    Assert.assertEquals(new String(provider.read("k1")), "v2");
+    Assert.assertEquals(provider.readAll().size(), 1);
+
+    // and is caught up again on invalidate
+    other.checkpoint("k1", "v3".getBytes());
+    other.mirror();
+    other.close();
+    CachingCheckpointProvider caching = new CachingCheckpointProvider(
+        provider);
+    Assert.assertEquals(new String(caching.read("k1")), "v2");
+    caching.invalidate();
+    Assert.assertEquals(new String(caching.read("k1")), "v3");
+    caching.close();
+    provider = new LocalLogCheckpointProvider(DIR, MIRROR_DIR, 60 * 60 * 1000);
+    Assert.assertEquals(new String(provider.read("k1")), "v3");
+    provider.close();
+    cleanup();
+  }
+
+  @Test
+  public void testStaleMirrorNotOverwritten() throws Exception {
+    cleanup();
+    LocalLogCheckpointProvider provider = new LocalLogCheckpointProvider(DIR,
+        MIRROR_DIR, 60 * 60 * 1000);
+    LocalLogCheckpointProvider other = new LocalLogCheckpointProvider(
+        OTHER_DIR, MIRROR_DIR, 60 * 60 * 1000);
+    other.checkpoint("k1", "new".getBytes());
+    other.mirror();
+    other.close();
+    provider.checkpoint("k1", "stale".getBytes());
+    provider.mirror();
+    provider.close();
+    Assert.assertEquals(new String(new FSCheckpointProvider(MIRROR_DIR)
+        .read("k1")), "new");
+    cleanup();
+  }
+
+  @Test
+  public void testInvalidMirrorInterval() throws Exception {
+    try {
+      new LocalLogCheckpointProvider(DIR, MIRROR_DIR, 0);
+      Assert.fail("mirror thread would spin");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
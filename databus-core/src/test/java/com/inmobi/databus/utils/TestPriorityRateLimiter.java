@@ -0,0 +1,68 @@
+package com.inmobi.databus.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPriorityRateLimiter {
+
+  private Thread acquire(final PriorityRateLimiter limiter,
+      final int priority, final List<Integer> served) {
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          limiter.acquire(priority);
+          served.add(priority);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private void awaitWaiting(PriorityRateLimiter limiter, int priority)
+      throws InterruptedException {
+    while (limiter.getWaiting(priority) == 0) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testPriorityOrder() throws Exception {
+    // a permit every 500 ms, all three wait before the next is free
+    PriorityRateLimiter limiter = new PriorityRateLimiter(2, 3);
+    limiter.acquire(0);
+    List<Integer> served = Collections.synchronizedList(
+        new ArrayList<Integer>());
+    Thread background = acquire(limiter, 2, served);
+    awaitWaiting(limiter, 2);
+    Thread listing = acquire(limiter, 1, served);
+    awaitWaiting(limiter, 1);
+    Thread commit = acquire(limiter, 0, served);
+    background.join();
+    listing.join();
+    commit.join();
+    // arrival order is reversed by priority
+    Assert.assertEquals(served.size(), 3);
+    Assert.assertEquals(served.get(0).intValue(), 0);
+    Assert.assertEquals(served.get(1).intValue(), 1);
+    Assert.assertEquals(served.get(2).intValue(), 2);
+  }
+
+  @Test
+  public void testRate() throws Exception {
+    PriorityRateLimiter limiter = new PriorityRateLimiter(100, 1);
+    long start = System.nanoTime();
+    for (int i = 0; i < 21; i++) {
+      limiter.acquire(0);
+    }
+    // no burst, 20 intervals of 10 ms
+    Assert.assertTrue(System.nanoTime() - start >= 190 * 1000 * 1000L);
+    Assert.assertEquals(new PriorityRateLimiter(0, 1).acquire(0), 0);
+  }
+}
@@ -0,0 +1,75 @@
+package com.inmobi.databus.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimePartitionCodec {
+
+  @Test
+  public void testMatchesSimpleDateFormat() throws Exception {
+    for (String id : new String[] { "UTC", "America/Los_Angeles",
+        "Asia/Kolkata" }) {
+      TimeZone timeZone = TimeZone.getTimeZone(id);
+      TimePartitionCodec codec = new TimePartitionCodec(timeZone);
+      SimpleDateFormat minuteFormat = new SimpleDateFormat(
+          "yyyy/MM/dd/HH/mm/");
+      minuteFormat.setTimeZone(timeZone);
+      SimpleDateFormat hourFormat = new SimpleDateFormat("yyyy/MM/dd/HH/");
+      hourFormat.setTimeZone(timeZone);
+      SimpleDateFormat dashFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm");
+      dashFormat.setTimeZone(timeZone);
+      Random random = new Random(1);
+      // 2012 including both daylight saving changes of Los_Angeles
+      long start = 1325376000000L;
+      for (int i = 0; i < 100000; i++) {
+        long time = start + (long) (random.nextDouble() * 366 * 86400000L);
+        Date date = new Date(time);
+        String minutePath = minuteFormat.format(date);
+        Assert.assertEquals(codec.toMinutePath(time), minutePath);
+        Assert.assertEquals(codec.toHourPath(time), hourFormat.format(date));
+        Assert.assertEquals(codec.toMinuteString(time), dashFormat
+            .format(date));
+        Assert.assertEquals(codec.parse(minutePath), minuteFormat.parse(
+            minutePath).getTime());
+      }
+    }
+  }
+
+  @Test
+  public void testParse() {
+    TimePartitionCodec codec = new TimePartitionCodec(TimeZone
+        .getTimeZone("UTC"));
+    Assert.assertEquals(codec.parse("2012/01/13/15/07/"), 1326467220000L);
+    Assert.assertEquals(codec.parse("2012-1-13-15-7"), 1326467220000L);
+    // minute is optional
+    Assert.assertEquals(codec.parse("2012/01/13/15"), 1326466800000L);
+    try {
+      codec.parse("2012/13/01/00");
+      Assert.fail("parsed month 13");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      codec.parse("2012/01");
+      Assert.fail("parsed a partition without an hour");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDaylightSavingGap() throws Exception {
+    TimeZone timeZone = TimeZone.getTimeZone("America/Los_Angeles");
+    TimePartitionCodec codec = new TimePartitionCodec(timeZone);
+    SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd/HH/mm/");
+    format.setTimeZone(timeZone);
+    // 02:30 was skipped on 2012-03-11
+    Assert.assertEquals(codec.parse("2012/03/11/02/30/"), format.parse(
+        "2012/03/11/02/30/").getTime());
+  }
+}
@@ -13,20 +13,52 @@
 */
 package com.inmobi.databus;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.inmobi.databus.metrics.StageMetrics;
+import com.inmobi.databus.metrics.StreamCounters;
+
 public abstract class AbstractService implements Service, Runnable {
 
   private static final Log LOG = LogFactory.getLog(AbstractService.class);
   protected static final long DEFAULT_RUN_INTERVAL = 60000;
+  // stage timing the whole of every run
+  public static final String STAGE_RUN = "run";
+  // tiers at which data becomes visible, for freshness
+  public static final String TIER_LOCAL = "local";
+  public static final String TIER_MERGED = "merged";
+  public static final String TIER_MIRROR = "mirror";
 
   private final String name;
   private final DatabusConfig config;
   protected final long runIntervalInMsec;
   protected Thread thread;
   protected volatile boolean stopped = false;
+  // set while another worker may take over the service's work
+  private volatile boolean fenced = false;
   protected CheckpointProvider checkpointProvider = null;
+  private TriggerChannel triggerChannel = null;
+  private final StageMetrics stageMetrics = new StageMetrics();
+  // tier, stream, lag of files when they were committed
+  private final StageMetrics freshness = new StageMetrics();
+  private volatile boolean paused = false;
+  // updated only by the run in progress, runs don't overlap
+  private volatile long lastRunStartTime = -1;
+  private volatile long lastRunEndTime = -1;
+  private volatile long lastSuccessTime = -1;
+  private volatile int consecutiveFailures = 0;
+  private volatile long backlog = -1;
+  private final AtomicLong filesProcessed = new AtomicLong();
+  private final AtomicLong bytesProcessed = new AtomicLong();
+  private final StreamCounters streamCounters = new StreamCounters();
+  private volatile long lastCheckpointTime = -1;
 
   public AbstractService(String name, DatabusConfig config) {
     this(name, config, DEFAULT_RUN_INTERVAL);
@@ -57,30 +89,312 @@ public abstract class AbstractService implements Service, Runnable {
 
   protected abstract void execute() throws Exception;
 
+  /*
+   * Clusters whose filesystems are checked, and reopened if unreachable,
+   * before every run
+   */
+  protected List<Cluster> getClusters() {
+    return Collections.emptyList();
+  }
+
+  /*
+   * Type of the service for per type limits, eg: localstream
+   */
+  public String getServiceType() {
+    String type = getClass().getSimpleName().toLowerCase();
+    return type.endsWith("service") ? type.substring(0, type.length()
+        - "service".length()) : type;
+  }
+
+  /*
+   * Topics on which the service is run right away instead of at its next
+   * slot
+   */
+  public List<String> getTriggerTopics() {
+    return Collections.emptyList();
+  }
+
+  public void setTriggerChannel(TriggerChannel triggerChannel) {
+    this.triggerChannel = triggerChannel;
+  }
+
+  /*
+   * Wakes the services waiting on topic, failures only delay them till
+   * their next poll
+   */
+  protected void trigger(String topic) {
+    if (triggerChannel == null)
+      return;
+    try {
+      triggerChannel.trigger(topic);
+    } catch (RuntimeException e) {
+      LOG.warn("Could not trigger [" + topic + "]", e);
+    }
+  }
+
+  /*
+   * Topic of the manifests src writes for the merged stream service pulling
+   * into dest
+   */
+  public static String getConsumeTopic(Cluster src, Cluster dest) {
+    return "consume_" + src.getName() + "_" + dest.getName();
+  }
+
+  /*
+   * Topic of the manifests src writes for the mirror stream service pulling
+   * into dest
+   */
+  public static String getMirrorTopic(Cluster src, Cluster dest) {
+    return "mirror_" + src.getName() + "_" + dest.getName();
+  }
+
+  public StageMetrics getStageMetrics() {
+    return stageMetrics;
+  }
+
+  public StageMetrics getFreshness() {
+    return freshness;
+  }
+
+  /*
+   * Records how long after originTime, when the collector last wrote it, a
+   * file of stream was committed at tier
+   */
+  protected void recordFreshness(String tier, String stream, long originTime,
+      long commitTime) {
+    freshness.record(tier, stream, Math.max(0, commitTime - originTime)
+        * 1000);
+  }
+
+  /*
+   * @returns long - start of a stage, passed to stopStage when it ends
+   */
+  protected long startStage() {
+    return System.nanoTime();
+  }
+
+  protected void stopStage(String stage, long start) {
+    stageMetrics.record(stage, (System.nanoTime() - start) / 1000);
+  }
+
+  /*
+   * Times a stage done once per stream in a run
+   */
+  protected void stopStage(String stage, String stream, long start) {
+    stageMetrics.record(stage, stream, (System.nanoTime() - start) / 1000);
+  }
+
+  /*
+   * Counts files, and their bytes, which a run moved, copied or deleted
+   */
+  protected void addProcessed(long files, long bytes) {
+    filesProcessed.addAndGet(files);
+    bytesProcessed.addAndGet(bytes);
+  }
+
+  protected void addProcessed(String stream, long files, long bytes) {
+    addProcessed(files, bytes);
+    streamCounters.add(stream, files, bytes);
+  }
+
+  public StreamCounters getStreamCounters() {
+    return streamCounters;
+  }
+
+  /*
+   * Marks that the service's progress was just checkpointed
+   */
+  protected void checkpointed() {
+    lastCheckpointTime = System.currentTimeMillis();
+  }
+
+  /*
+   * @returns long - -1 if the service hasn't checkpointed yet
+   */
+  public long getLastCheckpointTime() {
+    return lastCheckpointTime;
+  }
+
+  public long getFilesProcessed() {
+    return filesProcessed.get();
+  }
+
+  public long getBytesProcessed() {
+    return bytesProcessed.get();
+  }
+
+  /*
+   * @param backlog - files or manifests found pending by the last run
+   */
+  protected void setBacklog(long backlog) {
+    this.backlog = backlog;
+  }
+
+  /*
+   * @returns long - -1 if the service doesn't track it
+   */
+  public long getBacklog() {
+    return backlog;
+  }
+
+  public long getLastRunStartTime() {
+    return lastRunStartTime;
+  }
+
+  public long getLastRunEndTime() {
+    return lastRunEndTime;
+  }
+
+  public long getLastSuccessTime() {
+    return lastSuccessTime;
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /*
+   * Runs are skipped till resume(), a run in progress finishes
+   */
+  public void pause() {
+    paused = true;
+    LOG.info("Paused [" + name + "]");
+  }
+
+  public void resume() {
+    paused = false;
+    LOG.info("Resumed [" + name + "]");
+  }
+
+  public boolean isPaused() {
+    return paused;
+  }
+
+  public List<String> getClusterNames() {
+    List<String> names = new ArrayList<String>();
+    for (Cluster cluster : getClusters()) {
+      names.add(cluster.getName());
+    }
+    return names;
+  }
+
+  public long getRunIntervalInMsec() {
+    return runIntervalInMsec;
+  }
+
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /*
+   * A fenced service fails its commits, also those of the run in progress,
+   * eg: set before waiting for that run when the service is given up
+   */
+  public void setFenced(boolean fenced) {
+    this.fenced = fenced;
+  }
+
+  public boolean isFenced() {
+    return fenced;
+  }
+
+  /*
+   * Called before every rename which publishes the output of a run
+   */
+  protected void checkFenced() throws IOException {
+    if (fenced)
+      throw new IOException("[" + name + "] fenced off, not committing");
+  }
+
+  /*
+   * Services sharing in process state must share a unit so that one worker
+   * runs all of them in sharded mode
+   */
+  public String getShardUnit() {
+    return name;
+  }
+
+  /*
+   * Unit of the services committing into cluster under its commit locks and
+   * clock, which are per process
+   */
+  protected static String getCommitUnit(Cluster cluster) {
+    return "commits_" + cluster.getName();
+  }
+
+  /*
+   * One run of the service, looped on by run() or scheduled by
+   * ServiceScheduler
+   */
+  public void runIteration() {
+    if (paused) {
+      LOG.info("Paused, skipping run");
+      return;
+    }
+    long start = startStage();
+    lastRunStartTime = System.currentTimeMillis();
+    FileSystemCaller previous = FileSystemCaller.set(new FileSystemCaller(
+        name, getFileSystemPriority()));
+    try {
+      LOG.info("Starting a run...");
+      for (Cluster cluster : getClusters()) {
+        cluster.getFileSystemRegistry().checkHealth();
+      }
+      execute();
+      lastSuccessTime = System.currentTimeMillis();
+      consecutiveFailures = 0;
+    } catch (Exception e) {
+      consecutiveFailures++;
+      LOG.warn("Error in run", e);
+    } finally {
+      FileSystemCaller.set(previous);
+      lastRunEndTime = System.currentTimeMillis();
+      stopStage(STAGE_RUN, start);
+      if (LOG.isDebugEnabled())
+        LOG.debug("Stage times in micros of [" + name + "] " + stageMetrics);
+    }
+  }
+
+  /*
+   * Called repeatedly on a warm standby worker, never while the service
+   * runs, to prepare read-only what the service's first run would otherwise
+   * have to compute, eg: by listing
+   */
+  public void warmUp() throws Exception {
+  }
+
+  /*
+   * Highest priority of the service's filesystem calls when the clusters
+   * rate limit them
+   */
+  protected FileSystemRegistry.Priority getFileSystemPriority() {
+    return FileSystemRegistry.Priority.COMMIT;
+  }
+
+  /*
+   * @returns long - 0 to run again immediately when the run took longer than
+   * the run interval
+   */
+  public long getMSecondsTillNextRun(long startTime, long finishTime) {
+    if (finishTime - startTime >= runIntervalInMsec)
+      return 0;
+    return Math.max(0, getMSecondsTillNextRun(finishTime));
+  }
+
   @Override
   public void run() {
     LOG.info("Starting Service [" + Thread.currentThread().getName() + "]");
     while (!stopped && !thread.isInterrupted()) {
       long startTime = System.currentTimeMillis();
-      try {
-        LOG.info("Starting a run...");
-        execute();
-        if (stopped || thread.isInterrupted())
-          return;
-      } catch (Exception e) {
-        LOG.warn("Error in run", e);
-      }
-      long finishTime = System.currentTimeMillis();
-      long elapsedTime = finishTime - startTime;
-      if (elapsedTime >= runIntervalInMsec)
-        continue;
-      else {
+      runIteration();
+      if (stopped || thread.isInterrupted())
+        return;
+      long sleepTime = getMSecondsTillNextRun(startTime,
+          System.currentTimeMillis());
+      if (sleepTime > 0) {
         try {
-          long sleepTime = getMSecondsTillNextRun(finishTime);
-          if (sleepTime > 0) {
-            LOG.info("Sleeping for " + sleepTime);
-            Thread.sleep(sleepTime);
-          }
+          LOG.info("Sleeping for " + sleepTime);
+          Thread.sleep(sleepTime);
         } catch (InterruptedException e) {
           LOG.warn("thread interrupted " + thread.getName(), e);
           return;
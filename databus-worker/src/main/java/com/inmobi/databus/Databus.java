@@ -16,10 +16,22 @@ package com.inmobi.databus;
 import com.inmobi.databus.Stream.StreamCluster;
 import com.inmobi.databus.distcp.MergedStreamService;
 import com.inmobi.databus.distcp.MirrorStreamService;
+import com.inmobi.databus.distcp.TransferGovernor;
 import com.inmobi.databus.local.LocalStreamService;
+import com.inmobi.databus.metrics.DatabusManagement;
+import com.inmobi.databus.metrics.MetricsServer;
+import com.inmobi.databus.metrics.PrometheusExporter;
+import com.inmobi.databus.purge.CompactionService;
 import com.inmobi.databus.purge.DataPurgerService;
 import com.inmobi.databus.utils.SecureLoginUtil;
 import com.inmobi.databus.zookeeper.CuratorLeaderManager;
+import com.inmobi.databus.zookeeper.CuratorShardManager;
+import com.inmobi.databus.zookeeper.LeadershipListener;
+import com.inmobi.databus.zookeeper.ZKCheckpointProvider;
+import com.inmobi.databus.zookeeper.ZKTriggerChannel;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.RetryOneTime;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -28,13 +40,26 @@ import sun.misc.SignalHandler;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-public class Databus implements Service, DatabusConstants {
+public class Databus implements Service, DatabusConstants,
+    LeadershipListener, CuratorShardManager.ShardListener,
+    CuratorLeaderManager.WarmStandby {
   private static Logger LOG = Logger.getLogger(Databus.class);
   private DatabusConfig config;
 
@@ -44,7 +69,33 @@ public class Databus implements Service, DatabusConstants {
 
   private final Set<String> clustersToProcess;
   private final List<AbstractService> services = new ArrayList<AbstractService>();
-
+  private volatile ServiceScheduler scheduler;
+  private volatile boolean leader = false;
+  private final DatabusManagement management = new DatabusManagement(this);
+  private TriggerChannel triggerChannel = new LocalTriggerChannel();
+  // service names subscribed to their trigger topics
+  private final Set<String> subscribedServices = new HashSet<String>();
+  private final List<CachingCheckpointProvider> checkpointProviders =
+      new ArrayList<CachingCheckpointProvider>();
+  // service, checkpoint provider only it writes to
+  private final Map<String, CachingCheckpointProvider> serviceCheckpoints =
+      new HashMap<String, CachingCheckpointProvider>();
+  private String checkpointProviderName;
+  private String checkpointProviderDir;
+  private String checkpointMirrorDir;
+  private long checkpointMirrorIntervalInMs;
+  // client of the worker's zookeeper session, shared with its users
+  private CuratorFramework zkClient;
+  private String zkConnectString;
+  // sharded mode, services are spread across the workers of the cluster
+  private CuratorFramework shardClient;
+  private String shardPath;
+  private volatile CuratorShardManager shardManager;
+  // warm standby, services are kept ready while another worker leads
+  private boolean initialized = false;
+  private boolean registered = false;
+  private ScheduledExecutorService warmer;
+  private final CountDownLatch stopped = new CountDownLatch(1);
 
   public Databus(DatabusConfig config, Set<String> clustersToProcess) {
     this.config = config;
@@ -56,14 +107,19 @@ public class Databus implements Service, DatabusConstants {
   }
 
   private void init() throws Exception {
+    //All distcp services of this process share copy streams
+    TransferGovernor governor = new TransferGovernor(config.getIntDefault(
+        DatabusConfigParser.MAX_COPY_STREAMS, 0));
     for (Cluster cluster : config.getAllClusters().values()) {
       if (!clustersToProcess.contains(cluster.getName())) {
         continue;
       }
       //Start LocalStreamConsumerService for this cluster if it's the source of any stream
       if (cluster.getSourceStreams().size() > 0) {
-        services.add(new LocalStreamService(config, cluster,
-        new FSCheckpointProvider(cluster.getCheckpointDir())));
+        CachingCheckpointProvider provider = getCheckpointProvider(cluster,
+            FSCheckpointProvider.DEFAULT_NAME);
+        addService(new LocalStreamService(config, cluster, provider),
+            provider);
       }
 
       List<Cluster> mergedStreamRemoteClusters = new ArrayList<Cluster>();
@@ -89,10 +145,12 @@ public class Databus implements Service, DatabusConstants {
       }
 
       for (Cluster remote : mergedStreamRemoteClusters) {
-        services.add(new MergedStreamService(config, remote, cluster));
+        addService(new MergedStreamService(config, remote, cluster,
+            governor), null);
       }
       for (Cluster remote : mirroredRemoteClusters) {
-        services.add(new MirrorStreamService(config, remote, cluster));
+        addService(new MirrorStreamService(config, remote, cluster,
+            governor), null);
       }
     }
 
@@ -102,35 +160,433 @@ public class Databus implements Service, DatabusConstants {
       if (purgecluster != null) {
         LOG.info("Starting Purger for Cluster [" + clusterName + "]");
         //Start a purger per cluster
-        services.add(new DataPurgerService(config, purgecluster));
+        CachingCheckpointProvider provider = getCheckpointProvider(
+            purgecluster, DataPurgerService.CHECKPOINT_NAME);
+        addService(new DataPurgerService(config, purgecluster, provider),
+            provider);
+        if (config.getDefaults().containsKey(
+            DatabusConfigParser.COMPACTION_AGE_IN_HOURS)) {
+          LOG.info("Starting Compaction for Cluster [" + clusterName + "]");
+          addService(new CompactionService(config, purgecluster), null);
+        }
       }
     }
   }
 
+  /*
+   * @param checkpointProvider - null if service doesn't checkpoint
+   */
+  private void addService(AbstractService service,
+      CachingCheckpointProvider checkpointProvider) {
+    services.add(service);
+    if (checkpointProvider != null)
+      serviceCheckpoints.put(service.getName(), checkpointProvider);
+  }
+
+  /*
+   * Runs the services in sharded mode: instead of one leader running all
+   * of them, they are spread across the live workers sharing basePath.
+   * The services committing into a cluster form one unit, as its commit
+   * locks and commit clock are per process. maxcopystreams limits each
+   * worker, not all of them.
+   * @param client - started before start()
+   */
+  public void setSharding(CuratorFramework client, String basePath) {
+    this.shardClient = client;
+    this.shardPath = basePath;
+  }
+
+  public CuratorShardManager getShardManager() {
+    return shardManager;
+  }
+
+  /*
+   * Checkpoints go to the cluster's checkpoint dir unless another provider
+   * is configured, eg: com.inmobi.databus.zookeeper.ZKCheckpointProvider
+   */
+  public void setCheckpointProvider(String providerName, String dir) {
+    this.checkpointProviderName = providerName;
+    this.checkpointProviderDir = dir;
+  }
+
+  /*
+   * Copies the checkpoints to mirrorDir every intervalInMs, for providers
+   * keeping them where another worker can't read them, eg:
+   * com.inmobi.databus.LocalLogCheckpointProvider
+   */
+  public void setCheckpointMirror(String mirrorDir, long intervalInMs) {
+    this.checkpointMirrorDir = mirrorDir;
+    this.checkpointMirrorIntervalInMs = intervalInMs;
+  }
+
+  /*
+   * Session the worker's zookeeper users share instead of opening their own,
+   * eg: checkpoints kept in the same ensemble
+   * @param client - started before the services are created
+   */
+  public void setZookeeperClient(CuratorFramework client,
+      String connectString) {
+    this.zkClient = client;
+    this.zkConnectString = connectString;
+  }
+
+  /*
+   * Channel on which services wake the services consuming their output,
+   * in process by default
+   */
+  public void setTriggerChannel(TriggerChannel triggerChannel) {
+    this.triggerChannel = triggerChannel;
+  }
+
+  private void subscribe(final AbstractService service) {
+    if (!subscribedServices.add(service.getName()))
+      return;
+    for (String topic : service.getTriggerTopics()) {
+      triggerChannel.subscribe(topic, new Runnable() {
+        @Override
+        public void run() {
+          // the scheduler of the current leadership term
+          ServiceScheduler current = scheduler;
+          if (current != null)
+            current.trigger(service);
+        }
+      });
+    }
+  }
+
+  private CachingCheckpointProvider getCheckpointProvider(Cluster cluster,
+      String name) throws Exception {
+    CheckpointProvider provider;
+    if (checkpointProviderName == null) {
+      provider = new FSCheckpointProvider(cluster.getFileSystem(),
+          cluster.getCheckpointDir(), name);
+    } else {
+      String dir = checkpointProviderDir + File.separator + cluster.getName()
+          + File.separator + name;
+      String connectString = ZKCheckpointProvider.getConnectString(dir);
+      if (zkClient != null && ZKCheckpointProvider.class.getName().equals(
+          checkpointProviderName) && (connectString.length() == 0
+              || connectString.equals(zkConnectString))) {
+        provider = new ZKCheckpointProvider(zkClient, ZKCheckpointProvider
+            .getBasePath(dir));
+      } else {
+        provider = CheckpointProviderFactory.create(checkpointProviderName,
+            dir, checkpointMirrorDir == null ? null : checkpointMirrorDir
+                + File.separator + cluster.getName() + File.separator + name,
+            checkpointMirrorIntervalInMs);
+      }
+    }
+    CachingCheckpointProvider cachingProvider = new CachingCheckpointProvider(
+        provider, config.getLongDefault(
+            DatabusConfigParser.CHECKPOINT_WRITE_BEHIND_IN_MS, 0));
+    checkpointProviders.add(cachingProvider);
+    return cachingProvider;
+  }
+
+  @Override
+  public void leadershipAcquired() {
+    leader = true;
+    // the previous leader may have moved the checkpoints
+    for (CachingCheckpointProvider provider : checkpointProviders) {
+      provider.invalidate();
+      provider.setWritable(true);
+    }
+    for (AbstractService service : services) {
+      service.setFenced(false);
+    }
+  }
+
+  /*
+   * Unflushed checkpoints are dropped, the next leader replays that work
+   */
+  @Override
+  public void leadershipFenced() {
+    for (AbstractService service : services) {
+      service.setFenced(true);
+    }
+    for (CachingCheckpointProvider provider : checkpointProviders) {
+      provider.setWritable(false);
+    }
+  }
+
+  @Override
+  public void leadershipLost() {
+    leader = false;
+    for (CachingCheckpointProvider provider : checkpointProviders) {
+      provider.setWritable(false);
+      provider.invalidate();
+    }
+  }
+
+  private void flush(CachingCheckpointProvider provider) {
+    try {
+      provider.flush();
+    } catch (RuntimeException e) {
+      LOG.warn("Could not flush checkpoints", e);
+    }
+  }
+
+  private List<AbstractService> getServices(String unit) {
+    List<AbstractService> unitServices = new ArrayList<AbstractService>();
+    for (AbstractService service : services) {
+      if (service.getShardUnit().equals(unit))
+        unitServices.add(service);
+    }
+    return unitServices;
+  }
+
+  @Override
+  public void unitAcquired(String unit) {
+    for (AbstractService service : getServices(unit)) {
+      // the previous owner may have moved the checkpoints, read them again
+      // from the provider, eg: FSCheckpointProvider reloads the files
+      CachingCheckpointProvider provider = serviceCheckpoints.get(service
+          .getName());
+      if (provider != null) {
+        provider.invalidate();
+        provider.setWritable(true);
+      }
+      service.setFenced(false);
+      scheduler.schedule(service);
+    }
+  }
+
+  @Override
+  public void unitFenced(String unit) {
+    for (AbstractService service : getServices(unit)) {
+      service.setFenced(true);
+      CachingCheckpointProvider provider = serviceCheckpoints.get(service
+          .getName());
+      if (provider != null)
+        provider.setWritable(false);
+    }
+  }
+
+  /*
+   * Runs in progress may outlive the ownership, so they are fenced before
+   * being waited for
+   */
+  @Override
+  public void unitReleased(String unit) {
+    List<AbstractService> unitServices = getServices(unit);
+    for (AbstractService service : unitServices) {
+      CachingCheckpointProvider provider = serviceCheckpoints.get(service
+          .getName());
+      // checkpoints of runs which committed, unless fenced already
+      if (provider != null)
+        flush(provider);
+    }
+    unitFenced(unit);
+    for (AbstractService service : unitServices) {
+      try {
+        scheduler.unschedule(service);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.warn("Interrupted waiting for the run of [" + service.getName()
+            + "]");
+      }
+    }
+  }
+
+  /*
+   * Readies the worker to take over from the leader: services are created,
+   * filesystems opened, and every standbyrefreshinms the checkpoints are
+   * reloaded and the services warmed up, all read-only
+   */
+  public synchronized void standby() throws Exception {
+    if (!initialized) {
+      init();
+      initialized = true;
+    }
+    for (CachingCheckpointProvider provider : checkpointProviders) {
+      provider.setWritable(false);
+    }
+    startWarmer();
+  }
+
+  private void startWarmer() {
+    if (warmer != null || stopped.getCount() == 0)
+      return;
+    warmer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "StandbyWarmer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    warmer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        warmUp();
+      }
+    }, 0, config.getLongDefault(DatabusConfigParser.STANDBY_REFRESH_IN_MS,
+        30000), TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Waits for a warm up in progress, it may reload checkpoints the services
+   * are about to write
+   */
+  private void stopWarmer() throws InterruptedException {
+    if (warmer == null)
+      return;
+    warmer.shutdown();
+    warmer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    warmer = null;
+  }
+
+  private void warmUp() {
+    FileSystemCaller previous = FileSystemCaller.set(new FileSystemCaller(
+        "standby", FileSystemRegistry.Priority.BACKGROUND));
+    try {
+      for (Cluster cluster : config.getAllClusters().values()) {
+        try {
+          cluster.getFileSystem();
+          cluster.getFileSystemRegistry().checkHealth();
+        } catch (IOException e) {
+          LOG.warn("Could not open FileSystem of [" + cluster.getName()
+              + "]", e);
+        }
+      }
+      for (CachingCheckpointProvider provider : checkpointProviders) {
+        try {
+          provider.invalidate();
+          provider.readAll();
+        } catch (RuntimeException e) {
+          LOG.warn("Could not reload checkpoints", e);
+        }
+      }
+      for (AbstractService service : services) {
+        try {
+          service.warmUp();
+        } catch (Exception e) {
+          LOG.warn("Could not warm up [" + service.getName() + "]", e);
+        }
+      }
+    } finally {
+      FileSystemCaller.set(previous);
+    }
+  }
+
+  @Override
+  public synchronized void promote() throws Exception {
+    stopWarmer();
+    if (stopped.getCount() == 0)
+      return;
+    if (!initialized) {
+      init();
+      initialized = true;
+    }
+    if (scheduler == null)
+      scheduler = new ServiceScheduler(config);
+    for (AbstractService service : services) {
+      service.setTriggerChannel(triggerChannel);
+      subscribe(service);
+      scheduler.schedule(service);
+    }
+    if (!registered) {
+      management.register();
+      registered = true;
+    }
+    LOG.info("Promoted, [" + services.size() + "] services scheduled");
+  }
+
+  @Override
+  public synchronized void demote() throws Exception {
+    if (scheduler != null) {
+      for (AbstractService service : services) {
+        scheduler.unschedule(service);
+      }
+    }
+    LOG.info("Demoted to standby");
+    startWarmer();
+  }
+
+  /*
+   * Blocks till stop() is called
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
   @Override
   public void stop() throws Exception {
+    stopped.countDown();
+    synchronized (this) {
+      stopWarmer();
+    }
     for (AbstractService service : services) {
       LOG.info("Stopping [" + service.getName() + "]");
       service.stop();
     }
+    if (scheduler != null)
+      scheduler.stop();
     LOG.info("Databus Shutdown complete..");
   }
 
   @Override
   public void join() throws Exception {
-    for (AbstractService service : services) {
-      LOG.info("Waiting for [" + service.getName() + "] to finish");
-      service.join();
+    if (scheduler != null) {
+      LOG.info("Waiting for services to finish");
+      scheduler.join();
     }
+    if (shardManager != null)
+      shardManager.close();
+    // before the filesystems they may write to are closed
+    for (CachingCheckpointProvider provider : checkpointProviders) {
+      try {
+        provider.close();
+      } catch (RuntimeException e) {
+        LOG.warn("Could not close checkpoint provider", e);
+      }
+    }
+    for (Cluster cluster : config.getAllClusters().values()) {
+      cluster.closeFileSystem();
+    }
+    triggerChannel.close();
+    management.unregister();
+  }
+
+  public ServiceScheduler getScheduler() {
+    return scheduler;
+  }
+
+  public List<AbstractService> getServices() {
+    return Collections.unmodifiableList(services);
+  }
+
+  public boolean isLeader() {
+    return leader;
   }
 
   @Override
   public void start() throws Exception{
     try {
       init();
+      // services run on a shared pool instead of a thread each
+      scheduler = new ServiceScheduler(config);
       for (AbstractService service : services) {
-        service.start();
+        service.setTriggerChannel(triggerChannel);
+        if (shardClient == null)
+          scheduler.schedule(service);
+        subscribe(service);
+      }
+      if (shardClient != null) {
+        // services are scheduled as this worker acquires them
+        for (CachingCheckpointProvider provider : serviceCheckpoints
+            .values()) {
+          provider.setWritable(false);
+        }
+        Set<String> units = new LinkedHashSet<String>();
+        for (AbstractService service : services) {
+          units.add(service.getShardUnit());
+        }
+        shardManager = new CuratorShardManager(shardClient, shardPath,
+            ManagementFactory.getRuntimeMXBean().getName(), units, this);
+        shardManager.start();
       }
+      management.register();
     }
     catch (Exception e) {
       LOG.warn("Error is starting service", e);
@@ -191,6 +647,21 @@ public class Databus implements Service, DatabusConstants {
         throw new RuntimeException("Zoookeeper connection string not " +
         "specified");
       }
+      String checkpointProvider = prop.getProperty(CHECKPOINT_PROVIDER);
+      String checkpointProviderDir = prop.getProperty(CHECKPOINT_PROVIDER_DIR);
+      String checkpointMirrorDir = prop.getProperty(CHECKPOINT_MIRROR_DIR);
+      String checkpointMirrorInterval = prop.getProperty(
+          CHECKPOINT_MIRROR_INTERVAL_IN_MS);
+      if (checkpointProvider != null && checkpointProvider.length() > 0
+          && (checkpointProviderDir == null
+              || checkpointProviderDir.length() == 0)) {
+        LOG.error(CHECKPOINT_PROVIDER_DIR + " not specified");
+        throw new RuntimeException("Checkpoint provider dir not specified");
+      }
+      String metricsPort = prop.getProperty(METRICS_PORT);
+      boolean sharded = Boolean.parseBoolean(prop.getProperty(SHARDED));
+      boolean warmStandby = Boolean.parseBoolean(prop.getProperty(
+          WARM_STANDBY));
       String principal = prop.getProperty(KRB_PRINCIPAL);
       String keytab = getProperty(prop, KEY_TAB_FILE);
       prop = null;
@@ -231,11 +702,24 @@ public class Databus implements Service, DatabusConstants {
         }
       }
       final Databus databus = new Databus(config, clustersToProcess);
-      LOG.info("Starting CuratorLeaderManager for eleader election ");
-      CuratorLeaderManager curatorLeaderManager =
-      new CuratorLeaderManager(databus, databusClusterId.toString(),
-      zkConnectString);
-      curatorLeaderManager.start();
+      if (checkpointProvider != null && checkpointProvider.length() > 0) {
+        LOG.info("Checkpoints stored by [" + checkpointProvider + "] in ["
+            + checkpointProviderDir + "]");
+        databus.setCheckpointProvider(checkpointProvider,
+            checkpointProviderDir);
+        if (checkpointMirrorDir != null
+            && checkpointMirrorDir.trim().length() > 0) {
+          LOG.info("Checkpoints mirrored to [" + checkpointMirrorDir + "]");
+          databus.setCheckpointMirror(checkpointMirrorDir.trim(),
+              checkpointMirrorInterval == null
+                  || checkpointMirrorInterval.trim().length() == 0 ? 60000
+                  : Long.parseLong(checkpointMirrorInterval.trim()));
+        }
+      }
+      if (metricsPort != null && metricsPort.trim().length() > 0) {
+        new MetricsServer(new PrometheusExporter(databus), Integer
+            .parseInt(metricsPort.trim())).start();
+      }
       Signal.handle(new Signal("INT"), new SignalHandler() {
         @Override
         public void handle(Signal signal) {
@@ -248,6 +732,44 @@ public class Databus implements Service, DatabusConstants {
           }
         }
       });
+      if (sharded) {
+        LOG.info("Starting in sharded mode");
+        CuratorFramework client = CuratorFrameworkFactory.newClient(
+            zkConnectString, new RetryOneTime(3));
+        client.start();
+        databus.setZookeeperClient(client, zkConnectString);
+        databus.setTriggerChannel(new ZKTriggerChannel(client,
+            "/databus/triggers"));
+        // workers processing the same clusters share their services
+        databus.setSharding(client, "/databus/shards/"
+            + (databusClusterId.length() == 0 ? "ALL" : databusClusterId
+                .toString()));
+        databus.start();
+        return;
+      }
+      LOG.info("Starting CuratorLeaderManager for eleader election ");
+      CuratorLeaderManager curatorLeaderManager =
+      new CuratorLeaderManager(databus, databusClusterId.toString(),
+      zkConnectString);
+      curatorLeaderManager.addLeadershipListener(databus);
+      databus.setZookeeperClient(curatorLeaderManager.getClient(),
+          zkConnectString);
+      databus.setTriggerChannel(new ZKTriggerChannel(curatorLeaderManager
+          .getClient(), "/databus/triggers"));
+      // checkpoint providers may use the session
+      curatorLeaderManager.connect();
+      if (warmStandby) {
+        LOG.info("Warming up as standby");
+        databus.standby();
+        curatorLeaderManager.setWarmStandby(databus);
+      }
+      curatorLeaderManager.start();
+      if (warmStandby) {
+        // leadership comes and goes, the worker runs till stopped
+        databus.awaitStop();
+        databus.join();
+        System.exit(0);
+      }
     }
     catch (Exception e) {
       LOG.warn("Error in starting Databus daemon", e);
@@ -0,0 +1,67 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/*
+ * Triggers between services of the same worker, listeners are called on the
+ * triggering thread
+ */
+public class LocalTriggerChannel implements TriggerChannel {
+  private static final Log LOG = LogFactory.getLog(LocalTriggerChannel.class);
+
+  private final ConcurrentMap<String, List<Runnable>> listeners =
+      new ConcurrentHashMap<String, List<Runnable>>();
+
+  @Override
+  public void trigger(String topic) {
+    List<Runnable> topicListeners = listeners.get(topic);
+    if (topicListeners == null)
+      return;
+    LOG.debug("Triggering [" + topic + "]");
+    for (Runnable listener : topicListeners) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        LOG.warn("Error in listener of [" + topic + "]", e);
+      }
+    }
+  }
+
+  @Override
+  public void subscribe(String topic, Runnable listener) {
+    List<Runnable> topicListeners = listeners.get(topic);
+    if (topicListeners == null) {
+      listeners.putIfAbsent(topic, new CopyOnWriteArrayList<Runnable>());
+      topicListeners = listeners.get(topic);
+    }
+    topicListeners.add(listener);
+  }
+
+  public boolean hasListeners(String topic) {
+    return listeners.containsKey(topic);
+  }
+
+  @Override
+  public void close() {
+    listeners.clear();
+  }
+}
@@ -0,0 +1,552 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/*
+ * Runs the services of a worker as tasks on a shared, bounded pool of
+ * schedulerthreads (default 16) threads instead of a thread per service.
+ * A service schedules its next run only when its current run finishes, so
+ * it never overlaps with itself. At most <type>concurrency (eg:
+ * mergedstreamconcurrency, default unlimited) runs of a service type are
+ * in progress, runs over the limit wait in order for a run to finish.
+ *
+ * Runs are due at slots, multiples of the service's run interval shifted by
+ * <type>phaseoffsetinms (default 0), and start a random upto
+ * <type>jitterinms (default a twentieth of the interval, at most 3s) late so
+ * that workers don't all hit the namenode at the minute. Slots don't drift
+ * with the length of runs. A run finishing after its next slot handles the
+ * missed slots as per <type>overrunpolicy:
+ * skip - waits for the next slot after it finished
+ * coalesce (default) - runs once right away for all the missed slots
+ * catchup - runs right away once per missed slot, upto <type>catchuplimit
+ * (default 3) runs in a row, then skips the rest
+ *
+ * trigger() runs a service right away, eg: when its input was just
+ * committed, and the run after that is due at the next slot.
+ * unschedule() takes a service off the scheduler, eg: when another worker
+ * takes it over, once its run in progress finished. It must not be called
+ * from a run, which would wait for itself.
+ *
+ * Runs never wait on one another for a pool thread: the copy stream
+ * governor hands out permits without blocking, catch-up pulls run on their
+ * service's own pool and unschedule() is called from the leadership and
+ * shard callbacks. Any schedulerthreads >= 1 makes progress, but a run
+ * waiting on the namenode holds its thread, so size it for the runs due
+ * at the same slot.
+ *
+ * Scheduling delay is how late a run fired, queue time how long it then
+ * waited for its type's limit, lag how late it started after its slot.
+ */
+public class ServiceScheduler {
+  private static final Log LOG = LogFactory.getLog(ServiceScheduler.class);
+  private static final int DEFAULT_THREADS = 16;
+  private static final long MAX_DEFAULT_JITTER_IN_MS = 3000;
+  private static final int DEFAULT_CATCHUP_LIMIT = 3;
+
+  public enum OverrunPolicy {
+    SKIP, COALESCE, CATCHUP
+  }
+
+  private final DatabusConfig config;
+  private final ScheduledExecutorService executor;
+  private final Map<String, TypeLimit> typeLimits =
+      new HashMap<String, TypeLimit>();
+  private final Map<String, RunStats> stats =
+      new ConcurrentHashMap<String, RunStats>();
+  private final Map<String, ServiceRun> runs =
+      new HashMap<String, ServiceRun>();
+  private final Random random = new Random();
+
+  public static class RunStats {
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong skippedRuns = new AtomicLong();
+    private final AtomicLong schedulingDelayInMs = new AtomicLong();
+    private final AtomicLong maxSchedulingDelayInMs = new AtomicLong();
+    private final AtomicLong queueTimeInMs = new AtomicLong();
+    private final AtomicLong lagInMs = new AtomicLong();
+    private final AtomicLong maxLagInMs = new AtomicLong();
+
+    void update(long schedulingDelay, long queueTime, long lag) {
+      runs.incrementAndGet();
+      schedulingDelayInMs.addAndGet(schedulingDelay);
+      queueTimeInMs.addAndGet(queueTime);
+      lagInMs.set(lag);
+      setMax(maxSchedulingDelayInMs, schedulingDelay);
+      setMax(maxLagInMs, lag);
+    }
+
+    private static void setMax(AtomicLong max, long value) {
+      long current;
+      while ((current = max.get()) < value
+          && !max.compareAndSet(current, value))
+        ;
+    }
+
+    void skipped(long count) {
+      skippedRuns.addAndGet(count);
+    }
+
+    public long getRuns() {
+      return runs.get();
+    }
+
+    public long getSkippedRuns() {
+      return skippedRuns.get();
+    }
+
+    public long getSchedulingDelayInMs() {
+      return schedulingDelayInMs.get();
+    }
+
+    public long getMaxSchedulingDelayInMs() {
+      return maxSchedulingDelayInMs.get();
+    }
+
+    public long getQueueTimeInMs() {
+      return queueTimeInMs.get();
+    }
+
+    /*
+     * @returns long - lag of the last run
+     */
+    public long getLagInMs() {
+      return lagInMs.get();
+    }
+
+    public long getMaxLagInMs() {
+      return maxLagInMs.get();
+    }
+  }
+
+  public ServiceScheduler(DatabusConfig config) {
+    this(config, createExecutor(Math.max(1, config.getIntDefault(
+        DatabusConfigParser.SCHEDULER_THREADS, DEFAULT_THREADS))));
+  }
+
+  /*
+   * @param executor - eg: one with more threads for services blocked on hdfs
+   */
+  public ServiceScheduler(DatabusConfig config,
+      ScheduledExecutorService executor) {
+    this.config = config;
+    this.executor = executor;
+  }
+
+  private static ScheduledExecutorService createExecutor(int threads) {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+        threads, new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "ServiceScheduler-" + count.incrementAndGet());
+          }
+        });
+    // runs due after stop() are dropped
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    return executor;
+  }
+
+  public synchronized void schedule(AbstractService service) {
+    if (runs.containsKey(service.getName()))
+      return;
+    String type = service.getServiceType();
+    if (!typeLimits.containsKey(type)) {
+      int limit = config.getIntDefault(type
+          + DatabusConfigParser.CONCURRENCY_SUFFIX, 0);
+      typeLimits.put(type, limit > 0 ? new TypeLimit(limit) : null);
+    }
+    long interval = Math.max(1, service.getRunIntervalInMsec());
+    long phaseOffset = config.getLongDefault(type
+        + DatabusConfigParser.PHASE_OFFSET_SUFFIX, 0) % interval;
+    long jitter = config.getLongDefault(type
+        + DatabusConfigParser.JITTER_SUFFIX, Math.min(interval / 20,
+        MAX_DEFAULT_JITTER_IN_MS));
+    String policy = config.getDefaults().get(type
+        + DatabusConfigParser.OVERRUN_POLICY_SUFFIX);
+    OverrunPolicy overrunPolicy = policy == null ? OverrunPolicy.COALESCE
+        : OverrunPolicy.valueOf(policy.toUpperCase());
+    int catchUpLimit = config.getIntDefault(type
+        + DatabusConfigParser.CATCHUP_LIMIT_SUFFIX, DEFAULT_CATCHUP_LIMIT);
+
+    // stats carry over when a service is scheduled again
+    RunStats runStats = stats.get(service.getName());
+    if (runStats == null) {
+      runStats = new RunStats();
+      stats.put(service.getName(), runStats);
+    }
+    ServiceRun run = new ServiceRun(service, typeLimits.get(type), runStats,
+        interval, phaseOffset, jitter, overrunPolicy, catchUpLimit);
+    runs.put(service.getName(), run);
+    LOG.info("Scheduling [" + service.getName() + "] every [" + interval
+        + "] ms, phase offset [" + phaseOffset + "] jitter [" + jitter
+        + "] overrun policy [" + overrunPolicy + "]");
+    run.submit(nextSlot(System.currentTimeMillis(), interval, phaseOffset),
+        true);
+  }
+
+  /*
+   * @returns long - first slot at or after time
+   */
+  static long nextSlot(long time, long interval, long phaseOffset) {
+    long sinceSlot = (time - phaseOffset) % interval;
+    if (sinceSlot < 0)
+      sinceSlot += interval;
+    return sinceSlot == 0 ? time : time - sinceSlot + interval;
+  }
+
+  /*
+   * Runs service now unless it is running, in which case it runs again
+   * as soon as it finishes
+   */
+  public void trigger(AbstractService service) {
+    ServiceRun run;
+    synchronized (this) {
+      run = runs.get(service.getName());
+    }
+    if (run != null)
+      run.wake();
+  }
+
+  /*
+   * Drops the runs of service which are due, blocks till a run in progress
+   * finishes
+   * @returns boolean - false if service wasn't scheduled
+   */
+  public boolean unschedule(AbstractService service)
+      throws InterruptedException {
+    ServiceRun run;
+    synchronized (this) {
+      run = runs.remove(service.getName());
+    }
+    if (run == null)
+      return false;
+    run.cancel();
+    LOG.info("Unscheduled [" + service.getName() + "]");
+    return true;
+  }
+
+  public synchronized boolean isScheduled(AbstractService service) {
+    return runs.containsKey(service.getName());
+  }
+
+  private void schedule(ServiceRun run, long delayInMs) {
+    // run() waits for the lock, so the future is set before it can run
+    synchronized (run) {
+      try {
+        run.future = executor.schedule(run, delayInMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        LOG.info("Not scheduling [" + run.service.getName() + "], stopped");
+      }
+    }
+  }
+
+  private synchronized long nextJitter(long jitter) {
+    return jitter > 0 ? (long) (random.nextDouble() * jitter) : 0;
+  }
+
+  public Map<String, RunStats> getStats() {
+    return Collections.unmodifiableMap(new HashMap<String, RunStats>(stats));
+  }
+
+  /*
+   * @returns RunStats - null if serviceName isn't scheduled
+   */
+  public RunStats getStats(String serviceName) {
+    return stats.get(serviceName);
+  }
+
+  /*
+   * Pool figures are -1 when the scheduler was given an executor which
+   * isn't a ThreadPoolExecutor
+   */
+  public int getPoolSize() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)
+        executor).getPoolSize() : -1;
+  }
+
+  /*
+   * @returns int - threads running a service
+   */
+  public int getActiveThreads() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)
+        executor).getActiveCount() : -1;
+  }
+
+  /*
+   * @returns int - runs waiting for their slot or for a free thread
+   */
+  public int getQueuedRuns() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)
+        executor).getQueue().size() : -1;
+  }
+
+  public long getCompletedRuns() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)
+        executor).getCompletedTaskCount() : -1;
+  }
+
+  /*
+   * Runs in progress finish, runs not yet due are dropped
+   */
+  public void stop() {
+    executor.shutdown();
+  }
+
+  public void join() throws InterruptedException {
+    while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+      ;
+  }
+
+  /*
+   * Runs of a type over its limit are handed a slot in the order they fired
+   */
+  private class TypeLimit {
+    private int available;
+    private final Queue<ServiceRun> waiting = new LinkedList<ServiceRun>();
+
+    TypeLimit(int limit) {
+      this.available = limit;
+    }
+
+    /*
+     * @returns boolean - false if run was queued till a slot frees up
+     */
+    synchronized boolean acquire(ServiceRun run) {
+      if (available > 0 && waiting.isEmpty()) {
+        available--;
+        return true;
+      }
+      waiting.add(run);
+      return false;
+    }
+
+    void release() {
+      ServiceRun next;
+      synchronized (this) {
+        next = waiting.poll();
+        if (next == null)
+          available++;
+      }
+      // the slot passes to next
+      if (next != null)
+        schedule(next, 0);
+    }
+  }
+
+  private class ServiceRun implements Runnable {
+    private final AbstractService service;
+    private final TypeLimit limit;
+    private final RunStats runStats;
+    private final long interval;
+    private final long phaseOffset;
+    private final long jitter;
+    private final OverrunPolicy overrunPolicy;
+    private final int catchUpLimit;
+    private long slotTime;
+    private long dueTime;
+    // when the run first fired, -1 till then
+    private long firedTime = -1;
+    private int catchUpRuns = 0;
+    private ScheduledFuture<?> future;
+    private boolean running = false;
+    private Thread runner;
+    // trigger() while running
+    private boolean wakeRequested = false;
+    private boolean triggered = false;
+    private boolean cancelled = false;
+
+    ServiceRun(AbstractService service, TypeLimit limit, RunStats runStats,
+        long interval, long phaseOffset, long jitter,
+        OverrunPolicy overrunPolicy, int catchUpLimit) {
+      this.service = service;
+      this.limit = limit;
+      this.runStats = runStats;
+      this.interval = interval;
+      this.phaseOffset = phaseOffset;
+      this.jitter = jitter;
+      this.overrunPolicy = overrunPolicy;
+      this.catchUpLimit = catchUpLimit;
+    }
+
+    /*
+     * @param jittered - false for overrun runs which start right away
+     */
+    synchronized void submit(long slot, boolean jittered) {
+      if (cancelled)
+        return;
+      long now = System.currentTimeMillis();
+      triggered = false;
+      slotTime = slot;
+      dueTime = Math.max(now, slot + (jittered ? nextJitter(jitter) : 0));
+      firedTime = -1;
+      schedule(this, dueTime - now);
+    }
+
+    synchronized void cancel() throws InterruptedException {
+      if (runner == Thread.currentThread())
+        throw new IllegalStateException("[" + service.getName()
+            + "] unscheduled from its own run");
+      cancelled = true;
+      if (future != null)
+        future.cancel(false);
+      while (running) {
+        wait();
+      }
+    }
+
+    synchronized void wake() {
+      if (cancelled)
+        return;
+      if (running) {
+        wakeRequested = true;
+        return;
+      }
+      // a run which fired is waiting for its type's limit, it is as good
+      if (firedTime >= 0 || future == null || !future.cancel(false))
+        return;
+      LOG.info("Triggered [" + service.getName() + "]");
+      submit(System.currentTimeMillis(), false);
+      triggered = true;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.currentTimeMillis();
+      boolean handedSlot;
+      synchronized (this) {
+        handedSlot = firedTime >= 0;
+        if (!handedSlot)
+          firedTime = startTime;
+      }
+      if (!handedSlot && limit != null && !limit.acquire(this))
+        return;
+      if (service.isStopped()) {
+        if (limit != null)
+          limit.release();
+        return;
+      }
+      long slot;
+      long due;
+      long fired;
+      synchronized (this) {
+        // cancel() waits from here on
+        if (cancelled) {
+          if (limit != null)
+            limit.release();
+          return;
+        }
+        running = true;
+        runner = Thread.currentThread();
+        slot = slotTime;
+        due = dueTime;
+        fired = firedTime;
+      }
+      // logs of the run carry the service name as before
+      Thread current = Thread.currentThread();
+      String threadName = current.getName();
+      current.setName(service.getName());
+      try {
+        runStats.update(Math.max(0, fired - due), startTime - fired, Math
+            .max(0, startTime - slot));
+        service.runIteration();
+      } catch (Error e) {
+        // the executor would drop it silently
+        LOG.error("Run of [" + service.getName() + "] failed", e);
+        throw e;
+      } finally {
+        current.setName(threadName);
+        if (limit != null)
+          limit.release();
+        finished();
+      }
+    }
+
+    /*
+     * Lets cancel() return and schedules the next run, also after a run
+     * which threw
+     */
+    private void finished() {
+      boolean runAgain;
+      synchronized (this) {
+        running = false;
+        runner = null;
+        notifyAll();
+        runAgain = wakeRequested;
+        wakeRequested = false;
+        if (cancelled)
+          return;
+      }
+      if (service.isStopped())
+        return;
+      if (runAgain) {
+        submit(System.currentTimeMillis(), false);
+        synchronized (this) {
+          triggered = true;
+        }
+      } else {
+        scheduleNext(System.currentTimeMillis());
+      }
+    }
+
+    private synchronized void scheduleNext(long finishTime) {
+      if (triggered) {
+        // back to polling at slots
+        submit(nextSlot(finishTime, interval, phaseOffset), true);
+        return;
+      }
+      long next = slotTime + interval;
+      if (finishTime < next) {
+        catchUpRuns = 0;
+        submit(next, true);
+        return;
+      }
+      long missed = (finishTime - next) / interval + 1;
+      if (overrunPolicy == OverrunPolicy.COALESCE) {
+        runStats.skipped(missed - 1);
+        submit(next + (missed - 1) * interval, false);
+      } else if (overrunPolicy == OverrunPolicy.CATCHUP
+          && catchUpRuns < catchUpLimit) {
+        catchUpRuns++;
+        submit(next, false);
+      } else {
+        LOG.warn("[" + service.getName() + "] overran, skipping [" + missed
+            + "] runs");
+        catchUpRuns = 0;
+        runStats.skipped(missed);
+        submit(nextSlot(finishTime, interval, phaseOffset), true);
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus;
+
+/*
+ * Wakes downstream services as soon as an upstream service commits their
+ * input, eg: a consumer manifest. Delivery is best effort, services still
+ * poll in case a trigger is lost.
+ */
+public interface TriggerChannel {
+
+  void trigger(String topic);
+
+  void subscribe(String topic, Runnable listener);
+
+  void close();
+}
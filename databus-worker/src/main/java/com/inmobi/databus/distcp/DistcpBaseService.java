@@ -16,6 +16,12 @@ package com.inmobi.databus.distcp;
 import com.inmobi.databus.AbstractService;
 import com.inmobi.databus.Cluster;
 import com.inmobi.databus.DatabusConfig;
+import com.inmobi.databus.DatabusConfigParserTags;
+import com.inmobi.databus.FileSystemCaller;
+import com.inmobi.databus.FileSystemRegistry;
+import com.inmobi.databus.Stream;
+import com.inmobi.databus.utils.FileBundle;
+import com.inmobi.databus.utils.FreshnessSidecar;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
@@ -29,17 +35,29 @@ import org.apache.hadoop.tools.DistCp;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class DistcpBaseService extends AbstractService {
 
@@ -47,22 +65,66 @@ public abstract class DistcpBaseService extends AbstractService {
   private final Cluster destCluster;
   private final FileSystem srcFs;
   private final FileSystem destFs;
+  private final TransferGovernor governor;
+  private int filesToPull = 0;
+  // file name, origin time of the files in the manifests read in this run
+  private final Map<String, Long> originTimes =
+      new ConcurrentHashMap<String, Long>();
+  // pulls the chunks of catch-up, runs of the service don't overlap
+  private final ThreadPoolExecutor catchUpExecutor;
   protected static final int DISTCP_SUCCESS = 0;
 
+  private static final int DEFAULT_CATCHUP_THRESHOLD = 10;
+  private static final int DEFAULT_CATCHUP_CHUNK_SIZE = 10;
+  private static final int DEFAULT_CATCHUP_CONCURRENCY = 4;
+  private static final long DEFAULT_CATCHUP_MB_PER_COPY_STREAM = 256;
+  // stages of a run
+  public static final String STAGE_CLEANUP = "cleanup";
+  public static final String STAGE_CATCHUP = "catchup";
+  public static final String STAGE_INPUT = "inputlisting";
+  public static final String STAGE_DISTCP = "distcp";
+  public static final String STAGE_PREPARE_COMMIT = "preparecommit";
+  public static final String STAGE_LOCAL_COMMIT = "localcommit";
+  public static final String STAGE_FINAL_COMMIT = "finalcommit";
+
   protected static final Log LOG = LogFactory.getLog(DistcpBaseService
           .class);
 
   public DistcpBaseService(DatabusConfig config, String name,
                            Cluster srcCluster,
                            Cluster destCluster) throws Exception {
+    this(config, name, srcCluster, destCluster, new TransferGovernor(0));
+  }
+
+  public DistcpBaseService(DatabusConfig config, String name,
+                           Cluster srcCluster,
+                           Cluster destCluster,
+                           TransferGovernor governor) throws Exception {
     super(name + "_" +
             srcCluster.getName() + "_" + destCluster.getName(), config);
     this.srcCluster = srcCluster;
     this.destCluster = destCluster;
-    srcFs = FileSystem.get(new URI(srcCluster.getHdfsUrl()),
-            srcCluster.getHadoopConf());
-    destFs = FileSystem.get(
-            new URI(destCluster.getHdfsUrl()), destCluster.getHadoopConf());
+    this.governor = governor;
+    srcFs = srcCluster.getFileSystem();
+    destFs = destCluster.getFileSystem();
+    int concurrency = Math.max(1, config.getIntDefault(
+        DatabusConfigParserTags.CATCHUP_CONCURRENCY,
+        DEFAULT_CATCHUP_CONCURRENCY));
+    catchUpExecutor = new ThreadPoolExecutor(concurrency, concurrency,
+        DEFAULT_RUN_INTERVAL, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, getName() + "-catchup-"
+                + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // only services catching up hold threads
+    catchUpExecutor.allowCoreThreadTimeOut(true);
   }
 
   protected Cluster getSrcCluster() {
@@ -84,13 +146,79 @@ public abstract class DistcpBaseService extends AbstractService {
     return destFs;
   }
   
-  protected Boolean executeDistCp(String[] args) throws Exception
+  @Override
+  public void stop() {
+    governor.cancel(this);
+    super.stop();
+    catchUpExecutor.shutdown();
+  }
+
+  /*
+   * Copy streams for the pull of the files found by getInputFilePath
+   * @returns TransferGovernor.Permit - null if the pull has to wait, the
+   * service is triggered on its governor topic when it can go
+   */
+  protected TransferGovernor.Permit acquireCopyStreams() {
+    return acquireCopyStreams(Math.min(filesToPull,
+        TransferGovernor.DEFAULT_COPY_STREAMS));
+  }
+
+  private TransferGovernor.Permit acquireCopyStreams(int copyStreams) {
+    return governor.tryAcquire(this, srcCluster, destCluster,
+        getTransferPriority(), copyStreams, new Runnable() {
+          @Override
+          public void run() {
+            trigger(getGovernorTopic());
+          }
+        });
+  }
+
+  /*
+   * Topic the service is triggered on when its copy streams are available
+   */
+  protected String getGovernorTopic() {
+    return "governor_" + getName();
+  }
+
+  /*
+   * Runs the pull and releases permit, with the bytes pulled into tmpOut
+   */
+  protected Boolean executeDistCp(String[] args,
+                                  TransferGovernor.Permit permit,
+                                  Path tmpOut) throws Exception
+  {
+    try {
+      return executeDistCp(args, permit.getCopyStreams());
+    } finally {
+      governor.release(permit, getBytesPulled(permit, tmpOut));
+    }
+  }
+
+  private long getBytesPulled(TransferGovernor.Permit permit, Path tmpOut) {
+    if (!permit.hasBandwidth())
+      return 0;
+    try {
+      return destFs.getContentSummary(tmpOut).getLength();
+    } catch (IOException e) {
+      LOG.warn("Could not size [" + tmpOut + "], not counted against the " +
+          "bandwidth", e);
+      return 0;
+    }
+  }
+
+  /*
+   * @param copyStreams - copy streams granted to the pull
+   */
+  private Boolean executeDistCp(String[] args, int copyStreams)
+      throws Exception
   {
 	  Boolean distcpExecuteSuccess = false;
 	  //Add Additional Default arguments to the array below which gets merged
 	  //with the arguments as sent in by the Derived Service
     String[] defargs = null;// {"-D", "mapred.job.queue.name",
                             // this.getDestCluster().getJobQueueName() };
+    String[] governorArgs = {"-m", String.valueOf(copyStreams)};
+    args = (String[]) ArrayUtils.addAll(governorArgs, args);
 	  if (DistCp.runDistCp((String[])ArrayUtils.addAll(args, defargs),
         destCluster.getHadoopConf()) == DISTCP_SUCCESS)
 		  distcpExecuteSuccess = true;
@@ -98,6 +226,33 @@ public abstract class DistcpBaseService extends AbstractService {
 	  return distcpExecuteSuccess;
   }
 
+  /*
+   * @returns String[] - distcp arguments to pull inputFilePath into tmpOut
+   */
+  protected abstract String[] getDistCpArgs(Path inputFilePath, Path tmpOut);
+
+  /*
+   * Commits the files pulled in tmpOut and consumes consumePaths
+   */
+  protected abstract void commit(Path tmpOut, Path tmp,
+                                 Map<Path, FileSystem> consumePaths)
+      throws Exception;
+
+  /*
+   * Priority of this service's transfers with the governor, lower value is
+   * served first
+   */
+  protected abstract int getTransferPriority();
+
+  /*
+   * Streams of a higher priority class always rank first, within a class
+   * merged pulls rank above mirrors as they're latency critical
+   */
+  protected static int getTransferPriority(Stream.Priority priority,
+                                           boolean isMirror) {
+    return priority.ordinal() * 2 + (isMirror ? 1 : 0);
+  }
+
   /*
   * return remote Path from where this consumer can consume
   * eg: MergedStreamConsumerService - Path eg:
@@ -118,6 +273,11 @@ public abstract class DistcpBaseService extends AbstractService {
     return null;
   }
 
+  @Override
+  protected List<Cluster> getClusters() {
+    return Arrays.asList(srcCluster, destCluster);
+  }
+
   @Override
   public long getMSecondsTillNextRun(long currentTime) {
     return (long) (DEFAULT_RUN_INTERVAL - (long) (currentTime % DEFAULT_RUN_INTERVAL));
@@ -137,66 +297,326 @@ public abstract class DistcpBaseService extends AbstractService {
   }
 
 
-  protected Path getInputFilePath(Map<Path, FileSystem> consumePaths,
-                                  Path tmp) throws IOException {
-    Path input = getInputPath();
-    if (!srcFs.exists(input))
-      return null;
-    FileStatus[] fileList = srcFs.listStatus(input);
-    if (fileList != null) {
-      if (fileList.length > 1) {
-        Set<String> sourceFiles = new HashSet<String>();
-        //inputPath has have multiple files due to backlog
-        //read all and create a tmp file
-        for (int i = 0; i < fileList.length; i++) {
-          Path consumeFilePath = fileList[i].getPath().makeQualified(srcFs);
-          consumePaths.put(consumeFilePath, srcFs);
-          FSDataInputStream fsDataInputStream = srcFs.open(consumeFilePath);
-          BufferedReader reader = new BufferedReader(new InputStreamReader
-                  (fsDataInputStream));
-          String fileName = reader.readLine();
-          while (fileName != null) {
-            fileName = fileName.trim();
-            LOG.debug("Adding [" + fileName + "] to pull");
-            sourceFiles.add(fileName);
-            fileName = reader.readLine();
+  /*
+   * Bundles are consumed along with the consumePath refering them
+   */
+  private void addBundleToConsumePaths(Map<Path, FileSystem> consumePaths,
+                                       String fileName) {
+    if (FileBundle.isBundle(fileName)) {
+      consumePaths.put(new Path(fileName).makeQualified(srcFs), srcFs);
+    }
+  }
+
+  /*
+   * Replaces the bundles pulled in tmpOut with the files packed in them
+   */
+  protected void unpackBundles(Path tmpOut) throws IOException {
+    FileStatus[] allFiles = destFs.listStatus(tmpOut);
+    if (allFiles == null)
+      return;
+    for (FileStatus file : allFiles) {
+      if (!file.isDir() && FileBundle.isBundle(file.getPath().getName())) {
+        List<Path> unpacked = FileBundle.unpack(destFs, file, tmpOut);
+        LOG.info("Unpacked [" + unpacked.size() + "] files from bundle ["
+                + file.getPath() + "]");
+        destFs.delete(file.getPath(), false);
+      }
+    }
+  }
+
+  /*
+   * @returns Map<String, Long> - file name, origin time of the files in the
+   * manifests read in this run, files without a known origin are absent
+   */
+  protected Map<String, Long> getOriginTimes() {
+    return originTimes;
+  }
+
+  /*
+   * Adds the files listed in manifest to sourceFiles, the manifest, its
+   * freshness sidecar and the bundles it refers are added to consumePaths
+   */
+  private void readManifest(Path manifest, Set<String> sourceFiles,
+                            Map<Path, FileSystem> consumePaths)
+      throws IOException {
+    consumePaths.put(manifest, srcFs);
+    Path sidecar = FreshnessSidecar.getSidecarPath(manifest);
+    if (FreshnessSidecar.read(srcFs, sidecar, originTimes))
+      consumePaths.put(sidecar, srcFs);
+    FSDataInputStream fsDataInputStream = srcFs.open(manifest);
+    BufferedReader reader = new BufferedReader(new InputStreamReader
+            (fsDataInputStream));
+    String fileName = reader.readLine();
+    while (fileName != null) {
+      fileName = fileName.trim();
+      LOG.debug("Adding [" + fileName + "] to pull");
+      sourceFiles.add(fileName);
+      addBundleToConsumePaths(consumePaths, fileName);
+      fileName = reader.readLine();
+    }
+    reader.close();
+  }
+
+  private Path writeSourceList(Set<String> sourceFiles, Path listPath)
+      throws IOException {
+    FSDataOutputStream out = destFs.create(listPath);
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter
+            (out));
+    for (String sourceFile : sourceFiles) {
+      LOG.debug("Adding sourceFile [" + sourceFile + "] to distcp " +
+              "FinalList");
+      writer.write(sourceFile);
+      writer.write("\n");
+    }
+    writer.close();
+    return listPath.makeQualified(destFs);
+  }
+
+  private static class CatchUpChunk {
+    private final Map<Path, FileSystem> consumePaths = new HashMap<Path, FileSystem>();
+    private Path inputFilePath;
+    private Path tmpOut;
+    private int copyStreams;
+  }
+
+  /*
+   * Oldest manifest first
+   */
+  private static class ManifestComparator implements Comparator<FileStatus> {
+    @Override
+    public int compare(FileStatus status1, FileStatus status2) {
+      if (status1.getModificationTime() != status2.getModificationTime())
+        return status1.getModificationTime() < status2
+            .getModificationTime() ? -1 : 1;
+      return status1.getPath().getName().compareTo(status2.getPath()
+          .getName());
+    }
+  }
+
+  /*
+   * When more than catchupthreshold manifests are pending, eg: after a remote
+   * outage, the backlog is pulled as time ordered chunks of
+   * catchupchunksize manifests. Upto catchupconcurrency chunks are pulled in
+   * parallel and every chunk pulled is committed, oldest first. A chunk
+   * which failed is skipped and retried in next run, so its files are
+   * committed after those of newer chunks. Catch-up calls the filesystems at
+   * background priority. The parallel pulls share one permit of the
+   * governor, without it the run is given up.
+   * @param manifests - pending manifests, as listed by listManifests
+   * @returns boolean - true if the backlog was handled in catch-up mode
+   */
+  protected boolean catchUp(FileStatus[] manifests, Path tmpOut, Path tmp)
+      throws Exception {
+    // first step of every run
+    originTimes.clear();
+    setBacklog(manifests.length);
+    int threshold = getConfig().getIntDefault(
+        DatabusConfigParserTags.CATCHUP_THRESHOLD, DEFAULT_CATCHUP_THRESHOLD);
+    if (manifests.length <= threshold) {
+      return false;
+    }
+    manifests = manifests.clone();
+    Arrays.sort(manifests, new ManifestComparator());
+    int chunkSize = getConfig().getIntDefault(
+        DatabusConfigParserTags.CATCHUP_CHUNK_SIZE, DEFAULT_CATCHUP_CHUNK_SIZE);
+    List<CatchUpChunk> chunks = new ArrayList<CatchUpChunk>();
+    for (int i = 0; i < manifests.length; i += chunkSize) {
+      chunks.add(createChunk(chunks.size(), Arrays.asList(manifests).subList(
+          i, Math.min(i + chunkSize, manifests.length)), tmpOut, tmp));
+    }
+    int concurrency = Math.min(chunks.size(),
+        catchUpExecutor.getCorePoolSize());
+    int requestedStreams = 0;
+    for (int i = 0; i < concurrency; i++) {
+      requestedStreams += chunks.get(i).copyStreams;
+    }
+    TransferGovernor.Permit permit = acquireCopyStreams(requestedStreams);
+    if (permit == null) {
+      LOG.info("Catch-up of [" + manifests.length + "] manifests from " +
+          "Cluster [" + srcCluster.getName() + "] waits for copy streams");
+      return true;
+    }
+    concurrency = Math.min(concurrency, permit.getCopyStreams());
+    final int streamsPerPull = permit.getCopyStreams() / concurrency;
+    LOG.warn("Catching up backlog of [" + manifests.length + "] manifests " +
+        "from Cluster [" + srcCluster.getName() + "] to Cluster [" +
+        destCluster.getName() + "] in [" + chunks.size() + "] chunks, [" +
+        concurrency + "] at a time");
+    final FileSystemCaller caller = new FileSystemCaller(getName(),
+        FileSystemRegistry.Priority.BACKGROUND);
+    FileSystemCaller previous = FileSystemCaller.set(caller);
+
+    final List<CatchUpChunk> toPull = chunks;
+    // next chunk to pull, set past the last one to stop the pullers
+    final AtomicInteger next = new AtomicInteger();
+    // whether each chunk was pulled, null till its pull is done
+    final Boolean[] pulled = new Boolean[chunks.size()];
+    List<Future<?>> pullers = new ArrayList<Future<?>>();
+    try {
+      for (int i = 0; i < concurrency; i++) {
+        pullers.add(catchUpExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            FileSystemCaller previous = FileSystemCaller.set(caller);
+            try {
+              int chunk;
+              while ((chunk = next.getAndIncrement()) < toPull.size()) {
+                boolean success = pullChunk(toPull.get(chunk),
+                    streamsPerPull);
+                synchronized (pulled) {
+                  pulled[chunk] = success;
+                  pulled.notifyAll();
+                }
+              }
+            } finally {
+              FileSystemCaller.set(previous);
+            }
           }
-          reader.close();
-        }
-        Path tmpPath = new Path(tmp, srcCluster.getName() + new Long(System
-                .currentTimeMillis()).toString());
-        FSDataOutputStream out = destFs.create(tmpPath);
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter
-                (out));
-        for (String sourceFile : sourceFiles) {
-          LOG.debug("Adding sourceFile [" + sourceFile + "] to distcp " +
-                  "FinalList");
-          writer.write(sourceFile);
-          writer.write("\n");
-        }
-        writer.close();
-        LOG.warn("Source File For distCP [" + tmpPath + "]");
-        consumePaths.put(tmpPath.makeQualified(destFs), destFs);
-        return tmpPath.makeQualified(destFs);
-      } else if (fileList.length == 1) {
-        Path consumePath = fileList[0].getPath().makeQualified(srcFs);
-        if (LOG.isDebugEnabled()) {
-          FSDataInputStream fsDataInputStream = srcFs.open(consumePath);
-          BufferedReader reader = new BufferedReader(new InputStreamReader
-                  (fsDataInputStream));
-          String file = reader.readLine();
-          while (file != null) {
-            LOG.debug("Adding File[" + file + "] to be pulled");
-            file = reader.readLine();
+        }));
+      }
+      int committed = 0;
+      for (int chunk = 0; chunk < chunks.size(); chunk++) {
+        synchronized (pulled) {
+          while (pulled[chunk] == null) {
+            pulled.wait();
           }
-          reader.close();
         }
-        consumePaths.put(consumePath, srcFs);
-        return consumePath;
-      } else {
-        return null;
+        if (!pulled[chunk]) {
+          LOG.warn("Pull of chunk [" + chunk + "] failed..retrying it in " +
+              "next run");
+          continue;
+        }
+        CatchUpChunk pulledChunk = chunks.get(chunk);
+        commit(pulledChunk.tmpOut, tmp, pulledChunk.consumePaths);
+        committed++;
+        LOG.info("Committed catch-up chunk [" + chunk + "]");
+      }
+      LOG.warn("Committed [" + committed + "] of [" + chunks.size() +
+          "] catch-up chunks");
+    } finally {
+      // pulls which haven't started are of no use now, wait for the
+      // running ones before tmpOut gets cleaned up
+      next.set(chunks.size());
+      for (Future<?> puller : pullers) {
+        puller.get();
       }
+      governor.release(permit, getBytesPulled(permit, tmpOut));
+      FileSystemCaller.set(previous);
+    }
+    return true;
+  }
+
+  private CatchUpChunk createChunk(int id, List<FileStatus> manifests,
+                                   Path tmpOut, Path tmp) throws IOException {
+    CatchUpChunk chunk = new CatchUpChunk();
+    Set<String> sourceFiles = new HashSet<String>();
+    for (FileStatus manifest : manifests) {
+      readManifest(manifest.getPath().makeQualified(srcFs), sourceFiles,
+          chunk.consumePaths);
+    }
+    chunk.inputFilePath = writeSourceList(sourceFiles, new Path(tmp,
+        srcCluster.getName() + "_catchup_" + id));
+    chunk.consumePaths.put(chunk.inputFilePath, destFs);
+    chunk.tmpOut = new Path(tmpOut, "catchup_" + id);
+    long bytes = getTotalBytes(sourceFiles);
+    long bytesPerStream = getConfig().getLongDefault(
+        DatabusConfigParserTags.CATCHUP_MB_PER_COPY_STREAM,
+        DEFAULT_CATCHUP_MB_PER_COPY_STREAM) * 1024 * 1024;
+    long copyStreams = (bytes + bytesPerStream - 1) / bytesPerStream;
+    chunk.copyStreams = (int) Math.max(1, Math.min(Math.min(copyStreams,
+        sourceFiles.size()), TransferGovernor.DEFAULT_COPY_STREAMS));
+    LOG.info("Catch-up chunk [" + id + "] has [" + manifests.size() +
+        "] manifests, [" + sourceFiles.size() + "] files, [" + bytes +
+        "] bytes, pulled with [" + chunk.copyStreams + "] copy streams");
+    return chunk;
+  }
+
+  /*
+   * Sizes are looked up by listing the parent directories, one call per
+   * minute directory instead of one per file
+   */
+  private long getTotalBytes(Set<String> sourceFiles) throws IOException {
+    Map<Path, Set<String>> filesByParent = new HashMap<Path, Set<String>>();
+    for (String sourceFile : sourceFiles) {
+      Path path = new Path(sourceFile);
+      Set<String> names = filesByParent.get(path.getParent());
+      if (names == null) {
+        names = new HashSet<String>();
+        filesByParent.put(path.getParent(), names);
+      }
+      names.add(path.getName());
+    }
+    long bytes = 0;
+    for (Map.Entry<Path, Set<String>> entry : filesByParent.entrySet()) {
+      FileStatus[] files = srcFs.listStatus(entry.getKey());
+      if (files == null)
+        continue;
+      for (FileStatus file : files) {
+        if (entry.getValue().contains(file.getPath().getName()))
+          bytes += file.getLen();
+      }
+    }
+    return bytes;
+  }
+
+  private boolean pullChunk(CatchUpChunk chunk, int maxCopyStreams) {
+    try {
+      if (!destFs.mkdirs(chunk.tmpOut)) {
+        LOG.warn("Cannot create [" + chunk.tmpOut + "]");
+        return false;
+      }
+      return executeDistCp(getDistCpArgs(chunk.inputFilePath, chunk.tmpOut),
+          Math.min(chunk.copyStreams, maxCopyStreams));
+    } catch (Throwable e) {
+      LOG.warn("Error in catch-up distcp to [" + chunk.tmpOut + "]", e);
+      return false;
+    }
+  }
+
+  /*
+   * Listed once per run, the listing is passed on to catchUp and
+   * getInputFilePath
+   * @returns FileStatus[] - manifests pending in the input path, empty if it
+   * doesn't exist
+   */
+  protected FileStatus[] listManifests() throws IOException {
+    FileStatus[] manifests;
+    try {
+      manifests = srcFs.listStatus(getInputPath());
+    } catch (FileNotFoundException e) {
+      manifests = null;
+    }
+    return manifests == null ? new FileStatus[0] : manifests;
+  }
+
+  protected Path getInputFilePath(FileStatus[] fileList,
+                                  Map<Path, FileSystem> consumePaths,
+                                  Path tmp) throws IOException {
+    if (fileList.length > 1) {
+      Set<String> sourceFiles = new HashSet<String>();
+      //inputPath has have multiple files due to backlog
+      //read all and create a tmp file
+      for (int i = 0; i < fileList.length; i++) {
+        Path consumeFilePath = fileList[i].getPath().makeQualified(srcFs);
+        readManifest(consumeFilePath, sourceFiles, consumePaths);
+      }
+      Path tmpPath = writeSourceList(sourceFiles, new Path(tmp,
+              srcCluster.getName() + new Long(System.currentTimeMillis())
+              .toString()));
+      filesToPull = sourceFiles.size();
+      LOG.warn("Source File For distCP [" + tmpPath + "]");
+      consumePaths.put(tmpPath, destFs);
+      return tmpPath;
+    } else if (fileList.length == 1) {
+      Path consumePath = fileList[0].getPath().makeQualified(srcFs);
+      // the manifest is pulled as is, read it to find bundles which have
+      // to be cleaned up on commit
+      Set<String> sourceFiles = new HashSet<String>();
+      readManifest(consumePath, sourceFiles, consumePaths);
+      filesToPull = sourceFiles.size();
+      return consumePath;
+    } else {
+      return null;
     }
-    return null;
   }
 }
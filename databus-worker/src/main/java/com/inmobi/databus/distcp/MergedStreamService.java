@@ -18,6 +18,7 @@ import com.inmobi.databus.DatabusConfig;
 import com.inmobi.databus.Stream;
 import com.inmobi.databus.Stream.DestinationStreamCluster;
 import com.inmobi.databus.Stream.StreamCluster;
+import com.inmobi.databus.utils.FreshnessSidecar;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +30,7 @@ import org.apache.hadoop.fs.Path;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,6 +38,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 /*
  * Handles MergedStreams for a Cluster
@@ -44,6 +47,12 @@ import java.util.Set;
 public class MergedStreamService extends DistcpBaseService {
 
   private static final Log LOG = LogFactory.getLog(MergedStreamService.class);
+  // stages of a run besides those of DistcpBaseService
+  public static final String STAGE_UNPACK = "unpackbundles";
+  public static final String STAGE_LOCK = "commitlockwait";
+  public static final String STAGE_MIRROR_COMMIT = "mirrorcommit";
+  // stream, bytes of the files found by the last prepareForCommit
+  private final Map<String, Long> bytesToCommit = new HashMap<String, Long>();
 
   public MergedStreamService(DatabusConfig config, Cluster srcCluster,
                              Cluster destinationCluster) throws Exception {
@@ -51,6 +60,30 @@ public class MergedStreamService extends DistcpBaseService {
             destinationCluster);
   }
 
+  public MergedStreamService(DatabusConfig config, Cluster srcCluster,
+                             Cluster destinationCluster,
+                             TransferGovernor governor) throws Exception {
+    super(config, MergedStreamService.class.getName(), srcCluster,
+            destinationCluster, governor);
+  }
+
+  @Override
+  protected int getTransferPriority() {
+    // highest priority stream merged from srcCluster into destCluster
+    Stream.Priority priority = Stream.Priority.LOW;
+    for (Stream stream : getConfig().getAllStreams().values()) {
+      Cluster primary = stream.getPrimaryDestinationCluster();
+      if (primary == null || !primary.getName().equals(getDestCluster()
+          .getName()) || stream.getPriority().compareTo(priority) >= 0)
+        continue;
+      for (StreamCluster source : stream.getSourceStreamClusters()) {
+        if (source.getCluster().getName().equals(getSrcCluster().getName()))
+          priority = stream.getPriority();
+      }
+    }
+    return getTransferPriority(priority, false);
+  }
+
   @Override
   public void execute() throws Exception {
     try {
@@ -61,8 +94,10 @@ public class MergedStreamService extends DistcpBaseService {
               "distcp_mergedStream_" + getSrcCluster().getName() + "_"
                       + getDestCluster().getName()).makeQualified(getDestFs());
       // CleanuptmpOut before every run
+      long start = startStage();
       if (getDestFs().exists(tmpOut))
         getDestFs().delete(tmpOut, true);
+      stopStage(STAGE_CLEANUP, start);
       if (!getDestFs().mkdirs(tmpOut)) {
         LOG.warn("Cannot create [" + tmpOut + "]..skipping this run");
         return;
@@ -73,41 +108,51 @@ public class MergedStreamService extends DistcpBaseService {
         return;
       }
 
-      Path inputFilePath = getInputFilePath(consumePaths, tmp);
+      start = startStage();
+      FileStatus[] manifests = listManifests();
+      boolean caughtUp = catchUp(manifests, tmpOut, tmp);
+      stopStage(STAGE_CATCHUP, start);
+      if (caughtUp) {
+        getDestFs().delete(tmpOut, true);
+        LOG.debug("Deleting [" + tmpOut + "]");
+        return;
+      }
+
+      start = startStage();
+      Path inputFilePath = getInputFilePath(manifests, consumePaths, tmp);
+      stopStage(STAGE_INPUT, start);
       if (inputFilePath == null) {
         LOG.warn("No data to pull from " + "Cluster ["
                 + getSrcCluster().getHdfsUrl() + "]" + " to Cluster ["
                 + getDestCluster().getHdfsUrl() + "]");
         return;
       }
+      TransferGovernor.Permit permit = acquireCopyStreams();
+      if (permit == null) {
+        LOG.info("Waiting for copy streams to pull from Cluster ["
+                + getSrcCluster().getName() + "]..skipping this run");
+        getDestFs().delete(tmpOut, true);
+        return;
+      }
       LOG.warn("Starting a distcp pull from [" + inputFilePath.toString()
               + "] " + "Cluster [" + getSrcCluster().getHdfsUrl() + "]"
               + " to Cluster [" + getDestCluster().getHdfsUrl() + "] " + " Path ["
               + tmpOut.toString() + "]");
 
-      String[] args = { "-f", inputFilePath.toString(), tmpOut.toString()};
+      String[] args = getDistCpArgs(inputFilePath, tmpOut);
+      start = startStage();
       try {
-        if (!executeDistCp(args))
+        if (!executeDistCp(args, permit, tmpOut))
           skipCommit = true;
       } catch (Throwable e) {
         LOG.warn("Error in distcp", e);
         LOG.warn("Problem in MergedStream distcp PULL..skipping commit for this run");
         skipCommit = true;
       }
-      Map<String, Set<Path>> committedPaths;
+      stopStage(STAGE_DISTCP, start);
       // if success
       if (!skipCommit) {
-        Map<String, List<Path>> categoriesToCommit = prepareForCommit(tmpOut);
-        synchronized (getDestCluster()) {
-          long commitTime = getDestCluster().getCommitTime();
-          // category, Set of Paths to commit
-          committedPaths = doLocalCommit(commitTime, categoriesToCommit);
-        }
-        // Prepare paths for MirrorStreamConsumerService
-        commitMirroredConsumerPaths(committedPaths, tmp);
-        // Cleanup happens in parallel without sync
-        // no race is there in consumePaths, tmpOut
-        doFinalCommit(consumePaths);
+        commit(tmpOut, tmp, consumePaths);
       }
       // rmr tmpOut cleanup
       getDestFs().delete(tmpOut, true);
@@ -118,6 +163,58 @@ public class MergedStreamService extends DistcpBaseService {
     }
   }
 
+  @Override
+  protected String[] getDistCpArgs(Path inputFilePath, Path tmpOut) {
+    return new String[] { "-f", inputFilePath.toString(), tmpOut.toString() };
+  }
+
+  @Override
+  protected void commit(Path tmpOut, Path tmp,
+                        Map<Path, FileSystem> consumePaths) throws Exception {
+    long start = startStage();
+    unpackBundles(tmpOut);
+    stopStage(STAGE_UNPACK, start);
+    start = startStage();
+    Map<String, List<Path>> categoriesToCommit = prepareForCommit(tmpOut);
+    stopStage(STAGE_PREPARE_COMMIT, start);
+    Map<String, Set<Path>> committedPaths;
+    // merged services of other remotes may commit the same streams
+    start = startStage();
+    List<Lock> locks = getDestCluster().lockStreams(
+        categoriesToCommit.keySet());
+    stopStage(STAGE_LOCK, start);
+    try {
+      start = startStage();
+      long commitTime = getDestCluster().getCommitTime();
+      // category, Set of Paths to commit
+      committedPaths = doLocalCommit(commitTime, categoriesToCommit);
+      stopStage(STAGE_LOCAL_COMMIT, start);
+      long committedAt = System.currentTimeMillis();
+      for (Map.Entry<String, Set<Path>> entry : committedPaths.entrySet()) {
+        Long bytes = bytesToCommit.get(entry.getKey());
+        addProcessed(entry.getKey(), entry.getValue().size(), bytes == null ? 0
+            : bytes);
+        for (Path path : entry.getValue()) {
+          Long originTime = getOriginTimes().get(path.getName());
+          if (originTime != null)
+            recordFreshness(TIER_MERGED, entry.getKey(), originTime,
+                committedAt);
+        }
+      }
+    } finally {
+      getDestCluster().unlockStreams(locks);
+    }
+    // Prepare paths for MirrorStreamConsumerService
+    start = startStage();
+    commitMirroredConsumerPaths(committedPaths, tmp);
+    stopStage(STAGE_MIRROR_COMMIT, start);
+    // Cleanup happens in parallel without sync
+    // no race is there in consumePaths, tmpOut
+    start = startStage();
+    doFinalCommit(consumePaths);
+    stopStage(STAGE_FINAL_COMMIT, start);
+  }
+
   /*
    * @param Map<String, Set<Path>> commitedPaths - Stream Name, It's committed
    * Path.
@@ -165,6 +262,13 @@ public class MergedStreamService extends DistcpBaseService {
         Path finalMirrorPath = new Path(getDestCluster().getMirrorConsumePath(
                 consumer), tmpPath + "_"
                 + new Long(System.currentTimeMillis()).toString());
+        // origin times travel on to the mirrors, committed before the manifest
+        Path tmpSidecarPath = new Path(tmp, tmpPath + "_"
+                + FreshnessSidecar.FRESHNESS_DIR);
+        FreshnessSidecar.write(getDestFs(), tmpSidecarPath, getOriginTimes(
+                committedPaths.get(stream)));
+        consumerCommitPaths.put(tmpSidecarPath, FreshnessSidecar
+                .getSidecarPath(finalMirrorPath));
         consumerCommitPaths.put(tmpConsumerPath, finalMirrorPath);
 
       } // for each consumer
@@ -173,11 +277,12 @@ public class MergedStreamService extends DistcpBaseService {
     // Do the final mirrorCommit
     LOG.info("Committing [" + consumerCommitPaths.size() + "] paths for " +
             "mirrored Stream");
-    FileSystem fs = FileSystem.get(getDestCluster().getHadoopConf());
+    FileSystem fs = getDestFs();
     for (Map.Entry<Path, Path> entry : consumerCommitPaths.entrySet()) {
       LOG.info("Renaming [" + entry.getKey() + "] to [" + entry.getValue() +
               "]");
       fs.mkdirs(entry.getValue().getParent());
+      checkFenced();
       if (fs.rename(entry.getKey(), entry.getValue()) == false) {
         LOG.warn("Failed to Commit for Mirrored Path. Aborting Transaction " +
                 "to avoid DATA LOSS, " +
@@ -186,11 +291,31 @@ public class MergedStreamService extends DistcpBaseService {
                 + entry.getValue() +"]");
       }
     }
+    for (Set<Cluster> consumers : mirrorStreamConsumers.values()) {
+      for (Cluster consumer : consumers) {
+        trigger(getMirrorTopic(getDestCluster(), consumer));
+      }
+    }
+  }
+
+  /*
+   * @returns Map<String, Long> - file name, origin time of the paths whose
+   * origin is known
+   */
+  private Map<String, Long> getOriginTimes(Set<Path> paths) {
+    Map<String, Long> originTimes = new HashMap<String, Long>();
+    for (Path path : paths) {
+      Long originTime = getOriginTimes().get(path.getName());
+      if (originTime != null)
+        originTimes.put(path.getName(), originTime);
+    }
+    return originTimes;
   }
 
   private Map<String, List<Path>> prepareForCommit(Path tmpOut)
           throws Exception {
     Map<String, List<Path>> categoriesToCommit = new HashMap<String, List<Path>>();
+    bytesToCommit.clear();
     FileStatus[] allFiles = getDestFs().listStatus(tmpOut);
     for (int i = 0; i < allFiles.length; i++) {
       String fileName = allFiles[i].getPath().getName();
@@ -215,6 +340,9 @@ public class MergedStreamService extends DistcpBaseService {
           }
           LOG.debug("Moving [" + source + "] to intermediateFilePath ["
                   + intermediateFilePath + "]");
+          Long bytes = bytesToCommit.get(category);
+          bytesToCommit.put(category, (bytes == null ? 0 : bytes)
+              + allFiles[i].getLen());
           List<Path> fileList = categoriesToCommit.get(category);
           if (fileList == null) {
             fileList = new ArrayList<Path>();
@@ -237,6 +365,7 @@ public class MergedStreamService extends DistcpBaseService {
                                                Map<String, List<Path>> categoriesToCommit) throws Exception {
     Map<String, Set<Path>> comittedPaths = new HashMap<String, Set<Path>>();
     for (Map.Entry<String, List<Path>> entry : categoriesToCommit.entrySet()) {
+      long start = startStage();
       String category = entry.getKey();
       List<Path> filesInCategory = entry.getValue();
       for (Path filePath : filesInCategory) {
@@ -247,6 +376,7 @@ public class MergedStreamService extends DistcpBaseService {
         }
         LOG.debug("Moving from intermediatePath [" + filePath + "] to ["
                 + destParentPath + "]");
+        checkFenced();
         if (getDestFs().rename(filePath, destParentPath) == false) {
           LOG.warn("Rename failed, aborting transaction COMMIT to avoid " +
                   "dataloss. Partial data replay could happen in next run");
@@ -261,12 +391,24 @@ public class MergedStreamService extends DistcpBaseService {
         commitPaths.add(commitPath);
         comittedPaths.put(category, commitPaths);
       }
+      stopStage(STAGE_LOCAL_COMMIT, category, start);
     }
     return comittedPaths;
   }
 
   protected Path getInputPath() throws IOException {
     return getSrcCluster().getConsumePath(getDestCluster());
+  }
 
+  @Override
+  public List<String> getTriggerTopics() {
+    return Arrays.asList(getConsumeTopic(getSrcCluster(), getDestCluster()),
+        getGovernorTopic());
+
+  }
+
+  @Override
+  public String getShardUnit() {
+    return getCommitUnit(getDestCluster());
   }
 }
@@ -15,6 +15,8 @@ package com.inmobi.databus.distcp;
 
 import com.inmobi.databus.Cluster;
 import com.inmobi.databus.DatabusConfig;
+import com.inmobi.databus.Stream;
+import com.inmobi.databus.Stream.DestinationStreamCluster;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileStatus;
@@ -24,6 +26,7 @@ import org.apache.hadoop.fs.Path;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -39,6 +42,12 @@ import java.util.Map;
 
 public class MirrorStreamService extends DistcpBaseService {
   private static final Log LOG = LogFactory.getLog(MirrorStreamService.class);
+  // stream, files and bytes found by the last prepareForCommit
+  private final Map<String, long[]> streamsToCommit =
+      new HashMap<String, long[]>();
+  // file name, stream of the files found by the last prepareForCommit
+  private final Map<String, String> streamsOfFiles =
+      new HashMap<String, String>();
 
   public MirrorStreamService(DatabusConfig config, Cluster srcCluster,
                              Cluster destinationCluster) throws Exception {
@@ -46,11 +55,41 @@ public class MirrorStreamService extends DistcpBaseService {
             destinationCluster);
   }
 
+  public MirrorStreamService(DatabusConfig config, Cluster srcCluster,
+                             Cluster destinationCluster,
+                             TransferGovernor governor) throws Exception {
+    super(config, MirrorStreamService.class.getName(), srcCluster,
+            destinationCluster, governor);
+  }
+
+  @Override
+  protected int getTransferPriority() {
+    // highest priority stream mirrored from srcCluster into destCluster
+    Stream.Priority priority = Stream.Priority.LOW;
+    for (Stream stream : getConfig().getAllStreams().values()) {
+      Cluster primary = stream.getPrimaryDestinationCluster();
+      if (primary == null || !primary.getName().equals(getSrcCluster()
+          .getName()) || stream.getPriority().compareTo(priority) >= 0)
+        continue;
+      for (DestinationStreamCluster mirror : stream.getMirroredClusters()) {
+        if (mirror.getCluster().getName().equals(getDestCluster().getName()))
+          priority = stream.getPriority();
+      }
+    }
+    return getTransferPriority(priority, true);
+  }
+
   @Override
   protected Path getInputPath() throws IOException {
     return getSrcCluster().getMirrorConsumePath(getDestCluster());
   }
 
+  @Override
+  public List<String> getTriggerTopics() {
+    return Arrays.asList(getMirrorTopic(getSrcCluster(), getDestCluster()),
+        getGovernorTopic());
+  }
+
   @Override
   protected void execute() throws Exception {
 
@@ -62,8 +101,10 @@ public class MirrorStreamService extends DistcpBaseService {
               + getSrcCluster().getName() + "_" + getDestCluster().getName())
               .makeQualified(getDestFs());
       // CleanuptmpOut before every run
+      long start = startStage();
       if (getDestFs().exists(tmpOut))
         getDestFs().delete(tmpOut, true);
+      stopStage(STAGE_CLEANUP, start);
       if (!getDestFs().mkdirs(tmpOut)) {
         LOG.warn("Cannot create [" + tmpOut + "]..skipping this run");
         return;
@@ -74,13 +115,32 @@ public class MirrorStreamService extends DistcpBaseService {
         return;
       }
 
-      Path inputFilePath = getInputFilePath(consumePaths, tmp);
+      start = startStage();
+      FileStatus[] manifests = listManifests();
+      boolean caughtUp = catchUp(manifests, tmpOut, tmp);
+      stopStage(STAGE_CATCHUP, start);
+      if (caughtUp) {
+        getDestFs().delete(tmpOut, true);
+        LOG.debug("Cleanup [" + tmpOut + "]");
+        return;
+      }
+
+      start = startStage();
+      Path inputFilePath = getInputFilePath(manifests, consumePaths, tmp);
+      stopStage(STAGE_INPUT, start);
       if (inputFilePath == null) {
         LOG.warn("No data to pull from " + "Cluster ["
                 + getSrcCluster().getHdfsUrl() + "]" + " to Cluster ["
                 + getDestCluster().getHdfsUrl() + "]");
         return;
       }
+      TransferGovernor.Permit permit = acquireCopyStreams();
+      if (permit == null) {
+        LOG.info("Waiting for copy streams to mirror from Cluster ["
+                + getSrcCluster().getName() + "]..skipping this run");
+        getDestFs().delete(tmpOut, true);
+        return;
+      }
 
       LOG.warn("Starting a Mirrored distcp pull from ["
               + inputFilePath.toString() + "] " + "Cluster ["
@@ -88,27 +148,57 @@ public class MirrorStreamService extends DistcpBaseService {
               + getDestCluster().getHdfsUrl() + "] " + " Path ["
               + tmpOut.toString() + "]");
 
-      String[] args = { "-preserveSrcPath", "-f", inputFilePath.toString(),
-              tmpOut.toString() };
+      String[] args = getDistCpArgs(inputFilePath, tmpOut);
+      start = startStage();
       try {
-        if (!executeDistCp(args))
+        if (!executeDistCp(args, permit, tmpOut))
           skipCommit = true;
       } catch (Throwable e) {
         LOG.warn("Problem in Mirrored distcp..skipping commit for this run",
                 e);
         skipCommit = true;
       }
+      stopStage(STAGE_DISTCP, start);
       if (!skipCommit) {
-        Map<Path, Path> commitPaths = prepareForCommit(tmpOut);
-        doLocalCommit(commitPaths);
-        doFinalCommit(consumePaths);
+        commit(tmpOut, tmp, consumePaths);
       }
       getDestFs().delete(tmpOut, true);
       LOG.debug("Cleanup [" + tmpOut + "]");
     } catch (Exception e) {
       LOG.warn(e);
       LOG.warn("Error in MirrorStream Service..skipping RUN ", e);
+      throw e;
+    }
+  }
+
+  @Override
+  protected String[] getDistCpArgs(Path inputFilePath, Path tmpOut) {
+    return new String[] { "-preserveSrcPath", "-f", inputFilePath.toString(),
+            tmpOut.toString() };
+  }
+
+  @Override
+  protected void commit(Path tmpOut, Path tmp,
+                        Map<Path, FileSystem> consumePaths) throws Exception {
+    long start = startStage();
+    Map<Path, Path> commitPaths = prepareForCommit(tmpOut);
+    stopStage(STAGE_PREPARE_COMMIT, start);
+    start = startStage();
+    doLocalCommit(commitPaths);
+    stopStage(STAGE_LOCAL_COMMIT, start);
+    for (Map.Entry<String, long[]> entry : streamsToCommit.entrySet()) {
+      addProcessed(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+    }
+    long committedAt = System.currentTimeMillis();
+    for (Map.Entry<String, String> entry : streamsOfFiles.entrySet()) {
+      Long originTime = getOriginTimes().get(entry.getKey());
+      if (originTime != null)
+        recordFreshness(TIER_MIRROR, entry.getValue(), originTime,
+            committedAt);
     }
+    start = startStage();
+    doFinalCommit(consumePaths);
+    stopStage(STAGE_FINAL_COMMIT, start);
   }
 
   void doLocalCommit(Map<Path, Path> commitPaths) throws Exception {
@@ -117,6 +207,7 @@ public class MirrorStreamService extends DistcpBaseService {
       LOG.info("Renaming [" + entry.getKey() + "] to [" + entry.getValue()
               +"]");
       getDestFs().mkdirs(entry.getValue().getParent());
+      checkFenced();
       if (getDestFs().rename(entry.getKey(), entry.getValue()) == false) {
         LOG.warn("Failed to rename.Aborting transaction COMMIT to avoid " +
                 "data loss. Partial data replay could happen in next run");
@@ -150,10 +241,20 @@ public class MirrorStreamService extends DistcpBaseService {
     FileStatus[] fileStatuses = getDestFs().listStatus(tmpStreamRoot);
 
     Map<Path, Path> commitPaths = new HashMap<Path, Path>();
+    streamsToCommit.clear();
+    streamsOfFiles.clear();
     if (fileStatuses != null) {
       for (FileStatus streamRoot : fileStatuses) {
         List<FileStatus> streamPaths = new ArrayList<FileStatus>();
         createListing(getDestFs(), streamRoot, streamPaths);
+        long bytes = 0;
+        for (FileStatus file : streamPaths) {
+          bytes += file.getLen();
+          streamsOfFiles.put(file.getPath().getName(), streamRoot.getPath()
+              .getName());
+        }
+        streamsToCommit.put(streamRoot.getPath().getName(), new long[] {
+            streamPaths.size(), bytes });
         orderPathsByTime(streamPaths);
         createCommitPaths(commitPaths, streamPaths);
       }
@@ -0,0 +1,354 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.distcp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.TransferPolicy;
+
+/*
+ * Hands out copy streams (distcp maps) to the distcp services of a Databus
+ * process. Streams are bounded globally and per (remote, local) cluster pair.
+ * A pair with a bandwidth is held back after each transfer till the bytes it
+ * copied are within the bandwidth. When streams are scarce waiting transfers
+ * are served by priority and then in arrival order, a transfer held back only
+ * by its own pair's limits doesn't hold back the transfers of other pairs.
+ * Nothing blocks in the governor, a transfer which can't go keeps its place
+ * in the queue while its service gives up the run. The service's onReady is
+ * called when the transfer can go, a place not taken up within
+ * READY_TIMEOUT_IN_MS of that is dropped, eg: the service was unscheduled.
+ */
+public class TransferGovernor {
+  private static final Log LOG = LogFactory.getLog(TransferGovernor.class);
+
+  /*
+   * Streams a pull is assumed to make use of when it can't tell
+   */
+  static final int DEFAULT_COPY_STREAMS = 20;
+  static final long READY_TIMEOUT_IN_MS = 5 * 60 * 1000;
+
+  private final int maxCopyStreams;
+  private int copyStreamsInUse = 0;
+  private final Map<String, Integer> pairStreamsInUse = new HashMap<String, Integer>();
+  // pair, time till which it is held back to keep to its bandwidth
+  private final Map<String, Long> pairHeldTill = new HashMap<String, Long>();
+  private final PriorityQueue<Permit> waiting = new PriorityQueue<Permit>();
+  // waiter, its place in the queue
+  private final Map<Object, Permit> places = new HashMap<Object, Permit>();
+  private long arrivals = 0;
+  // wakes the waiters of pairs which were held back
+  private final ScheduledExecutorService timer = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "TransferGovernorTimer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /*
+   * @param maxCopyStreams - limit on concurrent copy streams across all
+   * cluster pairs, 0 means unlimited
+   */
+  public TransferGovernor(int maxCopyStreams) {
+    this.maxCopyStreams = maxCopyStreams;
+  }
+
+  public static class Permit implements Comparable<Permit> {
+    private final Object waiter;
+    private final String pair;
+    private final TransferPolicy policy;
+    private final int priority;
+    private final long arrival;
+    private int requestedStreams;
+    private Runnable onReady;
+    // when onReady was called, 0 till then
+    private long readyAt = 0;
+    private long grantedAt;
+    private int copyStreams;
+
+    Permit(Object waiter, String pair, TransferPolicy policy, int priority,
+        long arrival) {
+      this.waiter = waiter;
+      this.pair = pair;
+      this.policy = policy;
+      this.priority = priority;
+      this.arrival = arrival;
+    }
+
+    /*
+     * Number of concurrent copy streams (distcp maps) granted
+     */
+    public int getCopyStreams() {
+      return copyStreams;
+    }
+
+    /*
+     * Whether release() has to be told the bytes copied
+     */
+    public boolean hasBandwidth() {
+      return policy.getBandwidthInMBps() > 0;
+    }
+
+    @Override
+    public int compareTo(Permit other) {
+      if (priority != other.priority)
+        return priority < other.priority ? -1 : 1;
+      if (arrival != other.arrival)
+        return arrival < other.arrival ? -1 : 1;
+      return 0;
+    }
+  }
+
+  /*
+   * Grants copy streams for pulling from srcCluster into destCluster if at
+   * least one is available and no transfer ahead of it is waiting for the
+   * same streams. Otherwise the waiter is queued, or keeps its place if it
+   * already was, and onReady is called once when it can go.
+   * @param waiter - identifies the transfer across attempts, eg: the service
+   * @param priority - lower value is served first
+   * @param requestedStreams - streams the transfer can make use of
+   * @returns Permit - null if the transfer has to wait
+   */
+  public Permit tryAcquire(Object waiter, Cluster srcCluster,
+      Cluster destCluster, int priority, int requestedStreams,
+      Runnable onReady) {
+    TransferPolicy policy = destCluster.getTransferPolicy(srcCluster);
+    String pair = srcCluster.getName() + "->" + destCluster.getName();
+    Permit permit;
+    List<Runnable> ready;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      expire(now);
+      permit = places.get(waiter);
+      if (permit != null && (!permit.pair.equals(pair)
+          || permit.priority != priority)) {
+        // not the transfer it queued for, it queues afresh
+        remove(permit);
+        permit = null;
+      }
+      if (permit == null) {
+        permit = new Permit(waiter, pair, policy, priority, arrivals++);
+        waiting.add(permit);
+        places.put(waiter, permit);
+      }
+      permit.requestedStreams = Math.max(1, requestedStreams);
+      permit.onReady = onReady;
+      permit.readyAt = 0;
+      if (!canGrant(permit, now)) {
+        LOG.info("Transfer [" + pair + "] priority [" + priority
+            + "] waits for copy streams");
+        return null;
+      }
+      remove(permit);
+      grant(permit, now);
+      LOG.info("Granted [" + permit.copyStreams + "] copy streams for ["
+          + pair + "] priority [" + priority + "]");
+      // the next waiting transfer may fit in what's left
+      ready = getReady(now);
+    }
+    notifyReady(ready);
+    return permit;
+  }
+
+  /*
+   * Gives up the place of waiter in the queue, eg: its service stopped
+   */
+  public void cancel(Object waiter) {
+    List<Runnable> ready;
+    synchronized (this) {
+      Permit permit = places.get(waiter);
+      if (permit == null)
+        return;
+      remove(permit);
+      ready = getReady(System.currentTimeMillis());
+    }
+    notifyReady(ready);
+  }
+
+  public void release(Permit permit) {
+    release(permit, 0);
+  }
+
+  /*
+   * @param bytesCopied - bytes the transfer copied, holds back the pair if
+   * it has a bandwidth
+   */
+  public void release(Permit permit, long bytesCopied) {
+    List<Runnable> ready;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      copyStreamsInUse -= permit.copyStreams;
+      int inUse = pairStreamsInUse.get(permit.pair) - permit.copyStreams;
+      if (inUse == 0)
+        pairStreamsInUse.remove(permit.pair);
+      else
+        pairStreamsInUse.put(permit.pair, inUse);
+      LOG.debug("Released [" + permit.copyStreams + "] copy streams for ["
+          + permit.pair + "]");
+      holdBack(permit, bytesCopied, now);
+      ready = getReady(now);
+    }
+    notifyReady(ready);
+  }
+
+  synchronized int getCopyStreamsInUse() {
+    return copyStreamsInUse;
+  }
+
+  /*
+   * Transfers of a pair, concurrent ones included, take turns at the
+   * bandwidth: each one adds the time its bytes take to when the pair is
+   * free, counted from when it started if the pair was free then
+   */
+  private void holdBack(Permit permit, long bytesCopied, long now) {
+    long bandwidth = permit.policy.getBandwidthInMBps();
+    if (bandwidth <= 0 || bytesCopied <= 0)
+      return;
+    Long heldTill = pairHeldTill.get(permit.pair);
+    long from = heldTill == null ? permit.grantedAt : Math.max(heldTill,
+        permit.grantedAt);
+    long till = from + bytesCopied * 1000 / (bandwidth * 1024 * 1024);
+    if (till <= now) {
+      pairHeldTill.remove(permit.pair);
+      return;
+    }
+    pairHeldTill.put(permit.pair, till);
+    LOG.info("Holding back [" + permit.pair + "] for [" + (till - now)
+        + "] ms to keep to [" + bandwidth + "] MBps");
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        List<Runnable> ready;
+        synchronized (TransferGovernor.this) {
+          ready = getReady(System.currentTimeMillis());
+        }
+        notifyReady(ready);
+      }
+    }, till - now, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * @returns List<Runnable> - onReady of the waiters which can now go, to be
+   * called outside the lock
+   */
+  private List<Runnable> getReady(long now) {
+    List<Runnable> ready = new ArrayList<Runnable>();
+    Permit[] queued = waiting.toArray(new Permit[waiting.size()]);
+    Arrays.sort(queued);
+    for (Permit permit : queued) {
+      if (permit.readyAt == 0 && canGrant(permit, now)) {
+        permit.readyAt = now;
+        if (permit.onReady != null)
+          ready.add(permit.onReady);
+      }
+    }
+    return ready;
+  }
+
+  private void notifyReady(List<Runnable> ready) {
+    for (Runnable onReady : ready) {
+      try {
+        onReady.run();
+      } catch (RuntimeException e) {
+        LOG.warn("Error waking a waiting transfer", e);
+      }
+    }
+  }
+
+  private void expire(long now) {
+    Iterator<Permit> it = waiting.iterator();
+    while (it.hasNext()) {
+      Permit permit = it.next();
+      if (permit.readyAt > 0 && now - permit.readyAt > READY_TIMEOUT_IN_MS) {
+        LOG.warn("Dropping the place of [" + permit.pair + "] priority ["
+            + permit.priority + "], it wasn't taken up in ["
+            + READY_TIMEOUT_IN_MS + "] ms");
+        it.remove();
+        places.remove(permit.waiter);
+      }
+    }
+  }
+
+  private void remove(Permit permit) {
+    waiting.remove(permit);
+    places.remove(permit.waiter);
+  }
+
+  private boolean canGrant(Permit permit, long now) {
+    if (isHeldBack(permit, now) || availableStreams(permit) < 1)
+      return false;
+    for (Permit ahead : waiting) {
+      if (ahead == permit || ahead.compareTo(permit) > 0)
+        continue;
+      // a transfer ahead goes first unless only its own pair holds it
+      if (ahead.pair.equals(permit.pair) || !isPairHeld(ahead, now))
+        return false;
+    }
+    return true;
+  }
+
+  private boolean isPairHeld(Permit permit, long now) {
+    int pairLimit = getPairStreamLimit(permit.policy);
+    return (pairLimit > 0 && getPairStreamsInUse(permit) >= pairLimit)
+        || isHeldBack(permit, now);
+  }
+
+  private boolean isHeldBack(Permit permit, long now) {
+    Long heldTill = pairHeldTill.get(permit.pair);
+    return heldTill != null && heldTill > now;
+  }
+
+  private int availableStreams(Permit permit) {
+    int available = permit.requestedStreams;
+    if (maxCopyStreams > 0)
+      available = Math.min(available, maxCopyStreams - copyStreamsInUse);
+    int pairLimit = getPairStreamLimit(permit.policy);
+    if (pairLimit > 0)
+      available = Math.min(available, pairLimit - getPairStreamsInUse(permit));
+    return available;
+  }
+
+  private void grant(Permit permit, long now) {
+    permit.copyStreams = availableStreams(permit);
+    permit.grantedAt = now;
+    copyStreamsInUse += permit.copyStreams;
+    pairStreamsInUse.put(permit.pair, getPairStreamsInUse(permit)
+        + permit.copyStreams);
+  }
+
+  private int getPairStreamsInUse(Permit permit) {
+    Integer inUse = pairStreamsInUse.get(permit.pair);
+    return inUse == null ? 0 : inUse;
+  }
+
+  private int getPairStreamLimit(TransferPolicy policy) {
+    return policy.getMaxCopyStreams();
+  }
+}
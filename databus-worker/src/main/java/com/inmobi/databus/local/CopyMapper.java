@@ -31,6 +31,14 @@ import java.io.IOException;
 public class CopyMapper extends Mapper<Text, Text, Text, Text> {
 
   private static final Log LOG = LogFactory.getLog(CopyMapper.class);
+  // tasks run outside the worker, so the handle is looked up once per task
+  private FileSystem fs;
+
+  @Override
+  protected void setup(Context context) throws IOException,
+          InterruptedException {
+    fs = FileSystem.get(context.getConfiguration());
+  }
 
   @Override
   public void map(Text key, Text value, Context context) throws IOException,
@@ -40,8 +48,8 @@ public class CopyMapper extends Mapper<Text, Text, Text, Text> {
     String collector = src.getParent().getName();
     String category = src.getParent().getParent().getName();
 
-    FileSystem fs = FileSystem.get(context.getConfiguration());
     Path target = getTempPath(context, src, category, collector);
+    long originTime = fs.getFileStatus(src).getModificationTime();
     FileUtil.gzip(src, target, context.getConfiguration());
     // move to final destination
     fs.mkdirs(new Path(dest).makeQualified(fs));
@@ -49,6 +57,8 @@ public class CopyMapper extends Mapper<Text, Text, Text, Text> {
             + src.getName() + ".gz");
     LOG.info("Renaming file " + target + " to " + destPath);
     fs.rename(target, destPath);
+    // the local stream file carries when the collector last wrote the data
+    fs.setTimes(destPath, originTime, -1);
 
   }
 
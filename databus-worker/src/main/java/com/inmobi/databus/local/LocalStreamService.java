@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,6 +29,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,6 +48,8 @@ import com.inmobi.databus.Cluster;
 import com.inmobi.databus.DatabusConfig;
 import com.inmobi.databus.Stream;
 import com.inmobi.databus.utils.CalendarHelper;
+import com.inmobi.databus.utils.FileBundle;
+import com.inmobi.databus.utils.FreshnessSidecar;
 
 /*
  * Handles Local Streams for a Cluster
@@ -62,15 +66,28 @@ public class LocalStreamService extends AbstractService {
   private Path tmpJobInputPath;
   private Path tmpJobOutputPath;
   private final int FILES_TO_KEEP = 6;
-  private Map<String, Long> prevRuntimeForCategory = new HashMap<String, Long>();
+  // filled by runs, or by warmUp on a standby
+  private Map<String, Long> prevRuntimeForCategory =
+      new ConcurrentHashMap<String, Long>();
   private final SimpleDateFormat LogDateFormat = new SimpleDateFormat(
       "yyyy/MM/dd, hh:mm");
   private final static long MILLISECONDS_IN_MINUTE = 60 * 1000;
+  // final path, origin time of the files found by the last prepareForCommit
+  private final Map<Path, Long> originTimes = new HashMap<Path, Long>();
+  // stages of a run
+  public static final String STAGE_CLEANUP = "cleanup";
+  public static final String STAGE_MISSING_PATHS = "publishmissingpaths";
+  public static final String STAGE_LISTING = "listing";
+  public static final String STAGE_JOB = "mrjob";
+  public static final String STAGE_PREPARE_COMMIT = "preparecommit";
+  public static final String STAGE_COMMIT = "commit";
+  public static final String STAGE_CHECKPOINT = "checkpoint";
+  public static final String STAGE_TRASH = "trashcommit";
 
   public LocalStreamService(DatabusConfig config, Cluster cluster,
       CheckpointProvider provider) {
-    super(LocalStreamService.class.getName(), config, DEFAULT_RUN_INTERVAL,
-        provider);
+    super(LocalStreamService.class.getName() + "_" + cluster.getName(),
+        config, DEFAULT_RUN_INTERVAL, provider);
     this.cluster = cluster;
     this.tmpPath = new Path(cluster.getTmpPath(), getName());
     this.tmpJobInputPath = new Path(tmpPath, "jobIn");
@@ -84,31 +101,82 @@ public class LocalStreamService extends AbstractService {
     }
   }
 
+  /*
+   * Bundles of an aborted run were committed without the manifest referring
+   * them, no consumer ever pulls or deletes them
+   */
+  private void cleanUpBundles(FileSystem fs) throws Exception {
+    Set<String> primaryClusters = new HashSet<String>();
+    for (String streamName : cluster.getSourceStreams()) {
+      Stream stream = getConfig().getAllStreams().get(streamName);
+      Cluster primaryCluster = stream == null ? null : stream
+          .getPrimaryDestinationCluster();
+      if (primaryCluster == null || !isBundleConsumer(primaryCluster)
+          || !primaryClusters.add(primaryCluster.getName()))
+        continue;
+      FileBundle.purgeUnreferenced(fs, cluster.getBundlePath(primaryCluster),
+          cluster.getConsumePath(primaryCluster));
+    }
+  }
+
   private String getLogDateString(long commitTime) {
     return LogDateFormat.format(commitTime);
   }
 
+  @Override
+  protected List<Cluster> getClusters() {
+    return Collections.singletonList(cluster);
+  }
+
+  @Override
+  public String getShardUnit() {
+    return getCommitUnit(cluster);
+  }
+
   @Override
   public long getMSecondsTillNextRun(long currentTime) {
     return (long) (DEFAULT_RUN_INTERVAL - (long) (currentTime % DEFAULT_RUN_INTERVAL));
   }
 
+  /*
+   * Finds the latest minute dir of every local stream, a standby's value
+   * lagging the leader's only makes the first run recreate existing dirs
+   */
+  @Override
+  public void warmUp() throws Exception {
+    FileSystem fs = cluster.getFileSystem();
+    Path root = new Path(cluster.getLocalFinalDestDirRoot());
+    if (!fs.exists(root))
+      return;
+    for (FileStatus file : fs.listStatus(root)) {
+      String category = file.getPath().getName();
+      long prevRuntime = getPreviousRuntime(fs, category);
+      if (prevRuntime != -1)
+        prevRuntimeForCategory.put(category, prevRuntime);
+    }
+  }
+
   @Override
   protected void execute() throws Exception {
     try {
 
-      FileSystem fs = FileSystem.get(cluster.getHadoopConf());
+      FileSystem fs = cluster.getFileSystem();
       // Cleanup tmpPath before everyRun to avoid
       // any old data being used in this run if the old run was aborted
+      long start = startStage();
       cleanUpTmp(fs);
+      cleanUpBundles(fs);
+      stopStage(STAGE_CLEANUP, start);
       LOG.info("TmpPath is [" + tmpPath + "]");
       {
         FileStatus[] fileStatus = fs.listStatus(new Path(cluster
             .getLocalFinalDestDirRoot()));
         LOG.info("Create All the Missing Paths for the Current Run");
         for (FileStatus file : fileStatus) {
-          publishMissingPaths(fs, cluster.getCommitTime(), file.getPath()
-              .getName());
+          String category = file.getPath().getName();
+          start = startStage();
+          publishMissingPaths(fs, cluster.getCommitTime(), category);
+          stopStage(STAGE_MISSING_PATHS, category, start);
         }
       }
       Map<FileStatus, String> fileListing = new TreeMap<FileStatus, String>();
@@ -116,21 +184,47 @@ public class LocalStreamService extends AbstractService {
       // checkpointKey, CheckPointPath
       Map<String, FileStatus> checkpointPaths = new TreeMap<String, FileStatus>();
 
+      start = startStage();
       createMRInput(tmpJobInputPath, fileListing, trashSet, checkpointPaths);
+      stopStage(STAGE_LISTING, start);
+      setBacklog(fileListing.size());
 
       if (fileListing.size() == 0) {
         LOG.info("Nothing to do!");
         return;
       }
+      start = startStage();
       Job job = createJob(tmpJobInputPath);
       job.waitForCompletion(true);
+      stopStage(STAGE_JOB, start);
       if (job.isSuccessful()) {
         long commitTime = cluster.getCommitTime();
         LOG.info("Commiting mvPaths and ConsumerPaths");
-        commit(prepareForCommit(commitTime, fileListing));
+        start = startStage();
+        Map<Path, Path> commitPaths = prepareForCommit(commitTime, fileListing);
+        stopStage(STAGE_PREPARE_COMMIT, start);
+        start = startStage();
+        commit(commitPaths);
+        stopStage(STAGE_COMMIT, start);
+        long committedAt = System.currentTimeMillis();
+        for (Map.Entry<Path, Long> entry : originTimes.entrySet()) {
+          recordFreshness(TIER_LOCAL, getCategoryFromDestPath(entry.getKey()),
+              entry.getValue(), committedAt);
+        }
+        for (FileStatus file : fileListing.keySet()) {
+          // data/<stream>/<collector>/<file>
+          addProcessed(file.getPath().getParent().getParent().getName(), 1,
+              file.getLen());
+        }
+        triggerConsumers();
+        start = startStage();
         checkPoint(checkpointPaths);
+        stopStage(STAGE_CHECKPOINT, start);
+        checkpointed();
         LOG.info("Commiting trashPaths");
+        start = startStage();
         commit(populateTrashCommitPaths(trashSet));
+        stopStage(STAGE_TRASH, start);
         LOG.info("Committed successfully at " + getLogDateString(commitTime));
       }
     } catch (Exception e) {
@@ -139,6 +233,22 @@ public class LocalStreamService extends AbstractService {
     }
   }
 
+  /*
+   * Wakes the merged stream services of primary clusters pulling the
+   * manifests just committed
+   */
+  private void triggerConsumers() {
+    Set<String> primaryClusters = new HashSet<String>();
+    for (String streamName : cluster.getSourceStreams()) {
+      Stream stream = getConfig().getAllStreams().get(streamName);
+      Cluster primaryCluster = stream == null ? null : stream
+          .getPrimaryDestinationCluster();
+      if (primaryCluster != null
+          && primaryClusters.add(primaryCluster.getName()))
+        trigger(getConsumeTopic(cluster, primaryCluster));
+    }
+  }
+
   private Path getLatestDir(FileSystem fs, Path Dir) throws Exception {
     FileStatus[] fileStatus = fs.listStatus(Dir);
     
@@ -191,12 +301,15 @@ public class LocalStreamService extends AbstractService {
 
   private void checkPoint(Map<String, FileStatus> checkPointPaths) {
     Set<Entry<String, FileStatus>> entries = checkPointPaths.entrySet();
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
     for (Entry<String, FileStatus> entry : entries) {
       String value = entry.getValue().getPath().getName();
       LOG.debug("Check Pointing Key [" + entry.getKey() + "] with value ["
           + value + "]");
-      checkpointProvider.checkpoint(entry.getKey(), value.getBytes());
+      checkpoints.put(entry.getKey(), value.getBytes());
     }
+    // all collectors of the run are checkpointed together
+    checkpointProvider.checkpoint(checkpoints);
   }
   
   private boolean isMissingPaths(long commitTime, long prevRuntime) {
@@ -233,10 +346,11 @@ public class LocalStreamService extends AbstractService {
 
   private Map<Path, Path> prepareForCommit(long commitTime,
       Map<FileStatus, String> fileListing) throws Exception {
-    FileSystem fs = FileSystem.get(cluster.getHadoopConf());
+    FileSystem fs = cluster.getFileSystem();
 
     // find final destination paths
     Map<Path, Path> mvPaths = new LinkedHashMap<Path, Path>();
+    originTimes.clear();
     FileStatus[] categories = fs.listStatus(tmpJobOutputPath);
     for (FileStatus categoryDir : categories) {
       String categoryName = categoryDir.getPath().getName();
@@ -246,12 +360,15 @@ public class LocalStreamService extends AbstractService {
         Path destPath = new Path(destDir, file.getPath().getName());
         LOG.debug("Moving [" + file.getPath() + "] to [" + destPath + "]");
         mvPaths.put(file.getPath(), destPath);
+        // CopyMapper stamps the collector file's modification time
+        originTimes.put(destPath, file.getModificationTime());
       }
       // publishMissingPaths(fs, commitTime, categoryName);
     }
 
     // find input files for consumer
-    Map<Path, Path> consumerCommitPaths = new HashMap<Path, Path>();
+    // bundles have to be committed before the consumer path referring them
+    Map<Path, Path> consumerCommitPaths = new LinkedHashMap<Path, Path>();
     List<String> primaryClusters = new ArrayList<String>();
     for (String streamName : cluster.getSourceStreams()) {
       Stream primaryStream = getConfig().getAllStreams().get(streamName);
@@ -269,20 +386,38 @@ public class LocalStreamService extends AbstractService {
         if (consumeCluster) {
           Path tmpConsumerPath = new Path(tmpPath, primaryCluster.getName());
           FSDataOutputStream out = fs.create(tmpConsumerPath);
-          for (Path destPath : mvPaths.values()) {
-            String category = getCategoryFromDestPath(destPath);
-            if (primaryCluster.getDestinationStreams().contains(category)) {
-              out.writeBytes(destPath.toString());
-              LOG.debug("Adding [" + destPath + "]  for consumer ["
+          if (isBundleConsumer(primaryCluster)) {
+            for (Path bundlePath : createBundles(fs, primaryCluster, mvPaths,
+                consumerCommitPaths)) {
+              out.writeBytes(bundlePath.toString());
+              LOG.debug("Adding bundle [" + bundlePath + "]  for consumer ["
                   + primaryCluster.getName() + "] to commit Paths in ["
                   + tmpConsumerPath + "]");
               out.writeBytes("\n");
             }
+          } else {
+            for (Path destPath : mvPaths.values()) {
+              String category = getCategoryFromDestPath(destPath);
+              if (primaryCluster.getDestinationStreams().contains(category)) {
+                out.writeBytes(destPath.toString());
+                LOG.debug("Adding [" + destPath + "]  for consumer ["
+                    + primaryCluster.getName() + "] to commit Paths in ["
+                    + tmpConsumerPath + "]");
+                out.writeBytes("\n");
+              }
+            }
           }
           out.close();
           Path finalConsumerPath = new Path(
               cluster.getConsumePath(primaryCluster), Long.toString(System
                   .currentTimeMillis()));
+          // the sidecar is in place before its manifest
+          Path tmpSidecarPath = new Path(tmpPath, primaryCluster.getName()
+              + "_" + FreshnessSidecar.FRESHNESS_DIR);
+          FreshnessSidecar.write(fs, tmpSidecarPath, getOriginTimes(
+              primaryCluster, mvPaths));
+          consumerCommitPaths.put(tmpSidecarPath, FreshnessSidecar
+              .getSidecarPath(finalConsumerPath));
           LOG.debug("Moving [" + tmpConsumerPath + "] to [ "
               + finalConsumerPath + "]");
           consumerCommitPaths.put(tmpConsumerPath, finalConsumerPath);
@@ -297,6 +432,70 @@ public class LocalStreamService extends AbstractService {
     return commitPaths;
   }
 
+  /*
+   * @returns Map<String, Long> - file name, origin time of the files of this
+   * run consumed by primaryCluster
+   */
+  private Map<String, Long> getOriginTimes(Cluster primaryCluster,
+      Map<Path, Path> mvPaths) {
+    Map<String, Long> times = new HashMap<String, Long>();
+    for (Path destPath : mvPaths.values()) {
+      if (primaryCluster.getDestinationStreams().contains(
+          getCategoryFromDestPath(destPath)))
+        times.put(destPath.getName(), originTimes.get(destPath));
+    }
+    return times;
+  }
+
+  /*
+   * Consumers in a different cluster can ask for partial streams to be packed
+   * in bundles, so that the pull pays per bundle and not per file costs
+   */
+  private boolean isBundleConsumer(Cluster primaryCluster) {
+    return primaryCluster.isBundleTransfer()
+        && !primaryCluster.getName().equals(cluster.getName());
+  }
+
+  /*
+   * Packs the files of this run consumed by primaryCluster in bundles of
+   * atmost primaryCluster.getBundleSizeInBytes()
+   * @returns List<Path> - final paths of the bundles, which are added to
+   * consumerCommitPaths
+   */
+  private List<Path> createBundles(FileSystem fs, Cluster primaryCluster,
+      Map<Path, Path> mvPaths, Map<Path, Path> consumerCommitPaths)
+      throws Exception {
+    List<Path> bundles = new ArrayList<Path>();
+    Path tmpBundleDir = new Path(tmpPath, "bundles_" + primaryCluster.getName());
+    Path finalBundleDir = cluster.getBundlePath(primaryCluster);
+    String bundlePrefix = Long.toString(System.currentTimeMillis()) + "_";
+    FileBundle.Writer writer = null;
+    for (Map.Entry<Path, Path> entry : mvPaths.entrySet()) {
+      String category = getCategoryFromDestPath(entry.getValue());
+      if (!primaryCluster.getDestinationStreams().contains(category))
+        continue;
+      if (writer != null
+          && writer.getLength() >= primaryCluster.getBundleSizeInBytes()) {
+        writer.close();
+        writer = null;
+      }
+      if (writer == null) {
+        String bundleName = bundlePrefix + bundles.size()
+            + FileBundle.BUNDLE_SUFFIX;
+        writer = new FileBundle.Writer(fs, new Path(tmpBundleDir, bundleName));
+        Path finalBundlePath = new Path(finalBundleDir, bundleName);
+        consumerCommitPaths.put(writer.getPath(), finalBundlePath);
+        bundles.add(finalBundlePath);
+      }
+      writer.append(fs, entry.getKey(), entry.getValue().getName());
+    }
+    if (writer != null)
+      writer.close();
+    LOG.info("Packed partial streams for [" + primaryCluster.getName()
+        + "] in [" + bundles.size() + "] bundles");
+    return bundles;
+  }
+
   private Map<Path, Path> populateTrashCommitPaths(Set<FileStatus> trashSet) {
     // find trash paths
     Map<Path, Path> trashPaths = new LinkedHashMap<Path, Path>();
@@ -313,10 +512,11 @@ public class LocalStreamService extends AbstractService {
 
   private void commit(Map<Path, Path> commitPaths) throws Exception {
     LOG.info("Committing " + commitPaths.size() + " paths.");
-    FileSystem fs = FileSystem.get(cluster.getHadoopConf());
+    FileSystem fs = cluster.getFileSystem();
     for (Map.Entry<Path, Path> entry : commitPaths.entrySet()) {
       LOG.info("Renaming " + entry.getKey() + " to " + entry.getValue());
       fs.mkdirs(entry.getValue().getParent());
+      checkFenced();
       if (fs.rename(entry.getKey(), entry.getValue()) == false) {
         LOG.warn("Rename failed, aborting transaction COMMIT to avoid "
             + "dataloss. Partial data replay could happen in next run");
@@ -330,7 +530,7 @@ public class LocalStreamService extends AbstractService {
   private void createMRInput(Path inputPath,
       Map<FileStatus, String> fileListing, Set<FileStatus> trashSet,
       Map<String, FileStatus> checkpointPaths) throws IOException {
-    FileSystem fs = FileSystem.get(cluster.getHadoopConf());
+    FileSystem fs = cluster.getFileSystem();
 
     createListing(fs, fs.getFileStatus(cluster.getDataDir()), fileListing,
         trashSet, checkpointPaths);
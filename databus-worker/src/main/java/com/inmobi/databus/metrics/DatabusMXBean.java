@@ -0,0 +1,44 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.List;
+
+/*
+ * Management interface of the worker, registered as
+ * com.inmobi.databus:type=Databus
+ */
+public interface DatabusMXBean {
+
+  List<String> getClustersToProcess();
+
+  /*
+   * @returns List<String> - names of the services of the worker
+   */
+  List<String> getServices();
+
+  boolean isLeader();
+
+  int getSchedulerPoolSize();
+
+  int getSchedulerActiveThreads();
+
+  int getSchedulerQueuedRuns();
+
+  long getSchedulerCompletedRuns();
+
+  void pauseAll();
+
+  void resumeAll();
+}
@@ -0,0 +1,301 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.Databus;
+import com.inmobi.databus.ServiceScheduler;
+
+/*
+ * Exposes a worker and its services over JMX, so that a running worker can
+ * be looked into, eg: with jconsole, without turning on debug logs.
+ * Attributes are read from counters the services keep anyway.
+ */
+public class DatabusManagement implements DatabusMXBean {
+  private static final Log LOG = LogFactory.getLog(DatabusManagement.class);
+  public static final String DOMAIN = "com.inmobi.databus";
+
+  private final Databus databus;
+  private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+  public DatabusManagement(Databus databus) {
+    this.databus = databus;
+  }
+
+  /*
+   * Registers the worker and its services with the platform MBeanServer,
+   * replacing beans of the same name. Failures are only logged.
+   */
+  public synchronized void register() {
+    try {
+      register(new ObjectName(DOMAIN + ":type=Databus"), this);
+    } catch (Exception e) {
+      LOG.warn("Could not register MBeans", e);
+    }
+    for (AbstractService service : databus.getServices()) {
+      register(service);
+    }
+  }
+
+  public synchronized void register(AbstractService service) {
+    try {
+      register(getObjectName(service), new ServiceManagement(service));
+    } catch (Exception e) {
+      LOG.warn("Could not register MBean of [" + service.getName() + "]", e);
+    }
+  }
+
+  public static ObjectName getObjectName(AbstractService service)
+      throws Exception {
+    return new ObjectName(DOMAIN + ":type=Service,name="
+        + ObjectName.quote(service.getName()));
+  }
+
+  private void register(ObjectName name, Object bean) throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(name))
+      server.unregisterMBean(name);
+    server.registerMBean(bean, name);
+    registered.add(name);
+  }
+
+  public synchronized void unregister() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registered) {
+      try {
+        if (server.isRegistered(name))
+          server.unregisterMBean(name);
+      } catch (Exception e) {
+        LOG.warn("Could not unregister [" + name + "]", e);
+      }
+    }
+    registered.clear();
+  }
+
+  @Override
+  public List<String> getClustersToProcess() {
+    return new ArrayList<String>(databus.getClustersToProcess());
+  }
+
+  @Override
+  public List<String> getServices() {
+    List<String> names = new ArrayList<String>();
+    for (AbstractService service : databus.getServices()) {
+      names.add(service.getName());
+    }
+    return names;
+  }
+
+  @Override
+  public boolean isLeader() {
+    return databus.isLeader();
+  }
+
+  @Override
+  public int getSchedulerPoolSize() {
+    ServiceScheduler scheduler = databus.getScheduler();
+    return scheduler == null ? -1 : scheduler.getPoolSize();
+  }
+
+  @Override
+  public int getSchedulerActiveThreads() {
+    ServiceScheduler scheduler = databus.getScheduler();
+    return scheduler == null ? -1 : scheduler.getActiveThreads();
+  }
+
+  @Override
+  public int getSchedulerQueuedRuns() {
+    ServiceScheduler scheduler = databus.getScheduler();
+    return scheduler == null ? -1 : scheduler.getQueuedRuns();
+  }
+
+  @Override
+  public long getSchedulerCompletedRuns() {
+    ServiceScheduler scheduler = databus.getScheduler();
+    return scheduler == null ? -1 : scheduler.getCompletedRuns();
+  }
+
+  @Override
+  public void pauseAll() {
+    for (AbstractService service : databus.getServices()) {
+      service.pause();
+    }
+  }
+
+  @Override
+  public void resumeAll() {
+    for (AbstractService service : databus.getServices()) {
+      service.resume();
+    }
+  }
+
+  private class ServiceManagement implements ServiceMXBean {
+    private final AbstractService service;
+
+    ServiceManagement(AbstractService service) {
+      this.service = service;
+    }
+
+    private ServiceScheduler.RunStats getRunStats() {
+      ServiceScheduler scheduler = databus.getScheduler();
+      return scheduler == null ? null : scheduler.getStats(service.getName());
+    }
+
+    @Override
+    public String getName() {
+      return service.getName();
+    }
+
+    @Override
+    public String getServiceType() {
+      return service.getServiceType();
+    }
+
+    @Override
+    public List<String> getClusters() {
+      return service.getClusterNames();
+    }
+
+    @Override
+    public long getRunIntervalInMs() {
+      return service.getRunIntervalInMsec();
+    }
+
+    @Override
+    public long getLastRunStartTime() {
+      return service.getLastRunStartTime();
+    }
+
+    @Override
+    public long getLastRunEndTime() {
+      return service.getLastRunEndTime();
+    }
+
+    @Override
+    public long getLastSuccessTime() {
+      return service.getLastSuccessTime();
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+      return service.getConsecutiveFailures();
+    }
+
+    @Override
+    public long getFilesProcessed() {
+      return service.getFilesProcessed();
+    }
+
+    @Override
+    public long getBytesProcessed() {
+      return service.getBytesProcessed();
+    }
+
+    @Override
+    public long getBacklog() {
+      return service.getBacklog();
+    }
+
+    @Override
+    public boolean isPaused() {
+      return service.isPaused();
+    }
+
+    @Override
+    public long getRuns() {
+      ServiceScheduler.RunStats stats = getRunStats();
+      return stats == null ? 0 : stats.getRuns();
+    }
+
+    @Override
+    public long getSkippedRuns() {
+      ServiceScheduler.RunStats stats = getRunStats();
+      return stats == null ? 0 : stats.getSkippedRuns();
+    }
+
+    @Override
+    public long getLagInMs() {
+      ServiceScheduler.RunStats stats = getRunStats();
+      return stats == null ? 0 : stats.getLagInMs();
+    }
+
+    @Override
+    public long getMaxLagInMs() {
+      ServiceScheduler.RunStats stats = getRunStats();
+      return stats == null ? 0 : stats.getMaxLagInMs();
+    }
+
+    @Override
+    public Map<String, String> getStageTimesInMicros() {
+      StageMetrics metrics = service.getStageMetrics();
+      Map<String, String> times = new TreeMap<String, String>();
+      for (Map.Entry<String, Histogram> entry : metrics.getStages()
+          .entrySet()) {
+        times.put(entry.getKey(), entry.getValue().toString());
+      }
+      for (Map.Entry<String, Map<String, Histogram>> entry : metrics
+          .getStreamStages().entrySet()) {
+        for (Map.Entry<String, Histogram> stream : entry.getValue()
+            .entrySet()) {
+          times.put(entry.getKey() + "/" + stream.getKey(), stream.getValue()
+              .toString());
+        }
+      }
+      return times;
+    }
+
+    @Override
+    public Map<String, String> getFreshnessLagsInMicros() {
+      Map<String, String> lags = new TreeMap<String, String>();
+      for (Map.Entry<String, Map<String, Histogram>> entry : service
+          .getFreshness().getStreamStages().entrySet()) {
+        for (Map.Entry<String, Histogram> stream : entry.getValue()
+            .entrySet()) {
+          lags.put(entry.getKey() + "/" + stream.getKey(), stream.getValue()
+              .toString());
+        }
+      }
+      return lags;
+    }
+
+    @Override
+    public void triggerRun() {
+      ServiceScheduler scheduler = databus.getScheduler();
+      if (scheduler != null)
+        scheduler.trigger(service);
+    }
+
+    @Override
+    public void pause() {
+      service.pause();
+    }
+
+    @Override
+    public void resume() {
+      service.resume();
+    }
+  }
+}
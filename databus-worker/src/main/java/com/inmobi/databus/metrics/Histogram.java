@@ -0,0 +1,147 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock free histogram of non negative longs, eg: durations in microseconds.
+ * Like HdrHistogram values are counted in buckets which double in width
+ * every power of two, so any percentile is within ~6% of the recorded
+ * value, and a record is a few atomic increments. Values beyond
+ * 2^46 are counted in the last bucket, max is exact.
+ */
+public class Histogram {
+  // linear buckets below 2^SUB_BITS, 2^(SUB_BITS-1) per power of two above
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_SUB_COUNT = SUB_COUNT >> 1;
+  private static final int MAX_BIT = 45;
+  static final int BUCKETS = SUB_COUNT + (MAX_BIT - SUB_BITS + 1)
+      * HALF_SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  static int getBucket(long value) {
+    if (value < SUB_COUNT)
+      return (int) value;
+    int highestBit = 63 - Long.numberOfLeadingZeros(value);
+    if (highestBit > MAX_BIT)
+      return BUCKETS - 1;
+    int shift = highestBit - SUB_BITS + 1;
+    int top = (int) (value >>> shift);
+    return SUB_COUNT + (shift - 1) * HALF_SUB_COUNT + top - HALF_SUB_COUNT;
+  }
+
+  /*
+   * @returns long - largest value counted in bucket
+   */
+  static long getHighestValue(int bucket) {
+    if (bucket < SUB_COUNT)
+      return bucket;
+    int shift = (bucket - SUB_COUNT) / HALF_SUB_COUNT + 1;
+    long top = (bucket - SUB_COUNT) % HALF_SUB_COUNT + HALF_SUB_COUNT;
+    return ((top + 1) << shift) - 1;
+  }
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    counts.incrementAndGet(getBucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current;
+    while ((current = max.get()) < value && !max.compareAndSet(current, value))
+      ;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /*
+   * @param percentile - 0 to 100
+   * @returns long - value below which percentile of the values fall, 0 when
+   * nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] values = new long[1];
+    getValuesAtPercentiles(new double[] { percentile }, values);
+    return values[0];
+  }
+
+  /*
+   * Looks up several percentiles in one pass, without allocating
+   * @param percentiles - ascending, 0 to 100
+   * @param values - filled with the value at each percentile
+   */
+  public void getValuesAtPercentiles(double[] percentiles, long[] values) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    long maxValue = getMax();
+    long seen = 0;
+    int bucket = -1;
+    for (int p = 0; p < percentiles.length; p++) {
+      if (total == 0) {
+        values[p] = 0;
+        continue;
+      }
+      long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentiles[p])
+          / 100 * total));
+      // records racing with the lookup may leave the last ranks unseen
+      while (seen < rank && bucket < BUCKETS - 1) {
+        seen += counts.get(++bucket);
+      }
+      values[p] = Math.min(getHighestValue(Math.max(0, bucket)), maxValue);
+    }
+  }
+
+  /*
+   * @returns long - number of recorded values less than or equal to value,
+   * exact when value is the highest value of a bucket
+   */
+  public long getCountAtOrBelow(long value) {
+    int last = getBucket(Math.max(0, value));
+    long total = 0;
+    for (int i = 0; i <= last; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + " p50=" + getValueAtPercentile(50)
+        + " p99=" + getValueAtPercentile(99) + " max=" + getMax();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves the worker's metrics at http://<host>:<port>/metrics for
+ * Prometheus to scrape. Scrapes are served one at a time on the server's
+ * own thread, which reuses one buffer.
+ */
+public class MetricsServer {
+  private static final Log LOG = LogFactory.getLog(MetricsServer.class);
+  public static final String PATH = "/metrics";
+  private static final String CONTENT_TYPE =
+      "text/plain; version=0.0.4; charset=utf-8";
+
+  private final HttpServer server;
+  private final PrometheusExporter exporter;
+  private final StringBuilder buffer = new StringBuilder(64 * 1024);
+
+  /*
+   * @param port - 0 for any free port
+   */
+  public MetricsServer(PrometheusExporter exporter, int port)
+      throws IOException {
+    this.exporter = exporter;
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      byte[] body;
+      synchronized (buffer) {
+        buffer.setLength(0);
+        exporter.render(buffer);
+        body = buffer.toString().getBytes("UTF-8");
+      }
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    } catch (RuntimeException e) {
+      LOG.warn("Error rendering metrics", e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public void start() {
+    server.start();
+    LOG.info("Serving metrics at [" + server.getAddress() + PATH + "]");
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+}
@@ -0,0 +1,408 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.Databus;
+import com.inmobi.databus.FileSystemRegistry;
+import com.inmobi.databus.ServiceScheduler;
+import com.inmobi.databus.zookeeper.CuratorShardManager;
+
+/*
+ * Renders the metrics of a worker in the Prometheus text format. Values are
+ * read from the atomic counters and histograms the services update, so a
+ * scrape takes no lock a service waits on, and numbers are appended to the
+ * caller's buffer without intermediate strings.
+ */
+public class PrometheusExporter {
+  private static final double MICROS_PER_SECOND = 1000000.0;
+  private static final double[] QUANTILES = { 50, 99, 100 };
+  private static final String[] QUANTILE_LABELS = { "0.5", "0.99", "1" };
+
+  private final Databus databus;
+  // escaped labels of a service or cluster, they don't change
+  private final Map<Object, String> labels =
+      new IdentityHashMap<Object, String>();
+  private final long[] quantileValues = new long[QUANTILES.length];
+
+  public PrometheusExporter(Databus databus) {
+    this.databus = databus;
+  }
+
+  public synchronized void render(StringBuilder out) {
+    render(out, databus.getServices());
+  }
+
+  synchronized void render(StringBuilder out, List<AbstractService> services) {
+    long now = System.currentTimeMillis();
+    header(out, "databus_leader", "gauge",
+        "1 if the worker holds the leadership of its clusters");
+    out.append("databus_leader ").append(databus.isLeader() ? 1 : 0).append(
+        '\n');
+    CuratorShardManager shardManager = databus.getShardManager();
+    if (shardManager != null) {
+      header(out, "databus_shard_workers", "gauge",
+          "Live workers the services are spread across");
+      out.append("databus_shard_workers ").append(
+          shardManager.getWorkers().size()).append('\n');
+      header(out, "databus_shard_owned_services", "gauge",
+          "Services this worker owns in sharded mode");
+      out.append("databus_shard_owned_services ").append(
+          shardManager.getOwnedUnits().size()).append('\n');
+    }
+    ServiceScheduler scheduler = databus.getScheduler();
+    if (scheduler != null) {
+      header(out, "databus_scheduler_active_threads", "gauge",
+          "Scheduler threads running a service");
+      out.append("databus_scheduler_active_threads ").append(
+          scheduler.getActiveThreads()).append('\n');
+      header(out, "databus_scheduler_queued_runs", "gauge",
+          "Runs waiting for their slot or a free thread");
+      out.append("databus_scheduler_queued_runs ").append(
+          scheduler.getQueuedRuns()).append('\n');
+    }
+
+    header(out, "databus_files_processed_total", "counter",
+        "Files moved, copied or deleted by a service");
+    for (AbstractService service : services) {
+      sample(out, "databus_files_processed_total", service);
+      end(out, service.getFilesProcessed());
+    }
+    header(out, "databus_bytes_processed_total", "counter",
+        "Bytes of the files processed by a service");
+    for (AbstractService service : services) {
+      sample(out, "databus_bytes_processed_total", service);
+      end(out, service.getBytesProcessed());
+    }
+    header(out, "databus_stream_files_processed_total", "counter",
+        "Files of a stream processed by a service");
+    for (AbstractService service : services) {
+      StreamCounters counters = service.getStreamCounters();
+      for (String stream : counters.getStreams()) {
+        sample(out, "databus_stream_files_processed_total", service);
+        label(out, "stream", stream);
+        end(out, counters.getFiles(stream));
+      }
+    }
+    header(out, "databus_stream_bytes_processed_total", "counter",
+        "Bytes of a stream processed by a service");
+    for (AbstractService service : services) {
+      StreamCounters counters = service.getStreamCounters();
+      for (String stream : counters.getStreams()) {
+        sample(out, "databus_stream_bytes_processed_total", service);
+        label(out, "stream", stream);
+        end(out, counters.getBytes(stream));
+      }
+    }
+    header(out, "databus_backlog", "gauge",
+        "Files or manifests found pending by the last run");
+    for (AbstractService service : services) {
+      if (service.getBacklog() < 0)
+        continue;
+      sample(out, "databus_backlog", service);
+      end(out, service.getBacklog());
+    }
+    header(out, "databus_consecutive_failures", "gauge",
+        "Runs which failed since the last successful one");
+    for (AbstractService service : services) {
+      sample(out, "databus_consecutive_failures", service);
+      end(out, service.getConsecutiveFailures());
+    }
+    header(out, "databus_last_success_age_seconds", "gauge",
+        "Time since the last successful run");
+    for (AbstractService service : services) {
+      if (service.getLastSuccessTime() < 0)
+        continue;
+      sample(out, "databus_last_success_age_seconds", service);
+      end(out, (now - service.getLastSuccessTime()) / 1000.0);
+    }
+    header(out, "databus_checkpoint_lag_seconds", "gauge",
+        "Time since the service last checkpointed its progress");
+    for (AbstractService service : services) {
+      if (service.getLastCheckpointTime() < 0)
+        continue;
+      sample(out, "databus_checkpoint_lag_seconds", service);
+      end(out, (now - service.getLastCheckpointTime()) / 1000.0);
+    }
+    if (scheduler != null)
+      renderRunStats(out, scheduler, services);
+    renderStages(out, services);
+    renderFreshness(out, services);
+    renderFileSystems(out);
+  }
+
+  private void renderRunStats(StringBuilder out, ServiceScheduler scheduler,
+      List<AbstractService> services) {
+    header(out, "databus_runs_total", "counter", "Runs of a service");
+    for (AbstractService service : services) {
+      ServiceScheduler.RunStats stats = scheduler.getStats(service.getName());
+      if (stats == null)
+        continue;
+      sample(out, "databus_runs_total", service);
+      end(out, stats.getRuns());
+    }
+    header(out, "databus_skipped_runs_total", "counter",
+        "Slots of a service skipped as its runs overran");
+    for (AbstractService service : services) {
+      ServiceScheduler.RunStats stats = scheduler.getStats(service.getName());
+      if (stats == null)
+        continue;
+      sample(out, "databus_skipped_runs_total", service);
+      end(out, stats.getSkippedRuns());
+    }
+    header(out, "databus_run_lag_seconds", "gauge",
+        "How late the last run started after its slot");
+    for (AbstractService service : services) {
+      ServiceScheduler.RunStats stats = scheduler.getStats(service.getName());
+      if (stats == null)
+        continue;
+      sample(out, "databus_run_lag_seconds", service);
+      end(out, stats.getLagInMs() / 1000.0);
+    }
+  }
+
+  private void renderStages(StringBuilder out, List<AbstractService> services) {
+    String name = "databus_stage_duration_seconds";
+    header(out, name, "summary", "Duration of a stage of the runs");
+    for (AbstractService service : services) {
+      for (Map.Entry<String, Histogram> entry : service.getStageMetrics()
+          .getLiveStages().entrySet()) {
+        summary(out, name, service, "stage", entry.getKey(), null, entry
+            .getValue());
+      }
+    }
+    name = "databus_stream_stage_duration_seconds";
+    header(out, name, "summary",
+        "Duration of a stage of the runs done once per stream");
+    for (AbstractService service : services) {
+      for (Map.Entry<String, ConcurrentMap<String, Histogram>> entry : service
+          .getStageMetrics().getLiveStreamStages().entrySet()) {
+        for (Map.Entry<String, Histogram> stream : entry.getValue()
+            .entrySet()) {
+          summary(out, name, service, "stage", entry.getKey(), stream.getKey(),
+              stream.getValue());
+        }
+      }
+    }
+  }
+
+  private void renderFreshness(StringBuilder out,
+      List<AbstractService> services) {
+    String name = "databus_freshness_lag_seconds";
+    header(out, name, "summary",
+        "Time from the collector writing a file to its commit in a tier");
+    for (AbstractService service : services) {
+      for (Map.Entry<String, ConcurrentMap<String, Histogram>> entry : service
+          .getFreshness().getLiveStreamStages().entrySet()) {
+        for (Map.Entry<String, Histogram> stream : entry.getValue()
+            .entrySet()) {
+          summary(out, name, service, "tier", entry.getKey(), stream.getKey(),
+              stream.getValue());
+        }
+      }
+    }
+  }
+
+  /*
+   * @param keyLabel - label of key, the stage or tier the histogram is of
+   */
+  private void summary(StringBuilder out, String name,
+      AbstractService service, String keyLabel, String key, String stream,
+      Histogram histogram) {
+    histogram.getValuesAtPercentiles(QUANTILES, quantileValues);
+    for (int i = 0; i < QUANTILES.length; i++) {
+      summarySample(out, name, service, keyLabel, key, stream);
+      label(out, "quantile", QUANTILE_LABELS[i]);
+      end(out, quantileValues[i] / MICROS_PER_SECOND);
+    }
+    summarySample(out, name + "_sum", service, keyLabel, key, stream);
+    end(out, histogram.getSum() / MICROS_PER_SECOND);
+    summarySample(out, name + "_count", service, keyLabel, key, stream);
+    end(out, histogram.getCount());
+  }
+
+  private void summarySample(StringBuilder out, String name,
+      AbstractService service, String keyLabel, String key, String stream) {
+    sample(out, name, service);
+    label(out, keyLabel, key);
+    if (stream != null)
+      label(out, "stream", stream);
+  }
+
+  private void renderFileSystems(StringBuilder out) {
+    Map<String, Cluster> clusters = databus.getConfig().getAllClusters();
+    if (clusters == null)
+      return;
+    header(out, "databus_filesystem_calls_total", "counter",
+        "Calls, namenode rpcs on hdfs, made through a cluster's filesystem");
+    for (Cluster cluster : clusters.values()) {
+      FileSystemRegistry registry = cluster.getFileSystemRegistry();
+      for (FileSystemRegistry.Operation operation : FileSystemRegistry
+          .Operation.values()) {
+        out.append("databus_filesystem_calls_total{").append(
+            getLabels(cluster));
+        label(out, "operation", operation.name().toLowerCase());
+        end(out, registry.getCallCount(operation));
+      }
+    }
+    header(out, "databus_filesystem_throttled_seconds_total", "counter",
+        "Time calls of a priority waited for the cluster's ops/sec limit");
+    for (Cluster cluster : clusters.values()) {
+      FileSystemRegistry registry = cluster.getFileSystemRegistry();
+      for (FileSystemRegistry.Priority priority : FileSystemRegistry
+          .Priority.values()) {
+        out.append("databus_filesystem_throttled_seconds_total{").append(
+            getLabels(cluster));
+        label(out, "priority", priority.name().toLowerCase());
+        end(out, registry.getThrottledTimeInMicros(priority)
+            / MICROS_PER_SECOND);
+      }
+    }
+    renderCallStats(out, clusters, "service", false);
+    renderCallStats(out, clusters, "stream", true);
+  }
+
+  /*
+   * Calls made through each cluster's filesystem per service or per stream,
+   * operations never called are left out
+   */
+  private void renderCallStats(StringBuilder out,
+      Map<String, Cluster> clusters, String by, boolean byStream) {
+    String calls = "databus_filesystem_" + by + "_calls_total";
+    header(out, calls, "counter", "Calls made through a cluster's "
+        + "filesystem per " + by);
+    for (Cluster cluster : clusters.values()) {
+      FileSystemRegistry registry = cluster.getFileSystemRegistry();
+      for (Map.Entry<String, FileSystemRegistry.CallStats> entry
+          : getCallStats(registry, byStream).entrySet()) {
+        for (FileSystemRegistry.Operation operation : FileSystemRegistry
+            .Operation.values()) {
+          long count = entry.getValue().getCount(operation);
+          if (count == 0)
+            continue;
+          callSample(out, calls, cluster, by, entry.getKey(), operation);
+          end(out, count);
+        }
+      }
+    }
+    String seconds = "databus_filesystem_" + by + "_call_seconds_total";
+    header(out, seconds, "counter", "Time spent in calls made through a "
+        + "cluster's filesystem per " + by);
+    for (Cluster cluster : clusters.values()) {
+      FileSystemRegistry registry = cluster.getFileSystemRegistry();
+      for (Map.Entry<String, FileSystemRegistry.CallStats> entry
+          : getCallStats(registry, byStream).entrySet()) {
+        for (FileSystemRegistry.Operation operation : FileSystemRegistry
+            .Operation.values()) {
+          if (entry.getValue().getCount(operation) == 0)
+            continue;
+          callSample(out, seconds, cluster, by, entry.getKey(), operation);
+          end(out, entry.getValue().getTimeInMicros(operation)
+              / MICROS_PER_SECOND);
+        }
+      }
+    }
+  }
+
+  private static Map<String, FileSystemRegistry.CallStats> getCallStats(
+      FileSystemRegistry registry, boolean byStream) {
+    return byStream ? registry.getStreamStats() : registry.getServiceStats();
+  }
+
+  private void callSample(StringBuilder out, String name, Cluster cluster,
+      String by, String key, FileSystemRegistry.Operation operation) {
+    out.append(name).append('{').append(getLabels(cluster));
+    label(out, by, key);
+    label(out, "operation", operation.name().toLowerCase());
+  }
+
+  private String getLabels(Cluster cluster) {
+    String clusterLabels = labels.get(cluster);
+    if (clusterLabels == null) {
+      StringBuilder builder = new StringBuilder("cluster=\"");
+      escape(builder, cluster.getName());
+      clusterLabels = builder.append('"').toString();
+      labels.put(cluster, clusterLabels);
+    }
+    return clusterLabels;
+  }
+
+  private static void header(StringBuilder out, String name, String type,
+      String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(StringBuilder out, String name,
+      AbstractService service) {
+    out.append(name).append('{').append(getLabels(service));
+  }
+
+  /*
+   * service, type and cluster, or src and dest clusters for services which
+   * pull between clusters
+   */
+  private String getLabels(AbstractService service) {
+    String serviceLabels = labels.get(service);
+    if (serviceLabels == null) {
+      StringBuilder builder = new StringBuilder("service=\"");
+      escape(builder, service.getName());
+      builder.append('"');
+      label(builder, "type", service.getServiceType());
+      List<String> clusters = service.getClusterNames();
+      if (clusters.size() == 2) {
+        label(builder, "src_cluster", clusters.get(0));
+        label(builder, "dest_cluster", clusters.get(1));
+      } else if (clusters.size() == 1) {
+        label(builder, "cluster", clusters.get(0));
+      }
+      serviceLabels = builder.toString();
+      labels.put(service, serviceLabels);
+    }
+    return serviceLabels;
+  }
+
+  private static void label(StringBuilder out, String name, String value) {
+    out.append(',').append(name).append("=\"");
+    escape(out, value);
+    out.append('"');
+  }
+
+  private static void escape(StringBuilder out, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+  }
+
+  private static void end(StringBuilder out, long value) {
+    out.append("} ").append(value).append('\n');
+  }
+
+  private static void end(StringBuilder out, double value) {
+    out.append("} ").append(value).append('\n');
+  }
+}
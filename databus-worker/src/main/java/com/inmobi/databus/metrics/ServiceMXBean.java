@@ -0,0 +1,78 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Management interface of a service, registered as
+ * com.inmobi.databus:type=Service,name="<service name>". Times are epoch ms,
+ * -1 till the first run.
+ */
+public interface ServiceMXBean {
+
+  String getName();
+
+  String getServiceType();
+
+  List<String> getClusters();
+
+  long getRunIntervalInMs();
+
+  long getLastRunStartTime();
+
+  long getLastRunEndTime();
+
+  long getLastSuccessTime();
+
+  int getConsecutiveFailures();
+
+  long getFilesProcessed();
+
+  long getBytesProcessed();
+
+  long getBacklog();
+
+  boolean isPaused();
+
+  long getRuns();
+
+  long getSkippedRuns();
+
+  long getLagInMs();
+
+  long getMaxLagInMs();
+
+  /*
+   * @returns Map<String, String> - stage, its count p50 p99 and max in
+   * microseconds, per stream stages are keyed <stage>/<stream>
+   */
+  Map<String, String> getStageTimesInMicros();
+
+  /*
+   * @returns Map<String, String> - <tier>/<stream>, count p50 p99 and max of
+   * the time from the collector writing a file to its commit in the tier
+   */
+  Map<String, String> getFreshnessLagsInMicros();
+
+  /*
+   * Runs the service now instead of at its next slot
+   */
+  void triggerRun();
+
+  void pause();
+
+  void resume();
+}
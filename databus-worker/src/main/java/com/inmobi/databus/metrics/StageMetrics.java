@@ -0,0 +1,111 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Durations, in microseconds, of the stages of a service's runs. A stage is
+ * timed either for the whole run or, for stages done once per stream, for
+ * each stream separately.
+ */
+public class StageMetrics {
+
+  private final ConcurrentMap<String, Histogram> stages =
+      new ConcurrentHashMap<String, Histogram>();
+  // stage, stream, durations
+  private final ConcurrentMap<String, ConcurrentMap<String, Histogram>>
+      streamStages =
+      new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+
+  private static <K, V> V getOrAdd(ConcurrentMap<K, V> map, K key, V value) {
+    V current = map.putIfAbsent(key, value);
+    return current == null ? value : current;
+  }
+
+  private static Histogram getHistogram(ConcurrentMap<String, Histogram> map,
+      String key) {
+    Histogram histogram = map.get(key);
+    return histogram != null ? histogram : getOrAdd(map, key,
+        new Histogram());
+  }
+
+  public void record(String stage, long durationInMicros) {
+    getHistogram(stages, stage).record(durationInMicros);
+  }
+
+  public void record(String stage, String stream, long durationInMicros) {
+    ConcurrentMap<String, Histogram> streams = streamStages.get(stage);
+    if (streams == null)
+      streams = getOrAdd(streamStages, stage,
+          new ConcurrentHashMap<String, Histogram>());
+    getHistogram(streams, stream).record(durationInMicros);
+  }
+
+  /*
+   * @returns Map<String, Histogram> - stage, durations of the stages timed
+   * for the whole run
+   */
+  public Map<String, Histogram> getStages() {
+    return Collections.unmodifiableMap(new TreeMap<String, Histogram>(stages));
+  }
+
+  /*
+   * @returns Map<String, Map<String, Histogram>> - stage, stream, durations
+   * of the stages timed per stream
+   */
+  public Map<String, Map<String, Histogram>> getStreamStages() {
+    Map<String, Map<String, Histogram>> result =
+        new TreeMap<String, Map<String, Histogram>>();
+    for (Map.Entry<String, ConcurrentMap<String, Histogram>> entry :
+        streamStages.entrySet()) {
+      result.put(entry.getKey(), Collections.unmodifiableMap(
+          new TreeMap<String, Histogram>(entry.getValue())));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /*
+   * Live maps for exporters which shouldn't copy on every scrape
+   */
+  Map<String, Histogram> getLiveStages() {
+    return stages;
+  }
+
+  Map<String, ConcurrentMap<String, Histogram>> getLiveStreamStages() {
+    return streamStages;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Histogram> entry : getStages().entrySet()) {
+      builder.append('[').append(entry.getKey()).append(" ").append(
+          entry.getValue()).append("] ");
+    }
+    for (Map.Entry<String, Map<String, Histogram>> entry : getStreamStages()
+        .entrySet()) {
+      for (Map.Entry<String, Histogram> stream : entry.getValue().entrySet()) {
+        builder.append('[').append(entry.getKey()).append(" ").append(
+            stream.getKey()).append(" ").append(stream.getValue()).append(
+            "] ");
+      }
+    }
+    return builder.toString().trim();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.metrics;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Files, and their bytes, processed by a service per stream
+ */
+public class StreamCounters {
+
+  private static class Counter {
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+  }
+
+  private final ConcurrentMap<String, Counter> counters =
+      new ConcurrentHashMap<String, Counter>();
+
+  public void add(String stream, long files, long bytes) {
+    Counter counter = counters.get(stream);
+    if (counter == null) {
+      Counter added = new Counter();
+      counter = counters.putIfAbsent(stream, added);
+      if (counter == null)
+        counter = added;
+    }
+    counter.files.addAndGet(files);
+    counter.bytes.addAndGet(bytes);
+  }
+
+  /*
+   * @returns Set<String> - live view of the streams counted so far
+   */
+  public Set<String> getStreams() {
+    return Collections.unmodifiableSet(counters.keySet());
+  }
+
+  public long getFiles(String stream) {
+    Counter counter = counters.get(stream);
+    return counter == null ? 0 : counter.files.get();
+  }
+
+  public long getBytes(String stream) {
+    Counter counter = counters.get(stream);
+    return counter == null ? 0 : counter.bytes.get();
+  }
+}
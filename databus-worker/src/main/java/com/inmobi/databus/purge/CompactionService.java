@@ -0,0 +1,306 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.DatabusConfig;
+import com.inmobi.databus.DatabusConfigParser;
+import com.inmobi.databus.FileSystemRegistry;
+import com.inmobi.databus.utils.CalendarHelper;
+import com.inmobi.databus.utils.CompactionIndex;
+
+/*
+ * Merges the minute directories of hours older than compactionageinhours
+ * into a few files of compactionfilesizeinmb with a CompactionIndex.
+ * Assumptions
+ * (i) One compaction service for a cluster
+ * (ii) Nothing gets committed into an hour once it's older than the oldest
+ * pending consumer/mirror manifest of this cluster, hours at or after it are
+ * left alone as pending pulls still refer their files
+ * (iii) The latest hour of a stream is never compacted, LocalStreamService
+ * looks for the latest minute directory in it
+ * An hour is compacted under its HourClaims claim so tiering doesn't archive
+ * it meanwhile. The compacted hour replaces the original with two renames,
+ * readers listing the hour in between find it missing. If the worker fails
+ * in between, the hour stays missing till recover() in the next run, which
+ * keeps the claim till then.
+ */
+public class CompactionService extends AbstractService {
+  private static final Log LOG = LogFactory.getLog(CompactionService.class);
+
+  private static final long MILLISECONDS_PER_HOUR = StreamHours.MILLISECONDS_PER_HOUR;
+  private static final long DEFAULT_COMPACTION_FILE_SIZE_IN_MB = 1024;
+  private static final String COMPACTED_PREFIX = "compacted";
+  private static final String GZ_SUFFIX = ".gz";
+  // stages of a run
+  public static final String STAGE_RECOVER = "recover";
+  public static final String STAGE_BARRIER = "pendingmanifests";
+  public static final String STAGE_COMPACT = "compact";
+
+  private final Cluster cluster;
+  private final FileSystem fs;
+  private final long compactionAgeInHours;
+  private final long fileSizeInBytes;
+  private final HourClaims claims;
+  // stream root, hour before which everything is compacted or absent
+  private final Map<Path, Long> compactedTill = new HashMap<Path, Long>();
+
+  public CompactionService(DatabusConfig config, Cluster cluster)
+      throws Exception {
+    super(CompactionService.class.getName() + "_" + cluster.getName(),
+        config, 60000 * 60);
+    this.cluster = cluster;
+    this.fs = cluster.getFileSystem();
+    this.compactionAgeInHours = config.getLongDefault(
+        DatabusConfigParser.COMPACTION_AGE_IN_HOURS, 0);
+    this.fileSizeInBytes = config.getLongDefault(
+        DatabusConfigParser.COMPACTION_FILE_SIZE_IN_MB,
+        DEFAULT_COMPACTION_FILE_SIZE_IN_MB) * 1024 * 1024;
+    this.claims = new HourClaims(fs, cluster, getName());
+  }
+
+  @Override
+  protected List<Cluster> getClusters() {
+    return Collections.singletonList(cluster);
+  }
+
+  /*
+   * Bulk rewrites must not hold up the commits of the minute
+   */
+  @Override
+  protected FileSystemRegistry.Priority getFileSystemPriority() {
+    return FileSystemRegistry.Priority.BACKGROUND;
+  }
+
+  @Override
+  public long getMSecondsTillNextRun(long currentTime) {
+    return runIntervalInMsec;
+  }
+
+  private Path getCompactionTmpRoot() {
+    return new Path(cluster.getTmpPath(), "compaction");
+  }
+
+  @Override
+  protected void execute() throws Exception {
+    try {
+      long start = startStage();
+      recover();
+      stopStage(STAGE_RECOVER, start);
+      long now = System.currentTimeMillis();
+      start = startStage();
+      long barrier = StreamHours.getOldestPendingManifestTime(fs, cluster,
+          getConfig());
+      stopStage(STAGE_BARRIER, start);
+      long compactBefore = Math.min(now - compactionAgeInHours
+          * MILLISECONDS_PER_HOUR, barrier);
+      LOG.info("Compacting hours ending before ["
+          + CalendarHelper.getDateAsYYYYMMDDHHPath(compactBefore) + "]");
+      for (String root : new String[] { cluster.getFinalDestDirRoot(),
+          cluster.getLocalFinalDestDirRoot() }) {
+        FileStatus[] streams = fs.listStatus(new Path(root));
+        if (streams == null)
+          continue;
+        for (FileStatus stream : streams) {
+          if (stopped)
+            return;
+          start = startStage();
+          compactStream(stream.getPath().makeQualified(fs), compactBefore);
+          stopStage(STAGE_COMPACT, stream.getPath().getName(), start);
+        }
+      }
+    } catch (Exception e) {
+      LOG.warn("Error in compaction run", e);
+      throw new Exception(e);
+    }
+  }
+
+  private void compactStream(Path streamRoot, long compactBefore)
+      throws Exception {
+    Long hour = compactedTill.get(streamRoot);
+    if (hour == null) {
+      hour = StreamHours.getEdgeHour(fs, streamRoot, false);
+      if (hour == null)
+        return;
+    }
+    Long latestHour = StreamHours.getEdgeHour(fs, streamRoot, true);
+    if (latestHour == null)
+      return;
+    // an hour is compacted once all of it is older than compactBefore
+    while (hour < latestHour && hour + MILLISECONDS_PER_HOUR <= compactBefore
+        && !stopped) {
+      Path hourDir = StreamHours.getHourDir(streamRoot, hour);
+      if (fs.exists(hourDir) && !CompactionIndex.isCompacted(fs, hourDir)) {
+        if (!claims.claim(streamRoot, hour)) {
+          // tiering has it, retried in next run
+          return;
+        }
+        // archived before the claim was taken
+        if (fs.exists(hourDir))
+          compactHour(streamRoot, hourDir, hour);
+        // left to recover() if the swap failed
+        claims.release(streamRoot, hour);
+      }
+      hour += MILLISECONDS_PER_HOUR;
+      compactedTill.put(streamRoot, hour);
+    }
+  }
+
+  private void compactHour(Path streamRoot, Path hourDir, long hour)
+      throws Exception {
+    String stream = streamRoot.getName();
+    String hourPath = CalendarHelper.getDateAsYYYYMMDDHHPath(hour);
+    // eg: 2012-01-13-15
+    String hourName = hourPath.substring(0, hourPath.length() - 1).replace(
+        File.separator, "-");
+    Path tmpHour = new Path(getCompactionTmpRoot(), streamRoot.getParent()
+        .getName() + File.separator + stream + File.separator + hourPath);
+    fs.delete(tmpHour, true);
+    fs.mkdirs(tmpHour);
+
+    FileStatus[] minutes = fs.listStatus(hourDir);
+    sortByName(minutes);
+    List<CompactionIndex.Entry> entries = new ArrayList<CompactionIndex.Entry>();
+    String fileName = COMPACTED_PREFIX + "-" + stream + "-" + hourName;
+    int fileCount = 0;
+    long bytes = 0;
+    String outName = null;
+    FSDataOutputStream out = null;
+    try {
+      for (FileStatus minute : minutes) {
+        int minuteValue;
+        try {
+          minuteValue = Integer.parseInt(minute.getPath().getName());
+        } catch (NumberFormatException e) {
+          LOG.warn("Not compacting [" + hourDir + "], found [" +
+              minute.getPath() + "] in it");
+          fs.delete(tmpHour, true);
+          return;
+        }
+        FileStatus[] files = fs.listStatus(minute.getPath());
+        if (files == null)
+          continue;
+        sortByName(files);
+        for (FileStatus file : files) {
+          if (out != null && out.getPos() >= fileSizeInBytes) {
+            out.close();
+            out = null;
+          }
+          if (out == null) {
+            outName = fileName + String.format("_%05d", fileCount++)
+                + GZ_SUFFIX;
+            out = fs.create(new Path(tmpHour, outName));
+          }
+          long offset = out.getPos();
+          FSDataInputStream in = fs.open(file.getPath());
+          try {
+            IOUtils.copyBytes(in, out, 64 * 1024, false);
+          } finally {
+            in.close();
+          }
+          entries.add(new CompactionIndex.Entry(minuteValue, outName, offset,
+              out.getPos() - offset, file.getPath().getName()));
+          bytes += out.getPos() - offset;
+        }
+      }
+    } finally {
+      if (out != null)
+        out.close();
+    }
+    CompactionIndex.write(fs, tmpHour, entries);
+
+    checkFenced();
+    // swap, a failure after this point is rolled forward by recover()
+    Path trash = new Path(cluster.getTrashPathWithDateHour(), COMPACTED_PREFIX
+        + "_" + streamRoot.getParent().getName() + "_" + stream + "_"
+        + hourName);
+    fs.mkdirs(trash.getParent());
+    if (!fs.rename(hourDir, trash)) {
+      fs.delete(tmpHour, true);
+      throw new IOException("Rename failed from [" + hourDir + "] to ["
+          + trash + "]");
+    }
+    if (!fs.rename(tmpHour, hourDir)) {
+      throw new IOException("Rename failed from [" + tmpHour + "] to ["
+          + hourDir + "]");
+    }
+    addProcessed(stream, entries.size(), bytes);
+    LOG.info("Compacted [" + entries.size() + "] files of [" + hourDir
+        + "] into [" + fileCount + "] files");
+  }
+
+  /*
+   * Finishes swaps interrupted by a failure. Compacted hours whose original
+   * was already moved to trash are moved in, others are discarded. The claims
+   * of the failed run are dropped after, tiering can't have archived the
+   * hours meanwhile.
+   */
+  private void recover() throws IOException {
+    Path tmpRoot = getCompactionTmpRoot();
+    if (!fs.exists(tmpRoot)) {
+      claims.releaseAll();
+      return;
+    }
+    List<FileStatus> tmpHours = new ArrayList<FileStatus>();
+    // root/stream/yyyy/MM/dd/HH
+    StreamHours.listAtDepth(fs, tmpRoot, 6, tmpHours);
+    for (FileStatus tmpHourStatus : tmpHours) {
+      Path tmpHour = tmpHourStatus.getPath();
+      String relative = tmpHour.toUri().getPath().substring(
+          tmpRoot.toUri().getPath().length() + 1);
+      Path hourDir = new Path(cluster.getRootDir() + relative);
+      if (!fs.exists(hourDir) && CompactionIndex.isCompacted(fs, tmpHour)) {
+        fs.mkdirs(hourDir.getParent());
+        if (fs.rename(tmpHour, hourDir))
+          LOG.info("Recovered compacted hour [" + hourDir + "]");
+        else
+          throw new IOException("Rename failed from [" + tmpHour + "] to ["
+              + hourDir + "]");
+      }
+    }
+    fs.delete(tmpRoot, true);
+    claims.releaseAll();
+  }
+
+  private void sortByName(FileStatus[] files) {
+    if (files == null)
+      return;
+    Arrays.sort(files, new Comparator<FileStatus>() {
+      @Override
+      public int compare(FileStatus file1, FileStatus file2) {
+        return file1.getPath().getName().compareTo(file2.getPath().getName());
+      }
+    });
+  }
+}
@@ -13,12 +13,17 @@
  */
 package com.inmobi.databus.purge;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,9 +34,11 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.CheckpointProvider;
 import com.inmobi.databus.Cluster;
 import com.inmobi.databus.DatabusConfig;
 import com.inmobi.databus.DatabusConfigParser;
+import com.inmobi.databus.FileSystemRegistry;
 import com.inmobi.databus.Stream;
 import com.inmobi.databus.Stream.DestinationStreamCluster;
 import com.inmobi.databus.Stream.StreamCluster;
@@ -50,31 +57,97 @@ public class DataPurgerService extends AbstractService {
   private final Integer defaulttrashPathRetentioninHours;
   private final Integer defaultstreamPathRetentioninHours;
   private Map<String, Integer> streamRetention;
-  private Set<Path> streamsToPurge;
+  private Map<Path, ParallelDeleter.Target> streamsToPurge;
+  private final ParallelDeleter deleter;
+  private final StorageTiering tiering;
+  // watermark key, stream and the hour before which it will be purged
+  private Map<String, Object[]> pendingWatermarks;
+  private boolean fullScan;
+  private long lastFullScan;
   private DateFormat dateFormat = new SimpleDateFormat("yyyy:MM:dd:HH:mm");
   private static long MILLISECONDS_PER_HOUR = 60 * 60 * 1000;
+  private static final String TRASH = "trash";
+
+  // levels of a stream's date path
+  private static final int YEAR = 0;
+  private static final int MONTH = 1;
+  private static final int DAY = 2;
+  private static final int HOUR = 3;
+  private static final int[] PERIOD_FIELDS = { Calendar.YEAR, Calendar.MONTH,
+      Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY };
+  private static final int[] SPANS = { ParallelDeleter.SPAN_YEAR,
+      ParallelDeleter.SPAN_MONTH, ParallelDeleter.SPAN_DAY,
+      ParallelDeleter.SPAN_HOUR };
+
+  private static final int DEFAULT_PURGE_WORKERS = 4;
+  private static final int DEFAULT_PURGE_OPS_PER_SECOND = 20;
+  private static final long DEFAULT_PURGE_TARGET_LATENCY_IN_MS = 1000;
+  private static final int DEFAULT_PURGE_INTERVAL_IN_MINUTES = 60;
+  // sweeps hours committed behind the watermarks, eg: by a lagging mirror
+  private static final long FULL_SCAN_INTERVAL = 24 * 60 * 60 * 1000;
+  private static final String WATERMARK_PREFIX = "purge";
+  // provider name of the purge watermarks
+  public static final String CHECKPOINT_NAME = "purge";
+  // stages of a run
+  public static final String STAGE_LISTING = "listing";
+  public static final String STAGE_PURGE = "purge";
+  public static final String STAGE_CHECKPOINT = "checkpoint";
+  public static final String STAGE_TIERING = "tiering";
 
   public DataPurgerService(DatabusConfig databusConfig, Cluster cluster)
       throws Exception {
-    super(DataPurgerService.class.getName(), databusConfig, 60000 * 60);
+    this(databusConfig, cluster, null);
+  }
+
+  /*
+   * @param checkpointProvider - stores per stream purge watermarks, without
+   * it every run walks all the streams
+   */
+  public DataPurgerService(DatabusConfig databusConfig, Cluster cluster,
+      CheckpointProvider checkpointProvider) throws Exception {
+    super(DataPurgerService.class.getName() + "_" + cluster.getName(),
+        databusConfig, 60000L
+        * databusConfig.getIntDefault(
+            DatabusConfigParser.PURGE_INTERVAL_IN_MINUTES,
+            DEFAULT_PURGE_INTERVAL_IN_MINUTES), checkpointProvider);
+    this.lastFullScan = System.currentTimeMillis();
     this.cluster = cluster;
-    fs = FileSystem.get(cluster.getHadoopConf());
+    fs = cluster.getFileSystem();
     this.defaulttrashPathRetentioninHours = new Integer(
         Integer.parseInt(databusConfig
         .getDefaults().get(DatabusConfigParser.TRASH_RETENTION_IN_HOURS)));
     this.defaultstreamPathRetentioninHours = new Integer(
         Integer.parseInt(databusConfig.getDefaults().get(
             DatabusConfigParser.RETENTION_IN_HOURS)));
+    this.deleter = new ParallelDeleter(fs, databusConfig.getIntDefault(
+        DatabusConfigParser.PURGE_WORKERS, DEFAULT_PURGE_WORKERS),
+        databusConfig.getIntDefault(DatabusConfigParser.PURGE_OPS_PER_SECOND,
+            DEFAULT_PURGE_OPS_PER_SECOND),
+        databusConfig.getLongDefault(
+            DatabusConfigParser.PURGE_TARGET_LATENCY_IN_MS,
+            DEFAULT_PURGE_TARGET_LATENCY_IN_MS));
+    this.tiering = new StorageTiering(cluster, fs, getName(),
+        checkpointProvider);
   }
 
+  /*
+   * A purge in progress stops deleting, the hours it didn't get to are
+   * reported as failed so their watermarks aren't moved past them
+   */
   @Override
   public void stop() {
-    stopped = true;
-    /*
-     * Pruger can sleep for an hour so it needs to be interuppted
-     */
-    thread.interrupt();
-    LOG.info(Thread.currentThread().getName() + " stopped [" + stopped + "]");
+    super.stop();
+    deleter.cancel();
+  }
+
+  @Override
+  protected List<Cluster> getClusters() {
+    return Collections.singletonList(cluster);
+  }
+
+  @Override
+  protected FileSystemRegistry.Priority getFileSystemPriority() {
+    return FileSystemRegistry.Priority.BACKGROUND;
   }
 
   @Override
@@ -155,8 +228,13 @@ public class DataPurgerService extends AbstractService {
   protected void execute() throws Exception {
     try {
       streamRetention = new HashMap<String, Integer>();
-      streamsToPurge = new HashSet<Path>();
+      streamsToPurge = new HashMap<Path, ParallelDeleter.Target>();
+      pendingWatermarks = new HashMap<String, Object[]>();
+      long now = System.currentTimeMillis();
+      fullScan = checkpointProvider == null
+          || now - lastFullScan >= FULL_SCAN_INTERVAL;
 
+      long start = startStage();
       // populates - streamRetention
       // Map of streams and their retention period at this cluster (Partial +
       // Merged)
@@ -170,7 +248,30 @@ public class DataPurgerService extends AbstractService {
       Map<String, Path> localStreamsInClusterPathMap = getStreamsInCluster(localStreamRoot);
       getPathsToPurge(mergedStreamsInClusterPathMap,
           localStreamsInClusterPathMap);
-      purge();
+      // archived streams are purged at the end of the same retention
+      getStreamsPathToPurge(getStreamsInCluster(cluster.getArchiveDirRoot()
+          + new Path(mergedStreamRoot).getName()));
+      getStreamsPathToPurge(getStreamsInCluster(cluster.getArchiveDirRoot()
+          + new Path(localStreamRoot).getName()));
+      stopStage(STAGE_LISTING, start);
+      if (stopped || isFenced())
+        return;
+      start = startStage();
+      Map<String, ParallelDeleter.StreamReport> reports = purge();
+      stopStage(STAGE_PURGE, start);
+      start = startStage();
+      checkpointWatermarks(reports);
+      stopStage(STAGE_CHECKPOINT, start);
+      if (fullScan)
+        lastFullScan = now;
+      if (stopped || isFenced())
+        return;
+      start = startStage();
+      tiering.releaseClaims();
+      applyTiers(mergedStreamsInClusterPathMap);
+      applyTiers(localStreamsInClusterPathMap);
+      tiering.checkpoint();
+      stopStage(STAGE_TIERING, start);
     } catch (Exception e) {
       LOG.warn(e);
       e.printStackTrace();
@@ -189,20 +290,39 @@ public class DataPurgerService extends AbstractService {
   private void getTrashPathsToPurge() throws Exception {
     Path trashRoot = cluster.getTrashPath();
     LOG.debug("Looking for trashPaths in [" + trashRoot + "]");
+    long cutoff = getRetentionCutoff(getTrashPathRetentionInHours());
     FileStatus[] trashDatePaths = getAllFilesInDir(trashRoot, fs);
     // For each trashpath
     if (trashDatePaths != null && trashDatePaths.length >= 1) {
       for (FileStatus trashPath : trashDatePaths) {
+        Calendar trashDay;
+        try {
+          trashDay = getDateFromTrashPath(trashPath.getPath().getName(), "0");
+        } catch (RuntimeException e) {
+          // not a trash date, fall back to checking every hour in it
+          trashDay = null;
+        }
+        if (trashDay != null) {
+          if (trashDay.getTimeInMillis() > cutoff)
+            continue; // whole day within retention
+          if (getPeriodEnd(trashDay, DAY) <= cutoff) {
+            addToPurge(TRASH, trashPath.getPath(), trashDay.getTimeInMillis(),
+                ParallelDeleter.SPAN_DAY);
+            continue;
+          }
+        }
         FileStatus[] trashHourPaths = getAllFilesInDir(trashPath.getPath(), fs);
         if (trashHourPaths != null && trashHourPaths.length >= 1) {
           for (FileStatus trashHourPath : trashHourPaths) {
             try {
               Calendar trashPathDate = getDateFromTrashPath(trashPath.getPath()
                   .getName(), trashHourPath.getPath().getName());
-              if (isPurge(trashPathDate, getTrashPathRetentionInHours()))
-                streamsToPurge.add(trashHourPath.getPath().makeQualified(fs));
+              if (trashPathDate.getTimeInMillis() <= cutoff)
+                addToPurge(TRASH, trashHourPath.getPath(),
+                    trashPathDate.getTimeInMillis(), ParallelDeleter.SPAN_HOUR);
             } catch (NumberFormatException e) {
-              streamsToPurge.add(trashHourPath.getPath().makeQualified(fs));
+              addToPurge(TRASH, trashHourPath.getPath(), 0,
+                  ParallelDeleter.SPAN_HOUR);
             }
           }
         }
@@ -238,62 +358,173 @@ public class DataPurgerService extends AbstractService {
     return streams;
   }
 
+  /*
+   * Only the year, month and day directories straddling a stream's retention
+   * cutoff are listed. Directories entirely before the cutoff are purged as a
+   * whole and the ones entirely after it are skipped.
+   */
   private void getStreamsPathToPurge(Map<String, Path> streamPathMap)
       throws Exception {
     Set<Map.Entry<String, Path>> streamsToProcess = streamPathMap.entrySet();
     for (Map.Entry<String, Path> entry : streamsToProcess) {
       String streamName = entry.getKey();
       Path streamRootPath = entry.getValue();
+      long cutoff = getRetentionCutoff(getRetentionPeriod(streamName));
       LOG.debug("Find Paths to purge for stream [" + streamName
-          + "] streamRootPath [" + streamRootPath + "]");
-      // For each Stream, all years
-      FileStatus[] years = getAllFilesInDir(streamRootPath, fs);
-      if (years != null) {
-        for (FileStatus year : years) {
-          // For each month
-          FileStatus[] months = getAllFilesInDir(year.getPath(), fs);
-          if (months != null && months.length >= 1) {
-            for (FileStatus month : months) {
-              // For each day
-              FileStatus[] days = getAllFilesInDir(month.getPath(), fs);
-              if (days != null && days.length >= 1) {
-                for (FileStatus day : days) {
-                  // For each day
-                  FileStatus[] hours = getAllFilesInDir(day.getPath(), fs);
-                  if (hours != null && hours.length >= 1) {
-                    for (FileStatus hour : hours) {
-                      LOG.debug("Working for hour [" + hour.getPath() + "]");
-                      Calendar streamDate = CalendarHelper.getDateHour(year
-                          .getPath().getName(), month.getPath().getName(), day
-                          .getPath().getName(), hour.getPath().getName());
-                      LOG.debug("Validate [" + streamDate.toString()
-                          + "] against retentionHours ["
-                          + getRetentionPeriod(streamName) + "]");
-                      if (isPurge(streamDate, getRetentionPeriod(streamName))) {
-                        LOG.debug("Adding stream to purge [" + hour.getPath()
-                            + "]");
-                        streamsToPurge.add(hour.getPath().makeQualified(fs));
-                      }
-                    }
-                  } else {
-                    // No hour found in day. Purge day
-                    streamsToPurge.add(day.getPath().makeQualified(fs));
-                  }
-                } // each day
-              } else {
-                // No day found in month. Purge month
-                streamsToPurge.add(month.getPath().makeQualified(fs));
-              }
-            }// each month
-          } else {
-            // no months found in year. Purge Year.
-            streamsToPurge.add(year.getPath().makeQualified(fs));
+          + "] streamRootPath [" + streamRootPath + "] cutoff ["
+          + dateFormat.format(new Date(cutoff)) + "]");
+      String watermarkKey = getWatermarkKey(streamRootPath);
+      Long watermark = fullScan ? null : readWatermark(watermarkKey);
+      if (watermark != null) {
+        addHoursToPurge(streamName, streamRootPath, watermark, cutoff);
+      } else {
+        // For each Stream, all years
+        FileStatus[] years = getAllFilesInDir(streamRootPath, fs);
+        if (years != null) {
+          for (FileStatus year : years) {
+            addPathsToPurge(streamName, year.getPath(),
+                new String[] { year.getPath().getName(), "1", "1", "0" },
+                YEAR, cutoff);
           }
-        }// each year
+        }
       }
+      // everything before the hour after the cutoff's is purged now
+      Calendar nextHour = new GregorianCalendar();
+      nextHour.setTimeInMillis(cutoff);
+      nextHour.set(Calendar.MINUTE, 0);
+      nextHour.set(Calendar.SECOND, 0);
+      nextHour.set(Calendar.MILLISECOND, 0);
+      nextHour.add(Calendar.HOUR_OF_DAY, 1);
+      pendingWatermarks.put(watermarkKey, new Object[] { streamName,
+          nextHour.getTimeInMillis() });
     }// each stream
   }
 
+  /*
+   * Adds the hours from the watermark till the cutoff, a whole year, month
+   * or day is purged once all of it is past the cutoff. Only the paths found
+   * in their parent's listing are added, a run usually lists one day.
+   */
+  private void addHoursToPurge(String streamName, Path streamRoot,
+      long watermark, long cutoff) throws Exception {
+    // parent, names listed in it
+    Map<Path, Set<String>> listings = new HashMap<Path, Set<String>>();
+    Calendar hour = new GregorianCalendar();
+    hour.setTimeInMillis(watermark);
+    while (hour.getTimeInMillis() <= cutoff) {
+      int level = HOUR;
+      for (int period = YEAR; period < HOUR; period++) {
+        if (isPeriodStart(hour, period)
+            && getPeriodEnd(hour, period) <= cutoff) {
+          level = period;
+          break;
+        }
+      }
+      // yyyy/MM/dd/HH/ cut at level
+      String[] parts = CalendarHelper.getDateAsYYYYMMDDHHPath(
+          hour.getTimeInMillis()).split(File.separator);
+      StringBuilder periodPath = new StringBuilder();
+      for (int i = 0; i <= level; i++) {
+        periodPath.append(parts[i]).append(File.separator);
+      }
+      Path path = new Path(streamRoot, periodPath.toString());
+      if (isListed(path, listings))
+        addToPurge(streamName, path, hour.getTimeInMillis(), SPANS[level]);
+      hour.add(PERIOD_FIELDS[level], 1);
+    }
+  }
+
+  private boolean isListed(Path path, Map<Path, Set<String>> listings)
+      throws Exception {
+    Set<String> names = listings.get(path.getParent());
+    if (names == null) {
+      names = new HashSet<String>();
+      FileStatus[] children;
+      try {
+        children = getAllFilesInDir(path.getParent(), fs);
+      } catch (FileNotFoundException e) {
+        children = null;
+      }
+      if (children != null) {
+        for (FileStatus child : children) {
+          names.add(child.getPath().getName());
+        }
+      }
+      listings.put(path.getParent(), names);
+    }
+    return names.contains(path.getName());
+  }
+
+  private boolean isPeriodStart(Calendar hour, int level) {
+    switch (level) {
+    case YEAR:
+      return hour.get(Calendar.MONTH) == Calendar.JANUARY
+          && isPeriodStart(hour, MONTH);
+    case MONTH:
+      return hour.get(Calendar.DAY_OF_MONTH) == 1 && isPeriodStart(hour, DAY);
+    case DAY:
+      return hour.get(Calendar.HOUR_OF_DAY) == 0;
+    default:
+      return true;
+    }
+  }
+
+  /*
+   * @param dateParts - year, month, day, hour of the period starting at dir,
+   * parts below level are the first of their unit
+   */
+  private void addPathsToPurge(String streamName, Path dir,
+      String[] dateParts, int level, long cutoff) throws Exception {
+    Calendar start;
+    try {
+      start = CalendarHelper.getDateHour(dateParts[YEAR], dateParts[MONTH],
+          dateParts[DAY], dateParts[HOUR]);
+    } catch (NumberFormatException e) {
+      LOG.warn("Skipping [" + dir + "] which isn't a date path");
+      return;
+    }
+    if (start.getTimeInMillis() > cutoff) {
+      // whole period within retention
+      return;
+    }
+    if (getPeriodEnd(start, level) <= cutoff) {
+      LOG.debug("Adding stream to purge [" + dir + "]");
+      addToPurge(streamName, dir, start.getTimeInMillis(), SPANS[level]);
+      return;
+    }
+    // period straddles the cutoff, only ever at year, month or day
+    FileStatus[] children = getAllFilesInDir(dir, fs);
+    if (children == null || children.length == 0) {
+      // nothing in it, purge the period
+      addToPurge(streamName, dir, start.getTimeInMillis(), SPANS[level]);
+      return;
+    }
+    for (FileStatus child : children) {
+      String[] childParts = dateParts.clone();
+      childParts[level + 1] = child.getPath().getName();
+      addPathsToPurge(streamName, child.getPath(), childParts, level + 1,
+          cutoff);
+    }
+  }
+
+  /*
+   * Hours starting at or before the cutoff are out of retention
+   */
+  private long getRetentionCutoff(Integer retentionPeriodinHours) {
+    return CalendarHelper.getNowTime().getTimeInMillis()
+        - retentionPeriodinHours * MILLISECONDS_PER_HOUR;
+  }
+
+  /*
+   * @returns long - start of the last hour of the period beginning at start
+   */
+  private long getPeriodEnd(Calendar start, int level) {
+    Calendar end = (Calendar) start.clone();
+    end.add(PERIOD_FIELDS[level], 1);
+    end.add(Calendar.HOUR_OF_DAY, -1);
+    return end.getTimeInMillis();
+  }
+
   public boolean isPurge(Calendar streamDate, Integer retentionPeriodinHours) {
     // int streamDay = streamDate.get(Calendar.DAY_OF_MONTH);
     Calendar nowTime = CalendarHelper.getNowTime();
@@ -318,11 +549,80 @@ public class DataPurgerService extends AbstractService {
     return Math.abs(hours);
   }
 
-  private void purge() throws Exception {
-    for (Path purgePath : streamsToPurge) {
-      fs.delete(purgePath, true);
-      LOG.info("Purging [" + purgePath + "]");
+  private void applyTiers(Map<String, Path> streamPathMap) throws Exception {
+    Long barrier = null;
+    for (Map.Entry<String, Path> entry : streamPathMap.entrySet()) {
+      Stream stream = getConfig().getAllStreams().get(entry.getKey());
+      if (stream == null || stream.getTierPolicy() == null)
+        continue;
+      if (barrier == null)
+        barrier = StreamHours.getOldestPendingManifestTime(fs, cluster,
+            getConfig());
+      try {
+        tiering.apply(entry.getValue(), stream.getTierPolicy(),
+            getRetentionCutoff(getRetentionPeriod(entry.getKey())), barrier);
+      } catch (Exception e) {
+        LOG.warn("Error in applying tiers to [" + entry.getValue() + "]", e);
+      }
+    }
+  }
+
+  private void addToPurge(String streamName, Path path, long time,
+      int spanInHours) {
+    Path purgePath = path.makeQualified(fs);
+    streamsToPurge.put(purgePath, new ParallelDeleter.Target(streamName,
+        purgePath, time, spanInHours));
+  }
+
+  private Map<String, ParallelDeleter.StreamReport> purge() throws Exception {
+    LOG.info("Purging [" + streamsToPurge.size() + "] paths");
+    setBacklog(streamsToPurge.size());
+    Map<String, ParallelDeleter.StreamReport> reports = deleter.delete(
+        streamsToPurge.values());
+    // sizes of the deleted paths aren't looked up
+    for (Map.Entry<String, ParallelDeleter.StreamReport> entry : reports
+        .entrySet()) {
+      addProcessed(entry.getKey(), entry.getValue().getDeleted(), 0);
+    }
+    return reports;
+  }
+
+  /*
+   * Watermarks move only for streams which had no failed deletes
+   */
+  private void checkpointWatermarks(
+      Map<String, ParallelDeleter.StreamReport> reports) {
+    if (checkpointProvider == null)
+      return;
+    Map<String, byte[]> watermarks = new HashMap<String, byte[]>();
+    for (Map.Entry<String, Object[]> entry : pendingWatermarks.entrySet()) {
+      String streamName = (String) entry.getValue()[0];
+      Long watermark = (Long) entry.getValue()[1];
+      ParallelDeleter.StreamReport report = reports.get(streamName);
+      if (report != null && !report.getFailed().isEmpty()) {
+        LOG.warn("Not moving purge watermark [" + entry.getKey()
+            + "] as purge of stream [" + streamName + "] had failures");
+        continue;
+      }
+      watermarks.put(entry.getKey(), watermark.toString().getBytes());
     }
+    checkpointProvider.checkpoint(watermarks);
+    checkpointed();
+  }
+
+  private String getWatermarkKey(Path streamRoot) {
+    // eg: purge_streams_local_<stream>, purge_archive_streams_<stream>
+    String root = new Path(cluster.getRootDir()).toUri().getPath();
+    String relative = streamRoot.toUri().getPath().substring(root.length());
+    return WATERMARK_PREFIX + "_" + relative.replace("/", "_").replaceAll(
+        "^_+", "");
+  }
+
+  private Long readWatermark(String key) {
+    byte[] watermark = checkpointProvider.read(key);
+    if (watermark == null)
+      return null;
+    return Long.parseLong(new String(watermark).trim());
   }
 
   private FileStatus[] getAllFilesInDir(Path dir, FileSystem fs)
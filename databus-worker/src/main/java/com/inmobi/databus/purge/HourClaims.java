@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.utils.CalendarHelper;
+
+/*
+ * Claims on single hours of a cluster's streams, so that compaction and
+ * tiering, which both rewrite or move whole hours, take turns on an hour. A
+ * claim is a file created without overwrite, which HDFS does atomically, so
+ * the claimants may run in different workers. A claim names its owner, the
+ * owner's claims left behind by a failure are dropped by releaseAll() once
+ * it has recovered the hours they cover.
+ */
+class HourClaims {
+  private static final Log LOG = LogFactory.getLog(HourClaims.class);
+
+  private final FileSystem fs;
+  private final Cluster cluster;
+  private final String owner;
+
+  HourClaims(FileSystem fs, Cluster cluster, String owner) {
+    this.fs = fs;
+    this.cluster = cluster;
+    this.owner = owner;
+  }
+
+  private Path getClaimsRoot() {
+    return new Path(cluster.getTmpPath(), "hourclaims");
+  }
+
+  private Path getClaim(Path streamRoot, long hour) {
+    // eg: streams/<stream>/2012/01/13/15
+    String hourPath = CalendarHelper.getDateAsYYYYMMDDHHPath(hour);
+    return new Path(getClaimsRoot(), streamRoot.getParent().getName()
+        + File.separator + streamRoot.getName() + File.separator
+        + hourPath.substring(0, hourPath.length() - 1));
+  }
+
+  /*
+   * @returns boolean - false if another owner holds the hour
+   */
+  boolean claim(Path streamRoot, long hour) throws IOException {
+    Path claim = getClaim(streamRoot, hour);
+    FSDataOutputStream out;
+    try {
+      out = fs.create(claim, false);
+    } catch (IOException e) {
+      if (!fs.exists(claim))
+        throw e;
+      LOG.info("[" + claim + "] is held by [" + readOwner(claim) + "]");
+      return false;
+    }
+    try {
+      out.write(owner.getBytes());
+      out.close();
+    } catch (IOException e) {
+      // an ownerless claim would never be dropped
+      fs.delete(claim, false);
+      throw e;
+    }
+    return true;
+  }
+
+  void release(Path streamRoot, long hour) throws IOException {
+    fs.delete(getClaim(streamRoot, hour), false);
+  }
+
+  /*
+   * Drops the claims of this owner, eg: left behind by a failed run
+   */
+  void releaseAll() throws IOException {
+    List<FileStatus> claims = new ArrayList<FileStatus>();
+    // claimsRoot/root/stream/yyyy/MM/dd/HH
+    StreamHours.listAtDepth(fs, getClaimsRoot(), 6, claims);
+    for (FileStatus claim : claims) {
+      if (owner.equals(readOwner(claim.getPath()))) {
+        LOG.info("Dropping stale claim [" + claim.getPath() + "]");
+        fs.delete(claim.getPath(), false);
+      }
+    }
+  }
+
+  private String readOwner(Path claim) throws IOException {
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(new InputStreamReader(fs.open(claim)));
+    } catch (IOException e) {
+      // released meanwhile
+      return null;
+    }
+    try {
+      return reader.readLine();
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.inmobi.databus.FileSystemCaller;
+import com.inmobi.databus.utils.RateLimiter;
+
+/*
+ * Deletes purge targets from a pool of workers, largest and then oldest
+ * subtrees first. Deletes are capped at maxOpsPerSecond, the cap is halved
+ * when a delete takes longer than targetLatencyInMs and grows back by about
+ * one op/sec every second while deletes are fast.
+ */
+public class ParallelDeleter {
+  private static final Log LOG = LogFactory.getLog(ParallelDeleter.class);
+
+  static final int SPAN_HOUR = 1;
+  static final int SPAN_DAY = 24;
+  static final int SPAN_MONTH = 24 * 31;
+  static final int SPAN_YEAR = 24 * 366;
+
+  private static final double MIN_OPS_PER_SECOND = 1;
+  private static final int PROGRESS_INTERVAL = 100;
+
+  private final FileSystem fs;
+  private final int workers;
+  private final double maxOpsPerSecond;
+  private final long targetLatencyInMs;
+  private final RateLimiter limiter;
+  private long lastDecrease = 0;
+  private volatile boolean cancelled = false;
+
+  public static class Target {
+    private final String stream;
+    private final Path path;
+    private final long time;
+    private final int spanInHours;
+
+    /*
+     * @param time - start of the period path holds data for
+     * @param spanInHours - length of the period path holds data for
+     */
+    public Target(String stream, Path path, long time, int spanInHours) {
+      this.stream = stream;
+      this.path = path;
+      this.time = time;
+      this.spanInHours = spanInHours;
+    }
+
+    public String getStream() {
+      return stream;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+  }
+
+  public static class StreamReport {
+    private int deleted = 0;
+    private final List<Path> failed = new ArrayList<Path>();
+
+    public int getDeleted() {
+      return deleted;
+    }
+
+    public List<Path> getFailed() {
+      return failed;
+    }
+  }
+
+  private static final Comparator<Target> LARGEST_OLDEST_FIRST = new Comparator<Target>() {
+    @Override
+    public int compare(Target target1, Target target2) {
+      if (target1.spanInHours != target2.spanInHours)
+        return target1.spanInHours > target2.spanInHours ? -1 : 1;
+      if (target1.time != target2.time)
+        return target1.time < target2.time ? -1 : 1;
+      return target1.path.compareTo(target2.path);
+    }
+  };
+
+  /*
+   * @param maxOpsPerSecond - cap on namenode deletes, <= 0 means unlimited
+   */
+  public ParallelDeleter(FileSystem fs, int workers, double maxOpsPerSecond,
+      long targetLatencyInMs) {
+    this.fs = fs;
+    this.workers = Math.max(1, workers);
+    this.maxOpsPerSecond = maxOpsPerSecond;
+    this.targetLatencyInMs = targetLatencyInMs;
+    this.limiter = new RateLimiter(maxOpsPerSecond);
+  }
+
+  /*
+   * @returns Map<String, StreamReport> - stream, what got purged for it
+   */
+  public Map<String, StreamReport> delete(Collection<Target> targets)
+      throws InterruptedException {
+    final List<Target> ordered = new ArrayList<Target>(targets);
+    Collections.sort(ordered, LARGEST_OLDEST_FIRST);
+    final Map<String, StreamReport> reports = new TreeMap<String, StreamReport>();
+    for (Target target : ordered) {
+      if (!reports.containsKey(target.stream))
+        reports.put(target.stream, new StreamReport());
+    }
+    final AtomicInteger done = new AtomicInteger();
+    final FileSystemCaller caller = FileSystemCaller.get();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    try {
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      for (final Target target : ordered) {
+        results.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            FileSystemCaller.set(caller);
+            deleteTarget(target, reports);
+            int deleted = done.incrementAndGet();
+            if (deleted % PROGRESS_INTERVAL == 0 || deleted == ordered.size())
+              LOG.info("Purge progress [" + deleted + "/" + ordered.size()
+                  + "] at [" + limiter.getRate() + "] deletes/sec");
+          }
+        }));
+      }
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          LOG.warn("Error in purge worker", e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    synchronized (reports) {
+      for (Map.Entry<String, StreamReport> entry : reports.entrySet()) {
+        StreamReport report = entry.getValue();
+        LOG.info("Purged stream [" + entry.getKey() + "] deleted ["
+            + report.deleted + "] failed [" + report.failed.size() + "]");
+        for (Path failed : report.failed) {
+          LOG.warn("Failed to purge [" + failed + "] of stream ["
+              + entry.getKey() + "]");
+        }
+      }
+    }
+    return reports;
+  }
+
+  private void deleteTarget(Target target, Map<String, StreamReport> reports) {
+    boolean failed = false;
+    try {
+      limiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (cancelled) {
+      failed = true;
+    } else {
+      long start = System.currentTimeMillis();
+      try {
+        fs.delete(target.path, true);
+        LOG.info("Purging [" + target.path + "]");
+      } catch (IOException e) {
+        LOG.warn("Error in purging [" + target.path + "]", e);
+        failed = true;
+      }
+      adjustRate(System.currentTimeMillis() - start);
+    }
+    synchronized (reports) {
+      StreamReport report = reports.get(target.stream);
+      if (failed)
+        report.failed.add(target.path);
+      else
+        report.deleted++;
+    }
+  }
+
+  /*
+   * AIMD on observed delete latency
+   */
+  private synchronized void adjustRate(long latencyInMs) {
+    if (maxOpsPerSecond <= 0)
+      return;
+    double rate = limiter.getRate();
+    if (latencyInMs > targetLatencyInMs) {
+      long now = System.currentTimeMillis();
+      // deletes in flight saw the same slowdown, back off once per window
+      if (now - lastDecrease > targetLatencyInMs) {
+        lastDecrease = now;
+        limiter.setRate(Math.max(MIN_OPS_PER_SECOND, rate / 2));
+        LOG.info("Delete took [" + latencyInMs + "] ms, throttling purge to ["
+            + limiter.getRate() + "] deletes/sec");
+      }
+    } else if (rate < maxOpsPerSecond) {
+      limiter.setRate(Math.min(maxOpsPerSecond, rate + 1 / rate));
+    }
+  }
+
+  /*
+   * Targets not yet deleted, now or in later calls, are reported as failed
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  double getRate() {
+    return limiter.getRate();
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.inmobi.databus.CheckpointProvider;
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.TierPolicy;
+import com.inmobi.databus.utils.CalendarHelper;
+import com.inmobi.databus.utils.CompactionIndex;
+
+/*
+ * Moves the hours of a stream through the tiers of its TierPolicy, hours
+ * past reducereplicationafterhours get their replication reduced and hours
+ * past archiveafterhours are moved to the cluster's archive root. Each stream
+ * keeps a watermark of the hours done so every run only looks at new hours,
+ * the watermarks are checkpointed with the purge watermarks to survive a
+ * restart.
+ * The latest hour of a stream and hours not older than pending manifests are
+ * never archived. Hours are tiered under their HourClaims claim, an hour
+ * being compacted stops the watermark till a later run.
+ */
+class StorageTiering {
+  private static final Log LOG = LogFactory.getLog(StorageTiering.class);
+
+  private static final long MILLISECONDS_PER_HOUR = StreamHours.MILLISECONDS_PER_HOUR;
+
+  private final Cluster cluster;
+  private final FileSystem fs;
+  private final CompressionCodecFactory codecFactory;
+  private final HourClaims claims;
+  private final CheckpointProvider checkpointProvider;
+  // watermark key, hour before which the tier is applied
+  private final Map<String, Long> watermarks = new HashMap<String, Long>();
+  // watermarks moved since the last checkpoint
+  private final Map<String, byte[]> pendingWatermarks =
+      new HashMap<String, byte[]>();
+  private static final String REPLICATION_PREFIX = "tierreplication";
+  private static final String ARCHIVE_PREFIX = "tierarchive";
+
+  /*
+   * @param owner - name the hours are claimed with
+   * @param checkpointProvider - stores the watermarks, without it they're
+   * kept only in memory
+   */
+  StorageTiering(Cluster cluster, FileSystem fs, String owner,
+      CheckpointProvider checkpointProvider) {
+    this.cluster = cluster;
+    this.fs = fs;
+    this.codecFactory = new CompressionCodecFactory(cluster.getHadoopConf());
+    this.claims = new HourClaims(fs, cluster, owner);
+    this.checkpointProvider = checkpointProvider;
+  }
+
+  /*
+   * Checkpoints the watermarks moved by apply() since the last call
+   */
+  void checkpoint() {
+    if (checkpointProvider == null || pendingWatermarks.isEmpty())
+      return;
+    checkpointProvider.checkpoint(pendingWatermarks);
+    pendingWatermarks.clear();
+  }
+
+  /*
+   * Drops claims left behind by a failed run, called before the streams are
+   * tiered
+   */
+  void releaseClaims() throws IOException {
+    claims.releaseAll();
+  }
+
+  /*
+   * @param retentionCutoff - hours before it are purged, they aren't tiered
+   * @param barrier - hours at or after it may still be pulled
+   */
+  void apply(Path streamRoot, TierPolicy policy, long retentionCutoff,
+      long barrier) throws Exception {
+    Long latestHour = StreamHours.getEdgeHour(fs, streamRoot, true);
+    if (latestHour == null)
+      return;
+    long now = System.currentTimeMillis();
+    if (policy.getReduceReplicationAfterHours() > 0
+        && policy.getReplication() > 0) {
+      String key = getWatermarkKey(REPLICATION_PREFIX, streamRoot);
+      long hour = getStartHour(key, streamRoot, retentionCutoff);
+      long limit = now - policy.getReduceReplicationAfterHours()
+          * MILLISECONDS_PER_HOUR;
+      for (; hour < latestHour && hour + MILLISECONDS_PER_HOUR <= limit;
+          hour += MILLISECONDS_PER_HOUR) {
+        if (!claims.claim(streamRoot, hour))
+          break;
+        try {
+          Path hourDir = StreamHours.getHourDir(streamRoot, hour);
+          if (fs.exists(hourDir)) {
+            int files = setReplication(hourDir, policy.getReplication());
+            LOG.info("Reduced replication of [" + files + "] files in ["
+                + hourDir + "] to [" + policy.getReplication() + "]");
+          }
+        } finally {
+          claims.release(streamRoot, hour);
+        }
+      }
+      setWatermark(key, hour);
+    }
+    if (policy.getArchiveAfterHours() > 0) {
+      String key = getWatermarkKey(ARCHIVE_PREFIX, streamRoot);
+      long hour = getStartHour(key, streamRoot, retentionCutoff);
+      long limit = Math.min(barrier, now - policy.getArchiveAfterHours()
+          * MILLISECONDS_PER_HOUR);
+      for (; hour < latestHour && hour + MILLISECONDS_PER_HOUR <= limit;
+          hour += MILLISECONDS_PER_HOUR) {
+        // a missing hour may be one compaction is swapping
+        if (!claims.claim(streamRoot, hour))
+          break;
+        try {
+          Path hourDir = StreamHours.getHourDir(streamRoot, hour);
+          if (fs.exists(hourDir)) {
+            archiveHour(streamRoot, hourDir, hour, policy.getArchiveCodec());
+          }
+        } finally {
+          claims.release(streamRoot, hour);
+        }
+      }
+      setWatermark(key, hour);
+    }
+  }
+
+  /*
+   * Hours before the retention cutoff are purged, a watermark left behind
+   * by a long stop starts at the cutoff
+   */
+  private long getStartHour(String key, Path streamRoot,
+      long retentionCutoff) throws IOException {
+    Calendar cutoffHour = new GregorianCalendar();
+    cutoffHour.setTimeInMillis(retentionCutoff);
+    cutoffHour.set(Calendar.MINUTE, 0);
+    cutoffHour.set(Calendar.SECOND, 0);
+    cutoffHour.set(Calendar.MILLISECOND, 0);
+    Long hour = readWatermark(key);
+    if (hour == null) {
+      hour = StreamHours.getEdgeHour(fs, streamRoot, false);
+      if (hour == null)
+        hour = 0L;
+    }
+    return Math.max(hour, cutoffHour.getTimeInMillis());
+  }
+
+  private Long readWatermark(String key) {
+    Long hour = watermarks.get(key);
+    if (hour != null || checkpointProvider == null)
+      return hour;
+    byte[] watermark = checkpointProvider.read(key);
+    if (watermark == null)
+      return null;
+    hour = Long.parseLong(new String(watermark).trim());
+    watermarks.put(key, hour);
+    return hour;
+  }
+
+  private void setWatermark(String key, long hour) {
+    Long previous = watermarks.put(key, hour);
+    if (previous == null || previous != hour)
+      pendingWatermarks.put(key, Long.toString(hour).getBytes());
+  }
+
+  private String getWatermarkKey(String prefix, Path streamRoot) {
+    // eg: tierarchive_streams_local_<stream>
+    String root = new Path(cluster.getRootDir()).toUri().getPath();
+    String relative = streamRoot.toUri().getPath().substring(root.length());
+    return prefix + "_" + relative.replace("/", "_").replaceAll("^_+", "");
+  }
+
+  private int setReplication(Path dir, short replication) throws IOException {
+    int files = 0;
+    FileStatus[] children = fs.listStatus(dir);
+    if (children == null)
+      return files;
+    for (FileStatus child : children) {
+      if (child.isDir()) {
+        files += setReplication(child.getPath(), replication);
+      } else if (child.getReplication() != replication) {
+        fs.setReplication(child.getPath(), replication);
+        files++;
+      }
+    }
+    return files;
+  }
+
+  private void archiveHour(Path streamRoot, Path hourDir, long hour,
+      String codecName) throws Exception {
+    // eg: streams/<stream>/2012/01/13/15/
+    String relativeHour = streamRoot.getParent().getName() + File.separator
+        + streamRoot.getName() + File.separator
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(hour);
+    Path archiveHour = new Path(cluster.getArchiveDirRoot() + relativeHour);
+    if (fs.exists(archiveHour)) {
+      // an earlier run failed after archiving
+      LOG.info("[" + hourDir + "] is already archived, deleting it");
+      fs.delete(hourDir, true);
+      return;
+    }
+    fs.mkdirs(archiveHour.getParent());
+    // compacted hours keep their compression as the index refers offsets
+    if (codecName == null || CompactionIndex.isCompacted(fs, hourDir)) {
+      if (!fs.rename(hourDir, archiveHour))
+        throw new IOException("Rename failed from [" + hourDir + "] to ["
+            + archiveHour + "]");
+    } else {
+      CompressionCodec codec = (CompressionCodec) ReflectionUtils.newInstance(
+          cluster.getHadoopConf().getClassByName(codecName),
+          cluster.getHadoopConf());
+      Path tmpHour = new Path(cluster.getTmpPath(), "archive" + File.separator
+          + relativeHour);
+      fs.delete(tmpHour, true);
+      recompress(hourDir, tmpHour, codec);
+      if (!fs.rename(tmpHour, archiveHour))
+        throw new IOException("Rename failed from [" + tmpHour + "] to ["
+            + archiveHour + "]");
+      fs.delete(hourDir, true);
+    }
+    LOG.info("Archived [" + hourDir + "] to [" + archiveHour + "]");
+  }
+
+  private void recompress(Path src, Path target, CompressionCodec codec)
+      throws IOException {
+    fs.mkdirs(target);
+    FileStatus[] children = fs.listStatus(src);
+    if (children == null)
+      return;
+    for (FileStatus child : children) {
+      String name = child.getPath().getName();
+      if (child.isDir()) {
+        recompress(child.getPath(), new Path(target, name), codec);
+        continue;
+      }
+      CompressionCodec srcCodec = codecFactory.getCodec(child.getPath());
+      InputStream in = fs.open(child.getPath());
+      if (srcCodec != null) {
+        in = srcCodec.createInputStream(in);
+        name = CompressionCodecFactory.removeSuffix(name,
+            srcCodec.getDefaultExtension());
+      }
+      OutputStream out = codec.createOutputStream(fs.create(new Path(target,
+          name + codec.getDefaultExtension())));
+      try {
+        IOUtils.copyBytes(in, out, 64 * 1024, false);
+      } finally {
+        in.close();
+        out.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.DatabusConfig;
+import com.inmobi.databus.Stream;
+import com.inmobi.databus.Stream.DestinationStreamCluster;
+import com.inmobi.databus.utils.CalendarHelper;
+
+/*
+ * Helpers for services which walk the yyyy/MM/dd/HH hours of streams
+ */
+class StreamHours {
+  static final long MILLISECONDS_PER_HOUR = 60 * 60 * 1000;
+
+  /*
+   * @returns Long - start of the earliest or latest hour of a stream, null if
+   * the stream has no hour
+   */
+  static Long getEdgeHour(FileSystem fs, Path streamRoot, boolean latest)
+      throws IOException {
+    int[] parts = new int[4];
+    Path dir = streamRoot;
+    for (int level = 0; level < parts.length; level++) {
+      FileStatus[] children = fs.listStatus(dir);
+      Path edge = null;
+      int edgeValue = 0;
+      if (children != null) {
+        for (FileStatus child : children) {
+          int value;
+          try {
+            value = Integer.parseInt(child.getPath().getName());
+          } catch (NumberFormatException e) {
+            continue;
+          }
+          if (edge == null || (latest ? value > edgeValue : value < edgeValue)) {
+            edge = child.getPath();
+            edgeValue = value;
+          }
+        }
+      }
+      if (edge == null)
+        return null;
+      parts[level] = edgeValue;
+      dir = edge;
+    }
+    return CalendarHelper.getDateHourMinuteInMillis(parts[0], parts[1],
+        parts[2], parts[3], 0);
+  }
+
+  static Path getHourDir(Path streamRoot, long hour) {
+    return new Path(streamRoot, CalendarHelper.getDateAsYYYYMMDDHHPath(hour));
+  }
+
+  static void listAtDepth(FileSystem fs, Path dir, int depth,
+      List<FileStatus> statuses) throws IOException {
+    FileStatus[] children = fs.listStatus(dir);
+    if (children == null)
+      return;
+    for (FileStatus child : children) {
+      if (depth == 1)
+        statuses.add(child);
+      else if (child.isDir())
+        listAtDepth(fs, child.getPath(), depth - 1, statuses);
+    }
+  }
+
+  /*
+   * @returns long - modification time of the oldest manifest still to be
+   * pulled from or into cluster, Long.MAX_VALUE if there is none. Hours at or
+   * after it can still be referred by pending pulls.
+   */
+  static long getOldestPendingManifestTime(FileSystem fs, Cluster cluster,
+      DatabusConfig config) throws Exception {
+    List<FileStatus> manifests = new ArrayList<FileStatus>();
+    // partial streams pulled by remote merged services and merged streams
+    // pulled by mirrors, consumersRoot/consumer/manifest
+    listAtDepth(fs, cluster.getConsumePath(cluster).getParent(), 2, manifests);
+    listAtDepth(fs, cluster.getMirrorConsumePath(cluster).getParent(), 2,
+        manifests);
+    // mirrors still to be pulled into cluster
+    for (Stream stream : config.getAllStreams().values()) {
+      Cluster primary = stream.getPrimaryDestinationCluster();
+      if (primary == null)
+        continue;
+      for (DestinationStreamCluster mirror : stream.getMirroredClusters()) {
+        if (mirror.getCluster().getName().equals(cluster.getName())) {
+          FileSystem primaryFs = primary.getFileSystem();
+          listAtDepth(primaryFs, primary.getMirrorConsumePath(cluster), 1,
+              manifests);
+        }
+      }
+    }
+    long oldest = Long.MAX_VALUE;
+    for (FileStatus manifest : manifests) {
+      oldest = Math.min(oldest, manifest.getModificationTime());
+    }
+    return oldest;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/*
+ * Index of a compacted hour directory. Files of the hour's minute directories
+ * are concatenated into a few large files, every line of the index locates
+ * one original file - minute, compacted file, offset, length, original name
+ */
+public class CompactionIndex {
+  public static final String INDEX_FILE = "_index";
+
+  public static class Entry {
+    private final int minute;
+    private final String file;
+    private final long offset;
+    private final long length;
+    private final String sourceName;
+
+    public Entry(int minute, String file, long offset, long length,
+        String sourceName) {
+      this.minute = minute;
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+      this.sourceName = sourceName;
+    }
+
+    public int getMinute() {
+      return minute;
+    }
+
+    public String getFile() {
+      return file;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public String getSourceName() {
+      return sourceName;
+    }
+  }
+
+  public static boolean isCompacted(FileSystem fs, Path hourDir)
+      throws IOException {
+    return fs.exists(new Path(hourDir, INDEX_FILE));
+  }
+
+  public static void write(FileSystem fs, Path hourDir, List<Entry> entries)
+      throws IOException {
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        fs.create(new Path(hourDir, INDEX_FILE))));
+    try {
+      for (Entry entry : entries) {
+        writer.write(entry.minute + "\t" + entry.file + "\t" + entry.offset
+            + "\t" + entry.length + "\t" + entry.sourceName);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /*
+   * @returns List<Entry> - entries of hourDir, null if it isn't compacted
+   */
+  public static List<Entry> read(FileSystem fs, Path hourDir)
+      throws IOException {
+    Path index = new Path(hourDir, INDEX_FILE);
+    if (!fs.exists(index))
+      return null;
+    List<Entry> entries = new ArrayList<Entry>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(index)));
+    try {
+      String line = reader.readLine();
+      while (line != null) {
+        String[] fields = line.split("\t");
+        entries.add(new Entry(Integer.parseInt(fields[0]), fields[1],
+            Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+        line = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  /*
+   * @returns List<Entry> - files which were in minute
+   */
+  public static List<Entry> getMinute(List<Entry> entries, int minute) {
+    List<Entry> minuteEntries = new ArrayList<Entry>();
+    for (Entry entry : entries) {
+      if (entry.minute == minute)
+        minuteEntries.add(entry);
+    }
+    return minuteEntries;
+  }
+
+  /*
+   * Opens the bytes of an original file
+   */
+  public static InputStream open(FileSystem fs, Path hourDir, Entry entry)
+      throws IOException {
+    final FSDataInputStream in = fs.open(new Path(hourDir, entry.file));
+    in.seek(entry.offset);
+    final long end = entry.offset + entry.length;
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        if (in.getPos() >= end)
+          return -1;
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        long remaining = end - in.getPos();
+        if (remaining <= 0)
+          return -1;
+        return in.read(b, off, (int) Math.min(len, remaining));
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+}
@@ -0,0 +1,217 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/*
+ * Container which packs many small files into one large file so that a WAN
+ * pull pays per bundle and not per file costs.
+ * Layout - [file1 bytes][file2 bytes]...[index][index offset][MAGIC]
+ * index - count, followed by (name, offset, length) per file
+ */
+public class FileBundle {
+  private static final Log LOG = LogFactory.getLog(FileBundle.class);
+
+  public static final String BUNDLE_SUFFIX = ".bundle";
+  private static final long MAGIC = 0x44425553424e444cL;
+  private static final int FOOTER_LENGTH = 16;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public static boolean isBundle(String fileName) {
+    return fileName != null && fileName.endsWith(BUNDLE_SUFFIX);
+  }
+
+  public static class Writer {
+    private final Path bundlePath;
+    private final FSDataOutputStream out;
+    private final List<String> names = new ArrayList<String>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final List<Long> lengths = new ArrayList<Long>();
+
+    public Writer(FileSystem fs, Path bundlePath) throws IOException {
+      this.bundlePath = bundlePath;
+      this.out = fs.create(bundlePath);
+    }
+
+    /*
+     * Appends src to the bundle, it's unpacked as name
+     */
+    public void append(FileSystem fs, Path src, String name)
+        throws IOException {
+      long offset = out.getPos();
+      FSDataInputStream in = fs.open(src);
+      try {
+        IOUtils.copyBytes(in, out, BUFFER_SIZE, false);
+      } finally {
+        in.close();
+      }
+      names.add(name);
+      offsets.add(offset);
+      lengths.add(out.getPos() - offset);
+    }
+
+    public long getLength() throws IOException {
+      return out.getPos();
+    }
+
+    public int getFileCount() {
+      return names.size();
+    }
+
+    public Path getPath() {
+      return bundlePath;
+    }
+
+    public void close() throws IOException {
+      long indexOffset = out.getPos();
+      out.writeInt(names.size());
+      for (int i = 0; i < names.size(); i++) {
+        out.writeUTF(names.get(i));
+        out.writeLong(offsets.get(i));
+        out.writeLong(lengths.get(i));
+      }
+      out.writeLong(indexOffset);
+      out.writeLong(MAGIC);
+      out.close();
+      LOG.debug("Packed [" + names.size() + "] files in bundle ["
+          + bundlePath + "]");
+    }
+  }
+
+  /*
+   * Unpacks all files of the bundle into targetDir
+   * @returns List<Path> - unpacked files
+   */
+  public static List<Path> unpack(FileSystem fs, FileStatus bundle,
+      Path targetDir) throws IOException {
+    List<Path> unpacked = new ArrayList<Path>();
+    FSDataInputStream in = fs.open(bundle.getPath());
+    try {
+      if (bundle.getLen() < FOOTER_LENGTH) {
+        throw new IOException("Corrupt bundle [" + bundle.getPath() + "]");
+      }
+      in.seek(bundle.getLen() - FOOTER_LENGTH);
+      long indexOffset = in.readLong();
+      if (in.readLong() != MAGIC) {
+        throw new IOException("Not a bundle [" + bundle.getPath() + "]");
+      }
+      in.seek(indexOffset);
+      int count = in.readInt();
+      String[] names = new String[count];
+      long[] offsets = new long[count];
+      long[] lengths = new long[count];
+      for (int i = 0; i < count; i++) {
+        names[i] = in.readUTF();
+        offsets[i] = in.readLong();
+        lengths[i] = in.readLong();
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for (int i = 0; i < count; i++) {
+        Path target = new Path(targetDir, names[i]);
+        in.seek(offsets[i]);
+        FSDataOutputStream out = fs.create(target);
+        try {
+          long remaining = lengths[i];
+          while (remaining > 0) {
+            int toRead = (int) Math.min(buffer.length, remaining);
+            in.readFully(buffer, 0, toRead);
+            out.write(buffer, 0, toRead);
+            remaining -= toRead;
+          }
+        } finally {
+          out.close();
+        }
+        LOG.debug("Unpacked [" + target + "] from [" + bundle.getPath() + "]");
+        unpacked.add(target);
+      }
+    } finally {
+      in.close();
+    }
+    return unpacked;
+  }
+
+  /*
+   * Deletes the bundles in bundleDir no manifest in manifestDir refers, left
+   * by a run which failed between committing its bundles and its manifest,
+   * or by a consumer which failed between deleting a manifest and its
+   * bundles. Only to be called while no manifests are being committed.
+   * @returns int - number of bundles deleted
+   */
+  public static int purgeUnreferenced(FileSystem fs, Path bundleDir,
+      Path manifestDir) throws IOException {
+    FileStatus[] bundles = listStatus(fs, bundleDir);
+    if (bundles.length == 0)
+      return 0;
+    Set<String> referenced = new HashSet<String>();
+    for (FileStatus manifest : listStatus(fs, manifestDir)) {
+      if (manifest.isDir())
+        continue;
+      BufferedReader reader;
+      try {
+        reader = new BufferedReader(new InputStreamReader(fs.open(manifest
+            .getPath())));
+      } catch (FileNotFoundException e) {
+        // consumed meanwhile
+        continue;
+      }
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (isBundle(line))
+            referenced.add(new Path(line).getName());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    int deleted = 0;
+    for (FileStatus bundle : bundles) {
+      String name = bundle.getPath().getName();
+      if (isBundle(name) && !referenced.contains(name)) {
+        LOG.info("Deleting unreferenced bundle [" + bundle.getPath() + "]");
+        if (fs.delete(bundle.getPath(), false))
+          deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  private static FileStatus[] listStatus(FileSystem fs, Path dir)
+      throws IOException {
+    try {
+      FileStatus[] files = fs.listStatus(dir);
+      return files == null ? new FileStatus[0] : files;
+    } catch (FileNotFoundException e) {
+      return new FileStatus[0];
+    }
+  }
+}
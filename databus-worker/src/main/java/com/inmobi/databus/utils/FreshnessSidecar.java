@@ -0,0 +1,96 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/*
+ * Carries the origin time of files, when the collector last wrote them,
+ * from one tier to the next. Next to every manifest a sidecar lists
+ * <file name>\t<origin time> for the files of the manifest, the file names
+ * don't change across tiers. Sidecars are kept out of the manifest dirs so
+ * that consumers unaware of them don't take them for manifests, eg:
+ * system/consumers/<cluster>/<manifest> has its sidecar at
+ * system/freshness/consumers/<cluster>/<manifest>
+ */
+public class FreshnessSidecar {
+  private static final Log LOG = LogFactory.getLog(FreshnessSidecar.class);
+
+  public static final String FRESHNESS_DIR = "freshness";
+
+  public static Path getSidecarPath(Path manifest) {
+    Path consumerDir = manifest.getParent();
+    Path manifestsDir = consumerDir.getParent();
+    return new Path(new Path(new Path(new Path(manifestsDir.getParent(),
+        FRESHNESS_DIR), manifestsDir.getName()), consumerDir.getName()),
+        manifest.getName());
+  }
+
+  /*
+   * @param originTimes - file name, origin time
+   */
+  public static void write(FileSystem fs, Path sidecar,
+      Map<String, Long> originTimes) throws IOException {
+    FSDataOutputStream out = fs.create(sidecar);
+    try {
+      for (Map.Entry<String, Long> entry : originTimes.entrySet()) {
+        out.writeBytes(entry.getKey() + "\t" + entry.getValue() + "\n");
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /*
+   * Adds the origin times listed in sidecar to originTimes
+   * @returns boolean - false if there is no sidecar, eg: for manifests
+   * written before origin times were tracked
+   */
+  public static boolean read(FileSystem fs, Path sidecar,
+      Map<String, Long> originTimes) throws IOException {
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(new InputStreamReader(fs.open(sidecar)));
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.lastIndexOf('\t');
+        if (tab <= 0)
+          continue;
+        try {
+          originTimes.put(line.substring(0, tab), Long.parseLong(line
+              .substring(tab + 1).trim()));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring [" + line + "] in [" + sidecar + "]");
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return true;
+  }
+}
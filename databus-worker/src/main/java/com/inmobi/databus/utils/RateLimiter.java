@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spaces out permits evenly at permitsPerSecond, unused permits aren't
+ * saved up so there are no bursts. A rate <= 0 means unlimited.
+ */
+public class RateLimiter {
+  private double permitsPerSecond;
+  private long nextFreeNanos = System.nanoTime();
+
+  public RateLimiter(double permitsPerSecond) {
+    this.permitsPerSecond = permitsPerSecond;
+  }
+
+  public synchronized double getRate() {
+    return permitsPerSecond;
+  }
+
+  public synchronized void setRate(double permitsPerSecond) {
+    this.permitsPerSecond = permitsPerSecond;
+  }
+
+  /*
+   * Blocks till a permit is available
+   */
+  public void acquire() throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      if (permitsPerSecond <= 0)
+        return;
+      long now = System.nanoTime();
+      if (nextFreeNanos < now)
+        nextFreeNanos = now;
+      waitNanos = nextFreeNanos - now;
+      nextFreeNanos += (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+    if (waitNanos > 0)
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+}
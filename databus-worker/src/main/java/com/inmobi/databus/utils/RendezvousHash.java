@@ -0,0 +1,63 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.util.Collection;
+
+/*
+ * Rendezvous (highest random weight) hashing: a unit goes to the worker
+ * scoring highest for it. Workers agreeing on the membership agree on the
+ * owners without talking to each other, and a worker leaving only moves
+ * the units it owned, spread evenly over the rest.
+ */
+public class RendezvousHash {
+
+  /*
+   * @returns String - worker owning unit, null if there are no workers
+   */
+  public static String getOwner(String unit, Collection<String> workers) {
+    String owner = null;
+    long maxScore = 0;
+    for (String worker : workers) {
+      long score = score(unit, worker);
+      if (owner == null || score > maxScore
+          || (score == maxScore && worker.compareTo(owner) < 0)) {
+        owner = worker;
+        maxScore = score;
+      }
+    }
+    return owner;
+  }
+
+  static long score(String unit, String worker) {
+    // FNV-1a over both names, then a 64 bit finalizer to spread the bits
+    long hash = 0xcbf29ce484222325L;
+    hash = fnv(hash, unit);
+    hash = (hash ^ 0xff) * 0x100000001b3L;
+    hash = fnv(hash, worker);
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long fnv(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.zookeeper;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.inmobi.databus.CheckpointProvider;
+import com.inmobi.databus.FSCheckpointProvider;
+import com.inmobi.databus.purge.DataPurgerService;
+
+/*
+ * Copies a cluster's checkpoints from its checkpoint dir into zookeeper, to
+ * be run while databus is stopped
+ * eg: hdfs://nn:8020/databus/system/checkpoint zk1:2181/databus/checkpoint/<cluster>
+ */
+public class CheckpointMigrationTool {
+  private static final Log LOG = LogFactory.getLog(
+      CheckpointMigrationTool.class);
+
+  static final String[] NAMES = { FSCheckpointProvider.DEFAULT_NAME,
+      DataPurgerService.CHECKPOINT_NAME };
+
+  /*
+   * @returns int - number of checkpoints migrated
+   */
+  public static int migrate(String fsDir, String zkDir) {
+    int migrated = 0;
+    for (String name : NAMES) {
+      CheckpointProvider source = new FSCheckpointProvider(fsDir, name);
+      CheckpointProvider target = new ZKCheckpointProvider(zkDir
+          + File.separator + name);
+      try {
+        Map<String, byte[]> checkpoints = source.readAll();
+        target.checkpoint(checkpoints);
+        LOG.info("Migrated [" + checkpoints.size() + "] [" + name
+            + "] checkpoints from [" + fsDir + "] to [" + zkDir + "]");
+        migrated += checkpoints.size();
+      } finally {
+        source.close();
+        target.close();
+      }
+    }
+    return migrated;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: CheckpointMigrationTool <checkpoint dir> "
+          + "<zkconnect>/<zk checkpoint path>/<cluster>");
+      System.exit(1);
+    }
+    int migrated = migrate(args[0], args[1]);
+    System.out.println("Migrated [" + migrated + "] checkpoints");
+  }
+}
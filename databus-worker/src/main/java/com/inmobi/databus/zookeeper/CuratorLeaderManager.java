@@ -22,67 +22,351 @@ import com.netflix.curator.framework.state.ConnectionState;
 import com.netflix.curator.retry.RetryOneTime;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
 import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/*
+ * Elects the leader of the workers processing the same clusters. A leader
+ * whose connection drops keeps working only while its session can't have
+ * expired on the server: the server expires it a session timeout after it
+ * last heard from the client, timed here by a heartbeat. The client raises
+ * SUSPENDED only a read timeout, 2/3 of the session timeout, after that, so
+ * a leader rides out a blip only if it reconnects within the last third of
+ * the session timeout, less a margin of a tenth of it. At that deadline the
+ * leader's commits and checkpoint writes are fenced off at once, before its
+ * runs in progress are waited for, so none land after the session expired.
+ * With a warm standby the worker isn't restarted on losing leadership, it
+ * goes back to standby and queues up again.
+ */
 public class CuratorLeaderManager implements LeaderSelectorListener {
   private static final Log LOG = LogFactory.getLog(CuratorLeaderManager.class);
+  private static final int DEFAULT_SESSION_TIMEOUT_IN_MS = 30000;
+  // of the session timeout, kept between the release and the expiry
+  private static final int RELEASE_MARGIN_DIVISOR = 10;
   private final Service databus;
   private final String databusClusterId;
   private final String zkConnectString;
-  private CuratorFramework client;
-  private LeaderSelector leaderSelector;
+  private final CuratorFramework client;
+  private volatile LeaderSelector leaderSelector;
+  private final List<LeadershipListener> listeners =
+      new CopyOnWriteArrayList<LeadershipListener>();
+  private volatile WarmStandby standby;
+  private boolean connected = false;
+  // session checks and requeues, one at a time
+  private final ScheduledExecutorService executor = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "LeaderSessionChecker");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  // session the place in the election was taken in
+  private volatile long queuedSessionId = 0;
+  // session leadership was taken in, 0 when not the leader
+  private volatile long leaderSessionId = 0;
+  // when a request last reached the server, 0 before the first one
+  private volatile long lastContactAt = 0;
+  // counted down to give up the leadership of a warm standby
+  private volatile CountDownLatch released;
+
+  /*
+   * Work of a worker kept ready while it isn't the leader
+   */
+  public interface WarmStandby {
+    /*
+     * Starts the leader's work and returns
+     */
+    void promote() throws Exception;
+
+    /*
+     * Stops the leader's work, returning once in progress runs are done
+     */
+    void demote() throws Exception;
+  }
 
   public CuratorLeaderManager(Service databus, String databusClusterId,
       String zkConnectString){
     this.databus = databus;
     this.databusClusterId = databusClusterId;
     this.zkConnectString = zkConnectString;
-  }
-
-  public void start() throws Exception {
-    String zkPath = "/databus/" + databusClusterId; 
     this.client = CuratorFrameworkFactory.newClient(zkConnectString,
         new RetryOneTime(3));
-    this.leaderSelector = new LeaderSelector(client, zkPath, this);
-    connect();
   }
 
-  private void connect() throws Exception {
+  /*
+   * Client shared with the other users of zookeeper in the worker, connected
+   * by start()
+   */
+  public CuratorFramework getClient() {
+    return client;
+  }
+
+  public void addLeadershipListener(LeadershipListener listener) {
+    listeners.add(listener);
+  }
+
+  /*
+   * Promotes and demotes standby instead of starting and stopping the
+   * service, set before start()
+   */
+  public void setWarmStandby(WarmStandby standby) {
+    this.standby = standby;
+  }
+
+  /*
+   * Starts the client without taking part in the election yet
+   */
+  public synchronized void connect() throws Exception {
+    if (connected)
+      return;
     client.start();// connect to ZK
     LOG.info("becomeLeader :: connect to ZK [" + zkConnectString + "]");
-    leaderSelector.setId(InetAddress.getLocalHost().getHostName());
-    leaderSelector.start();
+    client.getZookeeperClient().blockUntilConnectedOrTimedOut();
+    connected = true;
+    long interval = Math.max(1, (getSessionTimeoutInMs()
+        - getReadTimeoutInMs()) / 2);
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        heartbeat();
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Times the last contact with the server, the session can't expire on the
+   * server before a session timeout after it. Asynchronous so session checks
+   * aren't held up by a dead connection.
+   */
+  private void heartbeat() {
+    final long sentAt = System.currentTimeMillis();
+    try {
+      if (!client.getZookeeperClient().isConnected())
+        return;
+      client.getZookeeperClient().getZooKeeper().exists("/", false,
+          new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                Stat stat) {
+              if (rc == KeeperException.Code.OK.intValue()
+                  && sentAt > lastContactAt)
+                lastContactAt = sentAt;
+            }
+          }, null);
+    } catch (Exception e) {
+      LOG.warn("Could not send the zookeeper heartbeat", e);
+    }
+  }
+
+  public void start() throws Exception {
+    connect();
+    queue();
+  }
+
+  private void queue() throws Exception {
+    String zkPath = "/databus/" + databusClusterId;
+    LeaderSelector selector = new LeaderSelector(client, zkPath, this);
+    selector.setId(InetAddress.getLocalHost().getHostName());
+    leaderSelector = selector;
+    queuedSessionId = getSessionId();
+    selector.start();
     LOG.info("started the LeaderSelector");
   }
 
+  /*
+   * Takes a fresh place in the election, the previous one went with the
+   * leadership or the session
+   */
+  private void requeue() {
+    try {
+      leaderSelector.close();
+    } catch (RuntimeException e) {
+      LOG.warn("Error closing the LeaderSelector", e);
+    }
+    try {
+      queue();
+    } catch (Exception e) {
+      LOG.warn("Could not requeue for leadership", e);
+    }
+  }
+
+  /*
+   * @returns long - id of the connected session, 0 when not connected
+   */
+  protected long getSessionId() {
+    try {
+      if (client.getZookeeperClient().isConnected())
+        return client.getZookeeperClient().getZooKeeper().getSessionId();
+    } catch (Exception e) {
+      LOG.warn("Could not get the zookeeper session", e);
+    }
+    return 0;
+  }
+
+  protected long getSessionTimeoutInMs() {
+    try {
+      int timeout = client.getZookeeperClient().getZooKeeper()
+          .getSessionTimeout();
+      if (timeout > 0)
+        return timeout;
+    } catch (Exception e) {
+      LOG.warn("Could not get the zookeeper session timeout", e);
+    }
+    return DEFAULT_SESSION_TIMEOUT_IN_MS;
+  }
+
+  /*
+   * Silence after which the client raises SUSPENDED, as the zookeeper client
+   * computes it
+   */
+  private long getReadTimeoutInMs() {
+    return getSessionTimeoutInMs() * 2 / 3;
+  }
+
+  /*
+   * @returns long - when a request last reached the server, 0 if unknown
+   */
+  protected long getLastContactTime() {
+    return lastContactAt;
+  }
+
+  /*
+   * @returns long - until when the session surely hasn't expired on the
+   * server, less a margin for fencing the leader's work
+   */
+  private long getReleaseDeadline() {
+    long sessionTimeout = getSessionTimeoutInMs();
+    return getLastContactTime() + sessionTimeout - sessionTimeout
+        / RELEASE_MARGIN_DIVISOR;
+  }
+
   @Override
   public void takeLeadership(CuratorFramework curatorFramework)
       throws Exception {
     LOG.info("Became Leader..starting to do work");
- // This method shouldn't return till you want to release leadership
-    databus.start();
+    leaderSessionId = getSessionId();
+    for (LeadershipListener listener : listeners) {
+      listener.leadershipAcquired();
+    }
+    WarmStandby current = standby;
+    if (current == null) {
+      // This method shouldn't return till you want to release leadership
+      databus.start();
+      return;
+    }
+    CountDownLatch latch = new CountDownLatch(1);
+    released = latch;
+    try {
+      current.promote();
+      latch.await();
+    } finally {
+      released = null;
+      leaderSessionId = 0;
+      // before demote() waits for the runs in progress
+      for (LeadershipListener listener : listeners) {
+        listener.leadershipFenced();
+      }
+      try {
+        current.demote();
+      } catch (Exception e) {
+        LOG.warn("Error while demoting databus to standby", e);
+      }
+      for (LeadershipListener listener : listeners) {
+        listener.leadershipLost();
+      }
+      LOG.info("Released leadership, back to standby");
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          requeue();
+        }
+      });
+    }
   }
 
   @Override
   public void stateChanged(CuratorFramework curatorFramework,
       ConnectionState connectionState) {
-    if (connectionState == ConnectionState.LOST) {
-      try {
-        databus.stop();
-      } catch (Exception e1) {
-        LOG.warn("Error while stopping databus service", e1);
-      }
-      LOG.info("Releasing leadership..connection LOST");
-      try {
-        LOG.info("Trying reconnect..");
-        connect();
-      } catch (Exception e) {
-        LOG.warn("Error in attempting to connect to ZK after releasing leadership", e);
-      }
+    if (connectionState == ConnectionState.SUSPENDED
+        || connectionState == ConnectionState.LOST) {
+      long delay = Math.max(0, getReleaseDeadline()
+          - System.currentTimeMillis());
+      LOG.info("Connection " + connectionState + ", checking the session in ["
+          + delay + "] ms");
+      scheduleCheck(delay);
+    } else if (connectionState == ConnectionState.RECONNECTED) {
+      scheduleCheck(0);
     }
   }
 
-  
+  private void scheduleCheck(long delayInMs) {
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        checkSession();
+      }
+    }, delayInMs, TimeUnit.MILLISECONDS);
+  }
 
+  private void checkSession() {
+    long sessionId = getSessionId();
+    if (sessionId == 0) {
+      // a heartbeat may have been answered since the check was scheduled
+      long delay = getReleaseDeadline() - System.currentTimeMillis();
+      if (delay > 0) {
+        scheduleCheck(delay);
+        return;
+      }
+    }
+    long leading = leaderSessionId;
+    if (leading == 0) {
+      long queued = queuedSessionId;
+      if (sessionId == 0 || sessionId == queued)
+        return;
+      if (queued == 0) {
+        // queued before the first connection
+        queuedSessionId = sessionId;
+        return;
+      }
+      LOG.info("Session expired, requeueing for leadership");
+      // the place in the election went with the session
+      requeue();
+      return;
+    }
+    if (sessionId == leading) {
+      LOG.info("Reconnected within the session, keeping leadership");
+      return;
+    }
+    leaderSessionId = 0;
+    LOG.info("Session expired, releasing leadership");
+    CountDownLatch latch = released;
+    if (latch != null) {
+      latch.countDown();
+      return;
+    }
+    for (LeadershipListener listener : listeners) {
+      listener.leadershipFenced();
+    }
+    try {
+      databus.stop();
+    } catch (Exception e1) {
+      LOG.warn("Error while stopping databus service", e1);
+    }
+    for (LeadershipListener listener : listeners) {
+      listener.leadershipLost();
+    }
+    // the process exits once the leader's work is stopped
+  }
 }
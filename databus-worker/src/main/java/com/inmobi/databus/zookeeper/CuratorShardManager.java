@@ -0,0 +1,305 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import com.inmobi.databus.utils.RendezvousHash;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.framework.state.ConnectionStateListener;
+
+/*
+ * Spreads units of work, eg: the services of a databus cluster, across its
+ * live workers. Every worker holds an ephemeral <basePath>/workers/<id> and
+ * computes the owner of every unit from the membership with rendezvous
+ * hashing, so workers need no coordinator and a worker joining or leaving
+ * only moves the units it gains or loses. A worker runs a unit only while it
+ * holds the ephemeral <basePath>/owners/<unit>; a unit moving away is
+ * released, its work stopped and then the znode deleted, and the new owner
+ * takes it once the znode is gone, or the old owner's session expired.
+ * Units are fenced, their commits and checkpoint writes failing, as soon as
+ * the connection is suspended and before their runs in progress are waited
+ * for, as the session may expire and the units be taken by others before
+ * the connection is known to be lost. They are taken again on reconnecting
+ * if still ours.
+ * Rebalancing happens on membership changes and every
+ * REBALANCE_INTERVAL_IN_MS to retry units still held by others.
+ */
+public class CuratorShardManager implements ConnectionStateListener {
+  private static final Log LOG = LogFactory.getLog(CuratorShardManager.class);
+  private static final long REBALANCE_INTERVAL_IN_MS = 10000;
+
+  /*
+   * Called from the shard manager's thread, one unit at a time, except
+   * unitFenced
+   */
+  public interface ShardListener {
+    /*
+     * Called after the unit's ownership was taken, the unit's work starts
+     */
+    void unitAcquired(String unit);
+
+    /*
+     * Called from the connection's event thread as soon as the unit may be
+     * taken by another worker, stops the unit's commits and checkpoint
+     * writes without waiting for its work; unitReleased follows
+     */
+    void unitFenced(String unit);
+
+    /*
+     * Returns only after the unit's work stopped, the ownership is given up
+     * next
+     */
+    void unitReleased(String unit);
+  }
+
+  private final CuratorFramework client;
+  private final String workersPath;
+  private final String ownersPath;
+  private final String workerId;
+  private final List<String> units;
+  private final ShardListener listener;
+  // touched only by the executor's thread
+  private final Set<String> owned = new TreeSet<String>();
+  private volatile List<String> ownedUnits = Collections.emptyList();
+  private volatile List<String> workers = Collections.emptyList();
+  private final ScheduledExecutorService executor = Executors
+      .newSingleThreadScheduledExecutor();
+  private volatile boolean closed = false;
+  // till reconnected, nothing is acquired
+  private volatile boolean suspended = false;
+
+  private final Watcher membershipWatcher = new Watcher() {
+    @Override
+    public void process(WatchedEvent event) {
+      if (event.getType() != Watcher.Event.EventType.None)
+        rebalanceLater(0);
+    }
+  };
+
+  /*
+   * @param client - started before start()
+   */
+  public CuratorShardManager(CuratorFramework client, String basePath,
+      String workerId, Collection<String> units, ShardListener listener) {
+    this.client = client;
+    this.workersPath = basePath + "/workers";
+    this.ownersPath = basePath + "/owners";
+    this.workerId = workerId;
+    this.units = new ArrayList<String>(units);
+    this.listener = listener;
+  }
+
+  public void start() {
+    client.getConnectionStateListenable().addListener(this);
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        rebalance();
+      }
+    }, 0, REBALANCE_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+  }
+
+  public String getWorkerId() {
+    return workerId;
+  }
+
+  public List<String> getWorkers() {
+    return workers;
+  }
+
+  public List<String> getOwnedUnits() {
+    return ownedUnits;
+  }
+
+  private void rebalanceLater(long delayInMs) {
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          rebalance();
+        }
+      }, delayInMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // closed
+    }
+  }
+
+  private void rebalance() {
+    if (closed || suspended)
+      return;
+    try {
+      register();
+      List<String> live = client.getChildren().usingWatcher(
+          membershipWatcher).forPath(workersPath);
+      workers = Collections.unmodifiableList(new ArrayList<String>(live));
+      List<String> toRelease = new ArrayList<String>();
+      // take freed units before blocking on the work of released ones
+      for (String unit : units) {
+        boolean mine = workerId.equals(RendezvousHash.getOwner(unit, live));
+        if (mine && !owned.contains(unit)) {
+          acquire(unit);
+        } else if (!mine && owned.contains(unit)) {
+          toRelease.add(unit);
+        }
+      }
+      for (String unit : toRelease) {
+        release(unit);
+      }
+    } catch (Exception e) {
+      LOG.warn("Rebalance failed, retrying in [" + REBALANCE_INTERVAL_IN_MS
+          + "] ms", e);
+    }
+  }
+
+  private void register() throws Exception {
+    String path = workersPath + "/" + workerId;
+    if (client.checkExists().forPath(path) != null)
+      return;
+    try {
+      client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+          .forPath(path, workerId.getBytes("UTF-8"));
+      LOG.info("Registered worker [" + workerId + "]");
+    } catch (KeeperException.NodeExistsException e) {
+      // registered meanwhile
+    }
+  }
+
+  private void acquire(String unit) throws Exception {
+    String path = ownersPath + "/" + unit;
+    byte[] id = workerId.getBytes("UTF-8");
+    try {
+      client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+          .forPath(path, id);
+    } catch (KeeperException.NodeExistsException e) {
+      byte[] holder;
+      Stat stat = new Stat();
+      try {
+        holder = client.getData().storingStatIn(stat).forPath(path);
+      } catch (KeeperException.NoNodeException e1) {
+        // released meanwhile, taken on the next rebalance
+        rebalanceLater(0);
+        return;
+      }
+      if (!workerId.equals(new String(holder, "UTF-8"))) {
+        LOG.info("[" + unit + "] still held by [" + new String(holder,
+            "UTF-8") + "]");
+        return;
+      }
+      if (stat.getEphemeralOwner() != client.getZookeeperClient()
+          .getZooKeeper().getSessionId()) {
+        // ours from a previous session, bind it to the current one
+        client.delete().forPath(path);
+        client.create().creatingParentsIfNeeded().withMode(
+            CreateMode.EPHEMERAL).forPath(path, id);
+      }
+      // else still held by this session, stopped while suspended
+    }
+    owned.add(unit);
+    ownedUnits = Collections.unmodifiableList(new ArrayList<String>(owned));
+    LOG.info("Acquired [" + unit + "]");
+    listener.unitAcquired(unit);
+  }
+
+  private void release(String unit) throws Exception {
+    owned.remove(unit);
+    ownedUnits = Collections.unmodifiableList(new ArrayList<String>(owned));
+    listener.unitReleased(unit);
+    String path = ownersPath + "/" + unit;
+    try {
+      byte[] holder = client.getData().forPath(path);
+      if (workerId.equals(new String(holder, "UTF-8")))
+        client.delete().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      // session expired meanwhile
+    }
+    LOG.info("Released [" + unit + "]");
+  }
+
+  /*
+   * A suspended or lost connection may have expired the session and with it
+   * the ownerships, so all units are stopped, the znodes kept; they are
+   * taken again on reconnect if still ours
+   */
+  @Override
+  public void stateChanged(CuratorFramework curatorFramework,
+      ConnectionState connectionState) {
+    if (connectionState == ConnectionState.SUSPENDED
+        || connectionState == ConnectionState.LOST) {
+      LOG.warn("Connection " + connectionState + ", stopping " + ownedUnits);
+      suspended = true;
+      for (String unit : ownedUnits) {
+        listener.unitFenced(unit);
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            List<String> released = new ArrayList<String>(owned);
+            owned.clear();
+            ownedUnits = Collections.emptyList();
+            for (String unit : released) {
+              listener.unitReleased(unit);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // closed
+      }
+    } else if (connectionState == ConnectionState.RECONNECTED) {
+      suspended = false;
+      rebalanceLater(0);
+    }
+  }
+
+  /*
+   * Releases all units and leaves the membership
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    for (String unit : new ArrayList<String>(owned)) {
+      try {
+        release(unit);
+      } catch (Exception e) {
+        LOG.warn("Error releasing [" + unit + "]", e);
+      }
+    }
+    try {
+      client.delete().forPath(workersPath + "/" + workerId);
+    } catch (Exception e) {
+      LOG.warn("Error leaving [" + workersPath + "]", e);
+    }
+    client.getConnectionStateListenable().removeListener(this);
+  }
+}
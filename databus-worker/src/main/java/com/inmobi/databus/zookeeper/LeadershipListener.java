@@ -0,0 +1,37 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.zookeeper;
+
+/*
+ * Notified by CuratorLeaderManager when this process gains or loses
+ * leadership
+ */
+public interface LeadershipListener {
+
+  /*
+   * Called before the leader's work is started
+   */
+  void leadershipAcquired();
+
+  /*
+   * Called first when the leadership is given up, before the leader's work
+   * is waited for; stops its commits and checkpoint writes right away
+   */
+  void leadershipFenced();
+
+  /*
+   * Called after the leader's work is stopped
+   */
+  void leadershipLost();
+}
@@ -0,0 +1,392 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.zookeeper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import com.inmobi.databus.CheckpointProvider;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.ExponentialBackoffRetry;
+
+/*
+ * Stores every checkpoint key as a znode under a base path, keeping them off
+ * the namenode.
+ * Writes are conditional on the znode version last seen by this provider so
+ * a stale leader fails instead of overwriting the new leader's checkpoints.
+ * ZooKeeper 3.3 has no multi, so a transaction is first written whole to
+ * <base>/_txn, along with the version each key is expected at, then applied
+ * key by key and removed. A _txn left by a crash, eg: of the previous
+ * leader, is rolled forward before checkpoints are read, but only if its
+ * keys are still at the expected versions or already hold its values. A
+ * _txn of a writer fenced off meanwhile is discarded.
+ */
+public class ZKCheckpointProvider implements CheckpointProvider {
+  private static final Log LOG = LogFactory.getLog(ZKCheckpointProvider.class);
+
+  public static final String DEFAULT_BASE_PATH = "/databus/checkpoint";
+  static final String TXN = "_txn";
+
+  private final CuratorFramework client;
+  // false if the client is shared with the rest of the worker
+  private final boolean ownsClient;
+  private final String basePath;
+  private final Map<String, Integer> versions = new HashMap<String, Integer>();
+  // tags the transactions of this provider
+  private final String writer = UUID.randomUUID().toString();
+
+  /*
+   * @param dir - zk connect string followed by the base path
+   * eg: zk1:2181,zk2:2181/databus/checkpoint/<cluster>
+   */
+  public ZKCheckpointProvider(String dir) {
+    this(CuratorFrameworkFactory.newClient(getConnectString(dir),
+        new ExponentialBackoffRetry(1000, 3)), getBasePath(dir), true);
+  }
+
+  /*
+   * @param client - started, eg: the worker's client, not closed by close()
+   */
+  public ZKCheckpointProvider(CuratorFramework client, String basePath) {
+    this(client, basePath, false);
+  }
+
+  private ZKCheckpointProvider(CuratorFramework client, String basePath,
+      boolean ownsClient) {
+    this.client = client;
+    this.ownsClient = ownsClient;
+    this.basePath = basePath.endsWith("/") ? basePath.substring(0, basePath
+        .length() - 1) : basePath;
+    if (ownsClient)
+      client.start();
+    try {
+      mkdirs(this.basePath);
+      recover();
+    } catch (Exception e) {
+      LOG.warn("Could not initialize checkpoint provider", e);
+      if (ownsClient)
+        client.close();
+      throw new RuntimeException(e);
+    }
+    LOG.info("CheckPoint provider initialized with basePath [" + this.basePath
+        + "]");
+  }
+
+  /*
+   * @returns String - zk connect string of dir, empty if dir is only a path
+   */
+  public static String getConnectString(String dir) {
+    int pathStart = dir.indexOf('/');
+    return pathStart < 0 ? dir : dir.substring(0, pathStart);
+  }
+
+  public static String getBasePath(String dir) {
+    int pathStart = dir.indexOf('/');
+    return pathStart < 0 ? DEFAULT_BASE_PATH : dir.substring(pathStart);
+  }
+
+  private void mkdirs(String path) throws Exception {
+    StringBuilder current = new StringBuilder();
+    for (String part : path.split("/")) {
+      if (part.length() == 0)
+        continue;
+      current.append('/').append(part);
+      if (client.checkExists().forPath(current.toString()) == null) {
+        try {
+          client.create().forPath(current.toString(), new byte[0]);
+        } catch (KeeperException.NodeExistsException e) {
+          // created meanwhile
+        }
+      }
+    }
+  }
+
+  private String getPath(String key) {
+    return basePath + "/" + key;
+  }
+
+  /*
+   * A transaction to roll forward, as written in _txn
+   */
+  static class Transaction {
+    final String writer;
+    final Map<String, byte[]> checkpoints;
+    // key, version it is written over, -1 if it didn't exist
+    final Map<String, Integer> expectedVersions;
+
+    Transaction(String writer, Map<String, byte[]> checkpoints,
+        Map<String, Integer> expectedVersions) {
+      this.writer = writer;
+      this.checkpoints = checkpoints;
+      this.expectedVersions = expectedVersions;
+    }
+  }
+
+  private void recover() throws Exception {
+    Stat stat = new Stat();
+    Transaction txn;
+    try {
+      txn = decode(client.getData().storingStatIn(stat).forPath(
+          getPath(TXN)));
+    } catch (KeeperException.NoNodeException e) {
+      return;
+    }
+    try {
+      LOG.info("Rolling forward checkpoint transaction [" + getPath(TXN)
+          + "] of [" + txn.writer + "]");
+      apply(txn.checkpoints, txn.expectedVersions, true);
+    } catch (KeeperException.BadVersionException e) {
+      LOG.warn("Discarding checkpoint transaction of [" + txn.writer
+          + "], its keys were written by another writer since");
+    }
+    deleteTxn(stat.getVersion());
+  }
+
+  private void deleteTxn(int version) throws Exception {
+    try {
+      client.delete().withVersion(version).forPath(getPath(TXN));
+    } catch (KeeperException.NoNodeException e) {
+      // rolled forward by another provider meanwhile
+    } catch (KeeperException.BadVersionException e) {
+      // replaced by a newer transaction, left to its writer
+    }
+  }
+
+  /*
+   * Removes the transaction of this provider, eg: after it was fenced off
+   */
+  private void deleteOwnTxn() throws Exception {
+    Stat stat = new Stat();
+    try {
+      Transaction txn = decode(client.getData().storingStatIn(stat).forPath(
+          getPath(TXN)));
+      if (writer.equals(txn.writer))
+        deleteTxn(stat.getVersion());
+    } catch (KeeperException.NoNodeException e) {
+      // nothing left behind
+    }
+  }
+
+  @Override
+  public synchronized byte[] read(String key) {
+    try {
+      recover();
+    } catch (Exception e) {
+      LOG.warn("Could not roll forward checkpoint transaction ", e);
+      throw new RuntimeException(e);
+    }
+    return readKey(key);
+  }
+
+  private byte[] readKey(String key) {
+    Stat stat = new Stat();
+    try {
+      byte[] checkpoint = client.getData().storingStatIn(stat).forPath(
+          getPath(key));
+      versions.put(key, stat.getVersion());
+      return checkpoint;
+    } catch (KeeperException.NoNodeException e) {
+      LOG.info("No checkpoint to read for [" + key + "]");
+      return null;
+    } catch (Exception e) {
+      LOG.warn("Could not read checkpoint ", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public synchronized Map<String, byte[]> readAll() {
+    Map<String, byte[]> all = new HashMap<String, byte[]>();
+    try {
+      recover();
+      List<String> keys = client.getChildren().forPath(basePath);
+      for (String key : keys) {
+        if (TXN.equals(key))
+          continue;
+        byte[] checkpoint = readKey(key);
+        if (checkpoint != null)
+          all.put(key, checkpoint);
+      }
+    } catch (Exception e) {
+      LOG.warn("Could not list checkpoints ", e);
+      throw new RuntimeException(e);
+    }
+    return all;
+  }
+
+  @Override
+  public void checkpoint(String key, byte[] checkpoint) {
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put(key, checkpoint);
+    checkpoint(checkpoints);
+  }
+
+  @Override
+  public synchronized void checkpoint(Map<String, byte[]> checkpoints) {
+    if (checkpoints.isEmpty())
+      return;
+    try {
+      if (checkpoints.size() == 1) {
+        // a single key is atomic by itself
+        apply(checkpoints, getExpectedVersions(checkpoints), false);
+      } else {
+        // a transaction left by a crash goes first
+        recover();
+        Map<String, Integer> expectedVersions = getExpectedVersions(
+            checkpoints);
+        // fails if another writer's transaction was written meanwhile
+        client.create().forPath(getPath(TXN), encode(new Transaction(writer,
+            checkpoints, expectedVersions)));
+        try {
+          apply(checkpoints, expectedVersions, false);
+        } catch (KeeperException.BadVersionException e) {
+          // fenced off, its transaction must not be rolled forward
+          deleteOwnTxn();
+          throw e;
+        }
+        deleteTxn(0);
+      }
+      LOG.info("checkpointed [" + checkpoints.size() + "] keys under "
+          + basePath);
+    } catch (KeeperException.BadVersionException e) {
+      LOG.warn("Checkpoint modified by another writer", e);
+      throw new RuntimeException(e);
+    } catch (Exception e) {
+      LOG.warn("Could not checkpoint ", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /*
+   * @returns Map<String, Integer> - version of each key last seen by this
+   * provider, the current one for keys it never saw, -1 if it doesn't exist
+   */
+  private Map<String, Integer> getExpectedVersions(
+      Map<String, byte[]> checkpoints) throws Exception {
+    Map<String, Integer> expectedVersions = new HashMap<String, Integer>();
+    for (String key : checkpoints.keySet()) {
+      Integer version = versions.get(key);
+      if (version == null) {
+        Stat stat = client.checkExists().forPath(getPath(key));
+        version = stat == null ? -1 : stat.getVersion();
+      }
+      expectedVersions.put(key, version);
+    }
+    return expectedVersions;
+  }
+
+  /*
+   * All keys are checked before any is written, so a writer fenced off on
+   * one key doesn't write the others
+   * @param rollForward - keys already holding their value at the version
+   * after the expected one are skipped, they were applied before a crash
+   * @throws KeeperException.BadVersionException - if a key isn't at its
+   * expected version
+   */
+  private void apply(Map<String, byte[]> checkpoints,
+      Map<String, Integer> expectedVersions, boolean rollForward)
+      throws Exception {
+    Map<String, Integer> toWrite = new HashMap<String, Integer>();
+    for (Map.Entry<String, byte[]> entry : checkpoints.entrySet()) {
+      String path = getPath(entry.getKey());
+      int expected = expectedVersions.get(entry.getKey());
+      Stat stat = new Stat();
+      byte[] current;
+      try {
+        current = client.getData().storingStatIn(stat).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        if (expected != -1)
+          throw new KeeperException.BadVersionException(path);
+        toWrite.put(entry.getKey(), expected);
+        continue;
+      }
+      if (stat.getVersion() == expected) {
+        toWrite.put(entry.getKey(), expected);
+      } else if (rollForward && stat.getVersion() == expected + 1
+          && Arrays.equals(current, entry.getValue())) {
+        versions.put(entry.getKey(), stat.getVersion());
+      } else {
+        throw new KeeperException.BadVersionException(path);
+      }
+    }
+    for (Map.Entry<String, Integer> entry : toWrite.entrySet()) {
+      String path = getPath(entry.getKey());
+      byte[] checkpoint = checkpoints.get(entry.getKey());
+      if (entry.getValue() == -1) {
+        try {
+          client.create().forPath(path, checkpoint);
+        } catch (KeeperException.NodeExistsException e) {
+          throw new KeeperException.BadVersionException(path);
+        }
+        versions.put(entry.getKey(), 0);
+      } else {
+        Stat stat = client.setData().withVersion(entry.getValue()).forPath(
+            path, checkpoint);
+        versions.put(entry.getKey(), stat.getVersion());
+      }
+    }
+  }
+
+  static byte[] encode(Transaction txn) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(txn.writer);
+    out.writeInt(txn.checkpoints.size());
+    for (Map.Entry<String, byte[]> entry : txn.checkpoints.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(txn.expectedVersions.get(entry.getKey()));
+      out.writeInt(entry.getValue().length);
+      out.write(entry.getValue());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  static Transaction decode(byte[] txn) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(txn));
+    String writer = in.readUTF();
+    int count = in.readInt();
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    Map<String, Integer> expectedVersions = new HashMap<String, Integer>();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      expectedVersions.put(key, in.readInt());
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+      checkpoints.put(key, value);
+    }
+    return new Transaction(writer, checkpoints, expectedVersions);
+  }
+
+  @Override
+  public void close() {
+    if (ownsClient)
+      client.close();
+  }
+
+}
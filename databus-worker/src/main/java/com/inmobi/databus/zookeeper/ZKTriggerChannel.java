@@ -0,0 +1,127 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.zookeeper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import com.inmobi.databus.LocalTriggerChannel;
+import com.inmobi.databus.TriggerChannel;
+import com.netflix.curator.framework.CuratorFramework;
+
+/*
+ * Triggers services on other workers by bumping the version of
+ * <basePath>/<topic>, which subscribed workers watch. Listeners on this
+ * worker are called directly and not again on the watch of its own bump.
+ */
+public class ZKTriggerChannel implements TriggerChannel {
+  private static final Log LOG = LogFactory.getLog(ZKTriggerChannel.class);
+  private static final byte[] EMPTY = new byte[0];
+
+  private final CuratorFramework client;
+  private final String basePath;
+  private final LocalTriggerChannel local = new LocalTriggerChannel();
+  // version of the topic's znode after this worker's last bump
+  private final Map<String, Integer> ownVersions =
+      new ConcurrentHashMap<String, Integer>();
+  private volatile boolean closed = false;
+
+  /*
+   * @param client - started before the first subscribe or trigger
+   */
+  public ZKTriggerChannel(CuratorFramework client, String basePath) {
+    this.client = client;
+    this.basePath = basePath;
+  }
+
+  private String getPath(String topic) {
+    return basePath + "/" + topic;
+  }
+
+  @Override
+  public void trigger(String topic) {
+    local.trigger(topic);
+    String path = getPath(topic);
+    try {
+      Stat stat;
+      try {
+        stat = client.setData().forPath(path, EMPTY);
+      } catch (KeeperException.NoNodeException e) {
+        try {
+          client.create().creatingParentsIfNeeded().forPath(path, EMPTY);
+          stat = client.checkExists().forPath(path);
+        } catch (KeeperException.NodeExistsException e1) {
+          stat = client.setData().forPath(path, EMPTY);
+        }
+      }
+      if (stat != null)
+        ownVersions.put(topic, stat.getVersion());
+    } catch (Exception e) {
+      LOG.warn("Could not trigger [" + path + "], waiting services poll", e);
+    }
+  }
+
+  @Override
+  public void subscribe(final String topic, Runnable listener) {
+    boolean watched = local.hasListeners(topic);
+    local.subscribe(topic, listener);
+    if (!watched)
+      watch(topic);
+  }
+
+  /*
+   * @returns Stat - of the topic's znode, null if absent or on error
+   */
+  private Stat watch(final String topic) {
+    if (closed)
+      return null;
+    try {
+      return client.checkExists().usingWatcher(new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+          // connection events leave the watch in place
+          if (event.getType() != Watcher.Event.EventType.None)
+            onChange(topic);
+        }
+      }).forPath(getPath(topic));
+    } catch (Exception e) {
+      LOG.warn("Could not watch [" + getPath(topic) + "]", e);
+      return null;
+    }
+  }
+
+  private void onChange(String topic) {
+    // rewatch before notifying so that no bump goes unseen
+    Stat stat = watch(topic);
+    if (closed)
+      return;
+    Integer own = ownVersions.get(topic);
+    if (stat != null && own != null && own.intValue() == stat.getVersion())
+      return;
+    local.trigger(topic);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    local.close();
+  }
+}
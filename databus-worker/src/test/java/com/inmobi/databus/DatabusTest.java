@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.purge.DataPurgerService;
+import com.inmobi.databus.zookeeper.CuratorLeaderManager;
+import com.netflix.curator.framework.state.ConnectionState;
+
+@Test
+public class DatabusTest {
+
+  public void testWarmStandby() throws Exception {
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put(DatabusConfigParser.STANDBY_REFRESH_IN_MS, "10");
+    DatabusConfig config = new DatabusConfig(new HashMap<String, Stream>(),
+        new HashMap<String, Cluster>(), defaults);
+    Databus databus = new Databus(config, new HashSet<String>());
+    databus.standby();
+    Assert.assertNull(databus.getScheduler());
+    Thread.sleep(50);
+    databus.promote();
+    ServiceScheduler scheduler = databus.getScheduler();
+    Assert.assertNotNull(scheduler);
+    databus.demote();
+    // the scheduler is kept for the next leadership term
+    databus.promote();
+    Assert.assertSame(databus.getScheduler(), scheduler);
+    databus.demote();
+    databus.stop();
+    databus.awaitStop();
+    databus.join();
+    // not promoted once stopped
+    databus.promote();
+  }
+
+  /*
+   * Leader manager of a connection driven by the test
+   */
+  private static class BlipLeaderManager extends CuratorLeaderManager {
+    private volatile long sessionId = 1;
+    private volatile long lastContactTime = System.currentTimeMillis();
+
+    BlipLeaderManager(Databus databus) {
+      super(databus, "blip", "localhost:2181");
+    }
+
+    @Override
+    protected long getSessionId() {
+      return sessionId;
+    }
+
+    @Override
+    protected long getSessionTimeoutInMs() {
+      return 3000;
+    }
+
+    @Override
+    protected long getLastContactTime() {
+      return lastContactTime;
+    }
+  }
+
+  private Thread lead(final CuratorLeaderManager manager,
+      Databus databus) throws Exception {
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          manager.takeLeadership(null);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    leader.start();
+    long start = System.currentTimeMillis();
+    while (!(databus.isLeader() && databus.getScheduler() != null)
+        && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(databus.isLeader());
+    return leader;
+  }
+
+  public void testConnectionBlip() throws Exception {
+    String rootDir = "/tmp/test-databus/blip";
+    FileSystem.getLocal(new Configuration()).delete(new Path(rootDir), true);
+    Map<String, String> clusterConfiguration = new HashMap<String, String>();
+    clusterConfiguration.put(DatabusConfigParser.NAME, "cluster1");
+    clusterConfiguration.put(DatabusConfigParser.ROOTDIR, rootDir + "/data");
+    clusterConfiguration.put(DatabusConfigParser.JT_URL, "local");
+    clusterConfiguration.put(DatabusConfigParser.HDFS_URL, "file:///");
+    clusterConfiguration.put(DatabusConfigParser.JOB_QUEUE_NAME, "default");
+    Map<String, Cluster> clusters = new HashMap<String, Cluster>();
+    clusters.put("cluster1", new Cluster(clusterConfiguration));
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put(DatabusConfigParser.STANDBY_REFRESH_IN_MS, "10");
+    defaults.put(DatabusConfigParser.RETENTION_IN_HOURS, "24");
+    defaults.put(DatabusConfigParser.TRASH_RETENTION_IN_HOURS, "24");
+    DatabusConfig config = new DatabusConfig(new HashMap<String, Stream>(),
+        clusters, defaults);
+    Databus databus = new Databus(config, Collections.singleton("cluster1"));
+    String checkpointDir = rootDir + "/checkpoint";
+    databus.setCheckpointProvider(FSCheckpointProvider.class.getName(),
+        checkpointDir);
+    BlipLeaderManager manager = new BlipLeaderManager(databus);
+    manager.setWarmStandby(databus);
+    manager.addLeadershipListener(databus);
+    databus.standby();
+
+    Thread leader = lead(manager, databus);
+    CheckpointProvider checkpoints = null;
+    for (AbstractService service : databus.getServices()) {
+      if (service instanceof DataPurgerService)
+        checkpoints = service.checkpointProvider;
+    }
+    checkpoints.checkpoint("blip", "1".getBytes());
+
+    // reconnected within the session, the leadership is kept; SUSPENDED
+    // comes a read timeout, 2/3 of the session timeout, after last contact
+    manager.sessionId = 0;
+    manager.lastContactTime = System.currentTimeMillis() - 2000;
+    manager.stateChanged(null, ConnectionState.SUSPENDED);
+    Thread.sleep(200);
+    manager.sessionId = 1;
+    manager.stateChanged(null, ConnectionState.RECONNECTED);
+    Thread.sleep(1500);
+    Assert.assertTrue(leader.isAlive());
+    Assert.assertTrue(databus.isLeader());
+
+    // not reconnected, released before the server can expire the session
+    long lastContact = System.currentTimeMillis() - 2000;
+    manager.sessionId = 0;
+    manager.lastContactTime = lastContact;
+    manager.stateChanged(null, ConnectionState.SUSPENDED);
+    leader.join(10000);
+    Assert.assertFalse(leader.isAlive());
+    Assert.assertTrue(System.currentTimeMillis() - lastContact < 3000);
+    Assert.assertFalse(databus.isLeader());
+    // fenced, a run still in progress could neither commit nor checkpoint
+    for (AbstractService service : databus.getServices()) {
+      Assert.assertTrue(service.isFenced());
+    }
+    checkpoints.checkpoint("blip", "stale".getBytes());
+
+    // the next leader moved the checkpoint, promotion reads it
+    new FSCheckpointProvider(checkpointDir + "/cluster1/"
+        + DataPurgerService.CHECKPOINT_NAME).checkpoint("blip",
+        "2".getBytes());
+    manager.sessionId = 2;
+    manager.stateChanged(null, ConnectionState.RECONNECTED);
+    leader = lead(manager, databus);
+    Assert.assertEquals(new String(checkpoints.read("blip")), "2");
+
+    manager.sessionId = 0;
+    manager.lastContactTime = 0;
+    manager.stateChanged(null, ConnectionState.LOST);
+    leader.join(10000);
+    databus.stop();
+    databus.join();
+    FileSystem.getLocal(new Configuration()).delete(new Path(rootDir), true);
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ServiceSchedulerTest {
+
+  private static class SleepingService extends AbstractService {
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+    private final CountDownLatch runs;
+    private final AtomicInteger overlaps = new AtomicInteger();
+    private volatile boolean inRun = false;
+    private final long sleepInMs;
+
+    SleepingService(String name, DatabusConfig config, AtomicInteger running,
+        AtomicInteger maxRunning, CountDownLatch runs) {
+      this(name, config, 10, 20, running, maxRunning, runs);
+    }
+
+    SleepingService(String name, DatabusConfig config, long intervalInMs,
+        long sleepInMs, AtomicInteger running, AtomicInteger maxRunning,
+        CountDownLatch runs) {
+      super(name, config, intervalInMs);
+      this.sleepInMs = sleepInMs;
+      this.running = running;
+      this.maxRunning = maxRunning;
+      this.runs = runs;
+    }
+
+    @Override
+    public String getServiceType() {
+      return "sleeping";
+    }
+
+    @Override
+    public long getMSecondsTillNextRun(long currentTime) {
+      return 10;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+      if (inRun)
+        overlaps.incrementAndGet();
+      inRun = true;
+      int now = running.incrementAndGet();
+      int max;
+      while ((max = maxRunning.get()) < now
+          && !maxRunning.compareAndSet(max, now))
+        ;
+      Thread.sleep(sleepInMs);
+      running.decrementAndGet();
+      inRun = false;
+      runs.countDown();
+    }
+  }
+
+  private DatabusConfig getConfig(Map<String, String> defaults) {
+    return new DatabusConfig(null, null, defaults);
+  }
+
+  public void testTypeConcurrency() throws Exception {
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put(DatabusConfigParser.SCHEDULER_THREADS, "4");
+    defaults.put("sleeping" + DatabusConfigParser.CONCURRENCY_SUFFIX, "1");
+    DatabusConfig config = getConfig(defaults);
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch runs = new CountDownLatch(6);
+    SleepingService[] services = new SleepingService[3];
+    for (int i = 0; i < services.length; i++) {
+      services[i] = new SleepingService("service" + i, config, running,
+          maxRunning, runs);
+      scheduler.schedule(services[i]);
+    }
+    Assert.assertTrue(runs.await(30, TimeUnit.SECONDS));
+    for (SleepingService service : services) {
+      service.stop();
+    }
+    scheduler.stop();
+    scheduler.join();
+    Assert.assertEquals(maxRunning.get(), 1);
+    long totalRuns = 0;
+    for (ServiceScheduler.RunStats stats : scheduler.getStats().values()) {
+      totalRuns += stats.getRuns();
+    }
+    Assert.assertTrue(totalRuns >= 6);
+  }
+
+  public void testNoOverlap() throws Exception {
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put(DatabusConfigParser.SCHEDULER_THREADS, "4");
+    DatabusConfig config = getConfig(defaults);
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    CountDownLatch runs = new CountDownLatch(5);
+    SleepingService service = new SleepingService("service", config,
+        new AtomicInteger(), new AtomicInteger(), runs);
+    scheduler.schedule(service);
+    Assert.assertTrue(runs.await(30, TimeUnit.SECONDS));
+    scheduler.stop();
+    scheduler.join();
+    Assert.assertEquals(service.overlaps.get(), 0);
+    Assert.assertTrue(service.getStageMetrics().getStages().get(
+        AbstractService.STAGE_RUN).getCount() >= 5);
+  }
+
+  public void testNextSlot() {
+    Assert.assertEquals(ServiceScheduler.nextSlot(1000, 100, 30), 1030);
+    Assert.assertEquals(ServiceScheduler.nextSlot(1030, 100, 30), 1030);
+    Assert.assertEquals(ServiceScheduler.nextSlot(1031, 100, 30), 1130);
+  }
+
+  private ServiceScheduler.RunStats runOverrunning(String policy,
+      int catchUpLimit) throws Exception {
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put("sleeping" + DatabusConfigParser.OVERRUN_POLICY_SUFFIX,
+        policy);
+    defaults.put("sleeping" + DatabusConfigParser.CATCHUP_LIMIT_SUFFIX,
+        String.valueOf(catchUpLimit));
+    DatabusConfig config = getConfig(defaults);
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    CountDownLatch runs = new CountDownLatch(6);
+    // every run takes over two intervals
+    SleepingService service = new SleepingService("service", config, 50,
+        120, new AtomicInteger(), new AtomicInteger(), runs);
+    scheduler.schedule(service);
+    Assert.assertTrue(runs.await(30, TimeUnit.SECONDS));
+    service.stop();
+    scheduler.stop();
+    scheduler.join();
+    return scheduler.getStats().get("service");
+  }
+
+  public void testOverrunPolicies() throws Exception {
+    ServiceScheduler.RunStats skip = runOverrunning("skip", 0);
+    Assert.assertTrue(skip.getSkippedRuns() >= 2 * (skip.getRuns() - 1));
+
+    ServiceScheduler.RunStats coalesce = runOverrunning("coalesce", 0);
+    Assert.assertTrue(coalesce.getSkippedRuns() >= coalesce.getRuns() - 1);
+    // coalesced runs start right after the overrun
+    Assert.assertTrue(coalesce.getMaxLagInMs() < 120);
+
+    // catching up on every missed slot falls further behind
+    ServiceScheduler.RunStats catchUp = runOverrunning("catchup", 1000);
+    Assert.assertEquals(catchUp.getSkippedRuns(), 0);
+    Assert.assertTrue(catchUp.getMaxLagInMs() >= 200);
+  }
+
+  public void testUnschedule() throws Exception {
+    DatabusConfig config = getConfig(new HashMap<String, String>());
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    AtomicInteger running = new AtomicInteger();
+    CountDownLatch runs = new CountDownLatch(2);
+    SleepingService service = new SleepingService("service", config, 10, 100,
+        running, new AtomicInteger(), runs);
+    scheduler.schedule(service);
+    while (running.get() == 0) {
+      Thread.sleep(1);
+    }
+    // waits for the run in progress
+    Assert.assertTrue(scheduler.unschedule(service));
+    Assert.assertEquals(running.get(), 0);
+    Assert.assertFalse(scheduler.isScheduled(service));
+    long count = runs.getCount();
+    Thread.sleep(200);
+    Assert.assertEquals(runs.getCount(), count);
+    Assert.assertFalse(scheduler.unschedule(service));
+    // runs again once scheduled again
+    scheduler.schedule(service);
+    Assert.assertTrue(runs.await(30, TimeUnit.SECONDS));
+    scheduler.stop();
+    scheduler.join();
+    Assert.assertTrue(scheduler.getStats().get("service").getRuns() >= 2);
+  }
+
+  public void testRunThrowingError() throws Exception {
+    DatabusConfig config = getConfig(new HashMap<String, String>());
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    CountDownLatch runs = new CountDownLatch(2);
+    final AtomicInteger errors = new AtomicInteger();
+    SleepingService service = new SleepingService("service", config,
+        new AtomicInteger(), new AtomicInteger(), runs) {
+      @Override
+      protected void execute() throws Exception {
+        if (errors.getAndIncrement() == 0)
+          throw new AssertionError("first run");
+        super.execute();
+      }
+    };
+    scheduler.schedule(service);
+    // scheduled again after the error
+    Assert.assertTrue(runs.await(30, TimeUnit.SECONDS));
+    Assert.assertTrue(scheduler.unschedule(service));
+    scheduler.stop();
+    scheduler.join();
+  }
+
+  public void testTrigger() throws Exception {
+    DatabusConfig config = getConfig(new HashMap<String, String>());
+    ServiceScheduler scheduler = new ServiceScheduler(config);
+    CountDownLatch runs = new CountDownLatch(3);
+    // without triggers the second run would be an hour away
+    final SleepingService service = new SleepingService("service", config,
+        3600000, 10, new AtomicInteger(), new AtomicInteger(), runs);
+    final ServiceScheduler current = scheduler;
+    TriggerChannel channel = new LocalTriggerChannel();
+    channel.subscribe("topic", new Runnable() {
+      @Override
+      public void run() {
+        current.trigger(service);
+      }
+    });
+    scheduler.schedule(service);
+    long start = System.currentTimeMillis();
+    while (runs.getCount() > 0
+        && System.currentTimeMillis() - start < 30000) {
+      channel.trigger("topic");
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(runs.getCount(), 0);
+    service.stop();
+    scheduler.stop();
+    scheduler.join();
+    channel.close();
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.distcp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.ClusterTest;
+import com.inmobi.databus.TransferPolicy;
+
+@Test
+public class TransferGovernorTest {
+
+  /*
+   * Records the waiters woken by the governor
+   */
+  private static class Wakeups {
+    private final List<String> woken = new ArrayList<String>();
+
+    Runnable onReady(final String waiter) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          synchronized (woken) {
+            woken.add(waiter);
+            woken.notifyAll();
+          }
+        }
+      };
+    }
+
+    List<String> get() {
+      synchronized (woken) {
+        return new ArrayList<String>(woken);
+      }
+    }
+
+    void await(int count, long timeoutInMs) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutInMs;
+      synchronized (woken) {
+        while (woken.size() < count && System.currentTimeMillis() < deadline)
+          woken.wait(100);
+      }
+    }
+  }
+
+  public void testPairLimits() throws Exception {
+    Cluster remote = ClusterTest.buildLocalCluster("remote", null, null);
+    Cluster local = ClusterTest.buildLocalCluster("local", null, null);
+    local.addTransferPolicy(new TransferPolicy("remote", 10));
+    TransferGovernor governor = new TransferGovernor(0);
+
+    TransferGovernor.Permit first = governor.tryAcquire("first", remote,
+        local, 0, 6, null);
+    Assert.assertEquals(first.getCopyStreams(), 6);
+    // only what's left for the pair is granted
+    TransferGovernor.Permit second = governor.tryAcquire("second", remote,
+        local, 0, 6, null);
+    Assert.assertEquals(second.getCopyStreams(), 4);
+    governor.release(first);
+    governor.release(second);
+    Assert.assertEquals(governor.getCopyStreamsInUse(), 0);
+
+    // pulls from another remote are unlimited
+    Cluster other = ClusterTest.buildLocalCluster("other", null, null);
+    TransferGovernor.Permit unlimited = governor.tryAcquire("other", other,
+        local, 0, 20, null);
+    Assert.assertEquals(unlimited.getCopyStreams(), 20);
+    governor.release(unlimited);
+  }
+
+  public void testFullPairDoesNotBlockOthers() throws Exception {
+    Cluster remote = ClusterTest.buildLocalCluster("remote", null, null);
+    Cluster local = ClusterTest.buildLocalCluster("local", null, null);
+    local.addTransferPolicy(new TransferPolicy("remote", 1));
+    TransferGovernor governor = new TransferGovernor(10);
+    Wakeups wakeups = new Wakeups();
+
+    TransferGovernor.Permit held = governor.tryAcquire("held", remote, local,
+        0, 1, null);
+    // the waiter queues up for the full pair without blocking
+    Assert.assertNull(governor.tryAcquire("waiter", remote, local, 0, 1,
+        wakeups.onReady("waiter")));
+    // a lower priority pull of another pair isn't queued behind it
+    Cluster other = ClusterTest.buildLocalCluster("other", null, null);
+    TransferGovernor.Permit permit = governor.tryAcquire("other", other,
+        local, 5, 4, null);
+    Assert.assertEquals(permit.getCopyStreams(), 4);
+    governor.release(permit);
+    Assert.assertTrue(wakeups.get().isEmpty());
+
+    governor.release(held);
+    Assert.assertEquals(wakeups.get().size(), 1);
+    TransferGovernor.Permit woken = governor.tryAcquire("waiter", remote,
+        local, 0, 1, null);
+    Assert.assertEquals(woken.getCopyStreams(), 1);
+    governor.release(woken);
+    Assert.assertEquals(governor.getCopyStreamsInUse(), 0);
+  }
+
+  public void testPriority() throws Exception {
+    Cluster remote = ClusterTest.buildLocalCluster("remote", null, null);
+    Cluster local = ClusterTest.buildLocalCluster("local", null, null);
+    TransferGovernor governor = new TransferGovernor(1);
+    Wakeups wakeups = new Wakeups();
+
+    TransferGovernor.Permit held = governor.tryAcquire("held", remote, local,
+        0, 1, null);
+    Assert.assertNull(governor.tryAcquire("low", remote, local, 3, 1,
+        wakeups.onReady("low")));
+    Assert.assertNull(governor.tryAcquire("high", remote, local, 1, 1,
+        wakeups.onReady("high")));
+    // the low priority waiter can't jump the queue when it asks again
+    Assert.assertNull(governor.tryAcquire("low", remote, local, 3, 1,
+        wakeups.onReady("low")));
+
+    governor.release(held);
+    Assert.assertEquals(wakeups.get(), Arrays.asList("high"));
+    Assert.assertNull(governor.tryAcquire("low", remote, local, 3, 1,
+        wakeups.onReady("low")));
+    TransferGovernor.Permit high = governor.tryAcquire("high", remote, local,
+        1, 1, null);
+    Assert.assertNotNull(high);
+    governor.release(high);
+    Assert.assertEquals(wakeups.get(), Arrays.asList("high",
+        "low"));
+    governor.release(governor.tryAcquire("low", remote, local, 3, 1, null));
+    Assert.assertEquals(governor.getCopyStreamsInUse(), 0);
+  }
+
+  public void testCancel() throws Exception {
+    Cluster remote = ClusterTest.buildLocalCluster("remote", null, null);
+    Cluster local = ClusterTest.buildLocalCluster("local", null, null);
+    TransferGovernor governor = new TransferGovernor(1);
+    Wakeups wakeups = new Wakeups();
+
+    TransferGovernor.Permit held = governor.tryAcquire("held", remote, local,
+        0, 1, null);
+    Assert.assertNull(governor.tryAcquire("stopped", remote, local, 0, 1,
+        wakeups.onReady("stopped")));
+    Assert.assertNull(governor.tryAcquire("next", remote, local, 0, 1,
+        wakeups.onReady("next")));
+    governor.cancel("stopped");
+    governor.release(held);
+    Assert.assertEquals(wakeups.get(), Arrays.asList("next"));
+  }
+
+  public void testBandwidth() throws Exception {
+    Cluster remote = ClusterTest.buildLocalCluster("remote", null, null);
+    Cluster local = ClusterTest.buildLocalCluster("local", null, null);
+    local.addTransferPolicy(new TransferPolicy("remote", 0, 1));
+    TransferGovernor governor = new TransferGovernor(0);
+    Wakeups wakeups = new Wakeups();
+
+    TransferGovernor.Permit first = governor.tryAcquire("first", remote,
+        local, 0, 1, null);
+    Assert.assertTrue(first.hasBandwidth());
+    // 2MB at 1MBps hold the pair back for 2 seconds
+    governor.release(first, 2 * 1024 * 1024);
+    Assert.assertNull(governor.tryAcquire("second", remote, local, 0, 1,
+        wakeups.onReady("second")));
+    // pulls from other remotes aren't held back
+    Cluster other = ClusterTest.buildLocalCluster("other", null, null);
+    governor.release(governor.tryAcquire("other", other, local, 0, 1, null));
+
+    wakeups.await(1, 10000);
+    Assert.assertEquals(wakeups.get(), Arrays.asList("second"));
+    TransferGovernor.Permit second = governor.tryAcquire("second", remote,
+        local, 0, 1, null);
+    Assert.assertNotNull(second);
+    governor.release(second);
+  }
+}
@@ -17,7 +17,6 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
@@ -517,21 +516,17 @@ public class LocalStreamServiceTest extends TestMiniClusterUtil {
                   + files[j] + ".gz")));
             }
 
-            Path checkpointfile = new Path(checkpointpath + File.separator
-                + sstream.getValue().getName() + cluster.getName() + ".ck");
+            String checkpointkey = sstream.getValue().getName()
+                + cluster.getName();
 
-            LOG.debug("Checking for Checkpoint File: " + checkpointfile);
+            LOG.debug("Checking for Checkpoint: " + checkpointkey);
 
-            Assert.assertTrue(fs.exists(checkpointfile));
-
-            BufferedInputStream in = new BufferedInputStream(
-                fs.open(checkpointfile));
-            byte[] buffer = new byte[in.available()];
-            in.read(buffer);
+            byte[] buffer = new FSCheckpointProvider(checkpointpath)
+                .read(checkpointkey);
+            Assert.assertNotNull(buffer);
             String checkpoint = new String(buffer);
-            in.close();
 
-            LOG.debug("Checkpoint for " + checkpointfile + " is " + checkpoint);
+            LOG.debug("Checkpoint for " + checkpointkey + " is " + checkpoint);
 
             LOG.debug("Comparing Checkpoint " + checkpoint + " and "
                 + files[NUM_OF_FILES - 1]);
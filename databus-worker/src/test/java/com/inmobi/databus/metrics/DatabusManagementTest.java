@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.Databus;
+import com.inmobi.databus.DatabusConfig;
+
+@Test
+public class DatabusManagementTest {
+
+  private static class FailingService extends AbstractService {
+    FailingService(DatabusConfig config) {
+      super("failing", config);
+    }
+
+    @Override
+    public long getMSecondsTillNextRun(long currentTime) {
+      return 0;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+      long start = startStage();
+      addProcessed(2, 100);
+      stopStage("copy", "stream1", start);
+      throw new Exception("failed");
+    }
+  }
+
+  public void testServiceBean() throws Exception {
+    DatabusConfig config = new DatabusConfig(null, null,
+        new HashMap<String, String>());
+    Databus databus = new Databus(config, new HashSet<String>());
+    DatabusManagement management = new DatabusManagement(databus);
+    FailingService service = new FailingService(config);
+    management.register();
+    management.register(service);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = DatabusManagement.getObjectName(service);
+    try {
+      Assert.assertEquals(server.getAttribute(new ObjectName(
+          DatabusManagement.DOMAIN + ":type=Databus"), "Leader"), false);
+      service.runIteration();
+      service.runIteration();
+      Assert.assertEquals(server.getAttribute(name, "ConsecutiveFailures"),
+          2);
+      Assert.assertEquals(server.getAttribute(name, "FilesProcessed"), 4L);
+      Assert.assertEquals(server.getAttribute(name, "LastSuccessTime"), -1L);
+      Assert.assertTrue((Long) server.getAttribute(name, "LastRunEndTime")
+          > 0);
+
+      server.invoke(name, "pause", null, null);
+      Assert.assertTrue(service.isPaused());
+      // paused runs are skipped
+      service.runIteration();
+      Assert.assertEquals(service.getConsecutiveFailures(), 2);
+      server.invoke(name, "resume", null, null);
+      Assert.assertFalse(service.isPaused());
+      // without a scheduler a trigger does nothing
+      server.invoke(name, "triggerRun", null, null);
+    } finally {
+      management.unregister();
+    }
+    Assert.assertFalse(server.isRegistered(name));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.metrics;
+
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class HistogramTest {
+
+  public void testBuckets() {
+    int last = -1;
+    for (long value = 0; value < 1 << 20; value++) {
+      int bucket = Histogram.getBucket(value);
+      Assert.assertTrue(bucket == last || bucket == last + 1);
+      Assert.assertTrue(Histogram.getHighestValue(bucket) >= value);
+      last = bucket;
+    }
+    Assert.assertEquals(Histogram.getBucket(Long.MAX_VALUE),
+        Histogram.BUCKETS - 1);
+  }
+
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    Assert.assertEquals(histogram.getValueAtPercentile(99), 0);
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value);
+    }
+    Assert.assertEquals(histogram.getCount(), 10000);
+    Assert.assertEquals(histogram.getMax(), 10000);
+    assertWithin(histogram.getValueAtPercentile(50), 5000);
+    assertWithin(histogram.getValueAtPercentile(99), 9900);
+    Assert.assertEquals(histogram.getValueAtPercentile(100), 10000);
+    Assert.assertEquals(histogram.getCountAtOrBelow(31), 31);
+  }
+
+  private void assertWithin(long actual, long expected) {
+    Assert.assertTrue(actual >= expected && actual <= expected * 1.07,
+        actual + " not within 7% of " + expected);
+  }
+
+  public void testStageMetrics() {
+    StageMetrics metrics = new StageMetrics();
+    metrics.record("commit", 10);
+    metrics.record("commit", 20);
+    metrics.record("commit", "stream1", 5);
+    metrics.record("commit", "stream2", 7);
+    Assert.assertEquals(metrics.getStages().get("commit").getCount(), 2);
+    Map<String, Histogram> streams = metrics.getStreamStages().get("commit");
+    Assert.assertEquals(streams.size(), 2);
+    Assert.assertEquals(streams.get("stream2").getMax(), 7);
+  }
+}
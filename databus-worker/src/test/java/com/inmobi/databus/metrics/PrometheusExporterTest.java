@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.AbstractService;
+import com.inmobi.databus.Databus;
+import com.inmobi.databus.DatabusConfig;
+
+@Test
+public class PrometheusExporterTest {
+
+  private static class CopyService extends AbstractService {
+    CopyService(DatabusConfig config) {
+      super("copy\"service", config);
+    }
+
+    @Override
+    public long getMSecondsTillNextRun(long currentTime) {
+      return 0;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+      long start = startStage();
+      addProcessed("stream1", 3, 300);
+      stopStage("copy", "stream1", start);
+      long now = System.currentTimeMillis();
+      recordFreshness(TIER_LOCAL, "stream1", now - 2000, now);
+      checkpointed();
+    }
+  }
+
+  private Databus getDatabus() {
+    return new Databus(new DatabusConfig(null, null,
+        new HashMap<String, String>()), new HashSet<String>());
+  }
+
+  public void testRender() throws Exception {
+    Databus databus = getDatabus();
+    PrometheusExporter exporter = new PrometheusExporter(databus);
+    CopyService service = new CopyService(databus.getConfig());
+    service.runIteration();
+    StringBuilder out = new StringBuilder();
+    exporter.render(out, Collections.<AbstractService> singletonList(
+        service));
+    String text = out.toString();
+    String labels = "service=\"copy\\\"service\",type=\"copy\"";
+    Assert.assertTrue(text.contains("databus_leader 0\n"), text);
+    Assert.assertTrue(text.contains("databus_files_processed_total{" + labels
+        + "} 3\n"), text);
+    Assert.assertTrue(text.contains("databus_stream_bytes_processed_total{"
+        + labels + ",stream=\"stream1\"} 300\n"), text);
+    Assert.assertTrue(text.contains("databus_stage_duration_seconds_count{"
+        + labels + ",stage=\"run\"} 1\n"), text);
+    Assert.assertTrue(text.contains("databus_stream_stage_duration_seconds{"
+        + labels + ",stage=\"copy\",stream=\"stream1\",quantile=\"0.99\"}"),
+        text);
+    Assert.assertTrue(text.contains("databus_freshness_lag_seconds_sum{"
+        + labels + ",tier=\"local\",stream=\"stream1\"} 2.0\n"), text);
+    Assert.assertTrue(text.contains("databus_checkpoint_lag_seconds{"
+        + labels + "}"), text);
+    // every sample belongs to the family of the preceding TYPE line
+    String family = null;
+    for (String line : text.split("\n")) {
+      if (line.startsWith("# TYPE ")) {
+        family = line.split(" ")[2];
+      } else if (!line.startsWith("#")) {
+        Assert.assertNotNull(family);
+        Assert.assertTrue(line.startsWith(family), line);
+      }
+    }
+  }
+
+  public void testServer() throws Exception {
+    MetricsServer server = new MetricsServer(new PrometheusExporter(
+        getDatabus()), 0);
+    server.start();
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(
+          "http://localhost:" + server.getPort() + MetricsServer.PATH)
+          .openConnection();
+      Assert.assertEquals(connection.getResponseCode(), 200);
+      Assert.assertTrue(connection.getContentType().startsWith("text/plain"));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          connection.getInputStream(), "UTF-8"));
+      boolean found = false;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        found |= line.equals("databus_leader 0");
+      }
+      reader.close();
+      Assert.assertTrue(found);
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.Cluster;
+import com.inmobi.databus.DatabusConfig;
+import com.inmobi.databus.DatabusConfigParser;
+import com.inmobi.databus.local.LocalStreamServiceTest;
+import com.inmobi.databus.utils.CalendarHelper;
+import com.inmobi.databus.utils.CompactionIndex;
+
+@Test
+public class CompactionServiceTest {
+
+  private class TestCompactionService extends CompactionService {
+    public TestCompactionService(DatabusConfig config, Cluster cluster)
+        throws Exception {
+      super(config, cluster);
+    }
+
+    public void runOnce() throws Exception {
+      super.execute();
+    }
+  }
+
+  public void testCompaction() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "compactiontest", "48", "24");
+    config.getDefaults().put(DatabusConfigParser.COMPACTION_AGE_IN_HOURS, "2");
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+
+    long hour = 60 * 60 * 1000;
+    long now = System.currentTimeMillis();
+    Path streamRoot = new Path(cluster.getFinalDestDirRoot() + "testStream");
+    Path oldHour = new Path(streamRoot,
+        CalendarHelper.getDateAsYYYYMMDDHHPath(now - 5 * hour));
+    Path latestHour = new Path(streamRoot,
+        CalendarHelper.getDateAsYYYYMMDDHHPath(now));
+    for (int minute = 0; minute < 3; minute++) {
+      for (int file = 0; file < 2; file++) {
+        FSDataOutputStream out = fs.create(new Path(oldHour, String.format(
+            "%02d/collector-testStream-%d.gz", minute, file)));
+        out.writeBytes("minute " + minute + " file " + file);
+        out.close();
+      }
+    }
+    fs.mkdirs(new Path(latestHour, "00"));
+
+    new TestCompactionService(config, cluster).runOnce();
+
+    Assert.assertTrue(CompactionIndex.isCompacted(fs, oldHour));
+    Assert.assertFalse(fs.exists(new Path(oldHour, "00")));
+    Assert.assertFalse(CompactionIndex.isCompacted(fs, latestHour));
+    List<CompactionIndex.Entry> entries = CompactionIndex.read(fs, oldHour);
+    Assert.assertEquals(entries.size(), 6);
+    List<CompactionIndex.Entry> minute1 = CompactionIndex.getMinute(entries, 1);
+    Assert.assertEquals(minute1.size(), 2);
+    Assert.assertEquals(minute1.get(1).getSourceName(),
+        "collector-testStream-1.gz");
+    InputStream in = CompactionIndex.open(fs, oldHour, minute1.get(1));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    IOUtils.copyBytes(in, bytes, 4096, true);
+    Assert.assertEquals(bytes.toString(), "minute 1 file 1");
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+
+  public void testClaimedHour() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "compactionclaimtest", "48", "24");
+    config.getDefaults().put(DatabusConfigParser.COMPACTION_AGE_IN_HOURS, "2");
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+
+    long hour = 60 * 60 * 1000;
+    long now = System.currentTimeMillis();
+    Path streamRoot = new Path(cluster.getFinalDestDirRoot() + "testStream")
+        .makeQualified(fs);
+    Calendar start = new GregorianCalendar();
+    start.setTimeInMillis(now - 5 * hour);
+    start.set(Calendar.MINUTE, 0);
+    start.set(Calendar.SECOND, 0);
+    start.set(Calendar.MILLISECOND, 0);
+    long oldHourStart = start.getTimeInMillis();
+    Path oldHour = StreamHours.getHourDir(streamRoot, oldHourStart);
+    FSDataOutputStream out = fs.create(new Path(oldHour,
+        "00/collector-testStream-0.gz"));
+    out.writeBytes("minute 0 file 0");
+    out.close();
+    fs.mkdirs(new Path(streamRoot, CalendarHelper.getDateAsYYYYMMDDHHPath(now)
+        + "00"));
+
+    // tiering holds the hour
+    HourClaims tiering = new HourClaims(fs, cluster, "tiering");
+    Assert.assertTrue(tiering.claim(streamRoot, oldHourStart));
+    TestCompactionService service = new TestCompactionService(config,
+        cluster);
+    service.runOnce();
+    Assert.assertFalse(CompactionIndex.isCompacted(fs, oldHour));
+    // the run drops only its own claims
+    Assert.assertFalse(new HourClaims(fs, cluster, service.getName()).claim(
+        streamRoot, oldHourStart));
+
+    tiering.release(streamRoot, oldHourStart);
+    service.runOnce();
+    Assert.assertTrue(CompactionIndex.isCompacted(fs, oldHour));
+    // the claim was released after the swap
+    Assert.assertTrue(tiering.claim(streamRoot, oldHourStart));
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+}
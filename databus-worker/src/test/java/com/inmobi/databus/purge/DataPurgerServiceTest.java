@@ -28,9 +28,12 @@ import org.apache.log4j.Logger;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.inmobi.databus.CheckpointProvider;
 import com.inmobi.databus.Cluster;
 import com.inmobi.databus.DatabusConfig;
 import com.inmobi.databus.DatabusConfigParser;
+import com.inmobi.databus.FSCheckpointProvider;
+import com.inmobi.databus.TierPolicy;
 import com.inmobi.databus.local.LocalStreamServiceTest;
 import com.inmobi.databus.utils.CalendarHelper;
 
@@ -128,6 +131,11 @@ public class DataPurgerServiceTest {
       super(config, cluster);
     }
 
+    public TestDataPurgerService(DatabusConfig config, Cluster cluster,
+        CheckpointProvider provider) throws Exception {
+      super(config, cluster, provider);
+    }
+
     public void runOnce() throws Exception {
       super.execute();
     }
@@ -180,6 +188,163 @@ public class DataPurgerServiceTest {
     }
   }
 
+  public void testRetentionBoundary() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "datapurgerboundary", "48", "24");
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    TestDataPurgerService service = new TestDataPurgerService(config, cluster);
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+
+    // testStream is retained for 24 hours
+    String streamRoot = cluster.getLocalFinalDestDirRoot() + "testStream"
+        + File.separator;
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    Path oldYear = new Path(streamRoot + "2000");
+    Path expired = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 30 * hour));
+    Path retained = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 20 * hour));
+    Path current = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now));
+    fs.mkdirs(new Path(oldYear, "01/01/00"));
+    fs.mkdirs(expired);
+    fs.mkdirs(retained);
+    fs.mkdirs(current);
+
+    service.runOnce();
+
+    Assert.assertFalse(fs.exists(oldYear));
+    Assert.assertFalse(fs.exists(expired));
+    Assert.assertTrue(fs.exists(retained));
+    Assert.assertTrue(fs.exists(current));
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+
+  public void testArchiveTier() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "datapurgertier", "48", "24");
+    config.getAllStreams().get("testStream").setTierPolicy(
+        new TierPolicy(1, (short) 1, 3, null));
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    TestDataPurgerService service = new TestDataPurgerService(config, cluster);
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    String oldHour = "testStream" + File.separator
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 5 * hour);
+    String recentHour = "testStream" + File.separator
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 2 * hour);
+    String currentHour = "testStream" + File.separator
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now);
+    fs.mkdirs(new Path(cluster.getLocalFinalDestDirRoot() + oldHour + "00"));
+    fs.mkdirs(new Path(cluster.getLocalFinalDestDirRoot() + recentHour + "00"));
+    fs.mkdirs(new Path(cluster.getLocalFinalDestDirRoot() + currentHour));
+
+    service.runOnce();
+
+    String archiveRoot = cluster.getArchiveDirRoot() + "streams_local"
+        + File.separator;
+    Assert.assertFalse(fs.exists(new Path(cluster.getLocalFinalDestDirRoot()
+        + oldHour)));
+    Assert.assertTrue(fs.exists(new Path(archiveRoot + oldHour + "00")));
+    Assert.assertTrue(fs.exists(new Path(cluster.getLocalFinalDestDirRoot()
+        + recentHour)));
+    Assert.assertTrue(fs.exists(new Path(cluster.getLocalFinalDestDirRoot()
+        + currentHour)));
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+
+  public void testTierWatermark() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "datapurgertierwatermark", "48", "24");
+    config.getAllStreams().get("testStream").setTierPolicy(
+        new TierPolicy(0, (short) 0, 3, null));
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+    CheckpointProvider provider = new FSCheckpointProvider(
+        cluster.getCheckpointDir());
+
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    String streamRoot = cluster.getLocalFinalDestDirRoot() + "testStream"
+        + File.separator;
+    Path oldHour = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 6 * hour) + "00");
+    fs.mkdirs(oldHour);
+    fs.mkdirs(new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now)));
+
+    new TestDataPurgerService(config, cluster, provider).runOnce();
+    Assert.assertFalse(fs.exists(oldHour));
+    Assert.assertNotNull(provider.read("tierarchive_streams_local_testStream"));
+
+    // committed behind the watermark, eg: by a lagging mirror, a restarted
+    // purger resumes from the watermark instead of the earliest hour
+    Path lateHour = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 5 * hour) + "00");
+    fs.mkdirs(lateHour);
+    new TestDataPurgerService(config, cluster, provider).runOnce();
+    Assert.assertTrue(fs.exists(lateHour));
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+
+  public void testPurgeWatermark() throws Exception {
+    DatabusConfig config = LocalStreamServiceTest.buildTestDatabusConfig(
+        "local", "file:///tmp", "datapurgerwatermark", "48", "24");
+    Cluster cluster = config.getAllClusters().get("cluster1");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(new Path(cluster.getRootDir()), true);
+    CheckpointProvider provider = new FSCheckpointProvider(
+        cluster.getCheckpointDir());
+    TestDataPurgerService service = new TestDataPurgerService(config, cluster,
+        provider);
+    String key = "purge_streams_local_testStream";
+    String streamRoot = cluster.getLocalFinalDestDirRoot() + "testStream"
+        + File.separator;
+    fs.mkdirs(new Path(streamRoot));
+
+    // without a watermark the first run walks the stream and sets one
+    service.runOnce();
+    Assert.assertNotNull(provider.read(key));
+
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    Calendar watermark = new GregorianCalendar();
+    watermark.setTimeInMillis(now - 30 * hour);
+    watermark.set(Calendar.MINUTE, 0);
+    watermark.set(Calendar.SECOND, 0);
+    watermark.set(Calendar.MILLISECOND, 0);
+    provider.checkpoint(key, Long.toString(watermark.getTimeInMillis())
+        .getBytes());
+    // behind the watermark, left for the daily full scan
+    Path oldYear = new Path(streamRoot + "2000");
+    Path expired = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 28 * hour));
+    Path retained = new Path(streamRoot
+        + CalendarHelper.getDateAsYYYYMMDDHHPath(now - 20 * hour));
+    fs.mkdirs(new Path(oldYear, "01/01/00"));
+    fs.mkdirs(expired);
+    fs.mkdirs(retained);
+
+    service.runOnce();
+
+    // of the hours between the watermark and the cutoff only the one
+    // which exists is purged
+    Assert.assertEquals(service.getBacklog(), 1);
+    Assert.assertTrue(fs.exists(oldYear));
+    Assert.assertFalse(fs.exists(expired));
+    Assert.assertTrue(fs.exists(retained));
+    long newWatermark = Long.parseLong(new String(provider.read(key)));
+    Assert.assertTrue(newWatermark > now - 25 * hour);
+    Assert.assertTrue(newWatermark <= now - 23 * hour);
+    fs.delete(new Path(cluster.getRootDir()), true);
+  }
+
   final static int NUM_OF_FILES = 35;
 
   private void createTestPurgefiles(FileSystem fs, Cluster cluster,
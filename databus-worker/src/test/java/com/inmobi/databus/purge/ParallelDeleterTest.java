@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.purge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ParallelDeleterTest {
+
+  public void testDelete() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path root = new Path("/tmp/paralleldeletertest");
+    fs.delete(root, true);
+    List<ParallelDeleter.Target> targets = new ArrayList<ParallelDeleter.Target>();
+    for (int hour = 0; hour < 10; hour++) {
+      Path path = new Path(root, "stream1/2012/01/01/" + hour);
+      fs.mkdirs(path);
+      targets.add(new ParallelDeleter.Target("stream1", path, hour,
+          ParallelDeleter.SPAN_HOUR));
+    }
+    Path year = new Path(root, "stream2/2011");
+    fs.mkdirs(new Path(year, "12/31/23"));
+    targets.add(new ParallelDeleter.Target("stream2", year, 0,
+        ParallelDeleter.SPAN_YEAR));
+
+    ParallelDeleter deleter = new ParallelDeleter(fs, 3, 0, 1000);
+    Map<String, ParallelDeleter.StreamReport> reports = deleter
+        .delete(targets);
+    Assert.assertEquals(reports.get("stream1").getDeleted(), 10);
+    Assert.assertEquals(reports.get("stream2").getDeleted(), 1);
+    Assert.assertTrue(reports.get("stream1").getFailed().isEmpty());
+    for (ParallelDeleter.Target target : targets) {
+      Assert.assertFalse(fs.exists(target.getPath()));
+    }
+    fs.delete(root, true);
+  }
+
+  public void testSlowDeletesThrottle() throws Exception {
+    FileSystem slowFs = new FilterFileSystem(FileSystem.getLocal(
+        new Configuration())) {
+      @Override
+      public boolean delete(Path path, boolean recursive) throws IOException {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new IOException(e.getMessage());
+        }
+        if (path.getName().equals("bad"))
+          throw new IOException("delete failed");
+        return true;
+      }
+    };
+    List<ParallelDeleter.Target> targets = new ArrayList<ParallelDeleter.Target>();
+    targets.add(new ParallelDeleter.Target("stream1", new Path("/tmp/ok"), 0,
+        ParallelDeleter.SPAN_HOUR));
+    targets.add(new ParallelDeleter.Target("stream1", new Path("/tmp/bad"), 1,
+        ParallelDeleter.SPAN_HOUR));
+    ParallelDeleter deleter = new ParallelDeleter(slowFs, 1, 100, 10);
+    Map<String, ParallelDeleter.StreamReport> reports = deleter
+        .delete(targets);
+    Assert.assertEquals(reports.get("stream1").getDeleted(), 1);
+    Assert.assertEquals(reports.get("stream1").getFailed().size(), 1);
+    Assert.assertTrue(deleter.getRate() < 100);
+  }
+
+  public void testCancel() throws Exception {
+    final List<ParallelDeleter> deleters = new ArrayList<ParallelDeleter>();
+    // the purger is stopped while deleting the first target
+    FileSystem stoppingFs = new FilterFileSystem(FileSystem.getLocal(
+        new Configuration())) {
+      @Override
+      public boolean delete(Path path, boolean recursive) throws IOException {
+        deleters.get(0).cancel();
+        return true;
+      }
+    };
+    List<ParallelDeleter.Target> targets = new ArrayList<ParallelDeleter.Target>();
+    for (int hour = 0; hour < 3; hour++) {
+      targets.add(new ParallelDeleter.Target("stream1", new Path("/tmp/"
+          + hour), hour, ParallelDeleter.SPAN_HOUR));
+    }
+    ParallelDeleter deleter = new ParallelDeleter(stoppingFs, 1, 0, 1000);
+    deleters.add(deleter);
+    Map<String, ParallelDeleter.StreamReport> reports = deleter
+        .delete(targets);
+    Assert.assertEquals(reports.get("stream1").getDeleted(), 1);
+    Assert.assertEquals(reports.get("stream1").getFailed().size(), 2);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class FileBundleTest {
+  private static final Path testDir = new Path("/tmp/filebundletest");
+
+  public void testPackUnpack() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(testDir, true);
+    Path srcDir = new Path(testDir, "src");
+    Path targetDir = new Path(testDir, "target");
+    Path bundlePath = new Path(testDir, "1_0" + FileBundle.BUNDLE_SUFFIX);
+
+    FileBundle.Writer writer = new FileBundle.Writer(fs, bundlePath);
+    for (int i = 0; i < 3; i++) {
+      Path src = new Path(srcDir, "file" + i);
+      FSDataOutputStream out = fs.create(src);
+      out.writeBytes("content of file" + i);
+      out.close();
+      writer.append(fs, src, "collector-stream-file" + i + ".gz");
+    }
+    writer.close();
+    Assert.assertEquals(writer.getFileCount(), 3);
+    Assert.assertTrue(FileBundle.isBundle(bundlePath.getName()));
+
+    List<Path> unpacked = FileBundle.unpack(fs, fs.getFileStatus(bundlePath),
+        targetDir);
+    Assert.assertEquals(unpacked.size(), 3);
+    for (int i = 0; i < 3; i++) {
+      Path target = new Path(targetDir, "collector-stream-file" + i + ".gz");
+      Assert.assertEquals(unpacked.get(i), target);
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+          fs.open(target)));
+      Assert.assertEquals(in.readLine(), "content of file" + i);
+      in.close();
+    }
+    fs.delete(testDir, true);
+  }
+
+  public void testPurgeUnreferenced() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(testDir, true);
+    Path bundleDir = new Path(testDir, "bundles");
+    Path manifestDir = new Path(testDir, "consumers");
+    Assert.assertEquals(FileBundle.purgeUnreferenced(fs, bundleDir,
+        manifestDir), 0);
+    for (int i = 0; i < 3; i++) {
+      fs.create(new Path(bundleDir, "1_" + i + FileBundle.BUNDLE_SUFFIX))
+          .close();
+    }
+    FSDataOutputStream out = fs.create(new Path(manifestDir, "1"));
+    out.writeBytes(new Path(bundleDir, "1_0" + FileBundle.BUNDLE_SUFFIX)
+        + "\n");
+    out.close();
+    // a bundle committed without its manifest
+    Assert.assertEquals(FileBundle.purgeUnreferenced(fs, bundleDir,
+        manifestDir), 2);
+    Assert.assertTrue(fs.exists(new Path(bundleDir, "1_0"
+        + FileBundle.BUNDLE_SUFFIX)));
+    Assert.assertFalse(fs.exists(new Path(bundleDir, "1_1"
+        + FileBundle.BUNDLE_SUFFIX)));
+    fs.delete(testDir, true);
+  }
+}
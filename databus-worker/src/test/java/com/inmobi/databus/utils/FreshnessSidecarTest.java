@@ -0,0 +1,55 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class FreshnessSidecarTest {
+  private static final Path testDir = new Path("/tmp/freshnesssidecartest");
+
+  public void testSidecarPath() {
+    Assert.assertEquals(FreshnessSidecar.getSidecarPath(new Path(
+        "/databus/system/consumers/cluster1/1234")), new Path(
+        "/databus/system/freshness/consumers/cluster1/1234"));
+    Assert.assertEquals(FreshnessSidecar.getSidecarPath(new Path(
+        "/databus/system/mirrors/cluster2/src_c1_via_c2_1234")), new Path(
+        "/databus/system/freshness/mirrors/cluster2/src_c1_via_c2_1234"));
+  }
+
+  public void testWriteRead() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(testDir, true);
+    Path sidecar = new Path(testDir, "1234");
+    Map<String, Long> originTimes = new HashMap<String, Long>();
+    originTimes.put("collector-stream-file0.gz", 1000L);
+    originTimes.put("collector-stream-file1.gz", 2000L);
+    FreshnessSidecar.write(fs, sidecar, originTimes);
+
+    Map<String, Long> read = new HashMap<String, Long>();
+    Assert.assertTrue(FreshnessSidecar.read(fs, sidecar, read));
+    Assert.assertEquals(read, originTimes);
+    // manifests of older workers have none
+    Assert.assertFalse(FreshnessSidecar.read(fs, new Path(testDir, "5678"),
+        read));
+    fs.delete(testDir, true);
+  }
+}
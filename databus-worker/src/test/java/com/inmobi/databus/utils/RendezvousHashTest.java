@@ -0,0 +1,69 @@
+/*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.inmobi.databus.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class RendezvousHashTest {
+
+  private List<String> getUnits(int count) {
+    List<String> units = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      units.add("MergedStreamService_cluster" + i + "_primary");
+    }
+    return units;
+  }
+
+  public void testSpread() {
+    List<String> workers = new ArrayList<String>();
+    for (int i = 0; i < 4; i++) {
+      workers.add("1234@host" + i);
+    }
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (String unit : getUnits(400)) {
+      String owner = RendezvousHash.getOwner(unit, workers);
+      Integer count = counts.get(owner);
+      counts.put(owner, count == null ? 1 : count + 1);
+    }
+    Assert.assertEquals(counts.size(), 4);
+    for (int count : counts.values()) {
+      Assert.assertTrue(count > 60 && count < 140, counts.toString());
+    }
+    Assert.assertNull(RendezvousHash.getOwner("unit",
+        new ArrayList<String>()));
+  }
+
+  public void testWorkerLoss() {
+    List<String> workers = new ArrayList<String>();
+    for (int i = 0; i < 5; i++) {
+      workers.add("1234@host" + i);
+    }
+    List<String> remaining = new ArrayList<String>(workers);
+    remaining.remove("1234@host2");
+    for (String unit : getUnits(200)) {
+      String before = RendezvousHash.getOwner(unit, workers);
+      String after = RendezvousHash.getOwner(unit, remaining);
+      // only the lost worker's units move
+      if (!before.equals("1234@host2"))
+        Assert.assertEquals(after, before);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.zookeeper;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.utils.RendezvousHash;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.retry.RetryOneTime;
+
+@Test
+public class CuratorShardManagerTest {
+  private static final File ZK_DIR = new File("/tmp/zkshard");
+  private static final long TIMEOUT_IN_MS = 60000;
+  private static final List<String> UNITS = Arrays.asList("unit0", "unit1",
+      "unit2", "unit3", "unit4", "unit5", "unit6", "unit7");
+  private ZooKeeperServer server;
+  private NIOServerCnxn.Factory factory;
+  private String connectString;
+
+  private static class RecordingListener implements
+      CuratorShardManager.ShardListener {
+    private final Set<String> running = new TreeSet<String>();
+    private final Set<String> fenced = new TreeSet<String>();
+
+    @Override
+    public synchronized void unitAcquired(String unit) {
+      Assert.assertTrue(running.add(unit), unit + " acquired twice");
+      fenced.remove(unit);
+    }
+
+    @Override
+    public synchronized void unitFenced(String unit) {
+      fenced.add(unit);
+    }
+
+    @Override
+    public synchronized void unitReleased(String unit) {
+      Assert.assertTrue(running.remove(unit), unit + " not running");
+    }
+
+    synchronized Set<String> getRunning() {
+      return new TreeSet<String>(running);
+    }
+
+    synchronized Set<String> getFenced() {
+      return new TreeSet<String>(fenced);
+    }
+  }
+
+  @BeforeClass
+  public void setup() throws Exception {
+    FileSystem.getLocal(new Configuration()).delete(
+        new Path(ZK_DIR.getPath()), true);
+    server = new ZooKeeperServer(ZK_DIR, ZK_DIR, 2000);
+    factory = new NIOServerCnxn.Factory(new InetSocketAddress(0));
+    factory.startup(server);
+    connectString = "localhost:" + factory.getLocalPort();
+  }
+
+  @AfterClass
+  public void cleanup() throws Exception {
+    factory.shutdown();
+    server.shutdown();
+    FileSystem.getLocal(new Configuration()).delete(
+        new Path(ZK_DIR.getPath()), true);
+  }
+
+  private CuratorFramework newClient() {
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        connectString, new RetryOneTime(3));
+    client.start();
+    return client;
+  }
+
+  private static Set<String> getExpected(String workerId,
+      List<String> workers) {
+    Set<String> expected = new TreeSet<String>();
+    for (String unit : UNITS) {
+      if (workerId.equals(RendezvousHash.getOwner(unit, workers)))
+        expected.add(unit);
+    }
+    return expected;
+  }
+
+  private static void awaitRunning(RecordingListener listener,
+      Set<String> expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_IN_MS;
+    while (!listener.getRunning().equals(expected)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    Assert.assertEquals(listener.getRunning(), expected);
+  }
+
+  public void testAcquireAndRebalance() throws Exception {
+    String basePath = "/databus/shards/rebalance";
+    CuratorFramework client1 = newClient();
+    RecordingListener listener1 = new RecordingListener();
+    CuratorShardManager manager1 = new CuratorShardManager(client1, basePath,
+        "worker1", UNITS, listener1);
+    manager1.start();
+    awaitRunning(listener1, new TreeSet<String>(UNITS));
+    for (String unit : UNITS) {
+      Assert.assertEquals(new String(client1.getData().forPath(basePath
+          + "/owners/" + unit), "UTF-8"), "worker1");
+    }
+
+    // a worker joining takes its units once released
+    CuratorFramework client2 = newClient();
+    RecordingListener listener2 = new RecordingListener();
+    CuratorShardManager manager2 = new CuratorShardManager(client2, basePath,
+        "worker2", UNITS, listener2);
+    manager2.start();
+    List<String> workers = Arrays.asList("worker1", "worker2");
+    awaitRunning(listener1, getExpected("worker1", workers));
+    awaitRunning(listener2, getExpected("worker2", workers));
+    Assert.assertFalse(getExpected("worker2", workers).isEmpty());
+
+    // a worker leaving releases its units to the others
+    manager2.close();
+    Assert.assertTrue(listener2.getRunning().isEmpty());
+    awaitRunning(listener1, new TreeSet<String>(UNITS));
+    Assert.assertEquals(manager1.getWorkers(), Collections
+        .singletonList("worker1"));
+
+    manager1.close();
+    Assert.assertTrue(listener1.getRunning().isEmpty());
+    Assert.assertTrue(client1.getChildren().forPath(basePath + "/owners")
+        .isEmpty());
+    client1.close();
+    client2.close();
+  }
+
+  public void testSuspend() throws Exception {
+    String basePath = "/databus/shards/suspend";
+    CuratorFramework client = newClient();
+    RecordingListener listener = new RecordingListener();
+    CuratorShardManager manager = new CuratorShardManager(client, basePath,
+        "worker1", UNITS, listener);
+    manager.start();
+    awaitRunning(listener, new TreeSet<String>(UNITS));
+
+    // fenced right away, before the units' work is waited for
+    manager.stateChanged(client, ConnectionState.SUSPENDED);
+    Assert.assertEquals(listener.getFenced(), new TreeSet<String>(UNITS));
+    awaitRunning(listener, new TreeSet<String>());
+    Assert.assertTrue(manager.getOwnedUnits().isEmpty());
+    // the ownerships are kept through the blip, nothing is taken till
+    // reconnected
+    Thread.sleep(100);
+    Assert.assertTrue(listener.getRunning().isEmpty());
+    Assert.assertEquals(client.getChildren().forPath(basePath + "/owners")
+        .size(), UNITS.size());
+
+    manager.stateChanged(client, ConnectionState.RECONNECTED);
+    awaitRunning(listener, new TreeSet<String>(UNITS));
+    Assert.assertTrue(listener.getFenced().isEmpty());
+    Assert.assertEquals(new ArrayList<String>(manager.getOwnedUnits()),
+        new ArrayList<String>(new TreeSet<String>(UNITS)));
+
+    manager.close();
+    client.close();
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.inmobi.databus.zookeeper;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.inmobi.databus.CheckpointProvider;
+import com.inmobi.databus.FSCheckpointProvider;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.RetryOneTime;
+
+@Test
+public class ZKCheckpointProviderTest {
+  private static final File ZK_DIR = new File("/tmp/zkcheckpoint");
+  private ZooKeeperServer server;
+  private NIOServerCnxn.Factory factory;
+  private String zkDir;
+
+  @BeforeClass
+  public void setup() throws Exception {
+    FileSystem.getLocal(new Configuration()).delete(
+        new Path(ZK_DIR.getPath()), true);
+    server = new ZooKeeperServer(ZK_DIR, ZK_DIR, 2000);
+    factory = new NIOServerCnxn.Factory(new InetSocketAddress(0));
+    factory.startup(server);
+    zkDir = "localhost:" + factory.getLocalPort() + "/databus/checkpoint";
+  }
+
+  @AfterClass
+  public void cleanup() throws Exception {
+    factory.shutdown();
+    server.shutdown();
+    FileSystem.getLocal(new Configuration()).delete(
+        new Path(ZK_DIR.getPath()), true);
+  }
+
+  public void testCheckpoint() throws Exception {
+    CheckpointProvider provider = new ZKCheckpointProvider(zkDir + "/test");
+    Assert.assertNull(provider.read("notpresent"));
+    provider.checkpoint("k1", "v1".getBytes());
+    Assert.assertEquals(new String(provider.read("k1")), "v1");
+
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put("k1", "v2".getBytes());
+    checkpoints.put("k2", "v2".getBytes());
+    provider.checkpoint(checkpoints);
+    provider.close();
+
+    provider = new ZKCheckpointProvider(zkDir + "/test");
+    Map<String, byte[]> all = provider.readAll();
+    Assert.assertEquals(all.size(), 2);
+    Assert.assertEquals(new String(all.get("k1")), "v2");
+    Assert.assertEquals(new String(all.get("k2")), "v2");
+    provider.close();
+  }
+
+  public void testStaleWriterFails() throws Exception {
+    CheckpointProvider stale = new ZKCheckpointProvider(zkDir + "/fence");
+    stale.checkpoint("k1", "old".getBytes());
+    CheckpointProvider leader = new ZKCheckpointProvider(zkDir + "/fence");
+    leader.checkpoint("k1", "new".getBytes());
+    try {
+      stale.checkpoint("k1", "stale".getBytes());
+      Assert.fail("stale writer overwrote the checkpoint");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    Assert.assertEquals(new String(leader.read("k1")), "new");
+    stale.close();
+    leader.close();
+  }
+
+  public void testRollForward() throws Exception {
+    CheckpointProvider provider = new ZKCheckpointProvider(zkDir + "/txn");
+    provider.checkpoint("k1", "v1".getBytes());
+    // a crash after the transaction was written but before it was applied
+    provider.checkpoint(ZKCheckpointProvider.TXN, encodeTxn("crashed", 0,
+        "v2"));
+    provider.close();
+
+    provider = new ZKCheckpointProvider(zkDir + "/txn");
+    Map<String, byte[]> all = provider.readAll();
+    Assert.assertEquals(all.size(), 2);
+    Assert.assertEquals(new String(all.get("k1")), "v2");
+    Assert.assertEquals(new String(all.get("k2")), "v2");
+    provider.close();
+  }
+
+  public void testSharedClient() throws Exception {
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        ZKCheckpointProvider.getConnectString(zkDir), new RetryOneTime(3));
+    client.start();
+    String basePath = ZKCheckpointProvider.getBasePath(zkDir) + "/shared";
+    // eg: the new leader, created before the old one crashed mid transaction
+    CheckpointProvider leader = new ZKCheckpointProvider(client, basePath);
+    CheckpointProvider old = new ZKCheckpointProvider(client, basePath);
+    old.checkpoint("k1", "v1".getBytes());
+    old.checkpoint(ZKCheckpointProvider.TXN, encodeTxn("old", 0, "v2"));
+    old.close();
+
+    // rolled forward when read, not only when created
+    Map<String, byte[]> all = leader.readAll();
+    Assert.assertEquals(all.size(), 2);
+    Assert.assertEquals(new String(all.get("k1")), "v2");
+    leader.checkpoint("k1", "v3".getBytes());
+    Assert.assertEquals(new String(leader.read("k1")), "v3");
+    leader.close();
+    // closing the providers leaves the shared session open
+    Assert.assertNotNull(client.checkExists().forPath(basePath + "/k1"));
+    client.close();
+  }
+
+  public void testStaleTransactionDiscarded() throws Exception {
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        ZKCheckpointProvider.getConnectString(zkDir), new RetryOneTime(3));
+    client.start();
+    String basePath = ZKCheckpointProvider.getBasePath(zkDir) + "/stale";
+    CheckpointProvider stale = new ZKCheckpointProvider(client, basePath);
+    stale.checkpoint("k1", "old".getBytes());
+    CheckpointProvider leader = new ZKCheckpointProvider(client, basePath);
+    leader.checkpoint("k1", "new".getBytes());
+
+    // fenced off, leaves no transaction behind
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put("k1", "stale".getBytes());
+    checkpoints.put("k2", "stale".getBytes());
+    try {
+      stale.checkpoint(checkpoints);
+      Assert.fail("stale writer overwrote the checkpoint");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    Assert.assertNull(client.checkExists().forPath(basePath + "/"
+        + ZKCheckpointProvider.TXN));
+    Assert.assertNull(leader.read("k2"));
+
+    // eg: the stale writer crashed before it could remove its transaction
+    stale.checkpoint(ZKCheckpointProvider.TXN, encodeTxn("stale", 0,
+        "stale"));
+    Map<String, byte[]> all = leader.readAll();
+    Assert.assertEquals(all.size(), 1);
+    Assert.assertEquals(new String(all.get("k1")), "new");
+    Assert.assertNull(client.checkExists().forPath(basePath + "/"
+        + ZKCheckpointProvider.TXN));
+    stale.close();
+    leader.close();
+    client.close();
+  }
+
+  /*
+   * A transaction writing k1 at version k1Version and creating k2
+   */
+  private static byte[] encodeTxn(String writer, int k1Version, String value)
+      throws Exception {
+    Map<String, byte[]> checkpoints = new HashMap<String, byte[]>();
+    checkpoints.put("k1", value.getBytes());
+    checkpoints.put("k2", value.getBytes());
+    Map<String, Integer> expectedVersions = new HashMap<String, Integer>();
+    expectedVersions.put("k1", k1Version);
+    expectedVersions.put("k2", -1);
+    return ZKCheckpointProvider.encode(new ZKCheckpointProvider.Transaction(
+        writer, checkpoints, expectedVersions));
+  }
+
+  public void testMigration() throws Exception {
+    String fsDir = "/tmp/zkcheckpointmigration";
+    FileSystem.getLocal(new Configuration()).delete(new Path(fsDir), true);
+    new FSCheckpointProvider(fsDir).checkpoint("collector1",
+        "file1".getBytes());
+    new FSCheckpointProvider(fsDir, "purge").checkpoint("stream1",
+        "1000".getBytes());
+
+    Assert.assertEquals(CheckpointMigrationTool.migrate(fsDir, zkDir
+        + "/migrated"), 2);
+    CheckpointProvider provider = new ZKCheckpointProvider(zkDir
+        + "/migrated/" + FSCheckpointProvider.DEFAULT_NAME);
+    Assert.assertEquals(new String(provider.read("collector1")), "file1");
+    provider.close();
+    provider = new ZKCheckpointProvider(zkDir + "/migrated/purge");
+    Assert.assertEquals(new String(provider.read("stream1")), "1000");
+    provider.close();
+    FileSystem.getLocal(new Configuration()).delete(new Path(fsDir), true);
+  }
+}
@@ -145,6 +145,13 @@ case $startStop in
      java -cp "$CLASSPATH" com.inmobi.databus.utils.CollapseFilesInDir $hdfsName $dir
      ;;
 
+  (migratecheckpoints)
+
+     checkpointDir=$var2
+     zkDir=$var3
+     java -cp "$CLASSPATH" com.inmobi.databus.zookeeper.CheckpointMigrationTool $checkpointDir $zkDir
+     ;;
+
   (*)
     echo $usage
     exit 1